@@ -0,0 +1,194 @@
+package se.osdsquash.common;
+
+import java.util.Calendar;
+
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Allocation free date handling for the hot paths, e.g. the customer list and invoice tables,
+ * that are painted and sorted over and over again.
+ *
+ * <p>
+ * Dates are handled as epoch days (days since 1970-01-01) and start times as minutes of the
+ * day, read directly from the fields of the XML calendars. The XML calendars are still what is
+ * stored, this is only a compact view of them, so nothing has to be kept in sync.
+ * </p>
+ */
+public abstract class CompactDates {
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    // Formatted start times, filled in when first asked for
+    private static final String[] MINUTE_OF_DAY_STRINGS = new String[MINUTES_PER_DAY];
+
+    // The current day, replaced when the clock passes midnight
+    private static volatile Today today = new Today(System.currentTimeMillis());
+
+    /**
+     * Returns the epoch day of an XML calendar, from its year, month and day fields.
+     * The time zone is not taken into account, the day is the one written in the calendar.
+     * @param xmlCalendar An XML calendar with a date
+     * @return Days since 1970-01-01
+     */
+    public static int epochDay(XMLGregorianCalendar xmlCalendar) {
+        return epochDay(xmlCalendar.getYear(), xmlCalendar.getMonth(), xmlCalendar.getDay());
+    }
+
+    /**
+     * Returns the epoch day of a date
+     * @param year The year, e.g. 2016
+     * @param month The month, 1 to 12
+     * @param day The day of the month, 1 to 31
+     * @return Days since 1970-01-01
+     */
+    public static int epochDay(int year, int month, int day) {
+
+        // Counts from March, so the leap day is the last day of the year
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Returns the minute of the day of an XML calendar, from its hour and minute fields
+     * @param xmlCalendar An XML calendar with a time
+     * @return Minutes since midnight, 0 if the calendar has no time
+     */
+    public static short minuteOfDay(XMLGregorianCalendar xmlCalendar) {
+
+        int hour = xmlCalendar.getHour();
+        int minute = xmlCalendar.getMinute();
+        if (hour == DatatypeConstants.FIELD_UNDEFINED) {
+            return 0;
+        }
+        return (short) (hour * 60 + (minute == DatatypeConstants.FIELD_UNDEFINED ? 0 : minute));
+    }
+
+    /**
+     * Returns a key that orders XML calendars by the point in time they represent.
+     * Calendars without a time zone are taken as UTC, and calendars without a time as midnight.
+     * @param xmlCalendar An XML calendar
+     * @return Milliseconds since 1970-01-01 UTC
+     */
+    public static long sortKey(XMLGregorianCalendar xmlCalendar) {
+
+        long key = epochDay(xmlCalendar) * MILLIS_PER_DAY;
+        int hour = xmlCalendar.getHour();
+        if (hour != DatatypeConstants.FIELD_UNDEFINED) {
+            key += hour * 60 * MILLIS_PER_MINUTE
+                + xmlCalendar.getMinute() * MILLIS_PER_MINUTE
+                + xmlCalendar.getSecond() * 1000L;
+            if (xmlCalendar.getFractionalSecond() != null) {
+                key += xmlCalendar.getMillisecond();
+            }
+        }
+        int timezone = xmlCalendar.getTimezone();
+        if (timezone != DatatypeConstants.FIELD_UNDEFINED) {
+            key -= timezone * MILLIS_PER_MINUTE;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the epoch day of today, in the default time zone
+     * @return Days since 1970-01-01
+     */
+    public static int today() {
+
+        long now = System.currentTimeMillis();
+        Today current = today;
+        if (now >= current.endMillis || now < current.startMillis) {
+            current = new Today(now);
+            today = current;
+        }
+        return current.epochDay;
+    }
+
+    /**
+     * Formats an epoch day as yyyy-MM-dd
+     * @param epochDay Days since 1970-01-01
+     * @return The printable date
+     */
+    public static String formatEpochDay(int epochDay) {
+
+        // The reverse of epochDay(int, int, int)
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] chars = new char[10];
+        chars[0] = (char) ('0' + year / 1000 % 10);
+        chars[1] = (char) ('0' + year / 100 % 10);
+        chars[2] = (char) ('0' + year / 10 % 10);
+        chars[3] = (char) ('0' + year % 10);
+        chars[4] = '-';
+        chars[5] = (char) ('0' + month / 10);
+        chars[6] = (char) ('0' + month % 10);
+        chars[7] = '-';
+        chars[8] = (char) ('0' + day / 10);
+        chars[9] = (char) ('0' + day % 10);
+        return new String(chars);
+    }
+
+    /**
+     * Formats a minute of the day as HH:mm. The strings are shared, so this does not
+     * allocate after the first call for a given time.
+     * @param minuteOfDay Minutes since midnight
+     * @return The printable time
+     */
+    public static String formatMinuteOfDay(int minuteOfDay) {
+
+        int index = Math.floorMod(minuteOfDay, MINUTES_PER_DAY);
+        String formatted = MINUTE_OF_DAY_STRINGS[index];
+        if (formatted == null) {
+            int hour = index / 60;
+            int minute = index % 60;
+            formatted = new String(
+                new char[] {
+                    (char) ('0' + hour / 10),
+                    (char) ('0' + hour % 10),
+                    ':',
+                    (char) ('0' + minute / 10),
+                    (char) ('0' + minute % 10)});
+            // Racing threads create equal strings, so no locking is needed
+            MINUTE_OF_DAY_STRINGS[index] = formatted;
+        }
+        return formatted;
+    }
+
+    // The epoch day of today, and the local time span it covers
+    private static final class Today {
+
+        private final int epochDay;
+        private final long startMillis;
+        private final long endMillis;
+
+        private Today(long now) {
+
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(now);
+            this.epochDay = CompactDates.epochDay(
+                calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1,
+                calendar.get(Calendar.DAY_OF_MONTH));
+
+            SquashUtil.timeZeroCalendar(calendar);
+            this.startMillis = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            this.endMillis = calendar.getTimeInMillis();
+        }
+    }
+}
@@ -36,6 +36,12 @@ public abstract class SquashProperties {
             INVOICE_PHONE = properties.getProperty("invoice.phonenr");
             INVOICE_EMAIL = properties.getProperty("invoice.email");
             INVOICE_DAYS_DUE = Integer.parseInt(properties.getProperty("invoice.days.due"));
+            INVOICE_RENDER_THREADS = Integer
+                .parseInt(properties.getProperty("invoice.render.threads"));
+            INVOICE_TEMPLATES = Boolean
+                .parseBoolean(properties.getProperty("invoice.templates"));
+            INVOICE_WRITER = properties.getProperty("invoice.writer");
+            INVOICE_OUTPUT = properties.getProperty("invoice.output");
             TRACK_PRICE_PERSON = Integer
                 .parseInt(properties.getProperty("subscription.person.price"));
             TRACK_PRICE_COMPANY = Integer
@@ -45,6 +51,21 @@ public abstract class SquashProperties {
             LAST_TRACK_HOUR = Integer.parseInt(properties.getProperty("track.last.nr"));
             FIRST_TRACK_NR = Integer.parseInt(properties.getProperty("booking.first.hour"));
             LAST_TRACK_NR = Integer.parseInt(properties.getProperty("booking.last.hour"));
+            JOURNAL_CHECKPOINT_RECORDS = Integer
+                .parseInt(properties.getProperty("repository.journal.checkpoint.records"));
+            STREAMING_LOAD = Boolean
+                .parseBoolean(properties.getProperty("repository.load.streaming"));
+            PERSIST_WINDOW_MILLIS = Integer
+                .parseInt(properties.getProperty("repository.persist.window.millis"));
+            REPOSITORY_STORE = properties.getProperty("repository.store");
+            SEQUENCE_BLOCK_SIZE = Integer
+                .parseInt(properties.getProperty("repository.sequence.block.size"));
+            BACKGROUND_VALIDATION = Boolean
+                .parseBoolean(properties.getProperty("repository.validation.background"));
+            HISTORY_CACHE_SIZE = Integer
+                .parseInt(properties.getProperty("repository.history.cache.size"));
+            ARCHIVE_AGE_MONTHS = Integer
+                .parseInt(properties.getProperty("repository.archive.age.months"));
 
         } catch (Exception exception) {
             throw new RuntimeException(
@@ -97,6 +118,29 @@ public abstract class SquashProperties {
      */
     public static int INVOICE_DAYS_DUE = 30;
 
+    /**
+     * Number of threads rendering invoices in an invoice run, 0 for one per processor
+     */
+    public static int INVOICE_RENDER_THREADS = 0;
+
+    /**
+     * True if to render the invoices of an invoice run from templates built once per run,
+     * false to build each invoice in full
+     */
+    public static boolean INVOICE_TEMPLATES = true;
+
+    /**
+     * The writer of the invoice files in an invoice run, "poi" to write them with POI,
+     * "direct" to write the .xlsx parts directly
+     */
+    public static String INVOICE_WRITER = "poi";
+
+    /**
+     * The output of an invoice run, "files" for one invoice file per customer,
+     * "batch" for one workbook with all invoices of the run
+     */
+    public static String INVOICE_OUTPUT = "files";
+
     /**
      * The track subscription price in SEK for a person, 6 months
      */
@@ -131,4 +175,47 @@ public abstract class SquashProperties {
      * Last bookable track number
      */
     public static Integer LAST_TRACK_NR = Integer.valueOf(2);
+
+    /**
+     * Number of journal records after which the whole database is re-written right away
+     */
+    public static int JOURNAL_CHECKPOINT_RECORDS = 200;
+
+    /**
+     * True to load the XML database with the streaming, parallel loader
+     */
+    public static boolean STREAMING_LOAD = true;
+
+    /**
+     * Milliseconds to wait for more changes before the whole database is re-written
+     */
+    public static int PERSIST_WINDOW_MILLIS = 2000;
+
+    /**
+     * How the database is stored: "binary" (one binary file), "segments" (one file per
+     * customer), "sql" (an embedded H2 database) or "xml" (one XML file)
+     */
+    public static String REPOSITORY_STORE = "binary";
+
+    /**
+     * Number of customer or invoice numbers reserved on disk at a time
+     */
+    public static int SEQUENCE_BLOCK_SIZE = 100;
+
+    /**
+     * True to load the XML database without schema validation, and validate it in the
+     * background once the program has started
+     */
+    public static boolean BACKGROUND_VALIDATION = true;
+
+    /**
+     * Number of customers whose paid and cancelled invoices are kept in memory once read
+     */
+    public static int HISTORY_CACHE_SIZE = 50;
+
+    /**
+     * Age in months, from the created date, after which paid and cancelled invoices are
+     * moved to the read-only yearly archive
+     */
+    public static int ARCHIVE_AGE_MONTHS = 24;
 }
@@ -27,8 +27,14 @@ public abstract class SquashUtil {
     // The time format (HH:mm) for track start times, e.g. when a track is booked.
     private static final String START_TIME_DATE_FORMAT = "HH:mm";
 
-    // Default date format
-    private static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd";
+    private static final DatatypeFactory DATATYPE_FACTORY;
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
 
     /**
      * Description for the "flex time subscription, e.g. free time once a week"
@@ -202,8 +208,7 @@ public abstract class SquashUtil {
             return null;
         }
 
-        final SimpleDateFormat trackTimeFormat = new SimpleDateFormat(START_TIME_DATE_FORMAT);
-        return trackTimeFormat.format(xmlCalendar.toGregorianCalendar().getTime());
+        return CompactDates.formatMinuteOfDay(CompactDates.minuteOfDay(xmlCalendar));
     }
 
     /**
@@ -222,9 +227,9 @@ public abstract class SquashUtil {
 
             GregorianCalendar gregorianCal = new GregorianCalendar();
             gregorianCal.setTime(trackTimeFormat.parse(trackTime));
-            return DatatypeFactory.newInstance().newXMLGregorianCalendar(gregorianCal);
+            return DATATYPE_FACTORY.newXMLGregorianCalendar(gregorianCal);
 
-        } catch (ParseException | DatatypeConfigurationException exception) {
+        } catch (ParseException exception) {
             throw new RuntimeException(exception);
         }
     }
@@ -334,8 +339,7 @@ public abstract class SquashUtil {
         if (xmlCalendar == null) {
             return null;
         }
-        return new SimpleDateFormat(DEFAULT_DATE_FORMAT)
-            .format(xmlCalendar.toGregorianCalendar().getTime());
+        return CompactDates.formatEpochDay(CompactDates.epochDay(xmlCalendar));
     }
 
     /**
@@ -367,9 +371,6 @@ public abstract class SquashUtil {
      */
     public static boolean isOverdue(InvoiceType invoice) {
 
-        GregorianCalendar todayCal = new GregorianCalendar();
-        todayCal.setTimeInMillis(SquashUtil.getTimeZeroedCalendar().getTimeInMillis());
-
         InvoiceStatusType status = invoice.getInvoiceStatus();
 
         // If the invoice is "active", check for a passed due date
@@ -379,7 +380,7 @@ public abstract class SquashUtil {
 
             XMLGregorianCalendar dueDateXmlCal = invoice.getDueDate();
             if (dueDateXmlCal != null) {
-                if (todayCal.after(dueDateXmlCal.toGregorianCalendar())) {
+                if (CompactDates.epochDay(dueDateXmlCal) < CompactDates.today()) {
                     // Due date passed, mark as overdue
                     return true;
                 }
@@ -0,0 +1,649 @@
+package se.osdsquash.excel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.ShapeTypes;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFCell;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFDrawing;
+import org.apache.poi.xssf.usermodel.XSSFHyperlink;
+import org.apache.poi.xssf.usermodel.XSSFSimpleShape;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import se.osdsquash.excel.DirectInvoiceWriter.DirectCell;
+import se.osdsquash.excel.DirectInvoiceWriter.DirectRow;
+import se.osdsquash.excel.DirectInvoiceWriter.DirectSheet;
+import se.osdsquash.logger.SquashLogger;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Writes all invoices of an invoice run to one workbook, instead of one file per customer.
+ *
+ * <p>
+ * The workbook has a summary sheet with the invoice nr, customer, amount and due date of each
+ * invoice, followed by one sheet per invoice, laid out like the invoice files. The sheets are
+ * written with the POI streaming API: the rows of a sheet are flushed to a temporary file as
+ * soon as the sheet is done, so the memory used does not grow with the rows of the run. Only
+ * the sheet headers, lines and links are kept until the workbook is written. The temporary
+ * file of each sheet stays open until then, so a run uses a file handle per invoice.
+ * </p>
+ * <p>
+ * The invoices keep the file path of a file of their own, but that file is not written by the
+ * run. It is extracted from the run's workbook when first needed, see
+ * <code>extractInvoiceFile</code>. A workbook must only be used by one thread.
+ * </p>
+ */
+public class BatchInvoiceWorkbook {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    /**
+     * Writes one invoice file per customer
+     */
+    public static final String FILES_OUTPUT = "files";
+
+    /**
+     * Writes one workbook for the whole invoice run
+     */
+    public static final String BATCH_OUTPUT = "batch";
+
+    private static final String SUMMARY_SHEET_NAME = "Sammanställning";
+    private static final String BATCH_FILE_PREFIX = "Fakturor_";
+    private static final String INVOICE_FILE_TIMESTAMP_FORMAT = "yyyyMMdd";
+    private static final String INVOICE_CREATION_DATE_FORMAT = "yyyy-MM-dd";
+
+    // Nr of rows kept in memory per sheet, an invoice sheet has less than this
+    private static final int ROW_WINDOW = 100;
+
+    private static final String MAIN_NAMESPACE =
+        "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS_NAMESPACE =
+        "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String PACKAGE_RELATIONSHIPS_NAMESPACE =
+        "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    private static final InvoiceStyle HEADER_STYLE = InvoiceStyle.DEFAULT
+        .withFont(true, false, false)
+        .withBorders(
+            CellStyle.BORDER_NONE,
+            CellStyle.BORDER_THIN,
+            CellStyle.BORDER_NONE,
+            CellStyle.BORDER_NONE);
+    private static final InvoiceStyle AMOUNT_STYLE = InvoiceStyle.DEFAULT
+        .withDataFormat(InvoiceCell.EXCEL_CURRENCY_FORMAT)
+        .withAlignment(CellStyle.ALIGN_RIGHT);
+    private static final InvoiceStyle TOTAL_STYLE = InvoiceStyle.DEFAULT
+        .withFont(true, false, false)
+        .withBorders(
+            CellStyle.BORDER_THIN,
+            CellStyle.BORDER_NONE,
+            CellStyle.BORDER_NONE,
+            CellStyle.BORDER_NONE);
+    private static final InvoiceStyle TOTAL_AMOUNT_STYLE = AMOUNT_STYLE
+        .withFont(true, false, false)
+        .withBorders(
+            CellStyle.BORDER_THIN,
+            CellStyle.BORDER_NONE,
+            CellStyle.BORDER_NONE,
+            CellStyle.BORDER_NONE);
+
+    private final DirectInvoiceWriter layoutWriter;
+    private final SXSSFWorkbook workbook;
+    private final InvoiceStyleRegistry styleRegistry;
+    private final SXSSFSheet summarySheet;
+    private final String invoicesDayDirPath;
+    private final String fileTimestamp;
+
+    private File workbookFile;
+    private int invoiceCount = 0;
+    private double totalAmount = 0d;
+    private int firstInvoiceNr = Integer.MAX_VALUE;
+    private int lastInvoiceNr = Integer.MIN_VALUE;
+
+    /**
+     * Creates an empty workbook for an invoice run, having the summary sheet only
+     *
+     * @param xmlRepository The repository, creating the invoice meta-data objects
+     * @param dueDays Nr of due days from the creation date, when invoice must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @param invoiceCreationCal The creation time of the invoices, e.g. the start of the run
+     */
+    public BatchInvoiceWorkbook(
+        XmlRepository xmlRepository,
+        int dueDays,
+        boolean nextPeriod,
+        Calendar invoiceCreationCal) {
+
+        this.layoutWriter = new DirectInvoiceWriter(
+            xmlRepository,
+            dueDays,
+            nextPeriod,
+            invoiceCreationCal);
+        this.invoicesDayDirPath = XmlRepository.INVOICES_DIR_PATH
+            + "/"
+            + new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
+                .format(invoiceCreationCal.getTime());
+        this.fileTimestamp = new SimpleDateFormat(INVOICE_FILE_TIMESTAMP_FORMAT)
+            .format(invoiceCreationCal.getTime());
+
+        // Inline strings, since a shared strings table would grow with the run. The temporary
+        // files are not compressed, since each open one would hold a deflater.
+        this.workbook = new SXSSFWorkbook(null, ROW_WINDOW, false, false);
+        this.styleRegistry = new InvoiceStyleRegistry(this.workbook.getXSSFWorkbook());
+
+        this.summarySheet = this.workbook.createSheet(SUMMARY_SHEET_NAME);
+        this.summarySheet.setColumnWidth(0, 12 * 256);
+        this.summarySheet.setColumnWidth(1, 40 * 256);
+        this.summarySheet.setColumnWidth(2, 14 * 256);
+        this.summarySheet.setColumnWidth(3, 14 * 256);
+        this.summarySheet.createFreezePane(0, 1);
+
+        SXSSFRow headerRow = this.summarySheet.createRow(0);
+        String[] headers = {"FakturaNr", "Kund", "Belopp", "Förfallodag"};
+        for (int i = 0; i < headers.length; i++) {
+            SXSSFCell headerCell = headerRow.createCell(i);
+            headerCell.setCellValue(headers[i]);
+            headerCell.setCellStyle(this.styleRegistry.getCellStyle(HEADER_STYLE));
+        }
+    }
+
+    /**
+     * Adds a sheet for a new invoice, and a row for it in the summary sheet.
+     * <p>
+     * NOTE: The returned invoice is NOT connected to the customer, that is up to the caller.
+     * </p>
+     *
+     * @param customer A valid customer to create invoice for
+     * @param invoiceNr The invoice nr to use, must be reserved in the repository
+     * @return The invoice meta-data
+     * @throws IOException If the rows can't be flushed to the temporary file
+     */
+    public InvoiceType addInvoice(CustomerType customer, int invoiceNr) throws IOException {
+
+        CustomerInfoType customerInfo = customer.getCustomerInfo();
+        DirectSheet invoiceLayout = this.layoutWriter.layoutSheet(customer, invoiceNr);
+
+        SXSSFSheet invoiceSheet = this.workbook.createSheet(
+            WorkbookUtil.createSafeSheetName(
+                invoiceNr + " " + ExcelHandler.getCustomerNameText(customerInfo).trim()));
+        this.writeInvoiceSheet(invoiceSheet, invoiceLayout);
+
+        // Flush the rows to the sheet's temporary file. The file is left open, since writing
+        // the workbook closes it, and POI fails if it is already closed.
+        invoiceSheet.flushRows();
+
+        // The summary rows are flushed as the run goes on, so they are counted here
+        this.invoiceCount++;
+        SXSSFRow summaryRow = this.summarySheet.createRow(this.invoiceCount);
+        summaryRow.createCell(0).setCellValue(invoiceNr);
+        summaryRow.createCell(1).setCellValue(
+            customerInfo.getCustomerNumber()
+                + " "
+                + ExcelHandler.getCustomerNameText(customerInfo));
+        SXSSFCell amountCell = summaryRow.createCell(2);
+        amountCell.setCellValue(invoiceLayout.getTotalPrice());
+        amountCell.setCellStyle(this.styleRegistry.getCellStyle(AMOUNT_STYLE));
+        summaryRow.createCell(3).setCellValue(this.layoutWriter.getDueDateString());
+
+        this.totalAmount += invoiceLayout.getTotalPrice();
+        this.firstInvoiceNr = Math.min(this.firstInvoiceNr, invoiceNr);
+        this.lastInvoiceNr = Math.max(this.lastInvoiceNr, invoiceNr);
+
+        return this.layoutWriter.createInvoice(customer, invoiceNr, invoiceLayout);
+    }
+
+    /**
+     * Adds the total row to the summary sheet, and writes the workbook to the invoices
+     * directory of the run's day. A failed write does not leave a half-written file behind.
+     *
+     * @return The written workbook file
+     * @throws IOException If the file can't be written
+     */
+    public File write() throws IOException {
+
+        SXSSFRow totalRow = this.summarySheet.createRow(this.invoiceCount + 1);
+        SXSSFCell totalTextCell = totalRow.createCell(1);
+        totalTextCell.setCellValue("Totalt");
+        totalTextCell.setCellStyle(this.styleRegistry.getCellStyle(TOTAL_STYLE));
+        SXSSFCell totalAmountCell = totalRow.createCell(2);
+        totalAmountCell.setCellValue(this.totalAmount);
+        totalAmountCell.setCellStyle(this.styleRegistry.getCellStyle(TOTAL_AMOUNT_STYLE));
+        totalRow.createCell(0).setCellStyle(this.styleRegistry.getCellStyle(TOTAL_STYLE));
+        totalRow.createCell(3).setCellStyle(this.styleRegistry.getCellStyle(TOTAL_STYLE));
+
+        File invoicesDayDir = new File(this.invoicesDayDirPath);
+        if (!invoicesDayDir.exists()) {
+            invoicesDayDir.mkdirs();
+        }
+
+        String range = this.invoiceCount > 0
+            ? this.firstInvoiceNr + "-" + this.lastInvoiceNr
+            : "0-0";
+        this.workbookFile = new File(
+            invoicesDayDir,
+            BATCH_FILE_PREFIX + range + "_" + this.fileTimestamp + ".xlsx");
+
+        FileOutputStream fileOutput = new FileOutputStream(this.workbookFile, false);
+        boolean fileCompleted = false;
+        try {
+            this.workbook.write(fileOutput);
+            fileCompleted = true;
+        } finally {
+            try {
+                fileOutput.close();
+            } catch (Exception ex) {
+                //Ignore this...
+            }
+
+            // Don't leave a half-written workbook behind
+            if (!fileCompleted) {
+                this.workbookFile.delete();
+            }
+        }
+        return this.workbookFile;
+    }
+
+    /**
+     * Deletes the temporary files of the sheets. Must be called when done with the workbook.
+     */
+    public void dispose() {
+        this.workbook.dispose();
+    }
+
+    /**
+     * Deletes the written workbook file, if any, e.g. when the invoice run is rolled back
+     */
+    public void deleteFile() {
+
+        if (this.workbookFile != null
+            && this.workbookFile.isFile()
+            && !this.workbookFile.delete()) {
+            logger.log(
+                "Varning: Kunde ej radera fakturafil vid avbruten körning: "
+                    + this.workbookFile.getAbsolutePath(),
+                true);
+        }
+    }
+
+    /**
+     * Creates the invoices of a whole invoice run, and writes them to this workbook.
+     * <p>
+     * NOTE: The returned invoices are NOT connected to the customers, that is up to the caller.
+     * If the run fails or is cancelled, no workbook is left behind.
+     * </p>
+     *
+     * @param customers The customers to create invoices for
+     * @param invoiceNrs Reserved invoice numbers, one per customer, in the same order
+     * @param runControl Control to cancel the run and follow its progress, or null
+     * @return The invoice meta-data objects, in customer order
+     * @throws java.util.concurrent.CancellationException If the run was cancelled
+     */
+    public List<InvoiceType> createInvoices(
+        List<CustomerType> customers,
+        int[] invoiceNrs,
+        InvoiceRunControl runControl) {
+
+        long start = System.nanoTime();
+        InvoiceRunControl control = runControl != null ? runControl : new InvoiceRunControl();
+        control.start(customers.size());
+        boolean completed = false;
+        try {
+            List<InvoiceType> invoices = new ArrayList<>(customers.size());
+            for (int i = 0; i < customers.size(); i++) {
+                control.checkCancelled();
+                invoices.add(this.addInvoice(customers.get(i), invoiceNrs[i]));
+                control.invoiceCompleted();
+            }
+            File writtenFile = this.write();
+
+            logger.log(
+                "Created "
+                    + invoices.size()
+                    + " invoices in "
+                    + writtenFile.getPath()
+                    + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + " ms",
+                false);
+
+            completed = true;
+            return invoices;
+
+        } catch (IOException exception) {
+            throw new RuntimeException("Kunde ej skriva fakturaarbetsboken", exception);
+
+        } finally {
+            this.dispose();
+            if (!completed) {
+                this.deleteFile();
+            }
+        }
+    }
+
+    /**
+     * Writes the file of an invoice that was created in a run written to one workbook,
+     * by extracting its sheet from the run's workbook. Nothing is done if the file exists.
+     *
+     * @param invoice The invoice
+     * @return True if the file exists or was extracted, false if no workbook has the invoice
+     * @throws IOException If the workbook can't be read, or the file can't be written
+     */
+    public static boolean extractInvoiceFile(InvoiceType invoice) throws IOException {
+
+        File invoiceFile = new File(invoice.getRelativeFilePath());
+        if (invoiceFile.isFile()) {
+            return true;
+        }
+
+        File[] workbookFiles = invoiceFile.getAbsoluteFile().getParentFile().listFiles();
+        if (workbookFiles == null) {
+            return false;
+        }
+
+        for (File workbookFile : workbookFiles) {
+            if (isWorkbookOfInvoice(workbookFile.getName(), invoice.getInvoiceNumber())) {
+                try (ZipFile workbookZip = new ZipFile(workbookFile)) {
+                    if (extractInvoiceFile(workbookZip, invoice.getInvoiceNumber(), invoiceFile)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // True if a file is a run's workbook, named for an invoice nr range having given nr
+    private static boolean isWorkbookOfInvoice(String filename, int invoiceNr) {
+
+        if (!filename.startsWith(BATCH_FILE_PREFIX) || !filename.endsWith(".xlsx")) {
+            return false;
+        }
+        String[] range = filename.substring(BATCH_FILE_PREFIX.length()).split("[-_]");
+        try {
+            return range.length > 2
+                && Integer.parseInt(range[0]) <= invoiceNr
+                && Integer.parseInt(range[1]) >= invoiceNr;
+        } catch (NumberFormatException exception) {
+            return false;
+        }
+    }
+
+    // Writes the sheet, rows and drawing of an invoice, like the ExcelHandler does
+    private void writeInvoiceSheet(SXSSFSheet invoiceSheet, DirectSheet invoiceLayout) {
+
+        // The width is given as 1/256 of a character
+        invoiceSheet.setColumnWidth(0, 3 * 256);
+        invoiceSheet.setColumnWidth(1, 42 * 256);
+        invoiceSheet.setColumnWidth(2, 13 * 256);
+        invoiceSheet.setColumnWidth(3, 14 * 256);
+        invoiceSheet.setDefaultColumnWidth(10);
+        invoiceSheet.setDefaultRowHeightInPoints(15);
+        invoiceSheet.setDisplayGridlines(false);
+        invoiceSheet.setZoom(100);
+
+        for (DirectRow layoutRow : invoiceLayout.getRows()) {
+            SXSSFRow row = invoiceSheet.createRow(layoutRow.getIndex());
+            if (layoutRow.getHeightInPoints() > 0) {
+                row.setHeightInPoints(layoutRow.getHeightInPoints());
+            }
+            for (DirectCell layoutCell : layoutRow.getCells()) {
+                SXSSFCell cell = row.createCell(layoutCell.getColumn());
+                if (layoutCell.getText() != null) {
+                    cell.setCellValue(layoutCell.getText());
+                }
+                if (!layoutCell.getStyle().equals(InvoiceStyle.DEFAULT)) {
+                    cell.setCellStyle(this.styleRegistry.getCellStyle(layoutCell.getStyle()));
+                }
+                if (layoutCell.isEmailLink()) {
+                    XSSFHyperlink link = this.workbook
+                        .getXSSFWorkbook()
+                        .getCreationHelper()
+                        .createHyperlink(org.apache.poi.common.usermodel.Hyperlink.LINK_EMAIL);
+                    link.setAddress("mailto:" + layoutCell.getText());
+                    cell.setHyperlink(link);
+                }
+            }
+        }
+
+        // The lines above and below the "Faktura" text
+        XSSFDrawing sheetDrawing = (XSSFDrawing) invoiceSheet.createDrawingPatriarch();
+        for (int lineRow : invoiceLayout.getLineRows()) {
+            XSSFSimpleShape lineShape = sheetDrawing.createSimpleShape(
+                sheetDrawing.createAnchor(4, 4, 300, 300, 1, lineRow, 4, lineRow));
+            lineShape.setLineStyleColor(220, 220, 220);
+            lineShape.setLineWidth(2);
+            lineShape.setShapeType(ShapeTypes.LINE);
+        }
+    }
+
+    // Writes the sheet of an invoice as a file of its own, false if the workbook doesn't have it
+    private static boolean extractInvoiceFile(ZipFile workbookZip, int invoiceNr, File invoiceFile)
+        throws IOException {
+
+        // Find the invoice's sheet, named by the invoice nr
+        String sheetRelationId = null;
+        NodeList sheets = readPart(workbookZip, "xl/workbook.xml")
+            .getElementsByTagNameNS(MAIN_NAMESPACE, "sheet");
+        for (int i = 0; i < sheets.getLength() && sheetRelationId == null; i++) {
+            Element sheet = (Element) sheets.item(i);
+            String sheetName = sheet.getAttribute("name");
+            if (sheetName.equals(String.valueOf(invoiceNr))
+                || sheetName.startsWith(invoiceNr + " ")) {
+                sheetRelationId = sheet.getAttributeNS(RELATIONSHIPS_NAMESPACE, "id");
+            }
+        }
+        if (sheetRelationId == null) {
+            return false;
+        }
+
+        String sheetPartName = null;
+        for (Element relation : getRelations(workbookZip, "xl/_rels/workbook.xml.rels")) {
+            if (relation.getAttribute("Id").equals(sheetRelationId)) {
+                sheetPartName = resolvePartName("xl/", relation.getAttribute("Target"));
+            }
+        }
+        if (sheetPartName == null) {
+            return false;
+        }
+
+        // The sheet's relations, pointing the drawing to the new file's drawing part
+        int nameStart = sheetPartName.lastIndexOf('/') + 1;
+        String sheetDir = sheetPartName.substring(0, nameStart);
+        String sheetRelationsPartName = sheetDir
+            + "_rels/"
+            + sheetPartName.substring(nameStart)
+            + ".rels";
+        String drawingPartName = null;
+        StringBuilder sheetRelations = new StringBuilder(1024);
+        sheetRelations.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        sheetRelations.append("<Relationships xmlns=\"");
+        sheetRelations.append(PACKAGE_RELATIONSHIPS_NAMESPACE).append("\">");
+        if (workbookZip.getEntry(sheetRelationsPartName) != null) {
+            for (Element relation : getRelations(workbookZip, sheetRelationsPartName)) {
+                String target = relation.getAttribute("Target");
+                if (relation.getAttribute("Type").endsWith("/drawing")) {
+                    drawingPartName = resolvePartName(sheetDir, target);
+                    target = "../drawings/drawing1.xml";
+                }
+                sheetRelations.append("<Relationship Id=\"");
+                sheetRelations.append(relation.getAttribute("Id"));
+                sheetRelations.append("\" Type=\"").append(relation.getAttribute("Type"));
+                sheetRelations.append("\" Target=\"").append(escapeAttribute(target)).append('"');
+                if (relation.hasAttribute("TargetMode")) {
+                    sheetRelations.append(" TargetMode=\"");
+                    sheetRelations.append(relation.getAttribute("TargetMode")).append('"');
+                }
+                sheetRelations.append("/>");
+            }
+        }
+        sheetRelations.append("</Relationships>");
+        if (drawingPartName == null) {
+            throw new IOException("Fakturabladet saknar ritning: " + sheetPartName);
+        }
+
+        File invoicesDayDir = invoiceFile.getAbsoluteFile().getParentFile();
+        if (!invoicesDayDir.exists()) {
+            invoicesDayDir.mkdirs();
+        }
+
+        boolean fileCompleted = false;
+        ZipOutputStream zipOutput = new ZipOutputStream(new FileOutputStream(invoiceFile, false));
+        try {
+            writePart(zipOutput, "[Content_Types].xml", DirectInvoiceWriter.createContentTypes());
+            writePart(zipOutput, "_rels/.rels", DirectInvoiceWriter.createPackageRelations());
+            writePart(zipOutput, "docProps/app.xml", DirectInvoiceWriter.createAppProperties());
+            copyPart(zipOutput, workbookZip, "docProps/core.xml", "docProps/core.xml");
+            writePart(zipOutput, "xl/workbook.xml", DirectInvoiceWriter.createWorkbook());
+            writePart(
+                zipOutput,
+                "xl/_rels/workbook.xml.rels",
+                DirectInvoiceWriter.createWorkbookRelations());
+            copyPart(zipOutput, workbookZip, "xl/styles.xml", "xl/styles.xml");
+            copyPart(zipOutput, workbookZip, drawingPartName, "xl/drawings/drawing1.xml");
+
+            // The sheets use inline strings, so the shared strings are empty
+            writePart(
+                zipOutput,
+                "xl/sharedStrings.xml",
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n<sst xmlns=\""
+                    + MAIN_NAMESPACE
+                    + "\" count=\"0\" uniqueCount=\"0\"/>");
+            writePart(
+                zipOutput,
+                "xl/worksheets/_rels/sheet1.xml.rels",
+                sheetRelations.toString());
+            copyPart(zipOutput, workbookZip, sheetPartName, "xl/worksheets/sheet1.xml");
+            zipOutput.finish();
+            fileCompleted = true;
+        } finally {
+            try {
+                zipOutput.close();
+            } catch (Exception ex) {
+                //Ignore this...
+            }
+
+            // Don't leave a half-written invoice file behind
+            if (!fileCompleted) {
+                invoiceFile.delete();
+            }
+        }
+
+        logger.log(
+            "Extracted invoice " + invoiceNr + " to " + invoiceFile.getPath(),
+            false);
+        return true;
+    }
+
+    private static Document readPart(ZipFile workbookZip, String partName) throws IOException {
+
+        ZipEntry entry = workbookZip.getEntry(partName);
+        if (entry == null) {
+            throw new IOException("Fakturaarbetsboken saknar delen " + partName);
+        }
+        try (InputStream partInput = workbookZip.getInputStream(entry)) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(partInput);
+        } catch (IOException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new IOException("Kunde ej läsa delen " + partName, exception);
+        }
+    }
+
+    private static List<Element> getRelations(ZipFile workbookZip, String partName)
+        throws IOException {
+
+        NodeList relationNodes = readPart(workbookZip, partName)
+            .getElementsByTagNameNS(PACKAGE_RELATIONSHIPS_NAMESPACE, "Relationship");
+        List<Element> relations = new ArrayList<>(relationNodes.getLength());
+        for (int i = 0; i < relationNodes.getLength(); i++) {
+            relations.add((Element) relationNodes.item(i));
+        }
+        return relations;
+    }
+
+    // Resolves a relation target, relative to the source part's directory or absolute
+    private static String resolvePartName(String sourceDir, String target) {
+
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : (sourceDir + target).split("/")) {
+            if (name.equals("..")) {
+                if (!names.isEmpty()) {
+                    names.remove(names.size() - 1);
+                }
+            } else if (!name.isEmpty() && !name.equals(".")) {
+                names.add(name);
+            }
+        }
+        return String.join("/", names);
+    }
+
+    private static void writePart(ZipOutputStream zipOutput, String partName, String xml)
+        throws IOException {
+
+        zipOutput.putNextEntry(new ZipEntry(partName));
+        zipOutput.write(xml.getBytes(StandardCharsets.UTF_8));
+        zipOutput.closeEntry();
+    }
+
+    private static void copyPart(
+        ZipOutputStream zipOutput,
+        ZipFile workbookZip,
+        String sourcePartName,
+        String partName) throws IOException {
+
+        ZipEntry entry = workbookZip.getEntry(sourcePartName);
+        if (entry == null) {
+            throw new IOException("Fakturaarbetsboken saknar delen " + sourcePartName);
+        }
+        zipOutput.putNextEntry(new ZipEntry(partName));
+        try (InputStream partInput = workbookZip.getInputStream(entry)) {
+            copy(partInput, zipOutput);
+        }
+        zipOutput.closeEntry();
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+    }
+
+    private static String escapeAttribute(String value) {
+        return value
+            .replace("&", "&amp;")
+            .replace("<", "&lt;")
+            .replace(">", "&gt;")
+            .replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,90 @@
+package se.osdsquash.excel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A part of an .xlsx package (a zip entry), already compressed.
+ *
+ * <p>
+ * Parts that are the same in all invoices are compressed once, and then copied as they are
+ * into each invoice file by the <code>PackageZipWriter</code>. A part is never changed.
+ * </p>
+ */
+public class CompressedPart {
+
+    private final byte[] name;
+    private final long crc;
+    private final int size;
+    private final byte[] compressed;
+
+    private CompressedPart(byte[] name, long crc, int size, byte[] compressed) {
+        this.name = name;
+        this.crc = crc;
+        this.size = size;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Compresses a part
+     * @param partName The zip entry name, e.g. <code>xl/styles.xml</code>
+     * @param xml The part contents
+     * @return The compressed part
+     */
+    public static CompressedPart compress(String partName, String xml) {
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            return compress(partName, xml.getBytes(StandardCharsets.UTF_8), deflater);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Compresses a part using a raw deflater, which is reset first
+    protected static CompressedPart compress(String partName, byte[] content, Deflater deflater) {
+
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+
+        byte[] buffer = new byte[Math.max(64, content.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                byte[] grownBuffer = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grownBuffer, 0, length);
+                buffer = grownBuffer;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return new CompressedPart(
+            partName.getBytes(StandardCharsets.UTF_8),
+            crc.getValue(),
+            content.length,
+            compressed);
+    }
+
+    protected byte[] getName() {
+        return this.name;
+    }
+
+    protected long getCrc() {
+        return this.crc;
+    }
+
+    protected int getSize() {
+        return this.size;
+    }
+
+    protected byte[] getCompressed() {
+        return this.compressed;
+    }
+}
@@ -0,0 +1,1041 @@
+package se.osdsquash.excel;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.IndexedColors;
+
+import se.osdsquash.common.SquashProperties;
+import se.osdsquash.common.SquashUtil;
+import se.osdsquash.common.SubscriptionPeriod;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.SubscriptionType;
+import se.osdsquash.xml.jaxb.SubscriptionsType;
+
+/**
+ * Writes invoice files directly as .xlsx packages, without the POI object model.
+ *
+ * <p>
+ * The invoice has the same layout as the one built by the <code>ExcelHandler</code>: the same
+ * cells, texts, styles, borders, lines and e-mail links. The sheet is laid out in a small
+ * model of rows and cells, and written as XML text. A writer is created per invoice run:
+ * the parts that are the same for all invoices of the run (content types, relations,
+ * workbook, styles, drawing and document properties) are written and compressed once,
+ * and copied into each invoice file. Only the sheet, its relations and the shared strings
+ * are written per invoice. A writer is never changed after it is created, and can be
+ * used by several render threads at once.
+ * </p>
+ */
+public class DirectInvoiceWriter {
+
+    private static final String INVOICE_FILE_TIMESTAMP_FORMAT = "yyyyMMdd";
+    private static final String INVOICE_CREATION_DATE_FORMAT = "yyyy-MM-dd";
+
+    private static final String XML_DECLARATION =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String MAIN_NAMESPACE =
+        "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS_NAMESPACE =
+        "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String PACKAGE_RELATIONSHIPS_NAMESPACE =
+        "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    private static final String PADDING = "    ";
+
+    private static final InvoiceStyle CENTER_STYLE = InvoiceStyle.DEFAULT
+        .withAlignment(CellStyle.ALIGN_CENTER);
+    private static final InvoiceStyle BOLD_STYLE = InvoiceStyle.DEFAULT
+        .withFont(true, false, false);
+    private static final InvoiceStyle BOLD_CENTER_STYLE = BOLD_STYLE
+        .withAlignment(CellStyle.ALIGN_CENTER);
+    private static final InvoiceStyle BOLD_ITALIC_STYLE = InvoiceStyle.DEFAULT
+        .withFont(true, true, false);
+    private static final InvoiceStyle LARGE_FONT_STYLE = BOLD_STYLE.withFontHeight(16);
+    private static final InvoiceStyle FAKTURA_STYLE = BOLD_ITALIC_STYLE.withFontHeight(15);
+    private static final InvoiceStyle WARNING_STYLE = BOLD_STYLE
+        .withFontColor(IndexedColors.RED.getIndex());
+    private static final InvoiceStyle EMAIL_LINK_STYLE = InvoiceStyle.DEFAULT
+        .withFont(false, false, true)
+        .withFontColor(IndexedColors.BLUE.getIndex());
+    private static final InvoiceStyle CURRENCY_STYLE = InvoiceStyle.DEFAULT
+        .withDataFormat(InvoiceCell.EXCEL_CURRENCY_FORMAT)
+        .withAlignment(CellStyle.ALIGN_RIGHT);
+    private static final InvoiceStyle BOLD_CURRENCY_STYLE = CURRENCY_STYLE
+        .withFont(true, false, false);
+
+    private static final int CURRENCY_FORMAT_ID = 164;
+
+    private final XmlRepository xmlRepository;
+
+    // The meta-data dates and texts of the run
+    private final InvoiceLayout datesWithPeriod;
+    private final InvoiceLayout datesWithoutPeriod;
+    private final String dueDateString;
+    private final String periodText;
+    private final int dosDateTime;
+
+    // The styles of the run's style sheet, by cell style index
+    private final Map<InvoiceStyle, Integer> styleIndexes = new HashMap<>();
+
+    // The parts that are the same in all invoices
+    private final List<CompressedPart> staticParts = new ArrayList<>();
+
+    // Datatype factories are not guaranteed to be thread safe
+    private final ThreadLocal<DatatypeFactory> datatypeFactories =
+        new ThreadLocal<DatatypeFactory>() {
+
+            @Override
+            protected DatatypeFactory initialValue() {
+                try {
+                    return DatatypeFactory.newInstance();
+                } catch (DatatypeConfigurationException exception) {
+                    throw new RuntimeException(exception);
+                }
+            }
+        };
+
+    /**
+     * Creates a writer for an invoice run, writing the static parts
+     *
+     * @param xmlRepository The repository, creating the invoice meta-data objects
+     * @param dueDays Nr of due days from the creation date, when invoice must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @param invoiceCreationCal The creation time of the invoices, e.g. the start of the run
+     */
+    public DirectInvoiceWriter(
+        XmlRepository xmlRepository,
+        int dueDays,
+        boolean nextPeriod,
+        Calendar invoiceCreationCal) {
+
+        this.xmlRepository = xmlRepository;
+
+        // The same dates as the ExcelHandler
+        Calendar dueCal = (Calendar) invoiceCreationCal.clone();
+        dueCal.add(Calendar.DATE, dueDays);
+        SquashUtil.timeZeroCalendar(dueCal);
+        this.dueDateString = new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
+            .format(dueCal.getTime());
+
+        SubscriptionPeriod period = new SubscriptionPeriod(nextPeriod);
+        this.periodText = "  Gäller perioden "
+            + period.getStartDayString()
+            + " till "
+            + period.getEndDayString();
+
+        this.datesWithoutPeriod = new InvoiceLayout();
+        this.datesWithoutPeriod.invoiceDate = new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
+            .format(invoiceCreationCal.getTime());
+        this.datesWithoutPeriod.fileTimestamp = new SimpleDateFormat(
+            INVOICE_FILE_TIMESTAMP_FORMAT).format(invoiceCreationCal.getTime());
+        this.datesWithoutPeriod.createdMillis = invoiceCreationCal.getTimeInMillis();
+        this.datesWithoutPeriod.dueMillis = dueCal.getTimeInMillis();
+
+        this.datesWithPeriod = new InvoiceLayout();
+        this.datesWithPeriod.invoiceDate = this.datesWithoutPeriod.invoiceDate;
+        this.datesWithPeriod.fileTimestamp = this.datesWithoutPeriod.fileTimestamp;
+        this.datesWithPeriod.createdMillis = this.datesWithoutPeriod.createdMillis;
+        this.datesWithPeriod.dueMillis = this.datesWithoutPeriod.dueMillis;
+        this.datesWithPeriod.periodStartMillis = Long
+            .valueOf(period.getStartDay().getTimeInMillis());
+
+        this.dosDateTime = PackageZipWriter.toDosDateTime(invoiceCreationCal);
+
+        // Lay out invoices of all kinds, to know all styles and where the lines are
+        List<InvoiceStyle> styles = new ArrayList<>();
+        styles.add(InvoiceStyle.DEFAULT);
+        this.styleIndexes.put(InvoiceStyle.DEFAULT, Integer.valueOf(0));
+        DirectSheet sampleSheet = null;
+        for (int subscriptionCount = 0; subscriptionCount <= 2; subscriptionCount++) {
+            for (String email : new String[] {"", "@"}) {
+                sampleSheet = this.layoutSheet(createSampleCustomer(subscriptionCount, email), 0);
+                for (DirectRow row : sampleSheet.rows) {
+                    for (DirectCell cell : row.cells) {
+                        if (!this.styleIndexes.containsKey(cell.style)) {
+                            this.styleIndexes.put(cell.style, Integer.valueOf(styles.size()));
+                            styles.add(cell.style);
+                        }
+                    }
+                }
+            }
+        }
+
+        this.staticParts.add(CompressedPart.compress("[Content_Types].xml", createContentTypes()));
+        this.staticParts.add(CompressedPart.compress("_rels/.rels", createPackageRelations()));
+        this.staticParts.add(CompressedPart.compress("docProps/app.xml", createAppProperties()));
+        this.staticParts.add(
+            CompressedPart.compress(
+                "docProps/core.xml",
+                createCoreProperties(invoiceCreationCal.getTimeInMillis())));
+        this.staticParts.add(CompressedPart.compress("xl/workbook.xml", createWorkbook()));
+        this.staticParts.add(
+            CompressedPart.compress("xl/_rels/workbook.xml.rels", createWorkbookRelations()));
+        this.staticParts.add(CompressedPart.compress("xl/styles.xml", createStyles(styles)));
+        this.staticParts.add(
+            CompressedPart.compress(
+                "xl/drawings/drawing1.xml",
+                createDrawing(sampleSheet.lineRows)));
+    }
+
+    /**
+     * Renders a new invoice to memory, using given customer and an already reserved invoice nr.
+     * Nothing is written to disk, the file is written by the caller.
+     * <p>
+     * NOTE: The returned invoice is NOT connected to the customer, that is up to the caller.
+     * </p>
+     *
+     * @param customer A valid customer to create invoice for
+     * @param invoiceNr The invoice nr to use, must be reserved in the repository
+     *
+     * @return The invoice file contents and meta-data
+     */
+    public RenderedInvoice renderInvoice(CustomerType customer, int invoiceNr) {
+
+        DirectSheet sheet = this.layoutSheet(customer, invoiceNr);
+
+        PackageZipWriter zipWriter = new PackageZipWriter(8 * 1024, this.dosDateTime);
+        for (CompressedPart staticPart : this.staticParts) {
+            zipWriter.addPart(staticPart);
+        }
+
+        Map<String, Integer> sharedStrings = new LinkedHashMap<>();
+        StringBuilder sheetXml = this.createSheet(sheet, sharedStrings);
+        zipWriter.addPart("xl/sharedStrings.xml", createSharedStrings(sheet, sharedStrings));
+        zipWriter.addPart("xl/worksheets/_rels/sheet1.xml.rels", createSheetRelations(sheet));
+        zipWriter.addPart("xl/worksheets/sheet1.xml", sheetXml);
+
+        return new RenderedInvoice(
+            this.createInvoice(customer, invoiceNr, sheet),
+            zipWriter.finish());
+    }
+
+    /**
+     * Returns the due date of the invoices of the run
+     * @return The due date, as yyyy-MM-dd
+     */
+    protected String getDueDateString() {
+        return this.dueDateString;
+    }
+
+    /**
+     * Creates the meta-data of an invoice laid out by this writer. Thread safe.
+     *
+     * @param customer The customer of the invoice
+     * @param invoiceNr The invoice nr, must be reserved in the repository
+     * @param sheet The laid out invoice sheet
+     * @return The invoice, not connected to the customer
+     */
+    protected InvoiceType createInvoice(CustomerType customer, int invoiceNr, DirectSheet sheet) {
+
+        InvoiceLayout dates = sheet.hasSubscriptions
+            ? this.datesWithPeriod
+            : this.datesWithoutPeriod;
+
+        return ExcelHandler.createInvoice(
+            this.xmlRepository,
+            this.datatypeFactories.get(),
+            customer.getCustomerInfo(),
+            invoiceNr,
+            dates);
+    }
+
+    /**
+     * Lays out the invoice sheet, row by row like <code>ExcelHandler</code> builds it.
+     * Thread safe.
+     *
+     * @param customer A valid customer to create invoice for
+     * @param invoiceNr The invoice nr to show
+     * @return The rows and cells of the invoice sheet
+     */
+    protected DirectSheet layoutSheet(CustomerType customer, int invoiceNr) {
+
+        CustomerInfoType customerInfo = customer.getCustomerInfo();
+        DirectSheet sheet = new DirectSheet();
+
+        // First of all, add some empty space
+        sheet.nextPaddedRow();
+        sheet.nextPaddedRow();
+
+        // The club logo and invoice nr
+        DirectRow clubnameAndInvoiceNrRow = sheet.nextPaddedRow();
+        clubnameAndInvoiceNrRow.heightInPoints = 22;
+        clubnameAndInvoiceNrRow.nextCell(SquashProperties.CLUB_NAME, LARGE_FONT_STYLE);
+        clubnameAndInvoiceNrRow.nextCell(null, InvoiceStyle.DEFAULT);
+        clubnameAndInvoiceNrRow.nextCell(ExcelHandler.getInvoiceNrText(invoiceNr), CENTER_STYLE);
+
+        // The club's org.nr and current date
+        DirectRow orgNrAndDateRow = sheet.nextPaddedRow();
+        orgNrAndDateRow.nextCell("Org.nr: " + SquashProperties.CLUB_ORG_NR, InvoiceStyle.DEFAULT);
+        orgNrAndDateRow.nextCell(null, InvoiceStyle.DEFAULT);
+        orgNrAndDateRow.nextCell(
+            "Datum:  " + this.datesWithoutPeriod.invoiceDate,
+            CENTER_STYLE);
+
+        sheet.nextPaddedRow();
+        sheet.nextPaddedRow();
+        sheet.nextPaddedRow();
+
+        // The "Faktura" text, with a line above and below
+        DirectRow fakturaTextRow = sheet.nextPaddedRow();
+        fakturaTextRow.nextCell("FAKTURA", FAKTURA_STYLE);
+        sheet.lineRows[0] = fakturaTextRow.index;
+        sheet.lineRows[1] = sheet.nextPaddedRow().index;
+        sheet.nextPaddedRow();
+
+        // Customer and club info. The left box is the customer, the right one is the club.
+        DirectRow referencesRow = sheet.nextPaddedRow();
+        referencesRow.nextCell("Er referens:", BOLD_ITALIC_STYLE);
+        referencesRow.nextCell("Vår referens:", BOLD_ITALIC_STYLE);
+
+        DirectRow nameRow = sheet.nextPaddedRow();
+        nameRow.nextCell(ExcelHandler.getCustomerNameText(customerInfo), InvoiceStyle.DEFAULT);
+        nameRow.nextCell(SquashProperties.INVOICE_NAME, InvoiceStyle.DEFAULT);
+
+        DirectRow adressRow = sheet.nextPaddedRow();
+        adressRow.nextCell(customerInfo.getStreet(), InvoiceStyle.DEFAULT);
+        adressRow.nextCell(SquashProperties.INVOICE_STREET, InvoiceStyle.DEFAULT);
+
+        DirectRow cityRow = sheet.nextPaddedRow();
+        cityRow.nextCell(ExcelHandler.getCustomerCityText(customerInfo), InvoiceStyle.DEFAULT);
+        cityRow.nextCell(SquashProperties.INVOICE_CITY, InvoiceStyle.DEFAULT);
+
+        DirectRow phoneRow = sheet.nextPaddedRow();
+        phoneRow.nextCell(customerInfo.getTelephone(), InvoiceStyle.DEFAULT);
+        phoneRow.nextCell(SquashProperties.INVOICE_PHONE, InvoiceStyle.DEFAULT);
+
+        DirectRow emailRow = sheet.nextPaddedRow();
+        emailRow.nextEmailCell(customerInfo.getEmail());
+        emailRow.nextEmailCell(SquashProperties.INVOICE_EMAIL);
+
+        sheet.nextPaddedRow();
+        sheet.nextPaddedRow();
+        sheet.nextPaddedRow();
+        sheet.nextPaddedRow();
+
+        // The track subscription(s) table, e.g. the invoice specification
+        DirectRow trackTableHeaderRow = sheet.nextPaddedRow();
+        trackTableHeaderRow.nextCell("  Beskrivning", BOLD_STYLE);
+        trackTableHeaderRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        trackTableHeaderRow.nextCell("          Belopp", BOLD_STYLE);
+        sheet.addBorder(trackTableHeaderRow.index, 1, trackTableHeaderRow.index, 3);
+
+        DirectRow firstTableRow = sheet.nextPaddedRow();
+        firstTableRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+
+        double totalPrice = 0d;
+        SubscriptionsType subscriptionsType = customer.getSubscriptions();
+        if (subscriptionsType == null || subscriptionsType.getSubscription().isEmpty()) {
+
+            DirectRow noSubscriptionsRow = sheet.nextRow();
+            noSubscriptionsRow.nextCell(null, InvoiceStyle.DEFAULT);
+            noSubscriptionsRow.nextCell(
+                " OBS: Det finns inga abonnemang att fakturera!",
+                WARNING_STYLE);
+
+        } else {
+
+            sheet.hasSubscriptions = true;
+
+            double trackPrice = ExcelHandler.getTrackPrice(customerInfo);
+            for (SubscriptionType subscription : subscriptionsType.getSubscription()) {
+
+                DirectRow trackInfoRow = sheet.nextRow();
+                trackInfoRow.nextCell(null, InvoiceStyle.DEFAULT);
+                trackInfoRow.nextCell(
+                    ExcelHandler.getTrackInfoText(subscription),
+                    InvoiceStyle.DEFAULT);
+                trackInfoRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+                trackInfoRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+
+                DirectRow trackPeriodAndPriceRow = sheet.nextRow();
+                trackPeriodAndPriceRow.nextCell(null, InvoiceStyle.DEFAULT);
+                trackPeriodAndPriceRow.nextCell(this.periodText, InvoiceStyle.DEFAULT);
+                trackPeriodAndPriceRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+                trackPeriodAndPriceRow.nextCell(
+                    InvoiceCell.formatCurrency(trackPrice),
+                    CURRENCY_STYLE);
+                totalPrice += trackPrice;
+
+                // One empty row between track rows
+                sheet.nextPaddedRow();
+            }
+        }
+
+        // Add some blank rows, to better match the A4 paper height
+        for (int i = 0; i < 6; i++) {
+            sheet.nextPaddedRow();
+        }
+
+        DirectRow lastTrackTableRow = sheet.nextPaddedRow();
+        lastTrackTableRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        lastTrackTableRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        lastTrackTableRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        sheet.addBorder(firstTableRow.index, 1, lastTrackTableRow.index, 3);
+
+        // The ammount fields and payment info
+        sheet.totalPrice = totalPrice;
+        String totalPriceText = InvoiceCell.formatCurrency(totalPrice);
+
+        DirectRow sumRow = sheet.nextRow();
+        sumRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        sumRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        sumRow.nextCell("  Summa", InvoiceStyle.DEFAULT);
+        sumRow.nextCell(totalPriceText, CURRENCY_STYLE);
+
+        DirectRow momsRow = sheet.nextRow();
+        momsRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        momsRow.nextCell("Bankgiro: " + SquashProperties.CLUB_BG_NR, CENTER_STYLE);
+
+        DirectRow ammountToPayRow = sheet.nextRow();
+        ammountToPayRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        ammountToPayRow.nextCell("Förfallodag " + this.dueDateString, CENTER_STYLE);
+        ammountToPayRow.nextCell("  Att betala", BOLD_STYLE);
+        ammountToPayRow.nextCell(totalPriceText, BOLD_CURRENCY_STYLE);
+        sheet.addBorder(sumRow.index, 2, ammountToPayRow.index, 3);
+
+        DirectRow markPaymentRow = sheet.nextRow();
+        markPaymentRow.nextCell(PADDING, InvoiceStyle.DEFAULT);
+        markPaymentRow.nextCell("Märk betalningen med FakturaNr!", BOLD_CENTER_STYLE);
+
+        return sheet;
+    }
+
+    // Writes the sheet part, collecting the shared strings
+    private StringBuilder createSheet(DirectSheet sheet, Map<String, Integer> sharedStrings) {
+
+        StringBuilder xml = new StringBuilder(8 * 1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<worksheet xmlns=\"").append(MAIN_NAMESPACE);
+        xml.append("\" xmlns:r=\"").append(RELATIONSHIPS_NAMESPACE).append("\">");
+        xml.append("<dimension ref=\"A1:D").append(sheet.rows.size()).append("\"/>");
+        xml.append("<sheetViews>");
+        xml.append("<sheetView showGridLines=\"false\" tabSelected=\"true\" zoomScale=\"100\"");
+        xml.append(" workbookViewId=\"0\"/>");
+        xml.append("</sheetViews>");
+        xml.append("<sheetFormatPr baseColWidth=\"10\" defaultRowHeight=\"15.0\"/>");
+
+        // The width is given as nr of characters, as in ExcelHandler
+        xml.append("<cols>");
+        appendColumn(xml, 1, 3);
+        appendColumn(xml, 2, 42);
+        appendColumn(xml, 3, 13);
+        appendColumn(xml, 4, 14);
+        xml.append("</cols>");
+
+        xml.append("<sheetData>");
+        List<DirectCell> linkCells = new ArrayList<>(2);
+        for (DirectRow row : sheet.rows) {
+            xml.append("<row r=\"").append(row.index + 1).append('"');
+            if (row.heightInPoints > 0) {
+                xml.append(" ht=\"").append(row.heightInPoints).append(".0\" customHeight=\"1\"");
+            }
+            xml.append('>');
+            for (DirectCell cell : row.cells) {
+                xml.append("<c r=\"");
+                appendCellReference(xml, row.index, cell.column);
+                xml.append('"');
+                Integer styleIndex = this.styleIndexes.get(cell.style);
+                if (styleIndex == null) {
+                    throw new IllegalStateException("Okänd cellstil i fakturan");
+                }
+                if (styleIndex.intValue() != 0) {
+                    xml.append(" s=\"").append(styleIndex.intValue()).append('"');
+                }
+                if (cell.text == null) {
+                    xml.append("/>");
+                } else {
+                    Integer stringIndex = sharedStrings.get(cell.text);
+                    if (stringIndex == null) {
+                        stringIndex = Integer.valueOf(sharedStrings.size());
+                        sharedStrings.put(cell.text, stringIndex);
+                    }
+                    xml.append(" t=\"s\"><v>").append(stringIndex.intValue()).append("</v></c>");
+                }
+                if (cell.emailLink) {
+                    linkCells.add(cell);
+                }
+            }
+            xml.append("</row>");
+        }
+        xml.append("</sheetData>");
+
+        // The e-mail links, relation rId1 is the drawing
+        if (!linkCells.isEmpty()) {
+            xml.append("<hyperlinks>");
+            for (int i = 0; i < linkCells.size(); i++) {
+                DirectCell linkCell = linkCells.get(i);
+                xml.append("<hyperlink ref=\"");
+                appendCellReference(xml, linkCell.rowIndex, linkCell.column);
+                xml.append("\" r:id=\"rId").append(i + 2).append("\"/>");
+            }
+            xml.append("</hyperlinks>");
+        }
+
+        xml.append("<pageMargins left=\"0.7\" right=\"0.7\" top=\"0.75\" bottom=\"0.75\"");
+        xml.append(" header=\"0.3\" footer=\"0.3\"/>");
+        xml.append("<drawing r:id=\"rId1\"/>");
+        xml.append("</worksheet>");
+        return xml;
+    }
+
+    // The sheet's relations: the drawing, and the e-mail links in cell order
+    private static StringBuilder createSheetRelations(DirectSheet sheet) {
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<Relationships xmlns=\"").append(PACKAGE_RELATIONSHIPS_NAMESPACE).append("\">");
+        appendRelation(xml, 1, "drawing", "../drawings/drawing1.xml", false);
+        int relationId = 2;
+        for (DirectRow row : sheet.rows) {
+            for (DirectCell cell : row.cells) {
+                if (cell.emailLink) {
+                    appendRelation(xml, relationId++, "hyperlink", "mailto:" + cell.text, true);
+                }
+            }
+        }
+        xml.append("</Relationships>");
+        return xml;
+    }
+
+    private static StringBuilder createSharedStrings(
+        DirectSheet sheet,
+        Map<String, Integer> sharedStrings) {
+
+        int stringCellCount = 0;
+        for (DirectRow row : sheet.rows) {
+            for (DirectCell cell : row.cells) {
+                if (cell.text != null) {
+                    stringCellCount++;
+                }
+            }
+        }
+
+        StringBuilder xml = new StringBuilder(2 * 1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<sst xmlns=\"").append(MAIN_NAMESPACE);
+        xml.append("\" count=\"").append(stringCellCount);
+        xml.append("\" uniqueCount=\"").append(sharedStrings.size()).append("\">");
+        for (String text : sharedStrings.keySet()) {
+            boolean preserveSpace = !text.isEmpty()
+                && (Character.isWhitespace(text.charAt(0))
+                    || Character.isWhitespace(text.charAt(text.length() - 1)));
+            xml.append(preserveSpace ? "<si><t xml:space=\"preserve\">" : "<si><t>");
+            appendEscaped(xml, text);
+            xml.append("</t></si>");
+        }
+        xml.append("</sst>");
+        return xml;
+    }
+
+    protected static String createContentTypes() {
+
+        String contentTypePrefix = "application/vnd.openxmlformats-officedocument.";
+        StringBuilder xml = new StringBuilder(2 * 1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<Types");
+        xml.append(" xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+        xml.append("<Default Extension=\"rels\"");
+        xml.append(" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+        xml.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+        appendOverride(xml, "/docProps/app.xml", contentTypePrefix + "extended-properties+xml");
+        appendOverride(
+            xml,
+            "/docProps/core.xml",
+            "application/vnd.openxmlformats-package.core-properties+xml");
+        appendOverride(xml, "/xl/drawings/drawing1.xml", contentTypePrefix + "drawing+xml");
+        appendOverride(
+            xml,
+            "/xl/sharedStrings.xml",
+            contentTypePrefix + "spreadsheetml.sharedStrings+xml");
+        appendOverride(xml, "/xl/styles.xml", contentTypePrefix + "spreadsheetml.styles+xml");
+        appendOverride(xml, "/xl/workbook.xml", contentTypePrefix + "spreadsheetml.sheet.main+xml");
+        appendOverride(
+            xml,
+            "/xl/worksheets/sheet1.xml",
+            contentTypePrefix + "spreadsheetml.worksheet+xml");
+        xml.append("</Types>");
+        return xml.toString();
+    }
+
+    protected static String createPackageRelations() {
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<Relationships xmlns=\"").append(PACKAGE_RELATIONSHIPS_NAMESPACE).append("\">");
+        appendRelation(xml, 1, "officeDocument", "xl/workbook.xml", false);
+        xml.append("<Relationship Id=\"rId2\"");
+        xml.append(" Type=\"").append(PACKAGE_RELATIONSHIPS_NAMESPACE);
+        xml.append("/metadata/core-properties\" Target=\"docProps/core.xml\"/>");
+        appendRelation(xml, 3, "extended-properties", "docProps/app.xml", false);
+        xml.append("</Relationships>");
+        return xml.toString();
+    }
+
+    protected static String createAppProperties() {
+        return XML_DECLARATION
+            + "<Properties xmlns=\""
+            + "http://schemas.openxmlformats.org/officeDocument/2006/extended-properties\">"
+            + "<Application>Microsoft Excel</Application></Properties>";
+    }
+
+    // The title and creator, as set by the ExcelHandler
+    private static String createCoreProperties(long createdMillis) {
+
+        SimpleDateFormat w3cFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        w3cFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<cp:coreProperties");
+        xml.append(" xmlns:cp=\"http://schemas.openxmlformats.org/package/2006/metadata/");
+        xml.append("core-properties\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"");
+        xml.append(" xmlns:dcterms=\"http://purl.org/dc/terms/\"");
+        xml.append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">");
+        xml.append("<dcterms:created xsi:type=\"dcterms:W3CDTF\">");
+        xml.append(w3cFormat.format(new Date(createdMillis)));
+        xml.append("</dcterms:created>");
+        xml.append("<dc:creator>");
+        appendEscaped(xml, SquashProperties.CLUB_NAME);
+        xml.append("</dc:creator>");
+        xml.append("<dc:title>Faktura</dc:title>");
+        xml.append("</cp:coreProperties>");
+        return xml.toString();
+    }
+
+    protected static String createWorkbook() {
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<workbook xmlns=\"").append(MAIN_NAMESPACE);
+        xml.append("\" xmlns:r=\"").append(RELATIONSHIPS_NAMESPACE).append("\">");
+        xml.append("<workbookPr date1904=\"false\"/>");
+        xml.append("<bookViews><workbookView activeTab=\"0\"/></bookViews>");
+        xml.append("<sheets><sheet name=\"Faktura\" sheetId=\"1\" r:id=\"rId3\"/></sheets>");
+        xml.append("</workbook>");
+        return xml.toString();
+    }
+
+    protected static String createWorkbookRelations() {
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<Relationships xmlns=\"").append(PACKAGE_RELATIONSHIPS_NAMESPACE).append("\">");
+        appendRelation(xml, 1, "sharedStrings", "sharedStrings.xml", false);
+        appendRelation(xml, 2, "styles", "styles.xml", false);
+        appendRelation(xml, 3, "worksheet", "worksheets/sheet1.xml", false);
+        xml.append("</Relationships>");
+        return xml.toString();
+    }
+
+    // The style sheet, having one cell style per style, in the order of the style indexes
+    private static String createStyles(List<InvoiceStyle> styles) {
+
+        // Collect the fonts and borders, the first ones are the defaults
+        Map<InvoiceStyle, Integer> fontIndexes = new LinkedHashMap<>();
+        fontIndexes.put(InvoiceStyle.DEFAULT, Integer.valueOf(0));
+        Map<InvoiceStyle, Integer> borderIndexes = new LinkedHashMap<>();
+        borderIndexes.put(InvoiceStyle.DEFAULT, Integer.valueOf(0));
+        for (InvoiceStyle style : styles) {
+            InvoiceStyle fontStyle = style.getFontStyle();
+            if (!fontIndexes.containsKey(fontStyle)) {
+                fontIndexes.put(fontStyle, Integer.valueOf(fontIndexes.size()));
+            }
+            InvoiceStyle borderStyle = getBorderStyle(style);
+            if (!borderIndexes.containsKey(borderStyle)) {
+                borderIndexes.put(borderStyle, Integer.valueOf(borderIndexes.size()));
+            }
+        }
+
+        StringBuilder xml = new StringBuilder(4 * 1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<styleSheet xmlns=\"").append(MAIN_NAMESPACE).append("\">");
+
+        xml.append("<numFmts count=\"1\"><numFmt numFmtId=\"").append(CURRENCY_FORMAT_ID);
+        xml.append("\" formatCode=\"");
+        appendEscaped(xml, InvoiceCell.EXCEL_CURRENCY_FORMAT);
+        xml.append("\"/></numFmts>");
+
+        xml.append("<fonts count=\"").append(fontIndexes.size()).append("\">");
+        for (InvoiceStyle fontStyle : fontIndexes.keySet()) {
+            xml.append("<font>");
+            if (fontStyle.isBold()) {
+                xml.append("<b/>");
+            }
+            if (fontStyle.isItalic()) {
+                xml.append("<i/>");
+            }
+            if (fontStyle.isUnderline()) {
+                xml.append("<u/>");
+            }
+            xml.append("<sz val=\"");
+            xml.append(
+                fontStyle.getFontHeightInPoints() > 0 ? fontStyle.getFontHeightInPoints() : 11);
+            xml.append(".0\"/><color indexed=\"");
+            xml.append(fontStyle.getFontColor() >= 0 ? fontStyle.getFontColor() : 8);
+            xml.append("\"/><name val=\"Calibri\"/><family val=\"2\"/><scheme val=\"minor\"/>");
+            xml.append("</font>");
+        }
+        xml.append("</fonts>");
+
+        xml.append("<fills count=\"2\">");
+        xml.append("<fill><patternFill patternType=\"none\"/></fill>");
+        xml.append("<fill><patternFill patternType=\"gray125\"/></fill>");
+        xml.append("</fills>");
+
+        xml.append("<borders count=\"").append(borderIndexes.size()).append("\">");
+        for (InvoiceStyle borderStyle : borderIndexes.keySet()) {
+            xml.append("<border>");
+            appendBorder(xml, "left", borderStyle.getBorderLeft());
+            appendBorder(xml, "right", borderStyle.getBorderRight());
+            appendBorder(xml, "top", borderStyle.getBorderTop());
+            appendBorder(xml, "bottom", borderStyle.getBorderBottom());
+            xml.append("<diagonal/></border>");
+        }
+        xml.append("</borders>");
+
+        xml.append("<cellStyleXfs count=\"1\">");
+        xml.append("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/>");
+        xml.append("</cellStyleXfs>");
+
+        xml.append("<cellXfs count=\"").append(styles.size()).append("\">");
+        for (InvoiceStyle style : styles) {
+            int fontIndex = fontIndexes.get(style.getFontStyle()).intValue();
+            int borderIndex = borderIndexes.get(getBorderStyle(style)).intValue();
+            xml.append("<xf numFmtId=\"");
+            xml.append(style.getDataFormat() != null ? CURRENCY_FORMAT_ID : 0);
+            xml.append("\" fontId=\"").append(fontIndex);
+            xml.append("\" fillId=\"0\" borderId=\"").append(borderIndex).append("\" xfId=\"0\"");
+            if (style.getDataFormat() != null) {
+                xml.append(" applyNumberFormat=\"1\"");
+            }
+            if (fontIndex != 0) {
+                xml.append(" applyFont=\"1\"");
+            }
+            if (borderIndex != 0) {
+                xml.append(" applyBorder=\"1\"");
+            }
+            if (style.getAlignment() == CellStyle.ALIGN_GENERAL) {
+                xml.append("/>");
+            } else {
+                xml.append(" applyAlignment=\"1\"><alignment horizontal=\"");
+                xml.append(getAlignmentName(style.getAlignment()));
+                xml.append("\"/></xf>");
+            }
+        }
+        xml.append("</cellXfs>");
+
+        xml.append("<cellStyles count=\"1\">");
+        xml.append("<cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/>");
+        xml.append("</cellStyles>");
+        xml.append("</styleSheet>");
+        return xml.toString();
+    }
+
+    // The two gray lines around the "Faktura" text, as drawn by the ExcelHandler
+    private static String createDrawing(int[] lineRows) {
+
+        StringBuilder xml = new StringBuilder(4 * 1024);
+        xml.append(XML_DECLARATION);
+        xml.append("<xdr:wsDr");
+        xml.append(" xmlns:xdr=\"http://schemas.openxmlformats.org/drawingml/2006/");
+        xml.append("spreadsheetDrawing\"");
+        xml.append(" xmlns:a=\"http://schemas.openxmlformats.org/drawingml/2006/main\">");
+        for (int i = 0; i < lineRows.length; i++) {
+            xml.append("<xdr:twoCellAnchor editAs=\"oneCell\">");
+            xml.append("<xdr:from><xdr:col>1</xdr:col><xdr:colOff>4</xdr:colOff>");
+            xml.append("<xdr:row>").append(lineRows[i]).append("</xdr:row>");
+            xml.append("<xdr:rowOff>4</xdr:rowOff></xdr:from>");
+            xml.append("<xdr:to><xdr:col>4</xdr:col><xdr:colOff>300</xdr:colOff>");
+            xml.append("<xdr:row>").append(lineRows[i]).append("</xdr:row>");
+            xml.append("<xdr:rowOff>300</xdr:rowOff></xdr:to>");
+            xml.append("<xdr:sp macro=\"\" textlink=\"\">");
+            xml.append("<xdr:nvSpPr><xdr:cNvPr id=\"").append(i + 1);
+            xml.append("\" name=\"Shape ").append(i + 1).append("\"/><xdr:cNvSpPr/></xdr:nvSpPr>");
+            xml.append("<xdr:spPr>");
+            xml.append("<a:xfrm><a:off x=\"0\" y=\"0\"/><a:ext cx=\"0\" cy=\"0\"/></a:xfrm>");
+            xml.append("<a:prstGeom prst=\"line\"><a:avLst/></a:prstGeom>");
+            xml.append("<a:ln w=\"25400\"><a:solidFill><a:srgbClr val=\"DCDCDC\"/>");
+            xml.append("</a:solidFill></a:ln>");
+            xml.append("</xdr:spPr>");
+            xml.append("</xdr:sp>");
+            xml.append("<xdr:clientData/>");
+            xml.append("</xdr:twoCellAnchor>");
+        }
+        xml.append("</xdr:wsDr>");
+        return xml.toString();
+    }
+
+    // A customer having given e-mail and nr of subscriptions, for the sample layouts
+    private static CustomerType createSampleCustomer(int subscriptionCount, String email) {
+
+        CustomerInfoType customerInfo = new CustomerInfoType();
+        customerInfo.setEmail(email);
+
+        CustomerType customer = new CustomerType();
+        customer.setCustomerInfo(customerInfo);
+        SubscriptionsType subscriptions = new SubscriptionsType();
+        for (int i = 0; i < subscriptionCount; i++) {
+            SubscriptionType subscription = new SubscriptionType();
+            subscription.setFlexTime(Boolean.TRUE);
+            subscriptions.getSubscription().add(subscription);
+        }
+        customer.setSubscriptions(subscriptions);
+        return customer;
+    }
+
+    private static InvoiceStyle getBorderStyle(InvoiceStyle style) {
+        return InvoiceStyle.DEFAULT.withBorders(
+            style.getBorderTop(),
+            style.getBorderBottom(),
+            style.getBorderLeft(),
+            style.getBorderRight());
+    }
+
+    private static String getAlignmentName(short alignment) {
+
+        switch (alignment) {
+            case CellStyle.ALIGN_LEFT:
+                return "left";
+            case CellStyle.ALIGN_CENTER:
+                return "center";
+            case CellStyle.ALIGN_RIGHT:
+                return "right";
+            default:
+                throw new IllegalArgumentException("Okänd justering: " + alignment);
+        }
+    }
+
+    private static void appendBorder(StringBuilder xml, String side, short border) {
+
+        if (border == CellStyle.BORDER_NONE) {
+            xml.append('<').append(side).append("/>");
+        } else {
+            xml.append('<').append(side).append(" style=\"");
+            xml.append(border == CellStyle.BORDER_THIN ? "thin" : "medium");
+            xml.append("\"/>");
+        }
+    }
+
+    private static void appendColumn(StringBuilder xml, int column, int widthInCharacters) {
+        xml.append("<col min=\"").append(column).append("\" max=\"").append(column);
+        xml.append("\" width=\"").append(widthInCharacters).append(".0\" customWidth=\"1\"/>");
+    }
+
+    private static void appendOverride(StringBuilder xml, String partName, String contentType) {
+        xml.append("<Override PartName=\"").append(partName);
+        xml.append("\" ContentType=\"").append(contentType).append("\"/>");
+    }
+
+    private static void appendRelation(
+        StringBuilder xml,
+        int relationId,
+        String type,
+        String target,
+        boolean external) {
+
+        xml.append("<Relationship Id=\"rId").append(relationId);
+        xml.append("\" Type=\"").append(RELATIONSHIPS_NAMESPACE).append('/').append(type);
+        xml.append("\" Target=\"");
+        appendEscaped(xml, target);
+        xml.append(external ? "\" TargetMode=\"External\"/>" : "\"/>");
+    }
+
+    // Appends a cell reference like "B16", the sheet has less than 26 columns
+    private static void appendCellReference(StringBuilder xml, int rowIndex, int column) {
+        xml.append((char) ('A' + column)).append(rowIndex + 1);
+    }
+
+    // Appends a text escaped for XML. Control characters are not allowed in XML, and dropped.
+    private static void appendEscaped(StringBuilder xml, String text) {
+
+        for (int i = 0; i < text.length(); i++) {
+            char character = text.charAt(i);
+            switch (character) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                default:
+                    if (character >= 0x20 || character == '\t' || character == '\n') {
+                        xml.append(character);
+                    }
+            }
+        }
+    }
+
+    /**
+     * The rows of an invoice sheet, created top to bottom like the <code>InvoiceSheet</code> does
+     */
+    protected static final class DirectSheet {
+
+        private final List<DirectRow> rows = new ArrayList<>(48);
+        private final int[] lineRows = new int[2];
+        private boolean hasSubscriptions = false;
+        private double totalPrice = 0d;
+
+        protected List<DirectRow> getRows() {
+            return this.rows;
+        }
+
+        // The row indexes of the lines above and below the "Faktura" text
+        protected int[] getLineRows() {
+            return this.lineRows;
+        }
+
+        protected double getTotalPrice() {
+            return this.totalPrice;
+        }
+
+        private DirectRow nextRow() {
+            DirectRow row = new DirectRow(this.rows.size());
+            this.rows.add(row);
+            return row;
+        }
+
+        private DirectRow nextPaddedRow() {
+            DirectRow row = this.nextRow();
+            row.nextCell(PADDING, InvoiceStyle.DEFAULT);
+            return row;
+        }
+
+        // Adds a border around a cell area, to the styles of the edge cells, like the
+        // ExcelHandler does. Missing edge cells are created blank.
+        private void addBorder(int firstRow, int firstColumn, int lastRow, int lastColumn) {
+
+            short border = CellStyle.BORDER_THIN;
+            for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+                DirectRow row = this.rows.get(rowIndex);
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    boolean top = rowIndex == firstRow;
+                    boolean bottom = rowIndex == lastRow;
+                    boolean left = column == firstColumn;
+                    boolean right = column == lastColumn;
+                    if (!top && !bottom && !left && !right) {
+                        continue;
+                    }
+                    DirectCell cell = row.getCell(column);
+                    InvoiceStyle style = cell.style;
+                    cell.style = style.withBorders(
+                        top ? border : style.getBorderTop(),
+                        bottom ? border : style.getBorderBottom(),
+                        left ? border : style.getBorderLeft(),
+                        right ? border : style.getBorderRight());
+                }
+            }
+        }
+    }
+
+    /**
+     * A row of cells, created left to right like the <code>InvoiceRow</code> does
+     */
+    protected static final class DirectRow {
+
+        private final int index;
+        private final List<DirectCell> cells = new ArrayList<>(4);
+        private int heightInPoints = 0;
+
+        private DirectRow(int index) {
+            this.index = index;
+        }
+
+        protected int getIndex() {
+            return this.index;
+        }
+
+        protected List<DirectCell> getCells() {
+            return this.cells;
+        }
+
+        // The row height, 0 for the default height
+        protected int getHeightInPoints() {
+            return this.heightInPoints;
+        }
+
+        private DirectCell nextCell(String text, InvoiceStyle style) {
+            DirectCell cell = new DirectCell(this.index, this.cells.size(), text, style);
+            this.cells.add(cell);
+            return cell;
+        }
+
+        // An e-mail address, as a link if it looks like one
+        private void nextEmailCell(String email) {
+            if (email != null && email.contains("@")) {
+                this.nextCell(email, EMAIL_LINK_STYLE).emailLink = true;
+            } else {
+                this.nextCell(email, InvoiceStyle.DEFAULT);
+            }
+        }
+
+        // Returns the cell of a column, creating it blank if missing
+        private DirectCell getCell(int column) {
+            int position = 0;
+            while (position < this.cells.size() && this.cells.get(position).column < column) {
+                position++;
+            }
+            if (position < this.cells.size() && this.cells.get(position).column == column) {
+                return this.cells.get(position);
+            }
+            DirectCell cell = new DirectCell(this.index, column, null, InvoiceStyle.DEFAULT);
+            this.cells.add(position, cell);
+            return cell;
+        }
+    }
+
+    /**
+     * A cell, blank if the text is null
+     */
+    protected static final class DirectCell {
+
+        private final int rowIndex;
+        private final int column;
+        private final String text;
+        private InvoiceStyle style;
+        private boolean emailLink = false;
+
+        private DirectCell(int rowIndex, int column, String text, InvoiceStyle style) {
+            this.rowIndex = rowIndex;
+            this.column = column;
+            this.text = text;
+            this.style = style;
+        }
+
+        protected int getColumn() {
+            return this.column;
+        }
+
+        protected String getText() {
+            return this.text;
+        }
+
+        protected InvoiceStyle getStyle() {
+            return this.style;
+        }
+
+        // True if the text is an e-mail address, to link with "mailto:"
+        protected boolean isEmailLink() {
+            return this.emailLink;
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package se.osdsquash.excel;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -15,13 +17,14 @@ import javax.xml.datatype.DatatypeFactory;
 import org.apache.poi.POIXMLProperties;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.ShapeTypes;
+import org.apache.poi.ss.util.CellAddress;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.ss.util.RegionUtil;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFClientAnchor;
 import org.apache.poi.xssf.usermodel.XSSFDrawing;
-import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSimpleShape;
 
 import se.osdsquash.common.SquashProperties;
@@ -40,6 +43,10 @@ import se.osdsquash.xml.jaxb.SubscriptionsType;
  * <p>
  * The Excel framework used is Apache POI - XSSF.
  * </p>
+ * <p>
+ * A handler keeps the workbook being built in fields, so it must only be used by one thread
+ * at a time. Use one handler per thread to render invoices in parallel.
+ * </p>
  */
 public class ExcelHandler {
 
@@ -47,12 +54,19 @@ public class ExcelHandler {
     private static final String INVOICE_CREATION_DATE_FORMAT = "yyyy-MM-dd";
 
     private XmlRepository xmlRepository;
+    private DatatypeFactory datatypeFactory;
 
     private InvoiceExcelWorkbook excelWorkbook;
     private InvoiceSheet invoiceSheet;
+    private InvoiceStyleRegistry lastStyleRegistry;
 
     public ExcelHandler(XmlRepository xmlRepository) {
         this.xmlRepository = xmlRepository;
+        try {
+            this.datatypeFactory = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException exception) {
+            throw new RuntimeException(exception);
+        }
     }
 
     /**
@@ -67,505 +81,821 @@ public class ExcelHandler {
      */
     public InvoiceType createInvoiceFile(CustomerType customer, int dueDays, boolean nextPeriod) {
 
-        CustomerInfoType customerInfo = customer.getCustomerInfo();
-        int invoiceNr = this.xmlRepository.getNewInvoiceNr();
+        InvoiceType invoice = this.createInvoiceFile(
+            customer,
+            dueDays,
+            nextPeriod,
+            this.xmlRepository.getNewInvoiceNr());
 
-        FileOutputStream fileOutput = null;
+        // Important to connect the invoice to the customer
+        this.xmlRepository.addInvoiceToCustomer(customer, invoice);
+
+        return invoice;
+    }
 
+    /**
+     * Generates a new invoice file, using given customer, options and an already reserved
+     * invoice nr. The actual invoice file is saved to local disk.
+     * <p>
+     * NOTE: The returned invoice is NOT connected to the customer, that is up to the caller.
+     * </p>
+     *
+     * @param customer A valid customer to create invoice for
+     * @param dueDays Nr of due days from now, when invoice must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @param invoiceNr The invoice nr to use, must be reserved in the repository
+     *
+     * @return The invoice meta-data object
+     */
+    public InvoiceType createInvoiceFile(
+        CustomerType customer,
+        int dueDays,
+        boolean nextPeriod,
+        int invoiceNr) {
+
+        RenderedInvoice renderedInvoice = this.renderInvoice(
+            customer,
+            dueDays,
+            nextPeriod,
+            invoiceNr,
+            Calendar.getInstance());
         try {
-            // Start preparing a new Excel sheet
-            // ------------------------------------------------------------------------------------
+            renderedInvoice.writeFile();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return renderedInvoice.getInvoice();
+    }
+
+    /**
+     * Renders a new invoice to memory, using given customer, options and an already reserved
+     * invoice nr. Nothing is written to disk, the file is written by the caller.
+     * <p>
+     * NOTE: The returned invoice is NOT connected to the customer, that is up to the caller.
+     * </p>
+     *
+     * @param customer A valid customer to create invoice for
+     * @param dueDays Nr of due days from the creation date, when invoice must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @param invoiceNr The invoice nr to use, must be reserved in the repository
+     * @param invoiceCreationCal The creation time of the invoice, e.g. the start of the run
+     *
+     * @return The invoice file contents and meta-data
+     */
+    public RenderedInvoice renderInvoice(
+        CustomerType customer,
+        int dueDays,
+        boolean nextPeriod,
+        int invoiceNr,
+        Calendar invoiceCreationCal) {
 
+        try {
             // Create a new workbook having one sheet
             this.excelWorkbook = new InvoiceExcelWorkbook();
             this.invoiceSheet = this.excelWorkbook.getInvoiceSheet();
 
-            // Set some generic options
-            POIXMLProperties.CoreProperties docCoreProperties = this.excelWorkbook
-                .getProperties()
-                .getCoreProperties();
-            docCoreProperties.setTitle("Faktura");
-            docCoreProperties.setCreator(SquashProperties.CLUB_NAME);
-
-            // The width must be given as 'nr of character x 256'
-            this.invoiceSheet.setColumnWidth(0, 3 * 256);
-            this.invoiceSheet.setColumnWidth(1, 42 * 256);
-            this.invoiceSheet.setColumnWidth(2, 13 * 256);
-            this.invoiceSheet.setColumnWidth(3, 14 * 256);
-            this.invoiceSheet.setDefaultColumnWidth(10);
-            this.invoiceSheet.setDefaultRowHeightInPoints(15);
-            this.invoiceSheet.setDisplayGridlines(false);
-            this.invoiceSheet.setZoom(100);
-
-            XSSFDrawing sheetDrawing = this.invoiceSheet.createDrawingPatriarch();
-
-            // First of all, add some empty space
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-
-            // Create a larger font
-            XSSFFont font = this.excelWorkbook.createFont();
-            font.setFontHeightInPoints((short) 16);
-            font.setBold(true);
-            XSSFCellStyle largeFontStyle = this.excelWorkbook.createCellStyle();
-            largeFontStyle.setFont(font);
-
-            InvoiceRow clubnameAndInvoiceNrRow = this.invoiceSheet.createNextPaddedRow();
-            clubnameAndInvoiceNrRow.setHeightInPoints(22);
-
-            // Start with the club logo and invoice nr
-            // ------------------------------------------------------------------------------------
-
-            InvoiceCell logoCell = clubnameAndInvoiceNrRow.createNextCell();
-            logoCell.setCellStyle(largeFontStyle);
-            logoCell.setCellValue(SquashProperties.CLUB_NAME);
-            clubnameAndInvoiceNrRow.createNextCell();
-
-            // Right align last cell here
-            InvoiceCell invoiceNrCell = clubnameAndInvoiceNrRow.createNextCell();
-            invoiceNrCell.setAlignment(CellStyle.ALIGN_CENTER);
-            invoiceNrCell.setCellValue("FakturaNr:  " + invoiceNr);
-
-            // Now add club's org.nr and current date
-            // ------------------------------------------------------------------------------------
-
-            InvoiceRow orgNrAndDateRow = this.invoiceSheet.createNextPaddedRow();
-
-            orgNrAndDateRow
-                .createNextCell()
-                .setCellValue("Org.nr: " + SquashProperties.CLUB_ORG_NR);
-            orgNrAndDateRow.createNextCell();
-
-            Calendar invoiceCreationCal = Calendar.getInstance();
-
-            // Right align last cell here
-            String invoiceDate = new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
-                .format(invoiceCreationCal.getTime());
-            InvoiceCell invoiceDateCell = orgNrAndDateRow.createNextCell();
-            invoiceDateCell.setAlignment(CellStyle.ALIGN_CENTER);
-            invoiceDateCell.setCellValue("Datum:  " + invoiceDate);
-
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-
-            // Add the "Faktura" text
-            // ------------------------------------------------------------------------------------
-
-            InvoiceRow fakturaTextRow = this.invoiceSheet.createNextPaddedRow();
-
-            XSSFFont fontFaktura = this.excelWorkbook.createFont();
-            fontFaktura.setFontHeightInPoints((short) 15);
-            fontFaktura.setBold(true);
-            fontFaktura.setItalic(true);
-            XSSFCellStyle fakturaFontStyle = this.excelWorkbook.createCellStyle();
-            fakturaFontStyle.setFont(fontFaktura);
-            InvoiceCell fakturaCell = fakturaTextRow.createNextCell();
-            fakturaCell.setCellValue("FAKTURA");
-            fakturaCell.setCellStyle(fakturaFontStyle);
-
-            // This draws a line just above the "Faktura" text
-            XSSFClientAnchor clientAnchorLine1 = sheetDrawing.createAnchor(
-                4 /* X start position, relative from the cell top left corner */,
-                4 /* Y start position, relative from the cell top left corner */,
-                300 /* X end position, relative from the cell top left corner */,
-                300 /* Y end position, relative from the cell top left corner */,
-                1 /* Which column index to draw from, e.g. starting cell */,
-                this.invoiceSheet
-                    .currentRowIndex() /* Which row index to draw from, e.g. starting cell */,
-                4 /* Which column index to draw to */,
-                this.invoiceSheet.currentRowIndex()) /* Which row index to draw to */;
-
-            XSSFSimpleShape lineShape = sheetDrawing.createSimpleShape(clientAnchorLine1);
-            lineShape.setLineStyleColor(220, 220, 220);
-            lineShape.setLineWidth(2);
-            lineShape.setShapeType(ShapeTypes.LINE);
-            this.invoiceSheet.createNextPaddedRow();
-
-            // This draws a line just below the "Faktura" text
-            XSSFClientAnchor clientAnchorLine2 = sheetDrawing.createAnchor(
-                4 /* X start position, relative from the cell top left corner */,
-                4 /* Y start position, relative from the cell top left corner */,
-                300 /* X end position, relative from the cell top left corner */,
-                300 /* Y end position, relative from the cell top left corner */,
-                1 /* Which column index to draw from, e.g. starting cell */,
-                this.invoiceSheet
-                    .currentRowIndex() /* Which row index to draw from, e.g. starting cell */,
-                4 /* Which column index to draw to */,
-                this.invoiceSheet.currentRowIndex()) /* Which row index to draw to */;
-
-            XSSFSimpleShape lineShape2 = sheetDrawing.createSimpleShape(clientAnchorLine2);
-            lineShape2.setLineStyleColor(220, 220, 220);
-            lineShape2.setLineWidth(2);
-            lineShape2.setShapeType(ShapeTypes.LINE);
-            this.invoiceSheet.createNextPaddedRow();
-
-            // Add customer and club info. The left box is the customer, the right one is the club.
-            // ------------------------------------------------------------------------------------
-
-            InvoiceRow referencesRow = this.invoiceSheet.createNextPaddedRow();
-
-            InvoiceCell yourReferenceCell = referencesRow.createNextCell();
-            yourReferenceCell.setCellValue("Er referens:");
-            yourReferenceCell.applyFontStyles(true, true, false);
-
-            InvoiceCell ourReferenceCell = referencesRow.createNextCell();
-            ourReferenceCell.setCellValue("Vår referens:");
-            ourReferenceCell.applyFontStyles(true, true, false);
-
-            InvoiceRow nameRow = this.invoiceSheet.createNextPaddedRow();
-            nameRow.createNextCell().setCellValue(
-                customerInfo.getFirstname() + " " + customerInfo.getLastname());
-            nameRow.createNextCell().setCellValue(SquashProperties.INVOICE_NAME);
-
-            InvoiceRow adressRow = this.invoiceSheet.createNextPaddedRow();
-            adressRow.createNextCell().setCellValue(customerInfo.getStreet());
-            adressRow.createNextCell().setCellValue(SquashProperties.INVOICE_STREET);
-
-            InvoiceRow cityRow = this.invoiceSheet.createNextPaddedRow();
-            cityRow.createNextCell().setCellValue(
-                customerInfo.getPostalCode() + " " + customerInfo.getCity());
-            cityRow.createNextCell().setCellValue(SquashProperties.INVOICE_CITY);
-
-            InvoiceRow phoneRow = this.invoiceSheet.createNextPaddedRow();
-            phoneRow.createNextCell().setCellValue(customerInfo.getTelephone());
-            phoneRow.createNextCell().setCellValue(SquashProperties.INVOICE_PHONE);
-
-            InvoiceRow emailRow = this.invoiceSheet.createNextPaddedRow();
-            InvoiceCell emailCell1 = emailRow.createNextCell();
-            emailCell1.setCellValue(customerInfo.getEmail());
-            emailCell1.applyEmailLink();
-
-            InvoiceCell emailCell2 = emailRow.createNextCell();
-            emailCell2.setCellValue(SquashProperties.INVOICE_EMAIL);
-            emailCell2.applyEmailLink();
-
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-
-            // Write the the track subscription(s) table, e.g. the invoice specification
-            // ------------------------------------------------------------------------------------
-
-            InvoiceRow trackTableHeaderRow = this.invoiceSheet.createNextPaddedRow();
-
-            InvoiceCell descriptionCell = trackTableHeaderRow.createNextCell();
-            descriptionCell.setCellValue("  Beskrivning");
-            descriptionCell.applyFontStyles(true, false, false);
-
-            // Skip one cell...
-            trackTableHeaderRow.createNextCellPadded();
-
-            InvoiceCell ammountCell = trackTableHeaderRow.createNextCell();
-            ammountCell.setCellValue("          Belopp");
-            ammountCell.applyFontStyles(true, false, false);
-
-            // Add border around the header cell range
-            String trackHeaderRowArea = trackTableHeaderRow.getCell(1).getAddress().formatAsString()
-                + ":"
-                + trackTableHeaderRow
-                    .getCell(trackTableHeaderRow.currentCellIndex())
-                    .getAddress()
-                    .formatAsString();
-            this.addBorder(trackHeaderRowArea, true);
-
-            // Loop subscriptions and write track cost rows
-            double totalPrice = 0d;
+            InvoiceLayout layout = this.buildInvoiceSheet(
+                customer,
+                dueDays,
+                nextPeriod,
+                invoiceNr,
+                invoiceCreationCal);
 
-            // This gets us the correct subscription period
-            SubscriptionPeriod period = new SubscriptionPeriod(nextPeriod);
+            return this.createRenderedInvoice(customer.getCustomerInfo(), invoiceNr, layout);
 
-            // First an empty row in the table...
-            InvoiceRow firstTableRow = this.invoiceSheet.createNextPaddedRow();
-            InvoiceCell firstTableCell = firstTableRow.createNextCellPadded();
-            String trackTableStartCellName = firstTableCell.getAddress().formatAsString();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
 
-            boolean hasSubscriptions;
-            SubscriptionsType subscriptionsType = customer.getSubscriptions();
-            if (subscriptionsType == null || subscriptionsType.getSubscription().isEmpty()) {
+            // Resource cleanup:
+        } finally {
+            this.closeWorkbook();
+        }
+    }
 
-                hasSubscriptions = false;
+    /**
+     * Builds the template of all invoices in a run having a given number of subscriptions.
+     * <p>
+     * The template is a complete invoice, with empty customer cells. Everything else is built
+     * once: column widths, fonts and styles, the lines, the borders, the club info and the dates.
+     * </p>
+     *
+     * @param subscriptionCount Nr of subscriptions of the customers to use the template for
+     * @param dueDays Nr of due days from the creation date, when invoice must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @param invoiceCreationCal The creation time of the invoices, e.g. the start of the run
+     *
+     * @return The template, to render invoices from using
+     *         <code>renderInvoice(InvoiceTemplate, CustomerType, int)</code>
+     */
+    public InvoiceTemplate createInvoiceTemplate(
+        int subscriptionCount,
+        int dueDays,
+        boolean nextPeriod,
+        Calendar invoiceCreationCal) {
+
+        // A customer having nothing but the subscriptions, so all customer cells are empty
+        CustomerInfoType emptyCustomerInfo = new CustomerInfoType();
+        emptyCustomerInfo.setFirstname("");
+        emptyCustomerInfo.setLastname("");
+        emptyCustomerInfo.setStreet("");
+        emptyCustomerInfo.setPostalCode("");
+        emptyCustomerInfo.setCity("");
+        emptyCustomerInfo.setTelephone("");
+        emptyCustomerInfo.setEmail("");
+
+        CustomerType emptyCustomer = new CustomerType();
+        emptyCustomer.setCustomerInfo(emptyCustomerInfo);
+        if (subscriptionCount > 0) {
+            SubscriptionsType subscriptions = new SubscriptionsType();
+            for (int i = 0; i < subscriptionCount; i++) {
+                SubscriptionType subscription = new SubscriptionType();
+                subscription.setFlexTime(Boolean.TRUE);
+                subscriptions.getSubscription().add(subscription);
+            }
+            emptyCustomer.setSubscriptions(subscriptions);
+        }
 
-                // If no subscriptions, write a red warning info row about this
-                InvoiceRow noSubscriptionsRow = this.invoiceSheet.createNextRow();
+        try {
+            this.excelWorkbook = new InvoiceExcelWorkbook();
+            this.invoiceSheet = this.excelWorkbook.getInvoiceSheet();
 
-                // Skip through first cell, that's just the padding cell
-                noSubscriptionsRow.createNextCell();
+            InvoiceLayout layout = this.buildInvoiceSheet(
+                emptyCustomer,
+                dueDays,
+                nextPeriod,
+                0,
+                invoiceCreationCal);
 
-                String warningMessage = " OBS: Det finns inga abonnemang att fakturera!";
-                InvoiceCell warningTextCell = noSubscriptionsRow.createNextCell();
-                warningTextCell.setCellValue(warningMessage);
+            // The e-mail cell is empty in the template, so its link style is added here for
+            // the invoices to share
+            this.excelWorkbook.getStyleRegistry().getCellStyle(InvoiceCell.EMAIL_LINK_STYLE);
 
-                XSSFCellStyle warningCellStyle = this.excelWorkbook.createCellStyle();
-                XSSFFont redFont = this.excelWorkbook.createFont();
-                redFont.setBold(true);
-                redFont.setColor(IndexedColors.RED.getIndex());
-                warningCellStyle.setFont(redFont);
-                warningTextCell.setCellStyle(warningCellStyle);
+            ByteArrayOutputStream skeleton = new ByteArrayOutputStream(16 * 1024);
+            this.excelWorkbook.write(skeleton);
 
-            } else {
+            return new InvoiceTemplate(subscriptionCount, skeleton.toByteArray(), layout);
 
-                hasSubscriptions = true;
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
 
-                Iterator<SubscriptionType> subscriptionIterator = subscriptionsType
-                    .getSubscription()
-                    .iterator();
+            // Resource cleanup:
+        } finally {
+            this.closeWorkbook();
+        }
+    }
 
-                while (subscriptionIterator.hasNext()) {
-                    SubscriptionType subscription = subscriptionIterator.next();
+    /**
+     * Renders a new invoice to memory from a template, using given customer and an already
+     * reserved invoice nr. Only the customer cells are set, the rest is as in the template.
+     * Nothing is written to disk, the file is written by the caller.
+     * <p>
+     * NOTE: The returned invoice is NOT connected to the customer, that is up to the caller.
+     * </p>
+     *
+     * @param template A template having the same nr of subscriptions as the customer
+     * @param customer A valid customer to create invoice for
+     * @param invoiceNr The invoice nr to use, must be reserved in the repository
+     *
+     * @return The invoice file contents and meta-data
+     */
+    public RenderedInvoice renderInvoice(
+        InvoiceTemplate template,
+        CustomerType customer,
+        int invoiceNr) {
+
+        List<SubscriptionType> subscriptions = customer.getSubscriptions() == null
+            ? Collections.<SubscriptionType> emptyList()
+            : customer.getSubscriptions().getSubscription();
+        if (subscriptions.size() != template.getSubscriptionCount()) {
+            throw new IllegalArgumentException(
+                "Fakturamallen har "
+                    + template.getSubscriptionCount()
+                    + " abonnemang, men kunden har "
+                    + subscriptions.size());
+        }
 
-                    // Write a track info row
-                    {
-                        InvoiceRow trackInfoRow = this.invoiceSheet.createNextRow();
+        CustomerInfoType customerInfo = customer.getCustomerInfo();
+        InvoiceLayout layout = template.getLayout();
 
-                        // Skip through first cell, that's just the padding cell
-                        trackInfoRow.createNextCell();
+        try {
+            this.excelWorkbook = new InvoiceExcelWorkbook(
+                new ByteArrayInputStream(template.getSkeleton()));
+            this.invoiceSheet = this.excelWorkbook.getInvoiceSheet();
 
-                        // Write a text like "Abbonemang bana 1, Torsdagar, kl 19:00".
-                        // If flextime, just write a static description text.
-                        String trackInfoText;
-                        if (subscription.isFlexTime()) {
-                            trackInfoText = "  " + SquashUtil.SPECIAL_SUBSCRIPTION_TEXT;
-                        } else {
-                            trackInfoText = "  Abonnemang bana "
-                                + subscription.getTrackNumber()
-                                + ", "
-                                + SquashUtil.weekdayTypeToString(subscription.getWeekday())
-                                + "ar"
-                                + " kl "
-                                + SquashUtil.getTrackTimeFromCalendar(subscription.getStartTime());
-                        }
+            this.getLayoutCell(layout.invoiceNrCell).setCellValue(getInvoiceNrText(invoiceNr));
+            this.getLayoutCell(layout.nameCell).setCellValue(getCustomerNameText(customerInfo));
+            this.getLayoutCell(layout.streetCell).setCellValue(customerInfo.getStreet());
+            this.getLayoutCell(layout.cityCell).setCellValue(getCustomerCityText(customerInfo));
+            this.getLayoutCell(layout.phoneCell).setCellValue(customerInfo.getTelephone());
 
-                        InvoiceCell trackInfoCell = trackInfoRow.createNextCell();
+            InvoiceCell emailCell = this.getLayoutCell(layout.emailCell);
+            emailCell.setCellValue(customerInfo.getEmail());
+            emailCell.applyEmailLink();
 
-                        trackInfoCell.setCellValue(trackInfoText);
+            // The cells already have the currency styles, only the values are set
+            double trackPrice = getTrackPrice(customerInfo);
+            double totalPrice = 0d;
+            for (int i = 0; i < subscriptions.size(); i++) {
+                this
+                    .getLayoutCell(layout.trackInfoCells.get(i))
+                    .setCellValue(getTrackInfoText(subscriptions.get(i)));
+                this.getLayoutCell(layout.trackPriceCells.get(i)).setCurrencyValue(trackPrice);
+                totalPrice += trackPrice;
+            }
+            this.getLayoutCell(layout.sumCell).setCurrencyValue(totalPrice);
+            this.getLayoutCell(layout.totalCell).setCurrencyValue(totalPrice);
 
-                        trackInfoRow.createNextCellPadded();
-                        trackInfoRow.createNextCellPadded();
-                    }
+            return this.createRenderedInvoice(customerInfo, invoiceNr, layout);
 
-                    // Write another row with the track period and the price
-                    {
-                        InvoiceRow trackPeriodAndPriceRow = this.invoiceSheet.createNextRow();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
 
-                        // Skip through first cell, that's just the padding cell
-                        trackPeriodAndPriceRow.createNextCell();
+            // Resource cleanup:
+        } finally {
+            this.closeWorkbook();
+        }
+    }
 
-                        String trackPeriodText = "  Gäller perioden "
-                            + period.getStartDayString()
-                            + " till "
-                            + period.getEndDayString();
+    /**
+     * Returns the shared styles of the last invoice or template rendered, e.g. for reporting
+     * @return The style registry of the last workbook, null if none rendered yet
+     */
+    public InvoiceStyleRegistry getLastStyleRegistry() {
+        return this.lastStyleRegistry;
+    }
 
-                        trackPeriodAndPriceRow.createNextCell().setCellValue(trackPeriodText);
-                        trackPeriodAndPriceRow.createNextCellPadded();
+    // Builds the invoice sheet of the current workbook, and returns where the customer cells are
+    private InvoiceLayout buildInvoiceSheet(
+        CustomerType customer,
+        int dueDays,
+        boolean nextPeriod,
+        int invoiceNr,
+        Calendar invoiceCreationCal) {
 
-                        // Use custom override price, if any
-                        double trackPrice;
-                        if (customerInfo.getSubscriptionPrice() != null) {
-                            trackPrice = customerInfo.getSubscriptionPrice().intValue();
-                        } else if (customerInfo.isCompany()) {
-                            trackPrice = SquashProperties.TRACK_PRICE_COMPANY;
-                        } else {
-                            trackPrice = SquashProperties.TRACK_PRICE_PERSON;
-                        }
+        CustomerInfoType customerInfo = customer.getCustomerInfo();
+        InvoiceLayout layout = new InvoiceLayout();
+
+        // Start preparing a new Excel sheet
+        // ------------------------------------------------------------------------------------
+
+        // Set some generic options
+        POIXMLProperties.CoreProperties docCoreProperties = this.excelWorkbook
+            .getProperties()
+            .getCoreProperties();
+        docCoreProperties.setTitle("Faktura");
+        docCoreProperties.setCreator(SquashProperties.CLUB_NAME);
+
+        // The width must be given as 'nr of character x 256'
+        this.invoiceSheet.setColumnWidth(0, 3 * 256);
+        this.invoiceSheet.setColumnWidth(1, 42 * 256);
+        this.invoiceSheet.setColumnWidth(2, 13 * 256);
+        this.invoiceSheet.setColumnWidth(3, 14 * 256);
+        this.invoiceSheet.setDefaultColumnWidth(10);
+        this.invoiceSheet.setDefaultRowHeightInPoints(15);
+        this.invoiceSheet.setDisplayGridlines(false);
+        this.invoiceSheet.setZoom(100);
+
+        XSSFDrawing sheetDrawing = this.invoiceSheet.createDrawingPatriarch();
+
+        // First of all, add some empty space
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+
+        // Use a larger font
+        InvoiceStyle largeFontStyle = InvoiceStyle.DEFAULT
+            .withFont(true, false, false)
+            .withFontHeight(16);
+
+        InvoiceRow clubnameAndInvoiceNrRow = this.invoiceSheet.createNextPaddedRow();
+        clubnameAndInvoiceNrRow.setHeightInPoints(22);
+
+        // Start with the club logo and invoice nr
+        // ------------------------------------------------------------------------------------
+
+        InvoiceCell logoCell = clubnameAndInvoiceNrRow.createNextCell();
+        logoCell.setInvoiceStyle(largeFontStyle);
+        logoCell.setCellValue(SquashProperties.CLUB_NAME);
+        clubnameAndInvoiceNrRow.createNextCell();
+
+        // Right align last cell here
+        InvoiceCell invoiceNrCell = clubnameAndInvoiceNrRow.createNextCell();
+        invoiceNrCell.setAlignment(CellStyle.ALIGN_CENTER);
+        invoiceNrCell.setCellValue(getInvoiceNrText(invoiceNr));
+        layout.invoiceNrCell = invoiceNrCell.getAddress();
+
+        // Now add club's org.nr and current date
+        // ------------------------------------------------------------------------------------
+
+        InvoiceRow orgNrAndDateRow = this.invoiceSheet.createNextPaddedRow();
+
+        orgNrAndDateRow
+            .createNextCell()
+            .setCellValue("Org.nr: " + SquashProperties.CLUB_ORG_NR);
+        orgNrAndDateRow.createNextCell();
+
+        // Right align last cell here
+        String invoiceDate = new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
+            .format(invoiceCreationCal.getTime());
+        InvoiceCell invoiceDateCell = orgNrAndDateRow.createNextCell();
+        invoiceDateCell.setAlignment(CellStyle.ALIGN_CENTER);
+        invoiceDateCell.setCellValue("Datum:  " + invoiceDate);
+        layout.invoiceDate = invoiceDate;
+        layout.createdMillis = invoiceCreationCal.getTimeInMillis();
+
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+
+        // Add the "Faktura" text
+        // ------------------------------------------------------------------------------------
+
+        InvoiceRow fakturaTextRow = this.invoiceSheet.createNextPaddedRow();
+
+        InvoiceCell fakturaCell = fakturaTextRow.createNextCell();
+        fakturaCell.setCellValue("FAKTURA");
+        fakturaCell.setInvoiceStyle(
+            InvoiceStyle.DEFAULT.withFont(true, true, false).withFontHeight(15));
+
+        // This draws a line just above the "Faktura" text
+        XSSFClientAnchor clientAnchorLine1 = sheetDrawing.createAnchor(
+            4 /* X start position, relative from the cell top left corner */,
+            4 /* Y start position, relative from the cell top left corner */,
+            300 /* X end position, relative from the cell top left corner */,
+            300 /* Y end position, relative from the cell top left corner */,
+            1 /* Which column index to draw from, e.g. starting cell */,
+            this.invoiceSheet
+                .currentRowIndex() /* Which row index to draw from, e.g. starting cell */,
+            4 /* Which column index to draw to */,
+            this.invoiceSheet.currentRowIndex()) /* Which row index to draw to */;
+
+        XSSFSimpleShape lineShape = sheetDrawing.createSimpleShape(clientAnchorLine1);
+        lineShape.setLineStyleColor(220, 220, 220);
+        lineShape.setLineWidth(2);
+        lineShape.setShapeType(ShapeTypes.LINE);
+        this.invoiceSheet.createNextPaddedRow();
+
+        // This draws a line just below the "Faktura" text
+        XSSFClientAnchor clientAnchorLine2 = sheetDrawing.createAnchor(
+            4 /* X start position, relative from the cell top left corner */,
+            4 /* Y start position, relative from the cell top left corner */,
+            300 /* X end position, relative from the cell top left corner */,
+            300 /* Y end position, relative from the cell top left corner */,
+            1 /* Which column index to draw from, e.g. starting cell */,
+            this.invoiceSheet
+                .currentRowIndex() /* Which row index to draw from, e.g. starting cell */,
+            4 /* Which column index to draw to */,
+            this.invoiceSheet.currentRowIndex()) /* Which row index to draw to */;
+
+        XSSFSimpleShape lineShape2 = sheetDrawing.createSimpleShape(clientAnchorLine2);
+        lineShape2.setLineStyleColor(220, 220, 220);
+        lineShape2.setLineWidth(2);
+        lineShape2.setShapeType(ShapeTypes.LINE);
+        this.invoiceSheet.createNextPaddedRow();
+
+        // Add customer and club info. The left box is the customer, the right one is the club.
+        // ------------------------------------------------------------------------------------
+
+        InvoiceRow referencesRow = this.invoiceSheet.createNextPaddedRow();
+
+        InvoiceCell yourReferenceCell = referencesRow.createNextCell();
+        yourReferenceCell.setCellValue("Er referens:");
+        yourReferenceCell.applyFontStyles(true, true, false);
+
+        InvoiceCell ourReferenceCell = referencesRow.createNextCell();
+        ourReferenceCell.setCellValue("Vår referens:");
+        ourReferenceCell.applyFontStyles(true, true, false);
+
+        InvoiceRow nameRow = this.invoiceSheet.createNextPaddedRow();
+        InvoiceCell nameCell = nameRow.createNextCell();
+        nameCell.setCellValue(getCustomerNameText(customerInfo));
+        layout.nameCell = nameCell.getAddress();
+        nameRow.createNextCell().setCellValue(SquashProperties.INVOICE_NAME);
+
+        InvoiceRow adressRow = this.invoiceSheet.createNextPaddedRow();
+        InvoiceCell streetCell = adressRow.createNextCell();
+        streetCell.setCellValue(customerInfo.getStreet());
+        layout.streetCell = streetCell.getAddress();
+        adressRow.createNextCell().setCellValue(SquashProperties.INVOICE_STREET);
+
+        InvoiceRow cityRow = this.invoiceSheet.createNextPaddedRow();
+        InvoiceCell cityCell = cityRow.createNextCell();
+        cityCell.setCellValue(getCustomerCityText(customerInfo));
+        layout.cityCell = cityCell.getAddress();
+        cityRow.createNextCell().setCellValue(SquashProperties.INVOICE_CITY);
+
+        InvoiceRow phoneRow = this.invoiceSheet.createNextPaddedRow();
+        InvoiceCell phoneCell = phoneRow.createNextCell();
+        phoneCell.setCellValue(customerInfo.getTelephone());
+        layout.phoneCell = phoneCell.getAddress();
+        phoneRow.createNextCell().setCellValue(SquashProperties.INVOICE_PHONE);
+
+        InvoiceRow emailRow = this.invoiceSheet.createNextPaddedRow();
+        InvoiceCell emailCell1 = emailRow.createNextCell();
+        emailCell1.setCellValue(customerInfo.getEmail());
+        emailCell1.applyEmailLink();
+        layout.emailCell = emailCell1.getAddress();
+
+        InvoiceCell emailCell2 = emailRow.createNextCell();
+        emailCell2.setCellValue(SquashProperties.INVOICE_EMAIL);
+        emailCell2.applyEmailLink();
+
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+
+        // Write the the track subscription(s) table, e.g. the invoice specification
+        // ------------------------------------------------------------------------------------
+
+        InvoiceRow trackTableHeaderRow = this.invoiceSheet.createNextPaddedRow();
+
+        InvoiceCell descriptionCell = trackTableHeaderRow.createNextCell();
+        descriptionCell.setCellValue("  Beskrivning");
+        descriptionCell.applyFontStyles(true, false, false);
+
+        // Skip one cell...
+        trackTableHeaderRow.createNextCellPadded();
+
+        InvoiceCell ammountCell = trackTableHeaderRow.createNextCell();
+        ammountCell.setCellValue("          Belopp");
+        ammountCell.applyFontStyles(true, false, false);
+
+        // Add border around the header cell range
+        String trackHeaderRowArea = trackTableHeaderRow.getCell(1).getAddress().formatAsString()
+            + ":"
+            + trackTableHeaderRow
+                .getCell(trackTableHeaderRow.currentCellIndex())
+                .getAddress()
+                .formatAsString();
+        this.addBorder(trackHeaderRowArea, true);
+
+        // Loop subscriptions and write track cost rows
+        double totalPrice = 0d;
+
+        // This gets us the correct subscription period
+        SubscriptionPeriod period = new SubscriptionPeriod(nextPeriod);
+
+        // First an empty row in the table...
+        InvoiceRow firstTableRow = this.invoiceSheet.createNextPaddedRow();
+        InvoiceCell firstTableCell = firstTableRow.createNextCellPadded();
+        String trackTableStartCellName = firstTableCell.getAddress().formatAsString();
 
-                        InvoiceCell trackPriceCell = trackPeriodAndPriceRow.createNextCell();
-                        trackPriceCell.setCurrencyFormat(trackPrice, true, false);
+        boolean hasSubscriptions;
+        SubscriptionsType subscriptionsType = customer.getSubscriptions();
+        if (subscriptionsType == null || subscriptionsType.getSubscription().isEmpty()) {
 
-                        totalPrice += trackPrice;
-                    }
+            hasSubscriptions = false;
 
-                    // One empty row between track rows
-                    this.invoiceSheet.createNextPaddedRow();
-                }
-            }
+            // If no subscriptions, write a red warning info row about this
+            InvoiceRow noSubscriptionsRow = this.invoiceSheet.createNextRow();
 
-            // Add some blank rows, to better match the A4 paper height
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
-            this.invoiceSheet.createNextPaddedRow();
+            // Skip through first cell, that's just the padding cell
+            noSubscriptionsRow.createNextCell();
 
-            InvoiceRow lastTrackTableRow = this.invoiceSheet.createNextPaddedRow();
+            String warningMessage = " OBS: Det finns inga abonnemang att fakturera!";
+            InvoiceCell warningTextCell = noSubscriptionsRow.createNextCell();
+            warningTextCell.setCellValue(warningMessage);
 
-            lastTrackTableRow.createNextCellPadded();
-            lastTrackTableRow.createNextCellPadded();
-            InvoiceCell lastTrackTableCell = lastTrackTableRow.createNextCellPadded();
+            warningTextCell.setInvoiceStyle(
+                InvoiceStyle.DEFAULT
+                    .withFont(true, false, false)
+                    .withFontColor(IndexedColors.RED.getIndex()));
 
-            // Add a border around the subscriptions table
-            String trackTableCellRange = trackTableStartCellName
-                + ":"
-                + lastTrackTableCell.getAddress().formatAsString();
+        } else {
 
-            this.addBorder(trackTableCellRange, true);
+            hasSubscriptions = true;
 
-            // Now continue with some bottom ammount fields and payment info
-            // ------------------------------------------------------------------------------------
+            Iterator<SubscriptionType> subscriptionIterator = subscriptionsType
+                .getSubscription()
+                .iterator();
 
-            // Write the sum row
-            InvoiceRow sumRow = this.invoiceSheet.createNextRow();
-            sumRow.createNextCellPadded();
-            sumRow.createNextCellPadded();
+            while (subscriptionIterator.hasNext()) {
+                SubscriptionType subscription = subscriptionIterator.next();
 
-            InvoiceCell sumTextCell = sumRow.createNextCell();
-            sumTextCell.setCellValue("  Summa");
+                // Write a track info row
+                {
+                    InvoiceRow trackInfoRow = this.invoiceSheet.createNextRow();
 
-            InvoiceCell sumValueCell = sumRow.createNextCell();
-            sumValueCell.setCurrencyFormat(totalPrice, true, false);
+                    // Skip through first cell, that's just the padding cell
+                    trackInfoRow.createNextCell();
 
-            // Write the "moms" row, along with payment instructions box
-            InvoiceRow momsRow = this.invoiceSheet.createNextRow();
-            momsRow.createNextCellPadded();
+                    InvoiceCell trackInfoCell = trackInfoRow.createNextCell();
 
-            InvoiceCell paymentInfoCell = momsRow.createNextCell();
-            paymentInfoCell.setCellValue("Bankgiro: " + SquashProperties.CLUB_BG_NR);
-            paymentInfoCell.setAlignment(CellStyle.ALIGN_CENTER);
+                    trackInfoCell.setCellValue(getTrackInfoText(subscription));
+                    layout.trackInfoCells.add(trackInfoCell.getAddress());
 
-            // Moms is not used!
-            /**double momsValue = 0d;
-            momsRow.createNextCell().setCellValue("  Varav moms");
-            InvoiceCell momsValueCell = momsRow.createNextCell();
-            momsValueCell.setCurrencyFormat(momsValue, true, false);*/
+                    trackInfoRow.createNextCellPadded();
+                    trackInfoRow.createNextCellPadded();
+                }
 
-            // Write the row with the total ammount to pay
-            InvoiceRow ammountToPayRow = this.invoiceSheet.createNextRow();
-            ammountToPayRow.createNextCellPadded();
+                // Write another row with the track period and the price
+                {
+                    InvoiceRow trackPeriodAndPriceRow = this.invoiceSheet.createNextRow();
 
-            // Add the payment due date (no time parts), relative from "now", just below the BG nr
-            Calendar dueCal = (Calendar) invoiceCreationCal.clone();
-            dueCal.add(Calendar.DATE, dueDays);
-            SquashUtil.timeZeroCalendar(dueCal);
-            String dueDateString = new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
-                .format(dueCal.getTime());
+                    // Skip through first cell, that's just the padding cell
+                    trackPeriodAndPriceRow.createNextCell();
 
-            InvoiceCell paymentInfo2Cell = ammountToPayRow.createNextCell();
-            paymentInfo2Cell.applyFontStyles(true, false, false);
+                    String trackPeriodText = "  Gäller perioden "
+                        + period.getStartDayString()
+                        + " till "
+                        + period.getEndDayString();
 
-            paymentInfo2Cell.setCellValue("Förfallodag " + dueDateString);
-            paymentInfo2Cell.setAlignment(CellStyle.ALIGN_CENTER);
+                    trackPeriodAndPriceRow.createNextCell().setCellValue(trackPeriodText);
+                    trackPeriodAndPriceRow.createNextCellPadded();
 
-            InvoiceCell ammountToPayTextCell = ammountToPayRow.createNextCell();
-            ammountToPayTextCell.setCellValue("  Att betala");
-            ammountToPayTextCell.applyFontStyles(true, false, false);
+                    double trackPrice = getTrackPrice(customerInfo);
 
-            InvoiceCell totalAmmountCell = ammountToPayRow.createNextCell();
-            totalAmmountCell.setCurrencyFormat(totalPrice, true, true);
+                    InvoiceCell trackPriceCell = trackPeriodAndPriceRow.createNextCell();
+                    trackPriceCell.setCurrencyFormat(trackPrice, true, false);
+                    layout.trackPriceCells.add(trackPriceCell.getAddress());
 
-            // Add border around the sum area
-            String sumRange = sumTextCell.getAddress().formatAsString()
-                + ":"
-                + totalAmmountCell.getAddress().formatAsString();
-            this.addBorder(sumRange, true);
+                    totalPrice += trackPrice;
+                }
 
-            // Write a row with payment marking info
-            InvoiceRow markPaymentRow = this.invoiceSheet.createNextRow();
-            markPaymentRow.createNextCellPadded();
+                // One empty row between track rows
+                this.invoiceSheet.createNextPaddedRow();
+            }
+        }
+
+        // Add some blank rows, to better match the A4 paper height
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+        this.invoiceSheet.createNextPaddedRow();
+
+        InvoiceRow lastTrackTableRow = this.invoiceSheet.createNextPaddedRow();
+
+        lastTrackTableRow.createNextCellPadded();
+        lastTrackTableRow.createNextCellPadded();
+        InvoiceCell lastTrackTableCell = lastTrackTableRow.createNextCellPadded();
+
+        // Add a border around the subscriptions table
+        String trackTableCellRange = trackTableStartCellName
+            + ":"
+            + lastTrackTableCell.getAddress().formatAsString();
+
+        this.addBorder(trackTableCellRange, true);
+
+        // Now continue with some bottom ammount fields and payment info
+        // ------------------------------------------------------------------------------------
+
+        // Write the sum row
+        InvoiceRow sumRow = this.invoiceSheet.createNextRow();
+        sumRow.createNextCellPadded();
+        sumRow.createNextCellPadded();
+
+        InvoiceCell sumTextCell = sumRow.createNextCell();
+        sumTextCell.setCellValue("  Summa");
+
+        InvoiceCell sumValueCell = sumRow.createNextCell();
+        sumValueCell.setCurrencyFormat(totalPrice, true, false);
+        layout.sumCell = sumValueCell.getAddress();
+
+        // Write the "moms" row, along with payment instructions box
+        InvoiceRow momsRow = this.invoiceSheet.createNextRow();
+        momsRow.createNextCellPadded();
+
+        InvoiceCell paymentInfoCell = momsRow.createNextCell();
+        paymentInfoCell.setCellValue("Bankgiro: " + SquashProperties.CLUB_BG_NR);
+        paymentInfoCell.setAlignment(CellStyle.ALIGN_CENTER);
+
+        // Moms is not used!
+        /**double momsValue = 0d;
+        momsRow.createNextCell().setCellValue("  Varav moms");
+        InvoiceCell momsValueCell = momsRow.createNextCell();
+        momsValueCell.setCurrencyFormat(momsValue, true, false);*/
+
+        // Write the row with the total ammount to pay
+        InvoiceRow ammountToPayRow = this.invoiceSheet.createNextRow();
+        ammountToPayRow.createNextCellPadded();
+
+        // Add the payment due date (no time parts), relative from "now", just below the BG nr
+        Calendar dueCal = (Calendar) invoiceCreationCal.clone();
+        dueCal.add(Calendar.DATE, dueDays);
+        SquashUtil.timeZeroCalendar(dueCal);
+        String dueDateString = new SimpleDateFormat(INVOICE_CREATION_DATE_FORMAT)
+            .format(dueCal.getTime());
+        layout.dueMillis = dueCal.getTimeInMillis();
+        if (hasSubscriptions) {
+            layout.periodStartMillis = Long.valueOf(period.getStartDay().getTimeInMillis());
+        }
 
-            InvoiceCell paymentInfo3Cell = markPaymentRow.createNextCell();
-            paymentInfo3Cell.setCellValue("Märk betalningen med FakturaNr!");
-            paymentInfo3Cell.applyFontStyles(true, false, true);
+        InvoiceCell paymentInfo2Cell = ammountToPayRow.createNextCell();
+        paymentInfo2Cell.applyFontStyles(true, false, false);
 
-            // Write the workbook to a new file
-            // ------------------------------------------------------------------------------------
+        paymentInfo2Cell.setCellValue("Förfallodag " + dueDateString);
+        paymentInfo2Cell.setAlignment(CellStyle.ALIGN_CENTER);
 
-            String fileTimestamp = new SimpleDateFormat(INVOICE_FILE_TIMESTAMP_FORMAT)
-                .format(new Date());
+        InvoiceCell ammountToPayTextCell = ammountToPayRow.createNextCell();
+        ammountToPayTextCell.setCellValue("  Att betala");
+        ammountToPayTextCell.applyFontStyles(true, false, false);
 
-            // Make sure that the sub-directory with the current day exists
-            File currentInvoicesDayDir = new File(
-                XmlRepository.INVOICES_DIR_PATH + "/" + invoiceDate);
-            if (!currentInvoicesDayDir.exists()) {
-                currentInvoicesDayDir.mkdirs();
-            }
+        InvoiceCell totalAmmountCell = ammountToPayRow.createNextCell();
+        totalAmmountCell.setCurrencyFormat(totalPrice, true, true);
+        layout.totalCell = totalAmmountCell.getAddress();
+
+        // Add border around the sum area
+        String sumRange = sumTextCell.getAddress().formatAsString()
+            + ":"
+            + totalAmmountCell.getAddress().formatAsString();
+        this.addBorder(sumRange, true);
+
+        // Write a row with payment marking info
+        InvoiceRow markPaymentRow = this.invoiceSheet.createNextRow();
+        markPaymentRow.createNextCellPadded();
+
+        InvoiceCell paymentInfo3Cell = markPaymentRow.createNextCell();
+        paymentInfo3Cell.setCellValue("Märk betalningen med FakturaNr!");
+        paymentInfo3Cell.applyFontStyles(true, false, true);
 
-            StringBuilder filePath = new StringBuilder();
-            filePath.append(currentInvoicesDayDir.getPath());
-            filePath.append("/");
-            filePath.append(customerInfo.getCustomerNumber());
+        layout.fileTimestamp = new SimpleDateFormat(INVOICE_FILE_TIMESTAMP_FORMAT)
+            .format(invoiceCreationCal.getTime());
+
+        return layout;
+    }
+
+    // Writes the current workbook to memory, and creates the invoice meta-data
+    private RenderedInvoice createRenderedInvoice(
+        CustomerInfoType customerInfo,
+        int invoiceNr,
+        InvoiceLayout layout) throws IOException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream(16 * 1024);
+        this.excelWorkbook.write(content);
+
+        return new RenderedInvoice(
+            createInvoice(
+                this.xmlRepository,
+                this.datatypeFactory,
+                customerInfo,
+                invoiceNr,
+                layout),
+            content.toByteArray());
+    }
+
+    /**
+     * Creates the meta-data of a rendered invoice. The file goes in a sub-directory with
+     * the invoice day.
+     *
+     * @param xmlRepository The repository, creating the invoice object
+     * @param datatypeFactory A factory only used by the calling thread
+     * @param customerInfo The customer of the invoice
+     * @param invoiceNr The invoice nr
+     * @param layout The layout the invoice was rendered with, only the dates are used
+     * @return The invoice meta-data object
+     */
+    protected static InvoiceType createInvoice(
+        XmlRepository xmlRepository,
+        DatatypeFactory datatypeFactory,
+        CustomerInfoType customerInfo,
+        int invoiceNr,
+        InvoiceLayout layout) {
+
+        File currentInvoicesDayDir = new File(
+            XmlRepository.INVOICES_DIR_PATH + "/" + layout.invoiceDate);
+
+        StringBuilder filePath = new StringBuilder();
+        filePath.append(currentInvoicesDayDir.getPath());
+        filePath.append("/");
+        filePath.append(customerInfo.getCustomerNumber());
+        filePath.append("_");
+        if (SquashUtil.isSet(customerInfo.getFirstname())) {
+            filePath.append(customerInfo.getFirstname());
             filePath.append("_");
-            if (SquashUtil.isSet(customerInfo.getFirstname())) {
-                filePath.append(customerInfo.getFirstname());
-                filePath.append("_");
-            }
-            if (SquashUtil.isSet(customerInfo.getLastname())) {
-                filePath.append(customerInfo.getLastname());
-                filePath.append("_");
-            }
-            filePath.append("Faktura_");
-            filePath.append(invoiceNr);
+        }
+        if (SquashUtil.isSet(customerInfo.getLastname())) {
+            filePath.append(customerInfo.getLastname());
             filePath.append("_");
-            filePath.append(fileTimestamp);
-            filePath.append(".xlsx");
-            fileOutput = new FileOutputStream(filePath.toString(), false);
-            this.excelWorkbook.write(fileOutput);
+        }
+        filePath.append("Faktura_");
+        filePath.append(invoiceNr);
+        filePath.append("_");
+        filePath.append(layout.fileTimestamp);
+        filePath.append(".xlsx");
+
+        InvoiceType invoice = xmlRepository.getNewInvoice();
+
+        GregorianCalendar gregorialCal = new GregorianCalendar();
+        gregorialCal.setTimeInMillis(layout.createdMillis);
+        invoice.setCreatedDate(datatypeFactory.newXMLGregorianCalendar(gregorialCal));
+
+        gregorialCal.setTimeInMillis(layout.dueMillis);
+        invoice.setDueDate(datatypeFactory.newXMLGregorianCalendar(gregorialCal));
 
-            // Create meta-data object and return it
-            // ------------------------------------------------------------------------------------
+        if (layout.periodStartMillis != null) {
+            gregorialCal.setTimeInMillis(layout.periodStartMillis.longValue());
+            invoice.setPeriodStartDate(datatypeFactory.newXMLGregorianCalendar(gregorialCal));
+        }
+
+        invoice.setInvoiceNumber(invoiceNr);
+        invoice.setInvoiceStatus(InvoiceStatusType.NEW);
+        invoice.setRelativeFilePath(filePath.toString());
+
+        return invoice;
+    }
 
-            InvoiceType invoice = this.xmlRepository.getNewInvoice();
+    // Returns a customer cell of the current workbook
+    private InvoiceCell getLayoutCell(CellAddress address) {
+        return new InvoiceCell(
+            this.invoiceSheet.getRow(address.getRow()).getCell(
+                address.getColumn(),
+                Row.CREATE_NULL_AS_BLANK));
+    }
 
-            GregorianCalendar gregorialCal = new GregorianCalendar();
-            DatatypeFactory datatypeFactory;
+    private void closeWorkbook() {
+        if (this.excelWorkbook != null) {
+            this.lastStyleRegistry = this.excelWorkbook.getStyleRegistry();
             try {
-                datatypeFactory = DatatypeFactory.newInstance();
-            } catch (DatatypeConfigurationException exception) {
-                throw new RuntimeException(exception);
+                this.excelWorkbook.close();
+            } catch (Exception ex) {
+                //Ignore this...
             }
-            gregorialCal.setTimeInMillis(invoiceCreationCal.getTimeInMillis());
-            invoice.setCreatedDate(datatypeFactory.newXMLGregorianCalendar(gregorialCal));
+        }
+    }
 
-            gregorialCal.setTimeInMillis(dueCal.getTimeInMillis());
-            invoice.setDueDate(datatypeFactory.newXMLGregorianCalendar(gregorialCal));
+    protected static String getInvoiceNrText(int invoiceNr) {
+        return "FakturaNr:  " + invoiceNr;
+    }
 
-            if (hasSubscriptions) {
-                gregorialCal.setTimeInMillis(period.getStartDay().getTimeInMillis());
-                invoice.setPeriodStartDate(datatypeFactory.newXMLGregorianCalendar(gregorialCal));
-            }
+    protected static String getCustomerNameText(CustomerInfoType customerInfo) {
+        return customerInfo.getFirstname() + " " + customerInfo.getLastname();
+    }
 
-            invoice.setInvoiceNumber(invoiceNr);
-            invoice.setInvoiceStatus(InvoiceStatusType.NEW);
-            invoice.setRelativeFilePath(filePath.toString());
+    protected static String getCustomerCityText(CustomerInfoType customerInfo) {
+        return customerInfo.getPostalCode() + " " + customerInfo.getCity();
+    }
 
-            // Important to connect the invoice to the customer
-            this.xmlRepository.addInvoiceToCustomer(customer, invoice);
+    // Returns a text like "Abbonemang bana 1, Torsdagar, kl 19:00".
+    // If flextime, just a static description text.
+    protected static String getTrackInfoText(SubscriptionType subscription) {
 
-            return invoice;
+        if (Boolean.TRUE.equals(subscription.isFlexTime())) {
+            return "  " + SquashUtil.SPECIAL_SUBSCRIPTION_TEXT;
+        }
+        return "  Abonnemang bana "
+            + subscription.getTrackNumber()
+            + ", "
+            + SquashUtil.weekdayTypeToString(subscription.getWeekday())
+            + "ar"
+            + " kl "
+            + SquashUtil.getTrackTimeFromCalendar(subscription.getStartTime());
+    }
 
-        } catch (IOException exception) {
-            throw new RuntimeException(exception);
+    // Returns the price per subscription, using custom override price, if any
+    protected static double getTrackPrice(CustomerInfoType customerInfo) {
 
-            // Resource cleanup:
-        } finally {
-            if (fileOutput != null) {
-                try {
-                    fileOutput.close();
-                } catch (Exception ex) {
-                    //Ignore this...
-                }
-            }
-            if (this.excelWorkbook != null) {
-                try {
-                    this.excelWorkbook.close();
-                } catch (Exception ex) {
-                    //Ignore this...
-                }
-            }
+        if (customerInfo.getSubscriptionPrice() != null) {
+            return customerInfo.getSubscriptionPrice().intValue();
+        } else if (customerInfo.isCompany()) {
+            return SquashProperties.TRACK_PRICE_COMPANY;
+        } else {
+            return SquashProperties.TRACK_PRICE_PERSON;
         }
     }
 
-    // Adds a black border around a cell area, can also be once cell only
+    // Adds a black border around a cell area, can also be once cell only.
+    // The edge cells keep their style, with the borders added.
     private void addBorder(String cellRangeSpan, boolean thinnerBorder) {
 
         short borderStyle = (thinnerBorder ? CellStyle.BORDER_THIN : CellStyle.BORDER_MEDIUM);
 
         // The range is given as the format "A1:B4"
         CellRangeAddress cellRange = CellRangeAddress.valueOf(cellRangeSpan);
-        RegionUtil.setBorderBottom(borderStyle, cellRange, this.invoiceSheet, this.excelWorkbook);
-        RegionUtil.setBorderLeft(borderStyle, cellRange, this.invoiceSheet, this.excelWorkbook);
-        RegionUtil.setBorderRight(borderStyle, cellRange, this.invoiceSheet, this.excelWorkbook);
-        RegionUtil.setBorderTop(borderStyle, cellRange, this.invoiceSheet, this.excelWorkbook);
+        InvoiceStyleRegistry styleRegistry = this.excelWorkbook.getStyleRegistry();
+
+        for (int rowIndex = cellRange.getFirstRow();
+            rowIndex <= cellRange.getLastRow();
+            rowIndex++) {
+
+            XSSFRow row = this.invoiceSheet.getRow(rowIndex);
+            if (row == null) {
+                row = this.invoiceSheet.createRow(rowIndex);
+            }
+            boolean top = rowIndex == cellRange.getFirstRow();
+            boolean bottom = rowIndex == cellRange.getLastRow();
+
+            for (int columnIndex = cellRange.getFirstColumn();
+                columnIndex <= cellRange.getLastColumn();
+                columnIndex++) {
+
+                boolean left = columnIndex == cellRange.getFirstColumn();
+                boolean right = columnIndex == cellRange.getLastColumn();
+                if (!top && !bottom && !left && !right) {
+                    continue;
+                }
+
+                XSSFCell cell = row.getCell(columnIndex, Row.CREATE_NULL_AS_BLANK);
+                InvoiceStyle style = styleRegistry.getInvoiceStyle(cell);
+                cell.setCellStyle(
+                    styleRegistry.getCellStyle(
+                        style.withBorders(
+                            top ? borderStyle : style.getBorderTop(),
+                            bottom ? borderStyle : style.getBorderBottom(),
+                            left ? borderStyle : style.getBorderLeft(),
+                            right ? borderStyle : style.getBorderRight())));
+            }
+        }
     }
 }
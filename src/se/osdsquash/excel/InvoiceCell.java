@@ -9,7 +9,6 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellCopyPolicy;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Comment;
-import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.FormulaError;
 import org.apache.poi.ss.usermodel.Hyperlink;
 import org.apache.poi.ss.usermodel.IndexedColors;
@@ -20,7 +19,6 @@ import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.apache.poi.xssf.usermodel.XSSFCreationHelper;
-import org.apache.poi.xssf.usermodel.XSSFFont;
 import org.apache.poi.xssf.usermodel.XSSFHyperlink;
 import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 import org.apache.poi.xssf.usermodel.XSSFRow;
@@ -34,7 +32,18 @@ import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
 public class InvoiceCell implements Cell {
 
     private static final Locale SWE_LOCALE = new Locale("sv", "SE");
-    private static final String EXCEL_CURRENCY_FORMAT = "# ##0,00 kr";
+
+    /**
+     * The Excel number format of the currency cells
+     */
+    protected static final String EXCEL_CURRENCY_FORMAT = "# ##0,00 kr";
+
+    /**
+     * The style of an e-mail hyperlink, blue and underlined
+     */
+    protected static final InvoiceStyle EMAIL_LINK_STYLE = InvoiceStyle.DEFAULT
+        .withFont(false, false, true)
+        .withFontColor(IndexedColors.BLUE.getIndex());
 
     private XSSFCell cell;
 
@@ -46,6 +55,14 @@ public class InvoiceCell implements Cell {
         return this.cell;
     }
 
+    /**
+     * Sets the cell's style to the shared cell style for given style
+     * @param invoiceStyle The style
+     */
+    protected void setInvoiceStyle(InvoiceStyle invoiceStyle) {
+        this.cell.setCellStyle(this.getStyleRegistry().getCellStyle(invoiceStyle));
+    }
+
     /**
      * Sets the cell's value (if any) to an e-mail hyperlink text with correct styling
      */
@@ -56,19 +73,13 @@ public class InvoiceCell implements Cell {
         String cellValue = this.cell.getStringCellValue();
         if (cellValue != null && cellValue.contains("@")) {
 
-            XSSFCellStyle hyperStyle = currentWorkbook.createCellStyle();
-            XSSFFont hyperFont = currentWorkbook.createFont();
-            hyperFont.setUnderline(Font.U_SINGLE);
-            hyperFont.setColor(IndexedColors.BLUE.getIndex());
-            hyperStyle.setFont(hyperFont);
-
             XSSFCreationHelper creationHelper = currentWorkbook.getCreationHelper();
 
             XSSFHyperlink link = creationHelper
                 .createHyperlink(org.apache.poi.common.usermodel.Hyperlink.LINK_EMAIL);
             link.setAddress("mailto:" + this.cell.getStringCellValue());
             this.cell.setHyperlink(link);
-            this.cell.setCellStyle(hyperStyle);
+            this.setInvoiceStyle(EMAIL_LINK_STYLE);
         }
     }
 
@@ -83,30 +94,39 @@ public class InvoiceCell implements Cell {
     protected void setCurrencyFormat(double ammount, boolean rightAlign, boolean bold) {
 
         // Double-safety, format to currency in Java first...
-        NumberFormat swedishFormat = NumberFormat.getCurrencyInstance(SWE_LOCALE);
-        this.cell.setCellValue(swedishFormat.format(ammount));
+        this.setCurrencyValue(ammount);
 
         // ...and set the same Excel cell format, so Excel won't warn about the cell's format
-        XSSFWorkbook currentWorkbook = this.cell.getSheet().getWorkbook();
-        XSSFCellStyle currencyStyle = currentWorkbook.createCellStyle();
+        InvoiceStyle currencyStyle = InvoiceStyle.DEFAULT.withDataFormat(EXCEL_CURRENCY_FORMAT);
 
         if (rightAlign) {
-            currencyStyle.setAlignment(CellStyle.ALIGN_RIGHT);
+            currencyStyle = currencyStyle.withAlignment(CellStyle.ALIGN_RIGHT);
         }
 
         if (bold) {
-            XSSFFont font = currentWorkbook.createFont();
-            font.setBold(bold);
-            currencyStyle.setFont(font);
+            currencyStyle = currencyStyle.withFont(true, false, false);
         }
 
-        currencyStyle.setDataFormat(
-            currentWorkbook
-                .getCreationHelper()
-                .createDataFormat()
-                .getFormat(EXCEL_CURRENCY_FORMAT));
+        this.setInvoiceStyle(currencyStyle);
+    }
+
+    /**
+     * Set cell's value to given ammount in Swedish "Kr" currency format, keeping the cell's
+     * style. For cells already having the currency style, see <code>setCurrencyFormat</code>.
+     * 
+     * @param ammount The ammount to set as currency
+     */
+    protected void setCurrencyValue(double ammount) {
+        this.cell.setCellValue(formatCurrency(ammount));
+    }
 
-        this.cell.setCellStyle(currencyStyle);
+    /**
+     * Formats an ammount in Swedish "Kr" currency format, as shown in the currency cells
+     * @param ammount The ammount
+     * @return The formatted ammount
+     */
+    protected static String formatCurrency(double ammount) {
+        return NumberFormat.getCurrencyInstance(SWE_LOCALE).format(ammount);
     }
 
     /**
@@ -118,18 +138,12 @@ public class InvoiceCell implements Cell {
      */
     protected void applyFontStyles(boolean bold, boolean italic, boolean centerAlign) {
 
-        XSSFWorkbook currentWorkbook = this.cell.getSheet().getWorkbook();
-
-        XSSFCellStyle style = currentWorkbook.createCellStyle();
-        XSSFFont font = currentWorkbook.createFont();
-        font.setBold(bold);
-        font.setItalic(italic);
-        style.setFont(font);
+        InvoiceStyle style = InvoiceStyle.DEFAULT.withFont(bold, italic, false);
         if (centerAlign) {
-            style.setAlignment(CellStyle.ALIGN_CENTER);
+            style = style.withAlignment(CellStyle.ALIGN_CENTER);
         }
 
-        this.cell.setCellStyle(style);
+        this.setInvoiceStyle(style);
     }
 
     /**
@@ -138,11 +152,11 @@ public class InvoiceCell implements Cell {
      */
     protected void setAlignment(short align) {
 
-        XSSFWorkbook currentWorkbook = this.cell.getSheet().getWorkbook();
+        this.setInvoiceStyle(InvoiceStyle.DEFAULT.withAlignment(align));
+    }
 
-        XSSFCellStyle alignStyle = currentWorkbook.createCellStyle();
-        alignStyle.setAlignment(align);
-        this.cell.setCellStyle(alignStyle);
+    private InvoiceStyleRegistry getStyleRegistry() {
+        return ((InvoiceExcelWorkbook) this.cell.getSheet().getWorkbook()).getStyleRegistry();
     }
 
     // -------------------  BELOW ARE DELEGATE METHODS FOR THE WRAPPED CELL -------------------
@@ -1,5 +1,8 @@
 package se.osdsquash.excel;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbookType;
 
@@ -13,6 +16,7 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbookType;
 public class InvoiceExcelWorkbook extends XSSFWorkbook {
 
     private InvoiceSheet invoiceSheet;
+    private final InvoiceStyleRegistry styleRegistry = new InvoiceStyleRegistry(this);
 
     /**
      * Creates a new Excel workbook with one Invoice sheet
@@ -22,6 +26,16 @@ public class InvoiceExcelWorkbook extends XSSFWorkbook {
         this.invoiceSheet = new InvoiceSheet(super.createSheet("Faktura"));
     }
 
+    /**
+     * Loads an Excel workbook having one Invoice sheet, e.g. an invoice template
+     * @param workbookInput The workbook file contents
+     * @throws IOException If the workbook can't be read
+     */
+    protected InvoiceExcelWorkbook(InputStream workbookInput) throws IOException {
+        super(workbookInput);
+        this.invoiceSheet = new InvoiceSheet(super.getSheetAt(0));
+    }
+
     /**
      * Returns the sheet for this book - custom made for the invoice
      * @return The sheet
@@ -29,4 +43,12 @@ public class InvoiceExcelWorkbook extends XSSFWorkbook {
     protected InvoiceSheet getInvoiceSheet() {
         return this.invoiceSheet;
     }
+
+    /**
+     * Returns the shared cell styles of this book
+     * @return The style registry
+     */
+    protected InvoiceStyleRegistry getStyleRegistry() {
+        return this.styleRegistry;
+    }
 }
@@ -0,0 +1,34 @@
+package se.osdsquash.excel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.util.CellAddress;
+
+/**
+ * Where the customer cells of an invoice sheet are, and the dates the sheet was built with.
+ * Filled in while the sheet is built, and not changed after that.
+ */
+class InvoiceLayout {
+
+    // The cells that differ between customers
+    CellAddress invoiceNrCell;
+    CellAddress nameCell;
+    CellAddress streetCell;
+    CellAddress cityCell;
+    CellAddress phoneCell;
+    CellAddress emailCell;
+    final List<CellAddress> trackInfoCells = new ArrayList<>();
+    final List<CellAddress> trackPriceCells = new ArrayList<>();
+    CellAddress sumCell;
+    CellAddress totalCell;
+
+    // The invoice day, used for the day directory, and the file name timestamp
+    String invoiceDate;
+    String fileTimestamp;
+
+    // The meta-data dates, the period start is null if there are no subscriptions
+    long createdMillis;
+    long dueMillis;
+    Long periodStartMillis;
+}
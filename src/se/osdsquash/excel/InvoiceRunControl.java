@@ -0,0 +1,68 @@
+package se.osdsquash.excel;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Controls a running invoice run, and tells how far it has come.
+ *
+ * <p>
+ * A control is given to the run by the thread starting it, and can be used by another thread,
+ * e.g. by a progress dialog, to cancel the run. The run stops as soon as it can, deletes the
+ * files written so far and fails with a <code>CancellationException</code>. All methods are
+ * thread safe.
+ * </p>
+ */
+public class InvoiceRunControl {
+
+    private volatile boolean cancelled = false;
+    private volatile int invoiceCount = 0;
+    private final AtomicInteger completedCount = new AtomicInteger();
+
+    /**
+     * Asks the run to stop. Invoices already stored are not affected.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Returns true if the run has been asked to stop
+     * @return True if cancelled
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Returns the nr of invoices of the run
+     * @return Nr of invoices, 0 until the run has started
+     */
+    public int getInvoiceCount() {
+        return this.invoiceCount;
+    }
+
+    /**
+     * Returns the nr of invoices written so far
+     * @return Nr of invoices completed by the run
+     */
+    public int getCompletedCount() {
+        return this.completedCount.get();
+    }
+
+    protected void start(int runInvoiceCount) {
+        this.completedCount.set(0);
+        this.invoiceCount = runInvoiceCount;
+    }
+
+    protected void invoiceCompleted() {
+        this.completedCount.incrementAndGet();
+    }
+
+    // Fails the run if cancelled
+    protected void checkCancelled() {
+        if (this.cancelled) {
+            throw new CancellationException("Fakturakörningen avbröts");
+        }
+    }
+}
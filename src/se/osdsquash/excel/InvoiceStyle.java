@@ -0,0 +1,301 @@
+package se.osdsquash.excel;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+
+/**
+ * The look of a cell in an invoice: font flags, font size, font color, alignment,
+ * number format and borders. Used as the key of the shared styles, see
+ * <code>InvoiceStyleRegistry</code>.
+ *
+ * <p>
+ * A style is never changed, the <code>with</code> methods return a new style.
+ * Start from <code>DEFAULT</code>, which is the workbook's default cell style.
+ * </p>
+ */
+public final class InvoiceStyle {
+
+    /**
+     * The default cell style, e.g. default font, general alignment, no format and no borders
+     */
+    public static final InvoiceStyle DEFAULT = new InvoiceStyle(
+        false,
+        false,
+        false,
+        (short) 0,
+        (short) -1,
+        CellStyle.ALIGN_GENERAL,
+        null,
+        CellStyle.BORDER_NONE,
+        CellStyle.BORDER_NONE,
+        CellStyle.BORDER_NONE,
+        CellStyle.BORDER_NONE);
+
+    private final boolean bold;
+    private final boolean italic;
+    private final boolean underline;
+    private final short fontHeightInPoints;
+    private final short fontColor;
+    private final short alignment;
+    private final String dataFormat;
+    private final short borderTop;
+    private final short borderBottom;
+    private final short borderLeft;
+    private final short borderRight;
+
+    private InvoiceStyle(
+        boolean bold,
+        boolean italic,
+        boolean underline,
+        short fontHeightInPoints,
+        short fontColor,
+        short alignment,
+        String dataFormat,
+        short borderTop,
+        short borderBottom,
+        short borderLeft,
+        short borderRight) {
+
+        this.bold = bold;
+        this.italic = italic;
+        this.underline = underline;
+        this.fontHeightInPoints = fontHeightInPoints;
+        this.fontColor = fontColor;
+        this.alignment = alignment;
+        this.dataFormat = dataFormat;
+        this.borderTop = borderTop;
+        this.borderBottom = borderBottom;
+        this.borderLeft = borderLeft;
+        this.borderRight = borderRight;
+    }
+
+    /**
+     * Returns this style with given font flags
+     * @param boldFont True if to use bold font
+     * @param italicFont True if to use italic font
+     * @param underlineFont True if to use single underlined font
+     * @return The new style
+     */
+    public InvoiceStyle withFont(boolean boldFont, boolean italicFont, boolean underlineFont) {
+        return new InvoiceStyle(
+            boldFont,
+            italicFont,
+            underlineFont,
+            this.fontHeightInPoints,
+            this.fontColor,
+            this.alignment,
+            this.dataFormat,
+            this.borderTop,
+            this.borderBottom,
+            this.borderLeft,
+            this.borderRight);
+    }
+
+    /**
+     * Returns this style with given font size
+     * @param heightInPoints The font height, 0 for the default font height
+     * @return The new style
+     */
+    public InvoiceStyle withFontHeight(int heightInPoints) {
+        return new InvoiceStyle(
+            this.bold,
+            this.italic,
+            this.underline,
+            (short) heightInPoints,
+            this.fontColor,
+            this.alignment,
+            this.dataFormat,
+            this.borderTop,
+            this.borderBottom,
+            this.borderLeft,
+            this.borderRight);
+    }
+
+    /**
+     * Returns this style with given font color
+     * @param color Indexed color, see <code>org.apache.poi.ss.usermodel.IndexedColors</code>
+     * @return The new style
+     */
+    public InvoiceStyle withFontColor(short color) {
+        return new InvoiceStyle(
+            this.bold,
+            this.italic,
+            this.underline,
+            this.fontHeightInPoints,
+            color,
+            this.alignment,
+            this.dataFormat,
+            this.borderTop,
+            this.borderBottom,
+            this.borderLeft,
+            this.borderRight);
+    }
+
+    /**
+     * Returns this style with given alignment
+     * @param align See <code>org.apache.poi.ss.usermodel.CellStyle</code> for constant values
+     * @return The new style
+     */
+    public InvoiceStyle withAlignment(short align) {
+        return new InvoiceStyle(
+            this.bold,
+            this.italic,
+            this.underline,
+            this.fontHeightInPoints,
+            this.fontColor,
+            align,
+            this.dataFormat,
+            this.borderTop,
+            this.borderBottom,
+            this.borderLeft,
+            this.borderRight);
+    }
+
+    /**
+     * Returns this style with given number format
+     * @param format An Excel number format, e.g. <code>"# ##0,00 kr"</code>
+     * @return The new style
+     */
+    public InvoiceStyle withDataFormat(String format) {
+        return new InvoiceStyle(
+            this.bold,
+            this.italic,
+            this.underline,
+            this.fontHeightInPoints,
+            this.fontColor,
+            this.alignment,
+            format,
+            this.borderTop,
+            this.borderBottom,
+            this.borderLeft,
+            this.borderRight);
+    }
+
+    /**
+     * Returns this style with given borders
+     * @param top Top border, see <code>org.apache.poi.ss.usermodel.CellStyle</code>
+     * @param bottom Bottom border
+     * @param left Left border
+     * @param right Right border
+     * @return The new style
+     */
+    public InvoiceStyle withBorders(short top, short bottom, short left, short right) {
+        return new InvoiceStyle(
+            this.bold,
+            this.italic,
+            this.underline,
+            this.fontHeightInPoints,
+            this.fontColor,
+            this.alignment,
+            this.dataFormat,
+            top,
+            bottom,
+            left,
+            right);
+    }
+
+    /**
+     * Returns the font part of this style, all the rest set to default
+     * @return The new style
+     */
+    public InvoiceStyle getFontStyle() {
+        return DEFAULT
+            .withFont(this.bold, this.italic, this.underline)
+            .withFontHeight(this.fontHeightInPoints)
+            .withFontColor(this.fontColor);
+    }
+
+    /**
+     * Returns true if this style uses the default font
+     * @return True if no font flags, size or color are set
+     */
+    public boolean hasDefaultFont() {
+        return !this.bold
+            && !this.italic
+            && !this.underline
+            && this.fontHeightInPoints == 0
+            && this.fontColor == -1;
+    }
+
+    public boolean isBold() {
+        return this.bold;
+    }
+
+    public boolean isItalic() {
+        return this.italic;
+    }
+
+    public boolean isUnderline() {
+        return this.underline;
+    }
+
+    public short getFontHeightInPoints() {
+        return this.fontHeightInPoints;
+    }
+
+    public short getFontColor() {
+        return this.fontColor;
+    }
+
+    public short getAlignment() {
+        return this.alignment;
+    }
+
+    public String getDataFormat() {
+        return this.dataFormat;
+    }
+
+    public short getBorderTop() {
+        return this.borderTop;
+    }
+
+    public short getBorderBottom() {
+        return this.borderBottom;
+    }
+
+    public short getBorderLeft() {
+        return this.borderLeft;
+    }
+
+    public short getBorderRight() {
+        return this.borderRight;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (this.bold ? 1 : 0) | (this.italic ? 2 : 0) | (this.underline ? 4 : 0);
+        hash = 31 * hash + this.fontHeightInPoints;
+        hash = 31 * hash + this.fontColor;
+        hash = 31 * hash + this.alignment;
+        hash = 31 * hash + (this.dataFormat == null ? 0 : this.dataFormat.hashCode());
+        hash = 31 * hash + this.borderTop;
+        hash = 31 * hash + this.borderBottom;
+        hash = 31 * hash + this.borderLeft;
+        hash = 31 * hash + this.borderRight;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof InvoiceStyle)) {
+            return false;
+        }
+        InvoiceStyle other = (InvoiceStyle) obj;
+        return this.bold == other.bold
+            && this.italic == other.italic
+            && this.underline == other.underline
+            && this.fontHeightInPoints == other.fontHeightInPoints
+            && this.fontColor == other.fontColor
+            && this.alignment == other.alignment
+            && (this.dataFormat == null
+                ? other.dataFormat == null
+                : this.dataFormat.equals(other.dataFormat))
+            && this.borderTop == other.borderTop
+            && this.borderBottom == other.borderBottom
+            && this.borderLeft == other.borderLeft
+            && this.borderRight == other.borderRight;
+    }
+}
@@ -0,0 +1,201 @@
+package se.osdsquash.excel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * The shared cell styles and fonts of a workbook.
+ *
+ * <p>
+ * Creating a cell style (and font) for every styled cell fills <code>styles.xml</code> with
+ * duplicates, and makes POI slower for each style added. Instead all cells having the same
+ * <code>InvoiceStyle</code> share one <code>XSSFCellStyle</code>, and all styles having the
+ * same font part share one <code>XSSFFont</code>. The shared styles must not be changed, ask
+ * for a new <code>InvoiceStyle</code> instead.
+ * </p>
+ * <p>
+ * The styles of a loaded workbook (e.g. from a template) are registered when the registry is
+ * created, so setting a style the workbook already has re-uses it.
+ * </p>
+ */
+public class InvoiceStyleRegistry {
+
+    private final XSSFWorkbook workbook;
+
+    private final Map<InvoiceStyle, XSSFCellStyle> cellStyles = new HashMap<>();
+    private final Map<Short, InvoiceStyle> invoiceStylesByIndex = new HashMap<>();
+    private final Map<InvoiceStyle, XSSFFont> fonts = new HashMap<>();
+
+    private int requestCount = 0;
+
+    protected InvoiceStyleRegistry(XSSFWorkbook workbook) {
+        this.workbook = workbook;
+        this.registerWorkbookStyles();
+    }
+
+    /**
+     * Returns the shared cell style for a style, creating it the first time
+     * @param invoiceStyle The style
+     * @return The shared cell style, must not be changed
+     */
+    public XSSFCellStyle getCellStyle(InvoiceStyle invoiceStyle) {
+
+        this.requestCount++;
+
+        if (invoiceStyle.equals(InvoiceStyle.DEFAULT)) {
+            return this.workbook.getCellStyleAt(0);
+        }
+
+        XSSFCellStyle cellStyle = this.cellStyles.get(invoiceStyle);
+        if (cellStyle == null) {
+            cellStyle = this.createCellStyle(invoiceStyle);
+            this.cellStyles.put(invoiceStyle, cellStyle);
+            this.invoiceStylesByIndex.put(Short.valueOf(cellStyle.getIndex()), invoiceStyle);
+        }
+        return cellStyle;
+    }
+
+    /**
+     * Returns the style of a cell
+     * @param cell A cell of the workbook
+     * @return The cell's style, the default style if not created by this registry
+     */
+    public InvoiceStyle getInvoiceStyle(XSSFCell cell) {
+
+        InvoiceStyle invoiceStyle = this.invoiceStylesByIndex.get(
+            Short.valueOf(cell.getCellStyle().getIndex()));
+        return invoiceStyle != null ? invoiceStyle : InvoiceStyle.DEFAULT;
+    }
+
+    /**
+     * Returns the nr of styles asked for. Without sharing, each one created a cell style.
+     * @return Nr of calls to <code>getCellStyle</code>
+     */
+    public int getRequestCount() {
+        return this.requestCount;
+    }
+
+    /**
+     * Returns the nr of cell styles created or loaded with the workbook
+     * @return Nr of shared cell styles, not counting the default style
+     */
+    public int getCellStyleCount() {
+        return this.cellStyles.size();
+    }
+
+    /**
+     * Returns the nr of fonts created or loaded with the workbook
+     * @return Nr of shared fonts, not counting the default font
+     */
+    public int getFontCount() {
+        return this.fonts.size();
+    }
+
+    // Registers the cell styles and fonts the workbook already has. If two cell styles look
+    // the same, the first one is shared.
+    private void registerWorkbookStyles() {
+
+        for (int i = 1; i < this.workbook.getNumCellStyles(); i++) {
+            XSSFCellStyle cellStyle = this.workbook.getCellStyleAt(i);
+            InvoiceStyle invoiceStyle = toInvoiceStyle(cellStyle);
+            if (invoiceStyle.equals(InvoiceStyle.DEFAULT)
+                || this.cellStyles.containsKey(invoiceStyle)) {
+                continue;
+            }
+
+            this.cellStyles.put(invoiceStyle, cellStyle);
+            this.invoiceStylesByIndex.put(Short.valueOf(cellStyle.getIndex()), invoiceStyle);
+            if (!invoiceStyle.hasDefaultFont()
+                && !this.fonts.containsKey(invoiceStyle.getFontStyle())) {
+                this.fonts.put(invoiceStyle.getFontStyle(), cellStyle.getFont());
+            }
+        }
+    }
+
+    // Returns the style of a cell style, the opposite of createCellStyle
+    private static InvoiceStyle toInvoiceStyle(XSSFCellStyle cellStyle) {
+
+        InvoiceStyle invoiceStyle = InvoiceStyle.DEFAULT;
+
+        // Only fonts created by getFont are expected, the default font is index 0. A new font
+        // gets the default height, which is the same as no height in the style.
+        if (cellStyle.getFontIndex() != 0) {
+            XSSFFont font = cellStyle.getFont();
+            short fontHeight = font.getFontHeightInPoints();
+            invoiceStyle = invoiceStyle
+                .withFont(font.getBold(), font.getItalic(), font.getUnderline() == Font.U_SINGLE)
+                .withFontHeight(fontHeight == XSSFFont.DEFAULT_FONT_SIZE ? 0 : fontHeight)
+                .withFontColor(
+                    font.getCTFont().sizeOfColorArray() == 0 ? (short) -1 : font.getColor());
+        }
+
+        return invoiceStyle
+            .withAlignment(cellStyle.getAlignment())
+            .withDataFormat(cellStyle.getDataFormat() == 0 ? null : cellStyle.getDataFormatString())
+            .withBorders(
+                cellStyle.getBorderTop(),
+                cellStyle.getBorderBottom(),
+                cellStyle.getBorderLeft(),
+                cellStyle.getBorderRight());
+    }
+
+    private XSSFCellStyle createCellStyle(InvoiceStyle invoiceStyle) {
+
+        XSSFCellStyle cellStyle = this.workbook.createCellStyle();
+
+        if (!invoiceStyle.hasDefaultFont()) {
+            cellStyle.setFont(this.getFont(invoiceStyle.getFontStyle()));
+        }
+        if (invoiceStyle.getAlignment() != CellStyle.ALIGN_GENERAL) {
+            cellStyle.setAlignment(invoiceStyle.getAlignment());
+        }
+        if (invoiceStyle.getDataFormat() != null) {
+            cellStyle.setDataFormat(
+                this.workbook
+                    .getCreationHelper()
+                    .createDataFormat()
+                    .getFormat(invoiceStyle.getDataFormat()));
+        }
+        if (invoiceStyle.getBorderTop() != CellStyle.BORDER_NONE) {
+            cellStyle.setBorderTop(invoiceStyle.getBorderTop());
+        }
+        if (invoiceStyle.getBorderBottom() != CellStyle.BORDER_NONE) {
+            cellStyle.setBorderBottom(invoiceStyle.getBorderBottom());
+        }
+        if (invoiceStyle.getBorderLeft() != CellStyle.BORDER_NONE) {
+            cellStyle.setBorderLeft(invoiceStyle.getBorderLeft());
+        }
+        if (invoiceStyle.getBorderRight() != CellStyle.BORDER_NONE) {
+            cellStyle.setBorderRight(invoiceStyle.getBorderRight());
+        }
+        return cellStyle;
+    }
+
+    private XSSFFont getFont(InvoiceStyle fontStyle) {
+
+        XSSFFont font = this.fonts.get(fontStyle);
+        if (font == null) {
+            font = this.workbook.createFont();
+            font.setBold(fontStyle.isBold());
+            font.setItalic(fontStyle.isItalic());
+            if (fontStyle.isUnderline()) {
+                font.setUnderline(Font.U_SINGLE);
+            }
+            if (fontStyle.getFontHeightInPoints() > 0) {
+                font.setFontHeightInPoints(fontStyle.getFontHeightInPoints());
+            }
+            if (fontStyle.getFontColor() >= 0) {
+                font.setColor(fontStyle.getFontColor());
+            }
+            this.fonts.put(fontStyle, font);
+        }
+        return font;
+    }
+}
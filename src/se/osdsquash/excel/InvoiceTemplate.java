@@ -0,0 +1,42 @@
+package se.osdsquash.excel;
+
+/**
+ * The template of all invoices in an invoice run having a given number of subscriptions.
+ *
+ * <p>
+ * A template is an invoice built once per run, with empty customer cells. It is kept as the
+ * written workbook file, e.g. the serialized package parts, along with where the customer cells
+ * are. An invoice is rendered by loading the template and setting the customer cells only, so
+ * the layout, styles, lines and borders are not built again for each customer.
+ * A template is never changed, and can be used by several render threads at once.
+ * </p>
+ */
+public class InvoiceTemplate {
+
+    private final int subscriptionCount;
+    private final byte[] skeleton;
+    private final InvoiceLayout layout;
+
+    protected InvoiceTemplate(int subscriptionCount, byte[] skeleton, InvoiceLayout layout) {
+        this.subscriptionCount = subscriptionCount;
+        this.skeleton = skeleton;
+        this.layout = layout;
+    }
+
+    /**
+     * Returns the nr of subscriptions of the customers this template is for
+     * @return Nr of subscriptions, 0 for the template with the no subscriptions warning
+     */
+    public int getSubscriptionCount() {
+        return this.subscriptionCount;
+    }
+
+    // The workbook file, must not be changed
+    protected byte[] getSkeleton() {
+        return this.skeleton;
+    }
+
+    protected InvoiceLayout getLayout() {
+        return this.layout;
+    }
+}
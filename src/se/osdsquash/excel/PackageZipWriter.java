@@ -0,0 +1,151 @@
+package se.osdsquash.excel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an .xlsx package, e.g. a zip file of parts, to memory.
+ *
+ * <p>
+ * <code>java.util.zip.ZipOutputStream</code> compresses every entry it writes, so it can not
+ * take parts that are already compressed. This writer writes the zip format itself: each part
+ * is either copied as it is (see <code>CompressedPart</code>), or compressed when added.
+ * Entries use deflate compression and UTF-8 names, and no zip64 extensions, so the package
+ * must be smaller than 4 GB. A writer writes one package, and must only be used by one thread.
+ * </p>
+ */
+public class PackageZipWriter {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int UTF8_NAMES_FLAG = 0x0800;
+    private static final int DEFLATED = 8;
+
+    private final ByteArrayOutputStream output;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final List<CompressedPart> parts = new ArrayList<>();
+    private final List<Integer> offsets = new ArrayList<>();
+    private final int dosDateTime;
+
+    /**
+     * Creates a writer
+     * @param expectedSize Expected size of the package in bytes
+     * @param dosDateTime The modification time of all entries, see <code>toDosDateTime</code>
+     */
+    public PackageZipWriter(int expectedSize, int dosDateTime) {
+        this.output = new ByteArrayOutputStream(expectedSize);
+        this.dosDateTime = dosDateTime;
+    }
+
+    /**
+     * Converts a time to the MS-DOS format of the zip entries: the date in the high 16 bits
+     * and the time, in 2 second steps, in the low 16 bits
+     *
+     * @param modifiedCal The local time
+     * @return The MS-DOS date and time
+     */
+    public static int toDosDateTime(Calendar modifiedCal) {
+
+        int dosTime = (modifiedCal.get(Calendar.HOUR_OF_DAY) << 11)
+            | (modifiedCal.get(Calendar.MINUTE) << 5)
+            | (modifiedCal.get(Calendar.SECOND) >> 1);
+        int dosDate = ((modifiedCal.get(Calendar.YEAR) - 1980) << 9)
+            | ((modifiedCal.get(Calendar.MONTH) + 1) << 5)
+            | modifiedCal.get(Calendar.DAY_OF_MONTH);
+        return (dosDate << 16) | dosTime;
+    }
+
+    /**
+     * Adds a part that is already compressed
+     * @param part The part
+     */
+    public void addPart(CompressedPart part) {
+
+        this.offsets.add(Integer.valueOf(this.output.size()));
+        this.parts.add(part);
+
+        this.writeInt(LOCAL_HEADER_SIGNATURE);
+        this.writeShort(VERSION);
+        this.writeEntryInfo(part);
+        this.writeShort(0); // No extra field
+        this.output.write(part.getName(), 0, part.getName().length);
+        this.output.write(part.getCompressed(), 0, part.getCompressed().length);
+    }
+
+    /**
+     * Compresses and adds a part
+     * @param partName The zip entry name, e.g. <code>xl/worksheets/sheet1.xml</code>
+     * @param xml The part contents
+     */
+    public void addPart(String partName, CharSequence xml) {
+        this.addPart(
+            CompressedPart.compress(
+                partName,
+                xml.toString().getBytes(StandardCharsets.UTF_8),
+                this.deflater));
+    }
+
+    /**
+     * Writes the zip central directory, and returns the package
+     * @return The .xlsx file bytes
+     */
+    public byte[] finish() {
+
+        this.deflater.end();
+
+        int centralDirectoryOffset = this.output.size();
+        for (int i = 0; i < this.parts.size(); i++) {
+            CompressedPart part = this.parts.get(i);
+            this.writeInt(CENTRAL_HEADER_SIGNATURE);
+            this.writeShort(VERSION); // Made by
+            this.writeShort(VERSION); // Needed to extract
+            this.writeEntryInfo(part);
+            this.writeShort(0); // No extra field
+            this.writeShort(0); // No comment
+            this.writeShort(0); // Disk nr
+            this.writeShort(0); // Internal attributes
+            this.writeInt(0); // External attributes
+            this.writeInt(this.offsets.get(i).intValue());
+            this.output.write(part.getName(), 0, part.getName().length);
+        }
+        int centralDirectorySize = this.output.size() - centralDirectoryOffset;
+
+        this.writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        this.writeShort(0); // This disk nr
+        this.writeShort(0); // Central directory disk nr
+        this.writeShort(this.parts.size());
+        this.writeShort(this.parts.size());
+        this.writeInt(centralDirectorySize);
+        this.writeInt(centralDirectoryOffset);
+        this.writeShort(0); // No comment
+
+        return this.output.toByteArray();
+    }
+
+    // The fields from flags to name length, the same in the local and central headers
+    private void writeEntryInfo(CompressedPart part) {
+        this.writeShort(UTF8_NAMES_FLAG);
+        this.writeShort(DEFLATED);
+        this.writeInt(this.dosDateTime);
+        this.writeInt((int) part.getCrc());
+        this.writeInt(part.getCompressed().length);
+        this.writeInt(part.getSize());
+        this.writeShort(part.getName().length);
+    }
+
+    private void writeShort(int value) {
+        this.output.write(value & 0xff);
+        this.output.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(int value) {
+        this.writeShort(value & 0xffff);
+        this.writeShort(value >>> 16);
+    }
+}
@@ -0,0 +1,455 @@
+package se.osdsquash.excel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import se.osdsquash.logger.SquashLogger;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Creates the invoice files of a whole invoice run, as a pipeline of three stages.
+ *
+ * <p>
+ * The invoice numbers are given by the caller, one per customer in customer order, so the
+ * numbering does not depend on which thread renders what. The render stage renders the
+ * workbooks to memory on a fork-join pool, where each worker thread has an
+ * <code>ExcelHandler</code> of its own. The write stage is a single I/O thread writing the
+ * files in customer order, as soon as each invoice is rendered. The metadata stage is a single
+ * thread handing the invoices to the caller, e.g. to the repository, in customer order. The
+ * invoices are also returned in customer order.
+ * </p>
+ * <p>
+ * The stages are bounded: when the write stage falls behind, at most a few rendered invoices
+ * per render thread are kept in memory, and no more invoices are rendered until the writer
+ * catches up. The time spent in each stage is logged, and kept for the last run. A run can be
+ * cancelled by another thread, see <code>InvoiceRunControl</code>.
+ * </p>
+ * <p>
+ * With templates, the static part of the invoices is built once per run and number of
+ * subscriptions, see <code>InvoiceTemplate</code>, and each invoice only sets the customer cells.
+ * </p>
+ * <p>
+ * The invoice files are written by POI by default. With the direct writer, see
+ * <code>DirectInvoiceWriter</code>, the files are written as XML text without POI, sharing the
+ * parts that are the same for all invoices of the run. The direct writer does not use templates.
+ * </p>
+ */
+public class ParallelInvoiceEngine {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    /**
+     * Writes the invoice files with POI, using the <code>ExcelHandler</code>
+     */
+    public static final String POI_WRITER = "poi";
+
+    /**
+     * Writes the invoice files directly, using the <code>DirectInvoiceWriter</code>
+     */
+    public static final String DIRECT_WRITER = "direct";
+
+    // Nr of rendered invoices per render thread that may wait for the write stage
+    private static final int RENDERED_INVOICES_PER_THREAD = 4;
+
+    // How often a render stage waiting for the write stage checks for failure and cancellation
+    private static final long WAIT_CHECK_MILLIS = 100;
+
+    private final XmlRepository xmlRepository;
+    private final int parallelism;
+    private final boolean useDirectWriter;
+    private final boolean useTemplates;
+
+    private double renderMillisPerInvoice;
+    private double writeMillisPerInvoice;
+    private double metadataMillisPerInvoice;
+
+    /**
+     * Creates an engine
+     * @param xmlRepository The repository, creating the invoice meta-data objects
+     * @param parallelism Number of render threads, 0 to use one per processor
+     * @param writerName The invoice file writer, <code>POI_WRITER</code> or
+     *            <code>DIRECT_WRITER</code>
+     * @param useTemplates True to render from templates, false to build each invoice in full.
+     *            Only used by the POI writer.
+     */
+    public ParallelInvoiceEngine(
+        XmlRepository xmlRepository,
+        int parallelism,
+        String writerName,
+        boolean useTemplates) {
+
+        if (!POI_WRITER.equals(writerName) && !DIRECT_WRITER.equals(writerName)) {
+            throw new IllegalArgumentException("Okänd fakturaskrivare: " + writerName);
+        }
+
+        this.xmlRepository = xmlRepository;
+        this.parallelism = parallelism > 0
+            ? parallelism
+            : Runtime.getRuntime().availableProcessors();
+        this.useDirectWriter = DIRECT_WRITER.equals(writerName);
+        this.useTemplates = useTemplates && !this.useDirectWriter;
+    }
+
+    /**
+     * Returns the mean render time of the invoices in the last run, including the time
+     * building the templates, but not the time writing the files
+     * @return Render time per invoice in milliseconds, 0 if no run was made
+     */
+    public double getRenderMillisPerInvoice() {
+        return this.renderMillisPerInvoice;
+    }
+
+    /**
+     * Returns the mean time writing the invoice files in the last run
+     * @return Write time per invoice in milliseconds, 0 if no run was made
+     */
+    public double getWriteMillisPerInvoice() {
+        return this.writeMillisPerInvoice;
+    }
+
+    /**
+     * Returns the mean time handing the invoice meta-data to the caller in the last run
+     * @return Metadata time per invoice in milliseconds, 0 if no run was made
+     */
+    public double getMetadataMillisPerInvoice() {
+        return this.metadataMillisPerInvoice;
+    }
+
+    /**
+     * Renders and writes one invoice file per customer.
+     * <p>
+     * NOTE: The returned invoices are NOT connected to the customers, that is up to the caller.
+     * If the run fails, the files written so far are deleted.
+     * </p>
+     *
+     * @param customers The customers to create invoices for
+     * @param invoiceNrs Reserved invoice numbers, one per customer, in the same order
+     * @param dueDays Nr of due days from now, when the invoices must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @return The invoice meta-data objects, in customer order
+     */
+    public List<InvoiceType> createInvoiceFiles(
+        List<CustomerType> customers,
+        int[] invoiceNrs,
+        int dueDays,
+        boolean nextPeriod) {
+
+        return this.createInvoiceFiles(customers, invoiceNrs, dueDays, nextPeriod, null, null);
+    }
+
+    /**
+     * Renders and writes one invoice file per customer, handing each written invoice to a
+     * metadata stage in customer order.
+     * <p>
+     * NOTE: The returned invoices are NOT connected to the customers, that is up to the caller,
+     * e.g. in the metadata stage. If the run fails or is cancelled, the files written so far
+     * are deleted, and the metadata stage is not called any more.
+     * </p>
+     *
+     * @param customers The customers to create invoices for
+     * @param invoiceNrs Reserved invoice numbers, one per customer, in the same order
+     * @param dueDays Nr of due days from now, when the invoices must be paid
+     * @param nextPeriod True if to use NEXT period, otherwise current one
+     * @param metadataStage Called with each customer and invoice once written, in customer
+     *            order and always by the same thread, or null
+     * @param runControl Control to cancel the run and follow its progress, or null
+     * @return The invoice meta-data objects, in customer order
+     * @throws java.util.concurrent.CancellationException If the run was cancelled
+     */
+    public List<InvoiceType> createInvoiceFiles(
+        final List<CustomerType> customers,
+        final int[] invoiceNrs,
+        final int dueDays,
+        final boolean nextPeriod,
+        final BiConsumer<CustomerType, InvoiceType> metadataStage,
+        InvoiceRunControl runControl) {
+
+        long start = System.nanoTime();
+        final InvoiceRunControl control = runControl != null
+            ? runControl
+            : new InvoiceRunControl();
+        control.start(customers.size());
+
+        // All invoices of a run get the same creation time, and the same day directory
+        final long invoiceCreationMillis = System.currentTimeMillis();
+        final AtomicLong renderNanos = new AtomicLong();
+
+        // The direct writer is thread safe, and shared by all render threads
+        final DirectInvoiceWriter directWriter;
+        if (this.useDirectWriter) {
+            long writerStart = System.nanoTime();
+            Calendar invoiceCreationCal = Calendar.getInstance();
+            invoiceCreationCal.setTimeInMillis(invoiceCreationMillis);
+            directWriter = new DirectInvoiceWriter(
+                this.xmlRepository,
+                dueDays,
+                nextPeriod,
+                invoiceCreationCal);
+            renderNanos.addAndGet(System.nanoTime() - writerStart);
+        } else {
+            directWriter = null;
+        }
+
+        // Each render thread has a handler of its own, since a handler is not thread safe
+        final ThreadLocal<ExcelHandler> excelHandlers = new ThreadLocal<ExcelHandler>() {
+
+            @Override
+            protected ExcelHandler initialValue() {
+                return new ExcelHandler(ParallelInvoiceEngine.this.xmlRepository);
+            }
+        };
+
+        // The templates of this run, by nr of subscriptions, built by the first one needing it
+        final ConcurrentMap<Integer, InvoiceTemplate> templates = new ConcurrentHashMap<>();
+
+        // The rendered invoices waiting for the write stage, in customer order
+        final BlockingQueue<Future<RenderedInvoice>> renderedInvoices = new ArrayBlockingQueue<>(
+            this.parallelism * RENDERED_INVOICES_PER_THREAD);
+        final AtomicLong writeNanos = new AtomicLong();
+        final AtomicLong metadataNanos = new AtomicLong();
+        long waitNanos = 0;
+
+        final List<File> writtenFiles = Collections.synchronizedList(new ArrayList<File>());
+        ForkJoinPool renderPool = new ForkJoinPool(this.parallelism);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        final ExecutorService metadataApplier = Executors.newSingleThreadExecutor();
+        boolean completed = false;
+        try {
+            // The write stage, handing each written invoice on to the metadata stage
+            Future<List<Future<InvoiceType>>> writtenInvoices = writer.submit(
+                new Callable<List<Future<InvoiceType>>>() {
+
+                    @Override
+                    public List<Future<InvoiceType>> call() throws Exception {
+
+                        List<Future<InvoiceType>> appliedInvoices = new ArrayList<>(
+                            customers.size());
+                        for (int i = 0; i < customers.size(); i++) {
+                            RenderedInvoice renderedInvoice = renderedInvoices.take().get();
+                            control.checkCancelled();
+
+                            long writeStart = System.nanoTime();
+                            renderedInvoice.writeFile();
+                            writtenFiles.add(
+                                new File(renderedInvoice.getInvoice().getRelativeFilePath()));
+                            writeNanos.addAndGet(System.nanoTime() - writeStart);
+
+                            // Only the meta-data is passed on, the bytes are dropped
+                            appliedInvoices.add(
+                                metadataApplier.submit(
+                                    createMetadataTask(
+                                        customers.get(i),
+                                        renderedInvoice.getInvoice(),
+                                        metadataStage,
+                                        control,
+                                        metadataNanos)));
+                        }
+                        return appliedInvoices;
+                    }
+                });
+
+            // The render stage, waiting while the write stage is full
+            for (int i = 0; i < customers.size(); i++) {
+                control.checkCancelled();
+                final CustomerType customer = customers.get(i);
+                final int invoiceNr = invoiceNrs[i];
+                Future<RenderedInvoice> renderedInvoice = renderPool.submit(
+                    new Callable<RenderedInvoice>() {
+
+                        @Override
+                        public RenderedInvoice call() {
+
+                            control.checkCancelled();
+                            long renderStart = System.nanoTime();
+                            if (directWriter != null) {
+                                RenderedInvoice renderedInvoice = directWriter.renderInvoice(
+                                    customer,
+                                    invoiceNr);
+                                renderNanos.addAndGet(System.nanoTime() - renderStart);
+                                return renderedInvoice;
+                            }
+
+                            final ExcelHandler excelHandler = excelHandlers.get();
+
+                            // A calendar is not thread safe, so each invoice gets its own
+                            final Calendar invoiceCreationCal = Calendar.getInstance();
+                            invoiceCreationCal.setTimeInMillis(invoiceCreationMillis);
+
+                            RenderedInvoice renderedInvoice;
+                            if (ParallelInvoiceEngine.this.useTemplates) {
+                                InvoiceTemplate template = templates.computeIfAbsent(
+                                    Integer.valueOf(getSubscriptionCount(customer)),
+                                    new Function<Integer, InvoiceTemplate>() {
+
+                                        @Override
+                                        public InvoiceTemplate apply(Integer subscriptionCount) {
+                                            return excelHandler.createInvoiceTemplate(
+                                                subscriptionCount.intValue(),
+                                                dueDays,
+                                                nextPeriod,
+                                                invoiceCreationCal);
+                                        }
+                                    });
+                                renderedInvoice = excelHandler.renderInvoice(
+                                    template,
+                                    customer,
+                                    invoiceNr);
+                            } else {
+                                renderedInvoice = excelHandler.renderInvoice(
+                                    customer,
+                                    dueDays,
+                                    nextPeriod,
+                                    invoiceNr,
+                                    invoiceCreationCal);
+                            }
+
+                            renderNanos.addAndGet(System.nanoTime() - renderStart);
+                            return renderedInvoice;
+                        }
+                    });
+
+                // The write stage stops early only if it failed or was cancelled
+                long waitStart = System.nanoTime();
+                while (!renderedInvoices.offer(
+                    renderedInvoice,
+                    WAIT_CHECK_MILLIS,
+                    TimeUnit.MILLISECONDS)) {
+                    if (writtenInvoices.isDone()) {
+                        writtenInvoices.get();
+                    }
+                    control.checkCancelled();
+                }
+                waitNanos += System.nanoTime() - waitStart;
+            }
+
+            List<InvoiceType> invoices = new ArrayList<>(customers.size());
+            for (Future<InvoiceType> appliedInvoice : writtenInvoices.get()) {
+                invoices.add(appliedInvoice.get());
+            }
+
+            double invoiceCount = Math.max(1, invoices.size());
+            this.renderMillisPerInvoice = renderNanos.get() / 1000000d / invoiceCount;
+            this.writeMillisPerInvoice = writeNanos.get() / 1000000d / invoiceCount;
+            this.metadataMillisPerInvoice = metadataNanos.get() / 1000000d / invoiceCount;
+
+            logger.log(
+                "Created "
+                    + invoices.size()
+                    + " invoice files with "
+                    + this.parallelism
+                    + " render threads in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + " ms, per invoice rendering took "
+                    + String.format("%.2f", Double.valueOf(this.renderMillisPerInvoice))
+                    + " ms, writing "
+                    + String.format("%.2f", Double.valueOf(this.writeMillisPerInvoice))
+                    + " ms and metadata "
+                    + String.format("%.2f", Double.valueOf(this.metadataMillisPerInvoice))
+                    + " ms. Rendering waited "
+                    + TimeUnit.NANOSECONDS.toMillis(waitNanos)
+                    + " ms for the writer"
+                    + (this.useTemplates ? ", using " + templates.size() + " templates" : "")
+                    + (this.useDirectWriter ? ", using the direct writer" : ""),
+                false);
+
+            completed = true;
+            return invoices;
+
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Fakturakörningen avbröts", exception);
+
+        } finally {
+            renderPool.shutdownNow();
+            writer.shutdownNow();
+            if (!completed) {
+                this.deleteWrittenFiles(writer, writtenFiles);
+            }
+
+            // The caller may roll back once this returns, so the metadata stage must be done
+            metadataApplier.shutdownNow();
+            try {
+                metadataApplier.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The metadata stage of one invoice
+    private static Callable<InvoiceType> createMetadataTask(
+        final CustomerType customer,
+        final InvoiceType invoice,
+        final BiConsumer<CustomerType, InvoiceType> metadataStage,
+        final InvoiceRunControl control,
+        final AtomicLong metadataNanos) {
+
+        return new Callable<InvoiceType>() {
+
+            @Override
+            public InvoiceType call() {
+
+                long metadataStart = System.nanoTime();
+                if (metadataStage != null) {
+                    metadataStage.accept(customer, invoice);
+                }
+                control.invoiceCompleted();
+                metadataNanos.addAndGet(System.nanoTime() - metadataStart);
+                return invoice;
+            }
+        };
+    }
+
+    private static int getSubscriptionCount(CustomerType customer) {
+        return customer.getSubscriptions() == null
+            ? 0
+            : customer.getSubscriptions().getSubscription().size();
+    }
+
+    // Waits for the writer to stop, and deletes the files it wrote in a failed run
+    private void deleteWrittenFiles(ExecutorService writer, List<File> writtenFiles) {
+
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (writtenFiles) {
+            for (File invoiceFile : writtenFiles) {
+                if (invoiceFile.isFile() && !invoiceFile.delete()) {
+                    logger.log(
+                        "Varning: Kunde ej radera fakturafil vid avbruten körning: "
+                            + invoiceFile.getAbsolutePath(),
+                        true);
+                }
+            }
+        }
+    }
+}
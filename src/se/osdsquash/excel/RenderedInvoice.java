@@ -0,0 +1,78 @@
+package se.osdsquash.excel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * An invoice rendered to memory: the Excel file contents, and the invoice meta-data
+ * with the path the file is to be written to.
+ */
+public class RenderedInvoice {
+
+    private final InvoiceType invoice;
+    private final byte[] content;
+
+    protected RenderedInvoice(InvoiceType invoice, byte[] content) {
+        this.invoice = invoice;
+        this.content = content;
+    }
+
+    /**
+     * Returns the invoice meta-data
+     * @return The invoice, not connected to any customer
+     */
+    public InvoiceType getInvoice() {
+        return this.invoice;
+    }
+
+    /**
+     * Returns the Excel file contents
+     * @return The .xlsx file bytes
+     */
+    public byte[] getContent() {
+        return this.content;
+    }
+
+    /**
+     * Writes the invoice file, creating the day directory if needed.
+     * A failed write does not leave a half-written file behind.
+     *
+     * @throws IOException If the file can't be written
+     */
+    public void writeFile() throws IOException {
+
+        File invoiceFile = new File(this.invoice.getRelativeFilePath());
+        File invoicesDayDir = invoiceFile.getParentFile();
+        if (invoicesDayDir != null && !invoicesDayDir.exists()) {
+            invoicesDayDir.mkdirs();
+        }
+
+        // Opened from the file, not a path, so any file name the platform allows can be used
+        FileChannel fileChannel = new FileOutputStream(invoiceFile, false).getChannel();
+        boolean fileCompleted = false;
+        try {
+            // The whole file in one buffer, a write may write only part of it
+            ByteBuffer contentBuffer = ByteBuffer.wrap(this.content);
+            while (contentBuffer.hasRemaining()) {
+                fileChannel.write(contentBuffer);
+            }
+            fileCompleted = true;
+        } finally {
+            try {
+                fileChannel.close();
+            } catch (Exception ex) {
+                //Ignore this...
+            }
+
+            // Don't leave a half-written invoice file behind
+            if (!fileCompleted) {
+                invoiceFile.delete();
+            }
+        }
+    }
+}
@@ -22,11 +22,11 @@ import javax.swing.SpringLayout;
 
 import se.osdsquash.common.SquashUtil;
 import se.osdsquash.gui.MainGUI.TextFormatLevel;
+import se.osdsquash.xml.CustomerCopies;
 import se.osdsquash.xml.XmlRepository;
 import se.osdsquash.xml.jaxb.CustomerInfoType;
 import se.osdsquash.xml.jaxb.CustomerType;
 import se.osdsquash.xml.jaxb.InvoiceType;
-import se.osdsquash.xml.jaxb.InvoicesType;
 import se.osdsquash.xml.jaxb.SubscriptionType;
 import se.osdsquash.xml.jaxb.SubscriptionsType;
 
@@ -184,6 +184,17 @@ public class CustomerDetailsPanel extends JPanel {
             @Override
             public void actionPerformed(ActionEvent event) {
 
+                if (CustomerDetailsPanel.this.xmlRepository.isReadOnly()) {
+                    JOptionPane.showMessageDialog(
+                        CustomerDetailsPanel.this,
+                        "Kunden sparades inte eftersom kunddatabasen är skrivskyddad:"
+                            + "\n"
+                            + CustomerDetailsPanel.this.xmlRepository.getReadOnlyReason(),
+                        "Skrivskyddad",
+                        JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+
                 // Re-evaluate all fields before save, which also error-marks the fields.
                 // Don't save if we find error(s).
                 boolean validationErrors = false;
@@ -252,8 +263,11 @@ public class CustomerDetailsPanel extends JPanel {
 
                 } else {
                     newCustomer = false;
-                    customer = CustomerDetailsPanel.this.xmlRepository
-                        .getCustomer(CustomerDetailsPanel.this.customerUUID);
+
+                    // Edit a copy, the repository changes only once the save is on disk
+                    customer = CustomerCopies.copy(
+                        CustomerDetailsPanel.this.xmlRepository
+                            .getCustomer(CustomerDetailsPanel.this.customerUUID));
 
                     // If no special price before, but there is now - give a notice about it
                     if (customer.getCustomerInfo().getSubscriptionPrice() == null
@@ -299,7 +313,9 @@ public class CustomerDetailsPanel extends JPanel {
 
                 // We must add the new customer to the customer list...
                 if (newCustomer) {
-                    MainGUI.getInstance().addCustomerToList(customer);
+                    MainGUI.getInstance().addCustomerToList(
+                        CustomerDetailsPanel.this.xmlRepository
+                            .getCustomer(CustomerDetailsPanel.this.customerUUID));
                     saveMessage = "Ny kund sparad";
                 } else {
                     // ...or just repaint the list
@@ -430,21 +446,22 @@ public class CustomerDetailsPanel extends JPanel {
         this.customerNotesText.setText(customerInfo.getNotes());
         this.kundNrTextField.requestFocus();
 
-        // Set all subscriptions
+        // Set copies of all subscriptions, the tables change them in place
         this.subscriptionsTable.clearSubscriptions();
 
         SubscriptionsType subscriptionsType = customerType.getSubscriptions();
         if (subscriptionsType != null) {
-            for (SubscriptionType subscriptionType : subscriptionsType.getSubscription()) {
+            for (SubscriptionType subscriptionType : CustomerCopies
+                .copySubscriptions(subscriptionsType.getSubscription())
+                .getSubscription()) {
                 this.subscriptionsTable.addSubscription(subscriptionType);
             }
         }
 
-        // Set all invoices
-        InvoicesType invoicesType = customerType.getInvoices();
-        if (invoicesType != null) {
-            this.invoicesTable.setInvoices(customerInfo, invoicesType.getInvoice());
-        }
+        // Set copies of all invoices, including the invoice history
+        this.invoicesTable.setInvoices(
+            customerInfo,
+            CustomerCopies.copyInvoices(this.xmlRepository.getInvoices(customerType)).getInvoice());
 
         // Sets all input field validators...
         this.initValidators();
@@ -30,7 +30,9 @@ import javax.swing.table.TableCellEditor;
 import javax.swing.table.TableColumn;
 import javax.xml.datatype.XMLGregorianCalendar;
 
+import se.osdsquash.common.CompactDates;
 import se.osdsquash.common.SquashUtil;
+import se.osdsquash.excel.BatchInvoiceWorkbook;
 import se.osdsquash.gui.MainGUI.TextFormatLevel;
 import se.osdsquash.mail.MailHandler;
 import se.osdsquash.xml.XmlRepository;
@@ -126,6 +128,7 @@ public class InvoicesTable extends JTable {
                             InvoiceType invoice = ((InvoiceTableModel) InvoicesTable.this
                                 .getModel()).getInvoices().get(selectedRow);
                             if (invoice != null) {
+                                InvoicesTable.this.extractInvoiceFile(invoice);
                                 InvoicesTable.this.openFile(invoice.getRelativeFilePath());
                             } else {
                                 MainGUI.getInstance().printInfoText(
@@ -152,6 +155,7 @@ public class InvoicesTable extends JTable {
                                     "Mail-programmet startar...",
                                     TextFormatLevel.Info,
                                     true);
+                                InvoicesTable.this.extractInvoiceFile(invoice);
                                 new MailHandler()
                                     .createMailDraft("adress", invoice.getRelativeFilePath(), true);
                             } else {
@@ -166,7 +170,16 @@ public class InvoicesTable extends JTable {
                             InvoiceType invoice = ((InvoiceTableModel) InvoicesTable.this
                                 .getModel()).getInvoices().get(selectedRow);
 
-                            if (invoice != null) {
+                            if (invoice != null
+                                && XmlRepository
+                                    .getInstance()
+                                    .isArchived(invoice.getInvoiceNumber())) {
+                                MainGUI.getInstance().printInfoText(
+                                    "Fakturan är arkiverad och kan inte raderas",
+                                    TextFormatLevel.Error,
+                                    true);
+
+                            } else if (invoice != null) {
 
                                 int dialogResult = JOptionPane.showConfirmDialog(
                                     InvoicesTable.this,
@@ -320,8 +333,11 @@ public class InvoicesTable extends JTable {
 
         @Override
         public boolean isCellEditable(int rowIndex, int columnIndex) {
-            // Status can be edited:
-            return TableColumnEnum.STATUS.index == columnIndex;
+            // Status can be edited, unless the invoice is archived:
+            return TableColumnEnum.STATUS.index == columnIndex
+                && !XmlRepository
+                    .getInstance()
+                    .isArchived(this.invoices.get(rowIndex).getInvoiceNumber());
         }
 
         @Override
@@ -436,6 +452,20 @@ public class InvoicesTable extends JTable {
         }
     }
 
+    // An invoice of a run written to one workbook gets its own file the first time it is used
+    private void extractInvoiceFile(InvoiceType invoice) {
+
+        try {
+            BatchInvoiceWorkbook.extractInvoiceFile(invoice);
+        } catch (IOException exception) {
+            MainGUI.getInstance().printInfoText(
+                "Fakturafilen kunde inte hämtas ur fakturakörningens arbetsbok. Felmeddelande: "
+                    + exception.getMessage(),
+                TextFormatLevel.Error,
+                true);
+        }
+    }
+
     private void openFile(String filePath) {
 
         String errorMessage = null;
@@ -577,8 +607,9 @@ public class InvoicesTable extends JTable {
 
         @Override
         public int compare(InvoiceType o1, InvoiceType o2) {
-            return o2.getCreatedDate().toGregorianCalendar().compareTo(
-                o1.getCreatedDate().toGregorianCalendar());
+            return Long.compare(
+                CompactDates.sortKey(o2.getCreatedDate()),
+                CompactDates.sortKey(o1.getCreatedDate()));
         }
     }
 }
@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -36,6 +37,7 @@ import javax.swing.JTextArea;
 import javax.swing.ListSelectionModel;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.WindowConstants;
@@ -44,6 +46,8 @@ import javax.swing.border.TitledBorder;
 
 import se.osdsquash.common.SquashUtil;
 import se.osdsquash.common.SubscriptionPeriod;
+import se.osdsquash.excel.InvoiceRunControl;
+import se.osdsquash.logger.SquashLogger;
 import se.osdsquash.mail.MailHandler;
 import se.osdsquash.xml.InvoiceResults;
 import se.osdsquash.xml.XmlRepository;
@@ -64,12 +68,15 @@ public class MainGUI extends JFrame {
      */
     private static final long serialVersionUID = 1418443841032535316L;
 
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
     // Singleton reference to the repository:
     private XmlRepository xmlRepository;
 
     private static final int WINDOW_PIXEL_WIDTH = 1080;
     private static final int WINDOW_PIXEL_HEIGTH = 780;
 
+    private final JLabel readOnlyBannerLabel = new JLabel(" ");
     private final JLabel validationErrorLabel = new JLabel(" ");
     private final JLabel infoLabel = new JLabel(" ");
     private final JLabel noticeLabel = new JLabel(" ");
@@ -155,6 +162,14 @@ public class MainGUI extends JFrame {
         // All GUI components, in order of their presentation
         List<JComponent> components = new ArrayList<>();
 
+        // Banner shown if the customer database fails validation, hidden until then
+        this.readOnlyBannerLabel.setOpaque(true);
+        this.readOnlyBannerLabel.setBackground(new Color(255, 226, 226));
+        this.readOnlyBannerLabel.setForeground(Color.RED);
+        this.readOnlyBannerLabel.setBorder(BorderFactory.createEmptyBorder(4, 8, 4, 8));
+        this.readOnlyBannerLabel.setVisible(false);
+        components.add(this.readOnlyBannerLabel);
+
         // -----------------------------  CREATE CUSTOMER COMPONENTS  ---------------------------
         // --------------------------------------------------------------------------------------
 
@@ -268,7 +283,8 @@ public class MainGUI extends JFrame {
                     MainGUI.this.customerMasterPanel.clearCustomer();
 
                 } else {
-                    MainGUI.this.deleteCustomerButton.setEnabled(true);
+                    MainGUI.this.deleteCustomerButton
+                        .setEnabled(!MainGUI.this.xmlRepository.isReadOnly());
                     MainGUI.this.customerMasterPanel.toggleEnabled(true);
 
                     CustomerType customer = MainGUI.this.customerList.getSelectedValue();
@@ -670,6 +686,21 @@ public class MainGUI extends JFrame {
         // Draw all components to the panel
         this.drawLayout(components);
 
+        // The database is validated in the background, and may become read-only
+        this.xmlRepository.addReadOnlyListener(new XmlRepository.ReadOnlyListener() {
+
+            @Override
+            public void readOnly(final String reason) {
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        MainGUI.this.showReadOnlyBanner(reason);
+                    }
+                });
+            }
+        });
+
         waitForInitDialog.setVisible(false);
     }
 
@@ -691,6 +722,22 @@ public class MainGUI extends JFrame {
         contentPane.add(topPanel, BorderLayout.NORTH);
     }
 
+    // Shows the read-only banner, and disables all functions that change the database
+    private void showReadOnlyBanner(String reason) {
+
+        this.readOnlyBannerLabel.setText(
+            "<html><b>Kunddatabasen är skrivskyddad, ändringar kan inte sparas.</b> "
+                + "Rätta XML-filen och starta om programmet.<br/>"
+                + reason
+                + "</html>");
+        this.readOnlyBannerLabel.setVisible(true);
+
+        this.newCustomerButton.setEnabled(false);
+        this.deleteCustomerButton.setEnabled(false);
+        this.createCustomerInvoiceButton.setEnabled(false);
+        this.generateAllInvoicesButton.setEnabled(false);
+    }
+
     // Creates a filler component, e.g. empty space
     private JComponent createEmptyRow() {
         return new Box.Filler(new Dimension(16, 10), new Dimension(16, 10), new Dimension(16, 10));
@@ -749,6 +796,45 @@ public class MainGUI extends JFrame {
 
         waitingDialog.add(BorderLayout.CENTER, imageLabel);
 
+        // A run for all customers shows its progress, and can be cancelled
+        final InvoiceRunControl runControl = new InvoiceRunControl();
+        javax.swing.Timer progressTimer = null;
+        if (customerID == null) {
+
+            final JLabel progressLabel = new JLabel(" ", SwingConstants.CENTER);
+            waitingDialog.add(BorderLayout.NORTH, progressLabel);
+
+            final JButton cancelButton = new JButton("Avbryt");
+            cancelButton.addActionListener(new ActionListener() {
+
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    runControl.cancel();
+                    cancelButton.setEnabled(false);
+                    progressLabel.setText("Avbryter...");
+                }
+            });
+            JPanel cancelPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+            cancelPanel.add(cancelButton);
+            waitingDialog.add(BorderLayout.SOUTH, cancelPanel);
+
+            progressTimer = new javax.swing.Timer(250, new ActionListener() {
+
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if (!runControl.isCancelled() && runControl.getInvoiceCount() > 0) {
+                        progressLabel.setText(
+                            "Skapat "
+                                + runControl.getCompletedCount()
+                                + " av "
+                                + runControl.getInvoiceCount()
+                                + " fakturor");
+                    }
+                }
+            });
+            waitingDialog.setSize(300, 200);
+        }
+
         waitingDialog.setResizable(false);
         waitingDialog.setLocationRelativeTo(MainGUI.this);
 
@@ -756,7 +842,12 @@ public class MainGUI extends JFrame {
         InvoiceCreatorRunnable invoiceCreator = new InvoiceCreatorRunnable(
             waitingDialog,
             nextPeriod,
-            customerID);
+            customerID,
+            runControl,
+            progressTimer);
+        if (progressTimer != null) {
+            progressTimer.start();
+        }
         invoiceCreator.execute();
 
         // Important to display the (blocking) progress bar after work is started.
@@ -834,7 +925,7 @@ public class MainGUI extends JFrame {
                 JOptionPane.YES_NO_OPTION);
 
             if (dialogResult == JOptionPane.YES_OPTION) {
-                System.exit(0);
+                this.exitProgram();
             } else {
                 // Abort exit
                 return;
@@ -842,6 +933,18 @@ public class MainGUI extends JFrame {
         }
 
         // Nothing dirty here, just exit
+        this.exitProgram();
+    }
+
+    // Saves and exports the customer database, and exits
+    private void exitProgram() {
+
+        // All changes are in the journal already, so a failed save must not stop the exit
+        try {
+            this.xmlRepository.shutdown();
+        } catch (Exception exception) {
+            logger.log("Varning: Kunde ej spara kunddatabasen vid avslut", exception);
+        }
         System.exit(0);
     }
 
@@ -852,14 +955,20 @@ public class MainGUI extends JFrame {
         private final JDialog waitingDialog;
         private final boolean nextPeriod;
         private final UUID customerID;
+        private final InvoiceRunControl runControl;
+        private final javax.swing.Timer progressTimer;
 
         protected InvoiceCreatorRunnable(
             JDialog waitingDialog,
             boolean nextPeriod,
-            UUID customerID) {
+            UUID customerID,
+            InvoiceRunControl runControl,
+            javax.swing.Timer progressTimer) {
             this.waitingDialog = waitingDialog;
             this.nextPeriod = nextPeriod;
             this.customerID = customerID;
+            this.runControl = runControl;
+            this.progressTimer = progressTimer;
         }
 
         // Returns the invoice creation results
@@ -875,8 +984,15 @@ public class MainGUI extends JFrame {
             // Loop all customers and generate invoices as Excel-files
             if (this.customerID == null) {
 
-                InvoiceResults invoiceFileResults = MainGUI.this.xmlRepository
-                    .generateAndStoreInvoices(this.nextPeriod);
+                InvoiceResults invoiceFileResults;
+                try {
+                    invoiceFileResults = MainGUI.this.xmlRepository
+                        .generateAndStoreInvoices(this.nextPeriod, this.runControl);
+                } catch (CancellationException exception) {
+                    this.filesResult
+                        .append("Fakturakörningen avbröts, inga fakturor har skapats.\n");
+                    return this.filesResult.toString();
+                }
 
                 List<String> allFilenames = invoiceFileResults.getAllInvoiceFilenames();
                 List<String> emptyInvoiceCustomers = invoiceFileResults.getEmptyInvoiceCustomers();
@@ -930,6 +1046,9 @@ public class MainGUI extends JFrame {
         protected void done() {
 
             try {
+                if (this.progressTimer != null) {
+                    this.progressTimer.stop();
+                }
                 this.waitingDialog.setVisible(false);
 
                 // If there is a customer showing, refresh it so that the
@@ -0,0 +1,123 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import se.osdsquash.common.SquashProperties;
+import se.osdsquash.xml.BackupRestore;
+import se.osdsquash.xml.IncrementalBackups;
+import se.osdsquash.xml.InvoiceArchive;
+import se.osdsquash.xml.InvoiceHistory;
+import se.osdsquash.xml.RepositoryStore;
+import se.osdsquash.xml.RepositoryStores;
+
+/**
+ * Test of restoring a backup point while a journal is left in the data directory. A restore
+ * must be refused while the journal holds changes, and while a rotated journal is left by a
+ * checkpoint that never finished, since both would be applied on top of the restored
+ * database. Once they are gone, the restore must go through.
+ *
+ * <p>
+ * Throws an <code>IllegalStateException</code> on the first failure. Runs in a temporary
+ * data directory, deleted at the end.
+ * </p>
+ */
+public class BackupRestoreJournalTest {
+
+    private static final int CUSTOMER_COUNT = 20;
+
+    public static void main(String[] args) throws Exception {
+
+        SquashProperties.REPOSITORY_STORE = RepositoryStores.BINARY;
+        File dataDir = Files.createTempDirectory("squashrestore").toFile();
+        try {
+            String pointName = createBackupPoint(dataDir);
+            File journalFile = new File(dataDir, "CustomerDatabase.journal");
+            File rotatedJournalFile = new File(dataDir, "CustomerDatabase.journal.old");
+
+            Files.write(journalFile.toPath(), new byte[] {1, 2, 3, 4});
+            checkRefused(dataDir, pointName, "journal");
+            Files.write(journalFile.toPath(), new byte[0]);
+
+            Files.write(rotatedJournalFile.toPath(), new byte[] {1, 2, 3, 4});
+            checkRefused(dataDir, pointName, "roterad journal");
+
+            // Even an empty rotated journal is only left by an unfinished checkpoint
+            Files.write(rotatedJournalFile.toPath(), new byte[0]);
+            checkRefused(dataDir, pointName, "tom roterad journal");
+            Files.delete(rotatedJournalFile.toPath());
+
+            BackupRestore.restore(dataDir.getPath(), pointName);
+            int restoredCount = openStore(dataDir).load().getCustomer().size();
+            check(
+                restoredCount == CUSTOMER_COUNT,
+                "Återställde " + restoredCount + " kunder, väntade " + CUSTOMER_COUNT);
+
+            System.out.println(
+                "Restore refused with a journal and a rotated journal, then restored "
+                    + restoredCount
+                    + " customers");
+
+        } finally {
+            deleteDir(dataDir);
+        }
+        System.exit(0);
+    }
+
+    // Writes a backup point of synthetic customers, and returns its name
+    private static String createBackupPoint(File dataDir) throws IOException {
+
+        IncrementalBackups backups = new IncrementalBackups(new File(dataDir, "backups"));
+        backups
+            .capture(
+                SyntheticCustomers.create(CUSTOMER_COUNT),
+                new InvoiceHistory(new File(dataDir, "history"), 10),
+                new InvoiceArchive(new File(dataDir, "archive")))
+            .write();
+        List<String> pointNames = backups.listPoints();
+        check(pointNames.size() == 1, "Backupen skapades inte");
+        return pointNames.get(0);
+    }
+
+    // Restores, expecting the restore to be refused and the store to be left untouched
+    private static void checkRefused(File dataDir, String pointName, String name)
+        throws Exception {
+
+        boolean refused = false;
+        try {
+            BackupRestore.restore(dataDir.getPath(), pointName);
+        } catch (IllegalStateException exception) {
+            refused = true;
+        }
+        check(refused, name + ": återställningen gjordes");
+        check(
+            openStore(dataDir).getLastModified() == 0,
+            name + ": databasen skrevs vid nekad återställning");
+    }
+
+    private static RepositoryStore openStore(File dataDir) {
+        return RepositoryStores.create(RepositoryStores.BINARY, dataDir.getPath(), null);
+    }
+
+    private static void deleteDir(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
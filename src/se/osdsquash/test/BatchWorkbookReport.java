@@ -0,0 +1,105 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Calendar;
+import java.util.List;
+
+import se.osdsquash.excel.BatchInvoiceWorkbook;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Report of the heap used while writing an invoice run to one workbook, for a growing number
+ * of customers. The heap is measured after the last invoice sheet is added, before the workbook
+ * is written, and should not grow much with the nr of customers.
+ *
+ * <p>
+ * The first invoice of each run is then extracted to a file of its own, and both files are
+ * deleted. The workbooks are written to the invoices directory of the data directory, the
+ * repository itself is not changed.
+ * </p>
+ */
+public class BatchWorkbookReport {
+
+    private static final int[] CUSTOMER_COUNTS = {100, 1000, 5000};
+
+    // Far above the numbers used by the repository, the invoices are never stored
+    private static final int FIRST_INVOICE_NR = 900000;
+
+    private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+
+        XmlRepository xmlRepository = XmlRepository.getInstance();
+
+        System.out.println(
+            String.format(
+                "%10s %10s %12s %14s %12s",
+                "customers",
+                "ms",
+                "heap (kB)",
+                "heap/inv (B)",
+                "file (kB)"));
+
+        for (int customerCount : CUSTOMER_COUNTS) {
+
+            List<CustomerType> customers = SyntheticCustomers
+                .create(customerCount)
+                .getCustomer();
+
+            long emptyHeap = usedHeap();
+            long start = System.nanoTime();
+
+            BatchInvoiceWorkbook batchWorkbook = new BatchInvoiceWorkbook(
+                xmlRepository,
+                30,
+                false,
+                Calendar.getInstance());
+            InvoiceType firstInvoice = null;
+            File workbookFile;
+            try {
+                for (int i = 0; i < customers.size(); i++) {
+                    InvoiceType invoice = batchWorkbook.addInvoice(
+                        customers.get(i),
+                        FIRST_INVOICE_NR + i);
+                    if (firstInvoice == null) {
+                        firstInvoice = invoice;
+                    }
+                }
+                long runHeap = usedHeap() - emptyHeap;
+                workbookFile = batchWorkbook.write();
+                long millis = (System.nanoTime() - start) / 1000000;
+
+                System.out.println(
+                    String.format(
+                        "%10d %10d %12d %14d %12d",
+                        customers.size(),
+                        millis,
+                        runHeap / 1024,
+                        runHeap / customers.size(),
+                        workbookFile.length() / 1024));
+            } finally {
+                batchWorkbook.dispose();
+            }
+
+            File invoiceFile = new File(firstInvoice.getRelativeFilePath());
+            if (!BatchInvoiceWorkbook.extractInvoiceFile(firstInvoice) || !invoiceFile.isFile()) {
+                throw new IllegalStateException(
+                    "Faktura " + firstInvoice.getInvoiceNumber() + " kunde inte hämtas");
+            }
+            invoiceFile.delete();
+            workbookFile.delete();
+        }
+        System.exit(0);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return MEMORY_BEAN.getHeapMemoryUsage().getUsed();
+    }
+}
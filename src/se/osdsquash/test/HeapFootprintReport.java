@@ -0,0 +1,138 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import se.osdsquash.xml.BinarySnapshot;
+import se.osdsquash.xml.SegmentStore;
+import se.osdsquash.xml.StringPool;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Report of the heap saved by sharing repeated customer fields, and of the snapshot bytes
+ * saved by storing invoice file paths as a directory and a file name.
+ *
+ * <p>
+ * The customers are loaded by the segment store, from a snapshot file per customer, so no
+ * strings are shared between customers before the pool is applied.
+ * Run with a large heap, e.g. <code>-Xmx4g</code>.
+ * </p>
+ */
+public class HeapFootprintReport {
+
+    private static final int CUSTOMER_COUNT = 100000;
+
+    private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+
+        File segmentsDir = Files.createTempDirectory("HeapFootprintReport").toFile();
+        try {
+            report(segmentsDir);
+        } finally {
+            for (File file : segmentsDir.listFiles()) {
+                file.delete();
+            }
+            segmentsDir.delete();
+        }
+    }
+
+    private static void report(File segmentsDir) throws Exception {
+
+        // The synthetic customers are only reachable inside this call
+        EncodedSizes sizes = writeSegments(segmentsDir);
+
+        long emptyHeap = usedHeap();
+        List<CustomerType> customers = new SegmentStore(segmentsDir).load().getCustomer();
+        long loadedHeap = usedHeap() - emptyHeap;
+
+        // The pool is dropped after load, as in the repository
+        StringPool stringPool = new StringPool();
+        stringPool.canonicalize(customers);
+        int pooledValues = stringPool.size();
+        stringPool = null;
+        long pooledHeap = usedHeap() - emptyHeap;
+
+        print("customers", customers.size());
+        print("distinct pooled values", pooledValues);
+        print("heap after load (kB)", loadedHeap / 1024);
+        print("heap after pooling (kB)", pooledHeap / 1024);
+        print("heap saved (kB)", (loadedHeap - pooledHeap) / 1024);
+        print("binary snapshot size (kB)", sizes.snapshot / 1024);
+        print("paths as whole strings (kB)", sizes.wholePaths / 1024);
+        print("paths as directory + name (kB)", sizes.splitPaths / 1024);
+
+        // Keeps the customers reachable until everything is measured
+        System.out.println("(" + customers.get(0).getCustomerInfo().getCity() + ")");
+    }
+
+    private static EncodedSizes writeSegments(File segmentsDir) throws Exception {
+
+        CustomersType synthetic = SyntheticCustomers.create(CUSTOMER_COUNT);
+
+        SegmentStore store = new SegmentStore(segmentsDir);
+        store.allChanged();
+        store.capture(synthetic).write();
+
+        EncodedSizes sizes = new EncodedSizes(synthetic.getCustomer());
+        sizes.snapshot = BinarySnapshot.encode(synthetic).length;
+        return sizes;
+    }
+
+    private static void print(String label, long value) {
+        System.out.println(String.format("%-36s %12d", label, value));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return MEMORY_BEAN.getHeapMemoryUsage().getUsed();
+    }
+
+    // Snapshot size, and the bytes taken by the invoice paths in a snapshot string table,
+    // stored whole or split
+    private static final class EncodedSizes {
+
+        private long snapshot;
+        private long wholePaths;
+        private long splitPaths;
+
+        private EncodedSizes(List<CustomerType> customers) {
+
+            Set<String> paths = new HashSet<>();
+            Set<String> parts = new HashSet<>();
+            for (CustomerType customer : customers) {
+                for (InvoiceType invoice : customer.getInvoices().getInvoice()) {
+                    String path = invoice.getRelativeFilePath();
+                    int nameStart = path.lastIndexOf('/') + 1;
+                    paths.add(path);
+                    parts.add(path.substring(0, nameStart));
+                    parts.add(path.substring(nameStart));
+
+                    // One more string index per invoice
+                    this.splitPaths += 4;
+                }
+            }
+            this.wholePaths = tableBytes(paths);
+            this.splitPaths += tableBytes(parts);
+        }
+
+        // Length prefix and UTF-8 bytes of each distinct string
+        private static long tableBytes(Set<String> strings) {
+            long bytes = 0;
+            for (String value : strings) {
+                bytes += 4 + value.getBytes(StandardCharsets.UTF_8).length;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package se.osdsquash.test;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import se.osdsquash.common.CompactDates;
+import se.osdsquash.common.SquashUtil;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceStatusType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.SubscriptionType;
+
+/**
+ * Benchmark of the date handling on the hot paths of the GUI: the overdue check of the
+ * customer list, the sorting and date columns of the invoice table, and the start time
+ * column of the subscription table.
+ *
+ * <p>
+ * Each case is run with the original implementation ("before"), kept here as a copy,
+ * and with the current one in <code>SquashUtil</code> ("after"). Allocated bytes are measured
+ * per thread, so run it on a HotSpot JVM. The original implementations format in the default
+ * time zone, so run it with <code>-Duser.timezone=Europe/Stockholm</code> to match the
+ * synthetic start times, or the result check fails.
+ * </p>
+ */
+public class HotPathAllocationBenchmark {
+
+    private static final int CUSTOMER_COUNT = 10000;
+    private static final int ROUNDS = 20;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Keeps the results alive, so the JIT can not drop the work
+    private static long sink;
+
+    public static void main(String[] args) {
+
+        List<CustomerType> customers = SyntheticCustomers.create(CUSTOMER_COUNT).getCustomer();
+
+        final List<InvoiceType> invoices = new ArrayList<>();
+        final List<InvoiceType[]> invoiceTables = new ArrayList<>();
+        final List<SubscriptionType> subscriptions = new ArrayList<>();
+        for (CustomerType customer : customers) {
+            List<InvoiceType> customerInvoices = customer.getInvoices().getInvoice();
+            invoices.addAll(customerInvoices);
+            invoiceTables.add(customerInvoices.toArray(new InvoiceType[customerInvoices.size()]));
+            subscriptions.addAll(customer.getSubscriptions().getSubscription());
+        }
+
+        verify(invoices, subscriptions);
+
+        System.out.println(
+            String.format(
+                "%-22s %10s %14s %14s %12s %12s",
+                "case",
+                "ops",
+                "before B/op",
+                "after B/op",
+                "before ns/op",
+                "after ns/op"));
+
+        run("isOverdue", invoices.size(), new Case() {
+
+            @Override
+            public void before() {
+                for (InvoiceType invoice : invoices) {
+                    sink += isOverdueBefore(invoice) ? 1 : 0;
+                }
+            }
+
+            @Override
+            public void after() {
+                for (InvoiceType invoice : invoices) {
+                    sink += SquashUtil.isOverdue(invoice) ? 1 : 0;
+                }
+            }
+        });
+
+        // Counted per table sort, i.e. one customer's invoices
+        run("sort invoice table", invoiceTables.size(), new Case() {
+
+            private final Comparator<InvoiceType> beforeComparator = new Comparator<InvoiceType>() {
+
+                @Override
+                public int compare(InvoiceType o1, InvoiceType o2) {
+                    return o2.getCreatedDate().toGregorianCalendar().compareTo(
+                        o1.getCreatedDate().toGregorianCalendar());
+                }
+            };
+
+            private final Comparator<InvoiceType> afterComparator = new Comparator<InvoiceType>() {
+
+                @Override
+                public int compare(InvoiceType o1, InvoiceType o2) {
+                    return Long.compare(
+                        CompactDates.sortKey(o2.getCreatedDate()),
+                        CompactDates.sortKey(o1.getCreatedDate()));
+                }
+            };
+
+            @Override
+            public void before() {
+                sort(this.beforeComparator);
+            }
+
+            @Override
+            public void after() {
+                sort(this.afterComparator);
+            }
+
+            private void sort(Comparator<InvoiceType> comparator) {
+                for (InvoiceType[] table : invoiceTables) {
+                    reverse(table);
+                    Arrays.sort(table, comparator);
+                    sink += table[0].getInvoiceNumber();
+                }
+            }
+        });
+
+        run("getDayFormat", invoices.size(), new Case() {
+
+            @Override
+            public void before() {
+                for (InvoiceType invoice : invoices) {
+                    sink += getDayFormatBefore(invoice.getDueDate()).length();
+                }
+            }
+
+            @Override
+            public void after() {
+                for (InvoiceType invoice : invoices) {
+                    sink += SquashUtil.getDayFormat(invoice.getDueDate()).length();
+                }
+            }
+        });
+
+        run("getTrackTime", subscriptions.size(), new Case() {
+
+            @Override
+            public void before() {
+                for (SubscriptionType subscription : subscriptions) {
+                    sink += getTrackTimeBefore(subscription.getStartTime()).length();
+                }
+            }
+
+            @Override
+            public void after() {
+                for (SubscriptionType subscription : subscriptions) {
+                    sink += SquashUtil.getTrackTimeFromCalendar(subscription.getStartTime())
+                        .length();
+                }
+            }
+        });
+
+        System.out.println("(" + sink + ")");
+    }
+
+    private interface Case {
+
+        void before();
+
+        void after();
+    }
+
+    private static void run(String name, int ops, Case benchmarkCase) {
+
+        // Warm up both, so the JIT has settled before anything is measured
+        for (int i = 0; i < ROUNDS; i++) {
+            benchmarkCase.before();
+            benchmarkCase.after();
+        }
+
+        long[] before = measure(benchmarkCase, true);
+        long[] after = measure(benchmarkCase, false);
+        long totalOps = (long) ops * ROUNDS;
+
+        System.out.println(
+            String.format(
+                "%-22s %10d %14d %14d %12d %12d",
+                name,
+                totalOps,
+                before[0] / totalOps,
+                after[0] / totalOps,
+                before[1] / totalOps,
+                after[1] / totalOps));
+    }
+
+    // Returns allocated bytes and elapsed nanos
+    private static long[] measure(Case benchmarkCase, boolean before) {
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = THREAD_BEAN.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            if (before) {
+                benchmarkCase.before();
+            } else {
+                benchmarkCase.after();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        return new long[] {THREAD_BEAN.getThreadAllocatedBytes(threadId) - startBytes, nanos};
+    }
+
+    // The new implementations must give the same results as the old ones
+    private static void verify(List<InvoiceType> invoices, List<SubscriptionType> subscriptions) {
+
+        for (InvoiceType invoice : invoices) {
+            if (isOverdueBefore(invoice) != SquashUtil.isOverdue(invoice)
+                || !getDayFormatBefore(invoice.getDueDate())
+                    .equals(SquashUtil.getDayFormat(invoice.getDueDate()))) {
+                throw new IllegalStateException("Differs for invoice " + invoice.getInvoiceNumber());
+            }
+        }
+        for (SubscriptionType subscription : subscriptions) {
+            if (!getTrackTimeBefore(subscription.getStartTime())
+                .equals(SquashUtil.getTrackTimeFromCalendar(subscription.getStartTime()))) {
+                throw new IllegalStateException(
+                    "Differs for start time " + subscription.getStartTime());
+            }
+        }
+    }
+
+    private static void reverse(InvoiceType[] table) {
+        for (int i = 0, j = table.length - 1; i < j; i++, j--) {
+            InvoiceType invoice = table[i];
+            table[i] = table[j];
+            table[j] = invoice;
+        }
+    }
+
+    // ------------------------------  ORIGINAL IMPLEMENTATIONS  -----------------------------
+
+    private static boolean isOverdueBefore(InvoiceType invoice) {
+
+        GregorianCalendar todayCal = new GregorianCalendar();
+        todayCal.setTimeInMillis(SquashUtil.getTimeZeroedCalendar().getTimeInMillis());
+
+        InvoiceStatusType status = invoice.getInvoiceStatus();
+        if (InvoiceStatusType.NEW.equals(status)
+            || InvoiceStatusType.SENT.equals(status)
+            || InvoiceStatusType.DEBT_DUE.equals(status)) {
+
+            XMLGregorianCalendar dueDateXmlCal = invoice.getDueDate();
+            if (dueDateXmlCal != null) {
+                if (todayCal.after(dueDateXmlCal.toGregorianCalendar())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getDayFormatBefore(XMLGregorianCalendar xmlCalendar) {
+        return new SimpleDateFormat("yyyy-MM-dd").format(
+            xmlCalendar.toGregorianCalendar().getTime());
+    }
+
+    private static String getTrackTimeBefore(XMLGregorianCalendar xmlCalendar) {
+        return new SimpleDateFormat("HH:mm").format(xmlCalendar.toGregorianCalendar().getTime());
+    }
+}
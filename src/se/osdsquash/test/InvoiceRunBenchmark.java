@@ -0,0 +1,130 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.osdsquash.excel.ParallelInvoiceEngine;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Benchmark of an invoice run with the parallel invoice engine, for a growing number
+ * of render threads, building each invoice in full, rendering from templates and writing
+ * the files directly. The time per invoice of each pipeline stage (render, write and metadata)
+ * is reported next to the time of the whole run, and the speedup is relative to building in
+ * full with one thread.
+ *
+ * <p>
+ * Usage: <code>InvoiceRunBenchmark [customers]</code>, 500 customers by default.
+ * The invoice files are written to the invoices directory of the data directory, and
+ * deleted after each run. The repository itself is not changed.
+ * </p>
+ */
+public class InvoiceRunBenchmark {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+    private static final String[] MODES = {"builder", "template", "direct"};
+
+    // Far above the numbers used by the repository, the invoices are never stored
+    private static final int FIRST_INVOICE_NR = 900000;
+
+    public static void main(String[] args) {
+
+        int customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        List<CustomerType> customers = SyntheticCustomers.create(customerCount).getCustomer();
+        int[] invoiceNrs = new int[customers.size()];
+        for (int i = 0; i < invoiceNrs.length; i++) {
+            invoiceNrs[i] = FIRST_INVOICE_NR + i;
+        }
+
+        XmlRepository xmlRepository = XmlRepository.getInstance();
+
+        // Warm up, so the first measured run is not the one loading all of POI
+        List<CustomerType> warmupCustomers = customers.subList(0, Math.min(50, customers.size()));
+        for (String mode : MODES) {
+            run(createEngine(xmlRepository, mode, 1), warmupCustomers, invoiceNrs);
+        }
+
+        System.out.println(
+            String.format(
+                "%10s %10s %8s %10s %12s %10s %14s %13s %16s",
+                "customers",
+                "mode",
+                "threads",
+                "ms",
+                "invoices/s",
+                "speedup",
+                "render ms/inv",
+                "write ms/inv",
+                "metadata ms/inv"));
+
+        long baselineMillis = 0;
+        for (String mode : MODES) {
+            for (int threadCount : THREAD_COUNTS) {
+                ParallelInvoiceEngine engine = createEngine(xmlRepository, mode, threadCount);
+                long millis = run(engine, customers, invoiceNrs);
+                if (baselineMillis == 0) {
+                    baselineMillis = millis;
+                }
+                System.out.println(
+                    String.format(
+                        "%10d %10s %8d %10d %12d %10.2f %14.2f %13.2f %16.3f",
+                        customers.size(),
+                        mode,
+                        threadCount,
+                        millis,
+                        customers.size() * 1000L / Math.max(1, millis),
+                        (double) baselineMillis / Math.max(1, millis),
+                        engine.getRenderMillisPerInvoice(),
+                        engine.getWriteMillisPerInvoice(),
+                        engine.getMetadataMillisPerInvoice()));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static ParallelInvoiceEngine createEngine(
+        XmlRepository xmlRepository,
+        String mode,
+        int threadCount) {
+
+        return new ParallelInvoiceEngine(
+            xmlRepository,
+            threadCount,
+            mode.equals("direct")
+                ? ParallelInvoiceEngine.DIRECT_WRITER
+                : ParallelInvoiceEngine.POI_WRITER,
+            mode.equals("template"));
+    }
+
+    // Runs the engine, checks that the numbering follows the customer order,
+    // deletes the files and returns the elapsed time
+    private static long run(
+        ParallelInvoiceEngine engine,
+        List<CustomerType> customers,
+        int[] invoiceNrs) {
+
+        long start = System.nanoTime();
+        List<InvoiceType> invoices = engine.createInvoiceFiles(customers, invoiceNrs, 30, false);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        List<File> invoiceFiles = new ArrayList<>(invoices.size());
+        for (int i = 0; i < invoices.size(); i++) {
+            InvoiceType invoice = invoices.get(i);
+            String customerPrefix = customers.get(i).getCustomerInfo().getCustomerNumber() + "_";
+            File invoiceFile = new File(invoice.getRelativeFilePath());
+            if (invoice.getInvoiceNumber() != invoiceNrs[i]
+                || !invoiceFile.getName().startsWith(customerPrefix)
+                || !invoiceFile.isFile()) {
+                throw new IllegalStateException("Fel faktura för kund nr " + customerPrefix);
+            }
+            invoiceFiles.add(invoiceFile);
+        }
+        for (File invoiceFile : invoiceFiles) {
+            invoiceFile.delete();
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,192 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+
+import se.osdsquash.common.SquashProperties;
+import se.osdsquash.excel.BatchInvoiceWorkbook;
+import se.osdsquash.excel.InvoiceRunControl;
+import se.osdsquash.excel.ParallelInvoiceEngine;
+import se.osdsquash.xml.InvoiceBatch;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+
+/**
+ * Test of cancelling an invoice run, as the Avbryt button does. The run is cancelled when a
+ * few invoices are written, with the POI writer building in full and from templates, the
+ * direct writer and the batch workbook. After each run, no invoice files may be left, no
+ * customer may have got an invoice, and the next invoice nr must be the first nr of the run.
+ *
+ * <p>
+ * Throws an <code>IllegalStateException</code> on the first failure. The test customers are
+ * added to the repository and deleted at the end.
+ * </p>
+ */
+public class InvoiceRunCancelTest {
+
+    private static final int CUSTOMER_COUNT = 40;
+    private static final int CANCEL_AFTER = 3;
+
+    public static void main(String[] args) {
+
+        XmlRepository xmlRepository = XmlRepository.getInstance();
+        SquashProperties.INVOICE_RENDER_THREADS = 2;
+
+        List<UUID> customerUUIDs = new ArrayList<>();
+        try {
+            for (CustomerType customer : SyntheticCustomers
+                .create(CUSTOMER_COUNT)
+                .getCustomer()) {
+                customer.setInvoices(null);
+                customer.getCustomerInfo().setCustomerUUID(UUID.randomUUID().toString());
+                customer.getCustomerInfo().setCustomerNumber(xmlRepository.getNewCustomerNr());
+                xmlRepository.saveCustomer(customer);
+                customerUUIDs.add(UUID.fromString(customer.getCustomerInfo().getCustomerUUID()));
+            }
+
+            runCancelled(
+                xmlRepository,
+                customerUUIDs,
+                ParallelInvoiceEngine.POI_WRITER,
+                false,
+                BatchInvoiceWorkbook.FILES_OUTPUT);
+            runCancelled(
+                xmlRepository,
+                customerUUIDs,
+                ParallelInvoiceEngine.POI_WRITER,
+                true,
+                BatchInvoiceWorkbook.FILES_OUTPUT);
+            runCancelled(
+                xmlRepository,
+                customerUUIDs,
+                ParallelInvoiceEngine.DIRECT_WRITER,
+                false,
+                BatchInvoiceWorkbook.FILES_OUTPUT);
+            runCancelled(
+                xmlRepository,
+                customerUUIDs,
+                ParallelInvoiceEngine.DIRECT_WRITER,
+                false,
+                BatchInvoiceWorkbook.BATCH_OUTPUT);
+
+        } finally {
+            for (UUID customerUUID : customerUUIDs) {
+                xmlRepository.deleteCustomer(customerUUID);
+            }
+            xmlRepository.saveRepository();
+        }
+        System.exit(0);
+    }
+
+    // Runs all customers, cancelling after a few invoices, and checks that nothing is left
+    private static void runCancelled(
+        XmlRepository xmlRepository,
+        List<UUID> customerUUIDs,
+        String writer,
+        boolean useTemplates,
+        String output) {
+
+        SquashProperties.INVOICE_WRITER = writer;
+        SquashProperties.INVOICE_TEMPLATES = useTemplates;
+        SquashProperties.INVOICE_OUTPUT = output;
+        String name = writer + (useTemplates ? " template" : "") + " " + output;
+
+        int firstInvoiceNr = peekNextInvoiceNr(xmlRepository);
+        Set<String> filesBefore = listInvoiceFiles();
+
+        InvoiceRunControl runControl = new InvoiceRunControl() {
+
+            @Override
+            protected void invoiceCompleted() {
+                super.invoiceCompleted();
+                if (this.getCompletedCount() == CANCEL_AFTER) {
+                    this.cancel();
+                }
+            }
+        };
+
+        boolean cancelled = false;
+        try {
+            xmlRepository.generateAndStoreInvoices(false, runControl);
+        } catch (CancellationException exception) {
+            cancelled = true;
+        }
+
+        check(cancelled, name + ": körningen avbröts inte");
+        check(
+            runControl.getCompletedCount() >= CANCEL_AFTER
+                && runControl.getCompletedCount() < runControl.getInvoiceCount(),
+            name
+                + ": "
+                + runControl.getCompletedCount()
+                + " av "
+                + runControl.getInvoiceCount()
+                + " fakturor skapades");
+
+        Set<String> filesLeft = listInvoiceFiles();
+        filesLeft.removeAll(filesBefore);
+        check(filesLeft.isEmpty(), name + ": fakturafiler finns kvar: " + filesLeft);
+
+        for (UUID customerUUID : customerUUIDs) {
+            CustomerType customer = xmlRepository.getCustomer(customerUUID);
+            check(
+                xmlRepository.getInvoices(customer).isEmpty(),
+                name + ": kund " + customerUUID + " fick en faktura");
+        }
+
+        int nextInvoiceNr = peekNextInvoiceNr(xmlRepository);
+        check(
+            nextInvoiceNr == firstInvoiceNr,
+            name + ": nästa FakturaNr är " + nextInvoiceNr + ", väntade " + firstInvoiceNr);
+
+        System.out.println(
+            name
+                + ": cancelled after "
+                + runControl.getCompletedCount()
+                + " of "
+                + runControl.getInvoiceCount()
+                + " invoices, next invoice nr is "
+                + nextInvoiceNr);
+    }
+
+    // Returns the invoice nr to be handed out next, giving it back right away
+    private static int peekNextInvoiceNr(XmlRepository xmlRepository) {
+        InvoiceBatch invoiceBatch = xmlRepository.beginInvoiceBatch(1);
+        int invoiceNr = invoiceBatch.nextInvoiceNr();
+        invoiceBatch.rollback();
+        return invoiceNr;
+    }
+
+    // Returns the paths of all files in the invoices directory
+    private static Set<String> listInvoiceFiles() {
+        Set<String> paths = new HashSet<>();
+        addFiles(new File(XmlRepository.INVOICES_DIR_PATH), paths);
+        return paths;
+    }
+
+    private static void addFiles(File dir, Set<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : Arrays.asList(files)) {
+            if (file.isDirectory()) {
+                addFiles(file, paths);
+            } else {
+                paths.add(file.getPath());
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import se.osdsquash.common.SquashProperties;
+import se.osdsquash.common.SquashRuntimeInfo;
+import se.osdsquash.excel.BatchInvoiceWorkbook;
+import se.osdsquash.excel.InvoiceRunControl;
+import se.osdsquash.excel.ParallelInvoiceEngine;
+import se.osdsquash.xml.InvoiceResults;
+import se.osdsquash.xml.RepositoryStores;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+
+/**
+ * Test of deleting customers during an invoice run, as can be done in the GUI while the run
+ * goes on. The first and the last test customer are deleted after a few invoices are
+ * written, usually one already rendered and one not. Neither may get an invoice or an
+ * invoice file, the other customers must get one invoice each, and the deleted customers
+ * must not come back from the segment store.
+ *
+ * <p>
+ * Throws an <code>IllegalStateException</code> on the first failure. The test customers are
+ * added to the repository and deleted at the end.
+ * </p>
+ */
+public class InvoiceRunDeleteTest {
+
+    private static final int CUSTOMER_COUNT = 40;
+    private static final int DELETE_AFTER = 3;
+
+    public static void main(String[] args) throws IOException {
+
+        SquashProperties.REPOSITORY_STORE = RepositoryStores.SEGMENTS;
+        XmlRepository xmlRepository = XmlRepository.getInstance();
+        SquashProperties.INVOICE_RENDER_THREADS = 2;
+
+        try {
+            runDeleting(
+                xmlRepository,
+                ParallelInvoiceEngine.POI_WRITER,
+                BatchInvoiceWorkbook.FILES_OUTPUT);
+            runDeleting(
+                xmlRepository,
+                ParallelInvoiceEngine.DIRECT_WRITER,
+                BatchInvoiceWorkbook.FILES_OUTPUT);
+            runDeleting(
+                xmlRepository,
+                ParallelInvoiceEngine.DIRECT_WRITER,
+                BatchInvoiceWorkbook.BATCH_OUTPUT);
+        } finally {
+            xmlRepository.saveRepository();
+        }
+        System.exit(0);
+    }
+
+    // Runs all customers, deleting two of them during the run, and checks the result
+    private static void runDeleting(XmlRepository xmlRepository, String writer, String output)
+        throws IOException {
+
+        SquashProperties.INVOICE_WRITER = writer;
+        SquashProperties.INVOICE_OUTPUT = output;
+        String name = writer + " " + output;
+
+        final List<UUID> customerUUIDs = addCustomers(xmlRepository);
+        final XmlRepository repository = xmlRepository;
+        final UUID firstUUID = customerUUIDs.get(0);
+        final UUID lastUUID = customerUUIDs.get(customerUUIDs.size() - 1);
+
+        Set<String> filesBefore = listInvoiceFiles();
+        try {
+            InvoiceRunControl runControl = new InvoiceRunControl() {
+
+                @Override
+                protected void invoiceCompleted() {
+                    super.invoiceCompleted();
+                    if (this.getCompletedCount() == DELETE_AFTER) {
+                        repository.deleteCustomer(firstUUID);
+                        repository.deleteCustomer(lastUUID);
+                    }
+                }
+            };
+            InvoiceResults invoiceResults = xmlRepository
+                .generateAndStoreInvoices(false, runControl);
+
+            check(
+                xmlRepository.getCustomer(firstUUID) == null
+                    && xmlRepository.getCustomer(lastUUID) == null,
+                name + ": raderade kunder finns kvar");
+
+            Set<String> invoicedUUIDs = new HashSet<>();
+            for (UUID customerUUID : customerUUIDs) {
+                CustomerType customer = xmlRepository.getCustomer(customerUUID);
+                if (customer != null) {
+                    check(
+                        xmlRepository.getInvoices(customer).size() == 1,
+                        name + ": kund " + customerUUID + " fick ingen faktura");
+                    invoicedUUIDs.add(customerUUID.toString());
+                }
+            }
+            check(
+                invoicedUUIDs.size() == CUSTOMER_COUNT - 2,
+                name + ": " + invoicedUUIDs.size() + " kunder fick faktura");
+
+            // Only the batch workbook is written for a batch run
+            Set<String> filesLeft = listInvoiceFiles();
+            filesLeft.removeAll(filesBefore);
+            if (BatchInvoiceWorkbook.FILES_OUTPUT.equals(output)) {
+                Set<String> resultFiles = new HashSet<>();
+                for (String filename : invoiceResults.getAllInvoiceFilenames()) {
+                    resultFiles.add(new File(filename).getPath());
+                }
+                check(
+                    resultFiles.size() == runControl.getInvoiceCount() - 2
+                        && filesLeft.equals(resultFiles),
+                    name + ": fakturafilerna stämmer inte, " + filesLeft.size() + " filer");
+            }
+
+            // The deleted customers must not come back when the store is loaded again
+            xmlRepository.saveRepository();
+            Set<String> storedUUIDs = new HashSet<>();
+            for (CustomerType customer : RepositoryStores
+                .create(RepositoryStores.SEGMENTS, SquashRuntimeInfo.getDataDirPath(), null)
+                .load()
+                .getCustomer()) {
+                storedUUIDs.add(customer.getCustomerInfo().getCustomerUUID());
+            }
+            check(
+                !storedUUIDs.contains(firstUUID.toString())
+                    && !storedUUIDs.contains(lastUUID.toString()),
+                name + ": raderad kund finns kvar i lagringen");
+            check(
+                storedUUIDs.containsAll(invoicedUUIDs),
+                name + ": kunder saknas i lagringen");
+
+            System.out.println(
+                name
+                    + ": "
+                    + invoicedUUIDs.size()
+                    + " invoices saved, 2 customers deleted during the run");
+
+        } finally {
+            for (UUID customerUUID : customerUUIDs) {
+                if (xmlRepository.getCustomer(customerUUID) != null) {
+                    xmlRepository.deleteCustomer(customerUUID);
+                }
+            }
+        }
+    }
+
+    // Adds new customers with a subscription each, and returns their IDs in customer order
+    private static List<UUID> addCustomers(XmlRepository xmlRepository) {
+
+        List<UUID> customerUUIDs = new ArrayList<>();
+        for (CustomerType customer : SyntheticCustomers.create(CUSTOMER_COUNT).getCustomer()) {
+            customer.setInvoices(null);
+            customer.getCustomerInfo().setCustomerUUID(UUID.randomUUID().toString());
+            customer.getCustomerInfo().setCustomerNumber(xmlRepository.getNewCustomerNr());
+            xmlRepository.saveCustomer(customer);
+            customerUUIDs.add(UUID.fromString(customer.getCustomerInfo().getCustomerUUID()));
+        }
+        return customerUUIDs;
+    }
+
+    // Returns the paths of all files in the invoices directory
+    private static Set<String> listInvoiceFiles() {
+        Set<String> paths = new HashSet<>();
+        addFiles(new File(XmlRepository.INVOICES_DIR_PATH), paths);
+        return paths;
+    }
+
+    private static void addFiles(File dir, Set<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : Arrays.asList(files)) {
+            if (file.isDirectory()) {
+                addFiles(file, paths);
+            } else {
+                paths.add(file.getPath());
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
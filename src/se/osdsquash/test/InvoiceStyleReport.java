@@ -0,0 +1,115 @@
+package se.osdsquash.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import se.osdsquash.excel.ExcelHandler;
+import se.osdsquash.excel.InvoiceStyleRegistry;
+import se.osdsquash.excel.InvoiceTemplate;
+import se.osdsquash.excel.RenderedInvoice;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.SubscriptionsType;
+
+/**
+ * Reports the cell styles of an invoice workbook, for a growing number of subscriptions.
+ *
+ * <p>
+ * Without shared styles, each style asked for created a cell style (and mostly a font) of its
+ * own, so the nr of requests is the style count before. The shared cell styles and fonts are the
+ * counts after, not counting the workbook defaults. The last columns are for the same invoice
+ * rendered from a template, where the styles loaded with the template must be re-used rather
+ * than added again. Nothing is written to disk.
+ * </p>
+ */
+public class InvoiceStyleReport {
+
+    private static final int MAX_SUBSCRIPTIONS = 4;
+
+    public static void main(String[] args) throws IOException {
+
+        ExcelHandler excelHandler = new ExcelHandler(XmlRepository.getInstance());
+        CustomerType customer = SyntheticCustomers.create(1).getCustomer().get(0);
+        SubscriptionsType subscriptions = customer.getSubscriptions();
+        while (subscriptions.getSubscription().size() < MAX_SUBSCRIPTIONS) {
+            subscriptions.getSubscription().add(subscriptions.getSubscription().get(0));
+        }
+
+        System.out.println(
+            String.format(
+                "%14s %16s %12s %8s %18s %16s %18s",
+                "subscriptions",
+                "style requests",
+                "cell styles",
+                "fonts",
+                "styles.xml bytes",
+                "template styles",
+                "template xml bytes"));
+
+        for (int subscriptionCount = 0;
+            subscriptionCount <= MAX_SUBSCRIPTIONS;
+            subscriptionCount++) {
+
+            CustomerType invoiceCustomer = new CustomerType();
+            invoiceCustomer.setCustomerInfo(customer.getCustomerInfo());
+            SubscriptionsType invoiceSubscriptions = new SubscriptionsType();
+            invoiceSubscriptions.getSubscription().addAll(
+                subscriptions.getSubscription().subList(0, subscriptionCount));
+            invoiceCustomer.setSubscriptions(invoiceSubscriptions);
+
+            RenderedInvoice renderedInvoice = excelHandler.renderInvoice(
+                invoiceCustomer,
+                30,
+                false,
+                900000,
+                Calendar.getInstance());
+
+            InvoiceStyleRegistry styleRegistry = excelHandler.getLastStyleRegistry();
+
+            InvoiceTemplate template = excelHandler.createInvoiceTemplate(
+                subscriptionCount,
+                30,
+                false,
+                Calendar.getInstance());
+            RenderedInvoice templateInvoice = excelHandler.renderInvoice(
+                template,
+                invoiceCustomer,
+                900000);
+
+            System.out.println(
+                String.format(
+                    "%14d %16d %12d %8d %18d %16d %18d",
+                    subscriptionCount,
+                    styleRegistry.getRequestCount(),
+                    styleRegistry.getCellStyleCount(),
+                    styleRegistry.getFontCount(),
+                    getPartSize(renderedInvoice.getContent(), "xl/styles.xml"),
+                    excelHandler.getLastStyleRegistry().getCellStyleCount(),
+                    getPartSize(templateInvoice.getContent(), "xl/styles.xml")));
+        }
+        System.exit(0);
+    }
+
+    // Returns the uncompressed size of a part of an .xlsx file, -1 if not found
+    private static long getPartSize(byte[] content, String partName) throws IOException {
+
+        try (ZipInputStream zipInput = new ZipInputStream(new ByteArrayInputStream(content))) {
+            ZipEntry entry;
+            while ((entry = zipInput.getNextEntry()) != null) {
+                if (entry.getName().equals(partName)) {
+                    long size = 0;
+                    byte[] buffer = new byte[4096];
+                    int read;
+                    while ((read = zipInput.read(buffer)) != -1) {
+                        size += read;
+                    }
+                    return size;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,450 @@
+package se.osdsquash.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import se.osdsquash.excel.BatchInvoiceWorkbook;
+import se.osdsquash.excel.DirectInvoiceWriter;
+import se.osdsquash.excel.ExcelHandler;
+import se.osdsquash.excel.InvoiceTemplate;
+import se.osdsquash.excel.ParallelInvoiceEngine;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Test of the invoice files, opening them with POI. The invoice built in full is checked
+ * against the layout of the first version: the borders drawn around the track table and the
+ * sums, the invoice nr, the e-mail link and the amounts. The other ways to create the same
+ * invoice, from a template, with the direct writer, in a batch workbook and in an invoice run
+ * of the parallel engine, must give the same cells: value, number format, borders, font and
+ * alignment.
+ *
+ * <p>
+ * Throws an <code>IllegalStateException</code> on the first difference. The invoice files and
+ * the batch workbook are written to the invoices directory of the data directory, and deleted
+ * after the test. The repository itself is not changed.
+ * </p>
+ */
+public class InvoiceWorkbookTest {
+
+    private static final Locale SWE_LOCALE = new Locale("sv", "SE");
+
+    // Far above the numbers used by the repository, the invoices are never stored
+    private static final int FIRST_INVOICE_NR = 900000;
+
+    // The first customer has two subscriptions, the second one
+    private static final int CUSTOMER_COUNT = 2;
+
+    private static final int DUE_DAYS = 30;
+
+    public static void main(String[] args) throws IOException {
+
+        XmlRepository xmlRepository = XmlRepository.getInstance();
+        ExcelHandler excelHandler = new ExcelHandler(xmlRepository);
+        Calendar invoiceCreationCal = Calendar.getInstance();
+
+        List<CustomerType> customers = SyntheticCustomers.create(CUSTOMER_COUNT).getCustomer();
+        List<Map<String, String>> builtInvoices = new ArrayList<>();
+        for (int i = 0; i < customers.size(); i++) {
+
+            CustomerType customer = customers.get(i);
+            int invoiceNr = FIRST_INVOICE_NR + i;
+            int subscriptionCount = customer.getSubscriptions().getSubscription().size();
+
+            XSSFSheet builtSheet = openSheet(
+                excelHandler
+                    .renderInvoice(customer, DUE_DAYS, false, invoiceNr, invoiceCreationCal)
+                    .getContent());
+            checkLayout(builtSheet, customer, invoiceNr);
+            Map<String, String> builtCells = describeCells(builtSheet);
+            builtInvoices.add(builtCells);
+
+            InvoiceTemplate template = excelHandler.createInvoiceTemplate(
+                subscriptionCount,
+                DUE_DAYS,
+                false,
+                invoiceCreationCal);
+            compareCells(
+                "template",
+                builtCells,
+                openSheet(excelHandler.renderInvoice(template, customer, invoiceNr).getContent()));
+
+            DirectInvoiceWriter directWriter = new DirectInvoiceWriter(
+                xmlRepository,
+                DUE_DAYS,
+                false,
+                invoiceCreationCal);
+            compareCells(
+                "direct",
+                builtCells,
+                openSheet(directWriter.renderInvoice(customer, invoiceNr).getContent()));
+
+            System.out.println(
+                "Invoice "
+                    + invoiceNr
+                    + " with "
+                    + subscriptionCount
+                    + " subscriptions: "
+                    + builtCells.size()
+                    + " cells the same in all files");
+        }
+
+        checkBatchWorkbook(xmlRepository, invoiceCreationCal, customers, builtInvoices);
+
+        checkEngine(
+            new ParallelInvoiceEngine(xmlRepository, 2, ParallelInvoiceEngine.POI_WRITER, false),
+            "engine poi",
+            customers,
+            builtInvoices);
+        checkEngine(
+            new ParallelInvoiceEngine(xmlRepository, 2, ParallelInvoiceEngine.POI_WRITER, true),
+            "engine template",
+            customers,
+            builtInvoices);
+        checkEngine(
+            new ParallelInvoiceEngine(xmlRepository, 2, ParallelInvoiceEngine.DIRECT_WRITER, false),
+            "engine direct",
+            customers,
+            builtInvoices);
+        System.exit(0);
+    }
+
+    // Runs the engine for the customers, and compares the written files to the invoices built
+    // in full
+    private static void checkEngine(
+        ParallelInvoiceEngine engine,
+        String name,
+        List<CustomerType> customers,
+        List<Map<String, String>> builtInvoices) throws IOException {
+
+        int[] invoiceNrs = new int[customers.size()];
+        for (int i = 0; i < invoiceNrs.length; i++) {
+            invoiceNrs[i] = FIRST_INVOICE_NR + i;
+        }
+
+        List<InvoiceType> invoices = engine.createInvoiceFiles(
+            customers,
+            invoiceNrs,
+            DUE_DAYS,
+            false);
+        try {
+            check(invoices.size() == customers.size(), name + ": fel antal fakturor");
+            for (int i = 0; i < invoices.size(); i++) {
+                check(
+                    invoices.get(i).getInvoiceNumber() == invoiceNrs[i],
+                    name + ": fel FakturaNr " + invoices.get(i).getInvoiceNumber());
+                compareCells(
+                    name,
+                    builtInvoices.get(i),
+                    openSheet(new FileInputStream(invoices.get(i).getRelativeFilePath()), 0));
+            }
+            System.out.println(invoices.size() + " invoices the same from the " + name);
+
+        } finally {
+            for (InvoiceType invoice : invoices) {
+                new File(invoice.getRelativeFilePath()).delete();
+            }
+        }
+    }
+
+    // Writes the invoices to one workbook, and compares its invoice sheets and the files
+    // extracted from it to the invoices built in full
+    private static void checkBatchWorkbook(
+        XmlRepository xmlRepository,
+        Calendar invoiceCreationCal,
+        List<CustomerType> customers,
+        List<Map<String, String>> builtInvoices) throws IOException {
+
+        BatchInvoiceWorkbook batchWorkbook = new BatchInvoiceWorkbook(
+            xmlRepository,
+            DUE_DAYS,
+            false,
+            invoiceCreationCal);
+        List<InvoiceType> invoices = new ArrayList<>();
+        File workbookFile;
+        try {
+            for (int i = 0; i < customers.size(); i++) {
+                invoices.add(batchWorkbook.addInvoice(customers.get(i), FIRST_INVOICE_NR + i));
+            }
+            workbookFile = batchWorkbook.write();
+        } finally {
+            batchWorkbook.dispose();
+        }
+
+        try {
+            // The first sheet is the summary
+            for (int i = 0; i < invoices.size(); i++) {
+                compareCells(
+                    "batch",
+                    builtInvoices.get(i),
+                    openSheet(new FileInputStream(workbookFile), i + 1));
+
+                File invoiceFile = new File(invoices.get(i).getRelativeFilePath());
+                check(
+                    BatchInvoiceWorkbook.extractInvoiceFile(invoices.get(i)),
+                    "Fakturan finns inte i arbetsboken: " + invoiceFile.getPath());
+                try {
+                    compareCells(
+                        "extracted",
+                        builtInvoices.get(i),
+                        openSheet(new FileInputStream(invoiceFile), 0));
+                } finally {
+                    invoiceFile.delete();
+                }
+            }
+            System.out.println(
+                invoices.size() + " invoices the same in " + workbookFile.getName());
+
+        } finally {
+            workbookFile.delete();
+        }
+    }
+
+    // Checks the borders, the invoice nr, the e-mail link and the amounts of an invoice
+    private static void checkLayout(XSSFSheet sheet, CustomerType customer, int invoiceNr) {
+
+        CustomerInfoType customerInfo = customer.getCustomerInfo();
+
+        XSSFCell invoiceNrCell = findCell(sheet, "FakturaNr:  " + invoiceNr);
+        check(invoiceNrCell != null, "FakturaNr saknas");
+
+        XSSFCell emailCell = findCell(sheet, customerInfo.getEmail());
+        check(emailCell != null, "E-postadressen saknas");
+        check(
+            emailCell.getHyperlink() != null
+                && ("mailto:" + customerInfo.getEmail())
+                    .equals(emailCell.getHyperlink().getAddress()),
+            "E-postlänken saknas i " + emailCell.getReference());
+        check(
+            emailCell.getCellStyle().getFont().getUnderline() != 0,
+            "E-postlänken är inte understruken");
+
+        // Every subscription costs the same
+        int subscriptionCount = customer.getSubscriptions().getSubscription().size();
+        double trackPrice = getAmount(findCell(sheet, "  Summa"), 1) / subscriptionCount;
+        XSSFCell totalTextCell = findCell(sheet, "  Att betala");
+        check(totalTextCell != null, "Att betala saknas");
+        check(
+            getAmount(totalTextCell, 1) == trackPrice * subscriptionCount,
+            "Att betala är inte summan");
+        check(
+            "# ##0,00 kr".equals(
+                getCell(sheet, totalTextCell.getRowIndex(), totalTextCell.getColumnIndex() + 1)
+                    .getCellStyle()
+                    .getDataFormatString()),
+            "Att betala har fel talformat");
+
+        // The boxes drawn with RegionUtil by the first version: the header row, the track
+        // table up to the row above the sum, and the three rows of sums
+        int headerRowIndex = findCell(sheet, "  Beskrivning").getRowIndex();
+        int sumRowIndex = findCell(sheet, "  Summa").getRowIndex();
+        Map<String, String> expectedBorders = new TreeMap<>();
+        addBox(expectedBorders, headerRowIndex, headerRowIndex, 1, 3);
+        addBox(expectedBorders, headerRowIndex + 1, sumRowIndex - 1, 1, 3);
+        addBox(expectedBorders, sumRowIndex, sumRowIndex + 2, 2, 3);
+
+        for (Row row : sheet) {
+            for (Cell cell : row) {
+                String reference = ((XSSFCell) cell).getReference();
+                String expected = expectedBorders.remove(reference);
+                String borders = describeBorders(((XSSFCell) cell).getCellStyle());
+                check(
+                    borders.equals(expected != null ? expected : ""),
+                    "Fel ram i " + reference + ": '" + borders + "', väntade '" + expected + "'");
+            }
+        }
+
+        // Only cells having no border may be missing
+        for (Map.Entry<String, String> missing : expectedBorders.entrySet()) {
+            check(missing.getValue().isEmpty(), "Ram saknas i " + missing.getKey());
+        }
+    }
+
+    // Adds the thin outline of a cell range, as the sides of each cell: T, B, L and R
+    private static void addBox(
+        Map<String, String> borders,
+        int firstRow,
+        int lastRow,
+        int firstColumn,
+        int lastColumn) {
+
+        for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                String sides = (rowIndex == firstRow ? "T" : "")
+                    + (rowIndex == lastRow ? "B" : "")
+                    + (column == firstColumn ? "L" : "")
+                    + (column == lastColumn ? "R" : "");
+                borders.put(new CellReference(rowIndex, column).formatAsString(), sides);
+            }
+        }
+    }
+
+    // Returns the thin borders of a cell style as in addBox, and any other border as is
+    private static String describeBorders(XSSFCellStyle style) {
+        return describeBorder("T", style.getBorderTop())
+            + describeBorder("B", style.getBorderBottom())
+            + describeBorder("L", style.getBorderLeft())
+            + describeBorder("R", style.getBorderRight());
+    }
+
+    private static String describeBorder(String side, short border) {
+        if (border == CellStyle.BORDER_NONE) {
+            return "";
+        }
+        return border == CellStyle.BORDER_THIN ? side : side + border;
+    }
+
+    // Returns the look and contents of all cells having any, by cell reference
+    private static Map<String, String> describeCells(XSSFSheet sheet) {
+
+        Map<String, String> cells = new TreeMap<>();
+        for (Row row : sheet) {
+            for (Cell cell : row) {
+                XSSFCell xssfCell = (XSSFCell) cell;
+                XSSFCellStyle style = xssfCell.getCellStyle();
+                XSSFFont font = style.getFont();
+                String value = xssfCell.getCellType() == Cell.CELL_TYPE_NUMERIC
+                    ? String.valueOf(xssfCell.getNumericCellValue())
+                    : xssfCell.getStringCellValue();
+                String link = xssfCell.getHyperlink() != null
+                    ? xssfCell.getHyperlink().getAddress()
+                    : "";
+
+                String description = "'"
+                    + value
+                    + "' format '"
+                    + style.getDataFormatString()
+                    + "' borders '"
+                    + describeBorders(style)
+                    + "' font "
+                    + (font.getBold() ? "bold " : "")
+                    + (font.getItalic() ? "italic " : "")
+                    + (font.getUnderline() != 0 ? "underline " : "")
+                    + font.getFontHeightInPoints()
+                    + " color "
+                    + font.getColor()
+                    + " align "
+                    + style.getAlignment()
+                    + " link '"
+                    + link
+                    + "'";
+
+                // Empty cells without style are the same as no cell
+                if (!value.isEmpty()
+                    || !link.isEmpty()
+                    || !description.equals(describeEmptyCell(sheet.getWorkbook()))) {
+                    cells.put(xssfCell.getReference(), description);
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static String describeEmptyCell(XSSFWorkbook workbook) {
+        XSSFFont font = workbook.getCellStyleAt(0).getFont();
+        return "'' format 'General' borders '' font "
+            + font.getFontHeightInPoints()
+            + " color "
+            + font.getColor()
+            + " align "
+            + CellStyle.ALIGN_GENERAL
+            + " link ''";
+    }
+
+    // Compares the cells of a sheet to the cells of the invoice built in full
+    private static void compareCells(
+        String name,
+        Map<String, String> expectedCells,
+        XSSFSheet sheet) {
+
+        Map<String, String> cells = describeCells(sheet);
+        for (Map.Entry<String, String> expected : expectedCells.entrySet()) {
+            String actual = cells.remove(expected.getKey());
+            check(
+                expected.getValue().equals(actual),
+                name
+                    + ": fel cell "
+                    + expected.getKey()
+                    + ": "
+                    + actual
+                    + ", väntade "
+                    + expected.getValue());
+        }
+        check(cells.isEmpty(), name + ": oväntade celler " + cells.keySet());
+    }
+
+    private static XSSFSheet openSheet(byte[] content) throws IOException {
+        return openSheet(new ByteArrayInputStream(content), 0);
+    }
+
+    private static XSSFSheet openSheet(InputStream input, int sheetIndex) throws IOException {
+        try (InputStream workbookInput = input) {
+            return new XSSFWorkbook(workbookInput).getSheetAt(sheetIndex);
+        }
+    }
+
+    private static XSSFCell findCell(XSSFSheet sheet, String text) {
+        for (Row row : sheet) {
+            for (Cell cell : row) {
+                if (cell.getCellType() == Cell.CELL_TYPE_STRING
+                    && cell.getStringCellValue().equals(text)) {
+                    return (XSSFCell) cell;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static XSSFCell getCell(XSSFSheet sheet, int rowIndex, int column) {
+        XSSFRow row = sheet.getRow(rowIndex);
+        XSSFCell cell = row != null ? row.getCell(column) : null;
+        check(cell != null, "Cell saknas: " + new CellReference(rowIndex, column).formatAsString());
+        return cell;
+    }
+
+    // Returns the currency amount of the cell to the right of given cell
+    private static double getAmount(XSSFCell textCell, int columnOffset) {
+        XSSFCell amountCell = getCell(
+            textCell.getSheet(),
+            textCell.getRowIndex(),
+            textCell.getColumnIndex() + columnOffset);
+        try {
+            return NumberFormat
+                .getCurrencyInstance(SWE_LOCALE)
+                .parse(amountCell.getStringCellValue())
+                .doubleValue();
+        } catch (java.text.ParseException exception) {
+            throw new IllegalStateException(
+                "Inget belopp i " + amountCell.getReference() + ": " + exception.getMessage());
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
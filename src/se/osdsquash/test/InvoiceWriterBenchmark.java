@@ -0,0 +1,195 @@
+package se.osdsquash.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import se.osdsquash.excel.DirectInvoiceWriter;
+import se.osdsquash.excel.ExcelHandler;
+import se.osdsquash.excel.InvoiceTemplate;
+import se.osdsquash.excel.RenderedInvoice;
+import se.osdsquash.xml.XmlRepository;
+import se.osdsquash.xml.jaxb.CustomerType;
+
+/**
+ * Benchmark of the invoice file writers, rendering to memory in one thread: the direct writer,
+ * and POI rendering from templates. Nothing is written to disk.
+ *
+ * <p>
+ * Before measuring, all files of the direct writer are checked: each must be a readable zip,
+ * having all parts of an invoice workbook, and each XML part must be well-formed.
+ * The POI writer is measured last, so the direct writer is measured even if POI can't be
+ * loaded.
+ * </p>
+ * <p>
+ * Usage: <code>InvoiceWriterBenchmark [customers]</code>, 2000 customers by default.
+ * </p>
+ */
+public class InvoiceWriterBenchmark {
+
+    // Far above the numbers used by the repository, the invoices are never stored
+    private static final int FIRST_INVOICE_NR = 900000;
+
+    private static final String[] INVOICE_PARTS = {
+        "[Content_Types].xml",
+        "_rels/.rels",
+        "docProps/app.xml",
+        "docProps/core.xml",
+        "xl/workbook.xml",
+        "xl/_rels/workbook.xml.rels",
+        "xl/styles.xml",
+        "xl/drawings/drawing1.xml",
+        "xl/sharedStrings.xml",
+        "xl/worksheets/_rels/sheet1.xml.rels",
+        "xl/worksheets/sheet1.xml"};
+
+    public static void main(String[] args) throws Exception {
+
+        int customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        List<CustomerType> customers = SyntheticCustomers.create(customerCount).getCustomer();
+        XmlRepository xmlRepository = XmlRepository.getInstance();
+        Calendar invoiceCreationCal = Calendar.getInstance();
+
+        DirectInvoiceWriter directWriter = new DirectInvoiceWriter(
+            xmlRepository,
+            30,
+            false,
+            invoiceCreationCal);
+        for (int i = 0; i < customers.size(); i++) {
+            checkInvoiceFile(
+                directWriter.renderInvoice(customers.get(i), FIRST_INVOICE_NR + i).getContent());
+        }
+        System.out.println("Checked " + customers.size() + " invoice files of the direct writer");
+
+        System.out.println(
+            String.format(
+                "%10s %10s %10s %12s %14s",
+                "customers",
+                "writer",
+                "ms",
+                "invoices/s",
+                "bytes/invoice"));
+
+        // Warm up, then measure
+        runDirect(xmlRepository, customers, invoiceCreationCal);
+        long[] direct = runDirect(xmlRepository, customers, invoiceCreationCal);
+        printResult(customers.size(), "direct", direct);
+
+        runPoi(xmlRepository, customers, invoiceCreationCal);
+        long[] poi = runPoi(xmlRepository, customers, invoiceCreationCal);
+        printResult(customers.size(), "poi", poi);
+
+        System.out.println(
+            String.format(
+                "Direct writer speedup: %.2f",
+                Double.valueOf((double) poi[0] / Math.max(1, direct[0]))));
+        System.exit(0);
+    }
+
+    // Returns the elapsed time and the total nr of bytes
+    private static long[] runDirect(
+        XmlRepository xmlRepository,
+        List<CustomerType> customers,
+        Calendar invoiceCreationCal) {
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        DirectInvoiceWriter directWriter = new DirectInvoiceWriter(
+            xmlRepository,
+            30,
+            false,
+            invoiceCreationCal);
+        for (int i = 0; i < customers.size(); i++) {
+            RenderedInvoice renderedInvoice = directWriter.renderInvoice(
+                customers.get(i),
+                FIRST_INVOICE_NR + i);
+            bytes += renderedInvoice.getContent().length;
+        }
+        return new long[] {(System.nanoTime() - start) / 1000000, bytes};
+    }
+
+    // Returns the elapsed time and the total nr of bytes
+    private static long[] runPoi(
+        XmlRepository xmlRepository,
+        List<CustomerType> customers,
+        Calendar invoiceCreationCal) {
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        ExcelHandler excelHandler = new ExcelHandler(xmlRepository);
+        List<InvoiceTemplate> templates = new ArrayList<>();
+        for (int i = 0; i < customers.size(); i++) {
+            CustomerType customer = customers.get(i);
+            int subscriptionCount = customer.getSubscriptions() == null
+                ? 0
+                : customer.getSubscriptions().getSubscription().size();
+            while (templates.size() <= subscriptionCount) {
+                templates.add(
+                    excelHandler.createInvoiceTemplate(
+                        templates.size(),
+                        30,
+                        false,
+                        invoiceCreationCal));
+            }
+            RenderedInvoice renderedInvoice = excelHandler.renderInvoice(
+                templates.get(subscriptionCount),
+                customer,
+                FIRST_INVOICE_NR + i);
+            bytes += renderedInvoice.getContent().length;
+        }
+        return new long[] {(System.nanoTime() - start) / 1000000, bytes};
+    }
+
+    private static void printResult(int customerCount, String writer, long[] result) {
+        System.out.println(
+            String.format(
+                "%10d %10s %10d %12d %14d",
+                customerCount,
+                writer,
+                result[0],
+                customerCount * 1000L / Math.max(1, result[0]),
+                result[1] / Math.max(1, customerCount)));
+    }
+
+    // Checks that the file has all invoice parts, and that the XML parts are well-formed
+    private static void checkInvoiceFile(byte[] content) throws Exception {
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder documentBuilder = factory.newDocumentBuilder();
+
+        List<String> partNames = new ArrayList<>();
+        try (ZipInputStream zipInput = new ZipInputStream(new ByteArrayInputStream(content))) {
+            ZipEntry entry;
+            while ((entry = zipInput.getNextEntry()) != null) {
+                partNames.add(entry.getName());
+                documentBuilder.parse(new ByteArrayInputStream(readPart(zipInput)));
+            }
+        }
+
+        for (String partName : INVOICE_PARTS) {
+            if (!partNames.contains(partName)) {
+                throw new IllegalStateException("Fakturafilen saknar delen " + partName);
+            }
+        }
+    }
+
+    private static byte[] readPart(ZipInputStream zipInput) throws IOException {
+
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = zipInput.read(buffer)) != -1) {
+            part.write(buffer, 0, read);
+        }
+        return part.toByteArray();
+    }
+}
@@ -0,0 +1,156 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import se.osdsquash.xml.StreamingCustomerLoader;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * Benchmark comparing the start-up load of the XML database: the original single JAXB
+ * unmarshal call with schema validation, against the streaming, parallel loader.
+ *
+ * <p>
+ * Run with a large heap, e.g. <code>-Xmx4g</code>, to include the 100k dataset.
+ * The "first" column is the very first load in this JVM, which is the closest we get
+ * to a cold start, "best" is the best of a few more runs.
+ * </p>
+ */
+public class RepositoryLoadBenchmark {
+
+    private static final int[] CUSTOMER_COUNTS = {1000, 10000, 100000};
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(CustomersType.class);
+        Schema schema = SchemaFactory
+            .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(
+                RepositoryLoadBenchmark.class.getClassLoader().getResource(
+                    "se/osdsquash/xml/Customers.xsd"));
+
+        System.out.println(
+            String.format(
+                "%10s %12s %14s %14s %14s %14s",
+                "customers",
+                "file (kB)",
+                "jaxb first ms",
+                "jaxb best ms",
+                "stream first",
+                "stream best"));
+
+        for (int customerCount : CUSTOMER_COUNTS) {
+
+            File xmlFile = File.createTempFile("CustomerDatabase" + customerCount + "_", ".xml");
+            xmlFile.deleteOnExit();
+            writeDatabase(jaxbContext, SyntheticCustomers.create(customerCount), xmlFile);
+
+            long[] jaxbTimes = new long[RUNS];
+            long[] streamingTimes = new long[RUNS];
+            for (int run = 0; run < RUNS; run++) {
+                jaxbTimes[run] = timeJaxbLoad(jaxbContext, schema, xmlFile, customerCount);
+                streamingTimes[run] = timeStreamingLoad(
+                    jaxbContext,
+                    schema,
+                    xmlFile,
+                    customerCount);
+            }
+
+            System.out.println(
+                String.format(
+                    "%10d %12d %14d %14d %14d %14d",
+                    customerCount,
+                    xmlFile.length() / 1024,
+                    jaxbTimes[0],
+                    best(jaxbTimes),
+                    streamingTimes[0],
+                    best(streamingTimes)));
+
+            xmlFile.delete();
+        }
+    }
+
+    // The original load path, as in XmlRepository.init()
+    private static long timeJaxbLoad(
+        JAXBContext jaxbContext,
+        Schema schema,
+        File xmlFile,
+        int expectedCount) throws Exception {
+
+        long start = System.nanoTime();
+        InputStream xmlStream = new FileInputStream(xmlFile);
+        try {
+            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            unmarshaller.setSchema(schema);
+            JAXBElement<CustomersType> customers = unmarshaller
+                .unmarshal(new StreamSource(xmlStream), CustomersType.class);
+            check(customers, expectedCount);
+        } finally {
+            xmlStream.close();
+        }
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private static long timeStreamingLoad(
+        JAXBContext jaxbContext,
+        Schema schema,
+        File xmlFile,
+        int expectedCount) throws Exception {
+
+        long start = System.nanoTime();
+        JAXBElement<CustomersType> customers = new StreamingCustomerLoader(
+            jaxbContext,
+            schema,
+            Runtime.getRuntime().availableProcessors()).load(xmlFile);
+        check(customers, expectedCount);
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private static void check(JAXBElement<CustomersType> customers, int expectedCount) {
+        if (customers.getValue().getCustomer().size() != expectedCount) {
+            throw new IllegalStateException(
+                "Expected "
+                    + expectedCount
+                    + " customers, got "
+                    + customers.getValue().getCustomer().size());
+        }
+    }
+
+    private static long best(long[] times) {
+        long best = Long.MAX_VALUE;
+        for (int i = 1; i < times.length; i++) {
+            best = Math.min(best, times[i]);
+        }
+        return best;
+    }
+
+    private static void writeDatabase(
+        JAXBContext jaxbContext,
+        CustomersType customersType,
+        File xmlFile) throws Exception {
+
+        Marshaller marshaller = jaxbContext.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+        marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+        OutputStream fileOutput = new FileOutputStream(xmlFile);
+        try {
+            marshaller.marshal(new ObjectFactory().createCustomers(customersType), fileOutput);
+        } finally {
+            fileOutput.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package se.osdsquash.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import se.osdsquash.xml.JaxbPool;
+import se.osdsquash.xml.RepositoryStore;
+import se.osdsquash.xml.RepositoryStores;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+
+/**
+ * Benchmark comparing the repository stores: writing a full checkpoint, writing a
+ * checkpoint after one changed customer, and loading the whole database.
+ *
+ * <p>
+ * Every store writes to its own temporary data directory. The times are the best of a
+ * few runs, in milliseconds, and include the fsync of each written file.
+ * </p>
+ */
+public class RepositoryStoreBenchmark {
+
+    private static final int[] CUSTOMER_COUNTS = {1000, 10000};
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(CustomersType.class);
+        Schema schema = SchemaFactory
+            .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(
+                RepositoryStoreBenchmark.class.getClassLoader().getResource(
+                    "se/osdsquash/xml/Customers.xsd"));
+        JaxbPool jaxbPool = new JaxbPool(jaxbContext, schema);
+
+        System.out.println(
+            String.format(
+                "%10s %10s %14s %14s %14s",
+                "customers",
+                "store",
+                "full write ms",
+                "one change ms",
+                "load ms"));
+
+        for (int customerCount : CUSTOMER_COUNTS) {
+
+            CustomersType customersType = SyntheticCustomers.create(customerCount);
+            CustomerType changedCustomer = customersType.getCustomer().get(customerCount / 2);
+
+            for (String storeName : RepositoryStores.NAMES) {
+
+                File dataDir = Files.createTempDirectory("SquashStore").toFile();
+                RepositoryStore store = RepositoryStores
+                    .create(storeName, dataDir.getPath(), jaxbPool);
+
+                long[] fullTimes = new long[RUNS];
+                long[] changeTimes = new long[RUNS];
+                long[] loadTimes = new long[RUNS];
+                for (int run = 0; run < RUNS; run++) {
+
+                    long start = System.nanoTime();
+                    store.allChanged();
+                    store.capture(customersType).write();
+                    fullTimes[run] = (System.nanoTime() - start) / 1000000L;
+
+                    start = System.nanoTime();
+                    store.customerChanged(changedCustomer.getCustomerInfo().getCustomerUUID());
+                    store.capture(customersType).write();
+                    changeTimes[run] = (System.nanoTime() - start) / 1000000L;
+
+                    start = System.nanoTime();
+                    int loadedCount = store.load().getCustomer().size();
+                    loadTimes[run] = (System.nanoTime() - start) / 1000000L;
+                    if (loadedCount != customerCount) {
+                        throw new IllegalStateException(
+                            "Expected " + customerCount + " customers, got " + loadedCount);
+                    }
+                }
+
+                System.out.println(
+                    String.format(
+                        "%10d %10s %14d %14d %14d",
+                        customerCount,
+                        storeName,
+                        best(fullTimes),
+                        best(changeTimes),
+                        best(loadTimes)));
+
+                delete(dataDir);
+            }
+        }
+    }
+
+    private static long best(long[] times) {
+        long best = Long.MAX_VALUE;
+        for (long time : times) {
+            best = Math.min(best, time);
+        }
+        return best;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
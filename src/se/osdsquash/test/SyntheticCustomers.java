@@ -0,0 +1,146 @@
+package se.osdsquash.test;
+
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.InvoiceStatusType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.InvoicesType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+import se.osdsquash.xml.jaxb.SubscriptionType;
+import se.osdsquash.xml.jaxb.SubscriptionsType;
+import se.osdsquash.xml.jaxb.WeekdayType;
+
+/**
+ * Test helper that creates a synthetic, but realistic, customer database.
+ * Each customer has a couple of subscriptions and a few years of invoice history.
+ */
+public class SyntheticCustomers {
+
+    private static final String[] CITIES = {"Östersund", "Frösön", "Brunflo", "Krokom", "Lit"};
+    private static final String[] STREETS = {
+        "Storgatan",
+        "Prästgatan",
+        "Rådhusgatan",
+        "Kyrkgatan"};
+
+    // Two invoices per year, for a number of years
+    private static final int INVOICES_PER_CUSTOMER = 10;
+
+    /**
+     * Creates a customer database
+     * @param customerCount Number of customers to create
+     * @return The XML root object, with all customers
+     */
+    public static CustomersType create(int customerCount) {
+
+        ObjectFactory objectFactory = new ObjectFactory();
+        DatatypeFactory datatypeFactory;
+        try {
+            datatypeFactory = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException exception) {
+            throw new RuntimeException(exception);
+        }
+
+        // Fixed seed, so every run gets the same data
+        Random random = new Random(4711);
+
+        CustomersType customersType = objectFactory.createCustomersType();
+        int invoiceNr = 3000;
+        for (int i = 0; i < customerCount; i++) {
+
+            int customerNr = 3001 + i;
+
+            CustomerInfoType customerInfo = objectFactory.createCustomerInfoType();
+            customerInfo.setCustomerUUID(new UUID(random.nextLong(), random.nextLong()).toString());
+            customerInfo.setCustomerNumber(customerNr);
+            customerInfo.setCompany(random.nextInt(10) == 0);
+            customerInfo.setFirstname("Förnamn" + i);
+            customerInfo.setLastname("Efternamn" + i);
+            customerInfo.setStreet(STREETS[random.nextInt(STREETS.length)] + " " + (1 + i % 90));
+            customerInfo.setPostalCode("83" + (100 + random.nextInt(9)) + "");
+            customerInfo.setCity(CITIES[random.nextInt(CITIES.length)]);
+            customerInfo.setTelephone("070-" + (1000000 + random.nextInt(8999999)));
+            customerInfo.setEmail("kund" + i + "@example.se");
+
+            CustomerType customer = objectFactory.createCustomerType();
+            customer.setCustomerInfo(customerInfo);
+
+            SubscriptionsType subscriptions = objectFactory.createSubscriptionsType();
+            for (int s = 0; s < 1 + random.nextInt(2); s++) {
+                SubscriptionType subscription = objectFactory.createSubscriptionType();
+                subscription.setTrackNumber(1 + random.nextInt(2));
+                subscription.setWeekday(WeekdayType.values()[random.nextInt(7)]);
+                subscription.setStartTime(
+                    datatypeFactory.newXMLGregorianCalendar(
+                        1970,
+                        1,
+                        1,
+                        6 + random.nextInt(16),
+                        0,
+                        0,
+                        0,
+                        60));
+                subscriptions.getSubscription().add(subscription);
+            }
+            customer.setSubscriptions(subscriptions);
+
+            InvoicesType invoices = objectFactory.createInvoicesType();
+            for (int n = 0; n < INVOICES_PER_CUSTOMER; n++) {
+
+                int year = 2012 + n / 2;
+                int month = (n % 2 == 0) ? 1 : 7;
+                // Created in the middle of the month before the period starts
+                GregorianCalendar createdCal = new GregorianCalendar(year, month - 1, 15);
+                createdCal.add(GregorianCalendar.MONTH, -1);
+                XMLGregorianCalendar created = datatypeFactory.newXMLGregorianCalendar(createdCal);
+
+                InvoiceType invoice = objectFactory.createInvoiceType();
+                invoice.setInvoiceNumber(++invoiceNr);
+                invoice.setRelativeFilePath(
+                    "./squashdata/invoices/"
+                        + year
+                        + "-"
+                        + (month < 10 ? "0" + month : month)
+                        + "-01/"
+                        + customerNr
+                        + "_Förnamn"
+                        + i
+                        + "_Efternamn"
+                        + i
+                        + "_Faktura_"
+                        + invoiceNr
+                        + "_"
+                        + year
+                        + "0101.xlsx");
+                invoice.setCreatedDate(created);
+                invoice.setDueDate(
+                    datatypeFactory
+                        .newXMLGregorianCalendar(new GregorianCalendar(year, month - 1, 14)));
+                invoice.setPeriodStartDate(
+                    datatypeFactory
+                        .newXMLGregorianCalendar(new GregorianCalendar(year, month - 1, 1)));
+                invoice.setInvoiceStatus(
+                    n < INVOICES_PER_CUSTOMER - 1
+                        ? InvoiceStatusType.PAID
+                        : InvoiceStatusType.SENT);
+                invoices.getInvoice().add(invoice);
+            }
+            customer.setInvoices(invoices);
+
+            customersType.getCustomer().add(customer);
+        }
+
+        customersType.setCurrentCustomerNr(3000 + customerCount);
+        customersType.setCurrentInvoiceNr(invoiceNr);
+        return customersType;
+    }
+}
@@ -0,0 +1,136 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import se.osdsquash.common.SquashProperties;
+import se.osdsquash.common.SquashRuntimeInfo;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+
+/**
+ * Command that lists the backup points of the customer database, or restores one of them
+ * to the configured store, in the data directory of the program.
+ *
+ * <p>
+ * Usage: <code>BackupRestore list</code> or <code>BackupRestore &lt;backup point&gt;</code>.
+ * Run it when the program is not running. The current database is backed up as a new
+ * backup point before it is replaced, so a restore can be undone the same way. The invoice
+ * history and archive are replaced by the ones in the backup point.
+ * </p>
+ * <p>
+ * A restore is refused while the journal, or a rotated journal left by an unfinished
+ * checkpoint, holds changes. They belong to the current database, and would be applied on
+ * top of the restored one on next start.
+ * </p>
+ */
+public class BackupRestore {
+
+    private static final String XSD_SCHEMA_PATH = "se/osdsquash/xml/Customers.xsd";
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 1) {
+            System.err.println("Usage: BackupRestore list | BackupRestore <backup point>");
+            System.exit(1);
+        }
+
+        String dataDirPath = SquashRuntimeInfo.getDataDirPath();
+        if ("list".equals(args[0])) {
+            for (String pointName : new IncrementalBackups(new File(dataDirPath, "backups"))
+                .listPoints()) {
+                System.out.println(pointName);
+            }
+            return;
+        }
+
+        try {
+            restore(dataDirPath, args[0]);
+        } catch (IllegalStateException exception) {
+            System.err.println(exception.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Restores a backup point to the configured store
+     *
+     * @param dataDirPath The data directory
+     * @param pointName Name of the backup point
+     * @throws IllegalStateException If the backup point is not found, or a journal holds
+     *         changes
+     * @throws Exception If the backup point can't be read or the store can't be written
+     */
+    public static void restore(String dataDirPath, String pointName) throws Exception {
+
+        IncrementalBackups backups = new IncrementalBackups(new File(dataDirPath, "backups"));
+        InvoiceHistory invoiceHistory = new InvoiceHistory(
+            new File(dataDirPath, "history"),
+            SquashProperties.HISTORY_CACHE_SIZE);
+        InvoiceArchive invoiceArchive = new InvoiceArchive(new File(dataDirPath, "archive"));
+
+        if (!backups.listPoints().contains(pointName)) {
+            throw new IllegalStateException(
+                "Hittade ingen backup " + pointName + " i " + dataDirPath);
+        }
+
+        // Changes in the journal belong to the current checkpoint, and would be applied on
+        // top of the restored one. A normal exit of the program leaves the journal empty,
+        // and a rotated journal is only left if the program stopped during a checkpoint.
+        File journalFile = new File(dataDirPath, "CustomerDatabase.journal");
+        if (journalFile.length() > 0) {
+            throw new IllegalStateException(
+                "Journalen är inte tom, starta och avsluta programmet innan återställning");
+        }
+        File rotatedJournalFile = new File(journalFile.getPath() + ".old");
+        if (rotatedJournalFile.exists()) {
+            throw new IllegalStateException(
+                "En journal från en avbruten sparning finns kvar ("
+                    + rotatedJournalFile.getName()
+                    + "), starta och avsluta programmet innan återställning");
+        }
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(CustomersType.class);
+        Schema schema = SchemaFactory
+            .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(BackupRestore.class.getClassLoader().getResource(XSD_SCHEMA_PATH));
+        RepositoryStore store = RepositoryStores.create(
+            SquashProperties.REPOSITORY_STORE,
+            dataDirPath,
+            new JaxbPool(jaxbContext, schema));
+
+        CustomersType restored = backups.restore(pointName);
+
+        if (store.getLastModified() > 0) {
+            RepositoryStore.PendingWrite currentPoint = backups.capture(
+                store.load(),
+                invoiceHistory,
+                invoiceArchive);
+            currentPoint.write();
+            System.out.println("Nuvarande databas sparad som backup " + currentPoint);
+        }
+
+        // The history is replaced by the paid and cancelled invoices of the backup point.
+        // Old ones are moved to the archive again the next time the program starts.
+        invoiceArchive.clear();
+        invoiceHistory.clear();
+        for (CustomerType customer : restored.getCustomer()) {
+            invoiceHistory.moveSettled(customer);
+        }
+
+        store.allChanged();
+        store.capture(restored).write();
+
+        System.out.println(
+            "Återställde "
+                + restored.getCustomer().size()
+                + " kunder från backup "
+                + pointName
+                + " till "
+                + store.getName());
+    }
+}
@@ -0,0 +1,529 @@
+package se.osdsquash.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import se.osdsquash.common.CompactDates;
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.InvoiceStatusType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.InvoicesType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+import se.osdsquash.xml.jaxb.SubscriptionType;
+import se.osdsquash.xml.jaxb.SubscriptionsType;
+import se.osdsquash.xml.jaxb.WeekdayType;
+
+/**
+ * Compact, versioned binary snapshot of the whole customer repository.
+ *
+ * <p>
+ * The file starts with a magic number and a format version, followed by length-prefixed
+ * sections, each with its own CRC32 to detect corruption:
+ * </p>
+ * <ul>
+ * <li>A string table, where every distinct string is stored once</li>
+ * <li>All customers, referring to strings by their index in the string table</li>
+ * <li>The customer and invoice number series</li>
+ * </ul>
+ * <p>
+ * Dates are stored as epoch days plus seconds of the day, milliseconds and time zone,
+ * so an <code>XMLGregorianCalendar</code> survives a round trip unchanged (with
+ * millisecond precision). Invoice file paths are stored as a directory and a file name,
+ * so the day directory of an invoice run is stored once. The file is read into memory
+ * in one go. It is not memory-mapped, since a mapped file can't be replaced on Windows
+ * until the mapping is garbage collected.
+ * </p>
+ * <p>
+ * Version 1 stored invoice file paths as one string, and can still be read.
+ * </p>
+ */
+public class BinarySnapshot {
+
+    private static final int MAGIC = 0x53514B42; // "SQKB"
+    private static final short FORMAT_VERSION = 2;
+    private static final short WHOLE_PATHS_VERSION = 1;
+
+    private static final int SECTION_STRINGS = 1;
+    private static final int SECTION_CUSTOMERS = 2;
+    private static final int SECTION_COUNTERS = 3;
+
+    // Markers for absent values
+    private static final int NULL_INDEX = -1;
+    private static final int NULL_DATE = Integer.MIN_VALUE;
+    private static final short UNDEFINED_FIELD = Short.MIN_VALUE;
+    private static final byte NULL_BYTE = -1;
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+    private static final DatatypeFactory DATATYPE_FACTORY;
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    // Not instantiated, use the static methods
+    private BinarySnapshot() {
+    }
+
+    /**
+     * Encodes the whole repository to snapshot bytes, without touching the disk
+     *
+     * @param customersType The repository root object
+     * @return The complete snapshot file contents
+     * @throws IOException If encoding fails
+     */
+    public static byte[] encode(CustomersType customersType) throws IOException {
+
+        StringTable strings = new StringTable();
+
+        // The customers are encoded first, since that fills the string table
+        ByteArrayOutputStream customerBytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream customerData = new DataOutputStream(customerBytes);
+        customerData.writeInt(customersType.getCustomer().size());
+        for (CustomerType customer : customersType.getCustomer()) {
+            writeCustomer(customer, strings, customerData);
+        }
+        customerData.flush();
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream(16 * 1024);
+        DataOutputStream stringData = new DataOutputStream(stringBytes);
+        stringData.writeInt(strings.values.size());
+        for (String value : strings.values) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            stringData.writeInt(utf8.length);
+            stringData.write(utf8);
+        }
+        stringData.flush();
+
+        ByteArrayOutputStream counterBytes = new ByteArrayOutputStream(16);
+        DataOutputStream counterData = new DataOutputStream(counterBytes);
+        writeNullableInt(customersType.getCurrentCustomerNr(), counterData);
+        writeNullableInt(customersType.getCurrentInvoiceNr(), counterData);
+        counterData.flush();
+
+        ByteArrayOutputStream snapshotBytes = new ByteArrayOutputStream(
+            16 + stringBytes.size() + customerBytes.size() + counterBytes.size() + 36);
+        DataOutputStream snapshotData = new DataOutputStream(snapshotBytes);
+        snapshotData.writeInt(MAGIC);
+        snapshotData.writeShort(FORMAT_VERSION);
+        snapshotData.writeShort(3);
+        writeSection(SECTION_STRINGS, stringBytes, snapshotData);
+        writeSection(SECTION_CUSTOMERS, customerBytes, snapshotData);
+        writeSection(SECTION_COUNTERS, counterBytes, snapshotData);
+        snapshotData.flush();
+        return snapshotBytes.toByteArray();
+    }
+
+    /**
+     * Writes encoded snapshot bytes to file, and syncs the file to disk. The bytes go to a
+     * temporary file, which replaces the snapshot file when complete, so a crash during the
+     * write leaves the previous snapshot intact.
+     *
+     * @param snapshot Bytes from <code>encode(CustomersType)</code>
+     * @param snapshotFile The file to write
+     * @throws IOException If the file can't be written
+     */
+    public static void write(byte[] snapshot, File snapshotFile) throws IOException {
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            fileOutput.write(snapshot);
+            fileOutput.getFD().sync();
+        } catch (IOException exception) {
+            fileOutput.close();
+            tempFile.delete();
+            throw exception;
+        }
+        fileOutput.close();
+        Files.move(
+            tempFile.toPath(),
+            snapshotFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a binary snapshot file
+     *
+     * @param snapshotFile The file to read
+     * @return The repository root object
+     * @throws IOException If the file can't be read, or is corrupt
+     */
+    public static CustomersType read(File snapshotFile) throws IOException {
+
+        byte[] snapshot = Files.readAllBytes(snapshotFile.toPath());
+        return decode(ByteBuffer.wrap(snapshot), snapshotFile.getPath());
+    }
+
+    /**
+     * Decodes snapshot bytes, e.g. from <code>encode(CustomersType)</code>
+     *
+     * @param snapshot The complete snapshot
+     * @return The repository root object
+     * @throws IOException If the snapshot is corrupt
+     */
+    public static CustomersType decode(byte[] snapshot) throws IOException {
+        return decode(ByteBuffer.wrap(snapshot), "(minne)");
+    }
+
+    /**
+     * Encodes one customer as a snapshot of its own, without number series
+     *
+     * @param customer The customer
+     * @return The snapshot bytes
+     * @throws IOException If encoding fails
+     */
+    public static byte[] encodeCustomer(CustomerType customer) throws IOException {
+        CustomersType customersType = OBJECT_FACTORY.createCustomersType();
+        customersType.getCustomer().add(customer);
+        return encode(customersType);
+    }
+
+    private static CustomersType decode(ByteBuffer buffer, String snapshotName)
+        throws IOException {
+
+        try {
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IOException("Inte en binär kunddatabas: " + snapshotName);
+            }
+            short version = buffer.getShort();
+            if (version != FORMAT_VERSION && version != WHOLE_PATHS_VERSION) {
+                throw new IOException("Okänd version av binär kunddatabas: " + version);
+            }
+
+            short sectionCount = buffer.getShort();
+            ByteBuffer stringSection = null;
+            ByteBuffer customerSection = null;
+            ByteBuffer counterSection = null;
+            for (int i = 0; i < sectionCount; i++) {
+                int sectionId = buffer.getInt();
+                ByteBuffer section = readSection(buffer, sectionId);
+                if (sectionId == SECTION_STRINGS) {
+                    stringSection = section;
+                } else if (sectionId == SECTION_CUSTOMERS) {
+                    customerSection = section;
+                } else if (sectionId == SECTION_COUNTERS) {
+                    counterSection = section;
+                }
+            }
+            if (stringSection == null || customerSection == null || counterSection == null) {
+                throw new IOException("Binär kunddatabas saknar sektioner: " + snapshotName);
+            }
+
+            String[] strings = new String[stringSection.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[stringSection.getInt()];
+                stringSection.get(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+
+            CustomersType customersType = OBJECT_FACTORY.createCustomersType();
+            int customerCount = customerSection.getInt();
+            List<CustomerType> customers = customersType.getCustomer();
+            for (int i = 0; i < customerCount; i++) {
+                customers.add(readCustomer(customerSection, strings, version));
+            }
+
+            customersType.setCurrentCustomerNr(readNullableInt(counterSection));
+            customersType.setCurrentInvoiceNr(readNullableInt(counterSection));
+            return customersType;
+
+        } catch (RuntimeException exception) {
+            // Buffer underflows and bad indexes mean a broken file
+            throw new IOException(
+                "Binär kunddatabas är trasig: "
+                    + snapshotName
+                    + ". Felmeddelande: "
+                    + exception,
+                exception);
+        }
+    }
+
+    // -----------------------------------  WRITE HELPERS  -----------------------------------
+
+    private static void writeSection(
+        int sectionId,
+        ByteArrayOutputStream sectionBytes,
+        DataOutputStream snapshotData) throws IOException {
+
+        byte[] bytes = sectionBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        snapshotData.writeInt(sectionId);
+        snapshotData.writeInt(bytes.length);
+        snapshotData.writeInt((int) crc.getValue());
+        snapshotData.write(bytes);
+    }
+
+    private static void writeCustomer(
+        CustomerType customer,
+        StringTable strings,
+        DataOutputStream data) throws IOException {
+
+        CustomerInfoType info = customer.getCustomerInfo();
+        data.writeInt(strings.indexOf(info.getCustomerUUID()));
+        data.writeInt(info.getCustomerNumber());
+        data.writeBoolean(info.isCompany());
+        data.writeInt(strings.indexOf(info.getFirstname()));
+        data.writeInt(strings.indexOf(info.getLastname()));
+        data.writeInt(strings.indexOf(info.getStreet()));
+        data.writeInt(strings.indexOf(info.getPostalCode()));
+        data.writeInt(strings.indexOf(info.getCity()));
+        data.writeInt(strings.indexOf(info.getTelephone()));
+        data.writeInt(strings.indexOf(info.getEmail()));
+        writeNullableInt(info.getSubscriptionPrice(), data);
+        data.writeInt(strings.indexOf(info.getNotes()));
+
+        SubscriptionsType subscriptions = customer.getSubscriptions();
+        if (subscriptions == null) {
+            data.writeInt(NULL_INDEX);
+        } else {
+            data.writeInt(subscriptions.getSubscription().size());
+            for (SubscriptionType subscription : subscriptions.getSubscription()) {
+                data.writeInt(subscription.getTrackNumber());
+                data.writeByte(
+                    subscription.getWeekday() == null
+                        ? NULL_BYTE
+                        : subscription.getWeekday().ordinal());
+                writeDate(subscription.getStartTime(), data);
+                writeNullableBoolean(subscription.isFlexTime(), data);
+            }
+        }
+
+        InvoicesType invoices = customer.getInvoices();
+        if (invoices == null) {
+            data.writeInt(NULL_INDEX);
+        } else {
+            data.writeInt(invoices.getInvoice().size());
+            for (InvoiceType invoice : invoices.getInvoice()) {
+                data.writeInt(invoice.getInvoiceNumber());
+                writePath(invoice.getRelativeFilePath(), strings, data);
+                writeDate(invoice.getCreatedDate(), data);
+                writeDate(invoice.getDueDate(), data);
+                writeDate(invoice.getPeriodStartDate(), data);
+                data.writeByte(
+                    invoice.getInvoiceStatus() == null
+                        ? NULL_BYTE
+                        : invoice.getInvoiceStatus().ordinal());
+                writeDate(invoice.getSentDate(), data);
+                data.writeInt(strings.indexOf(invoice.getNotes()));
+            }
+        }
+    }
+
+    // Writes a date as epoch day, second of day, millisecond and time zone offset
+    private static void writeDate(XMLGregorianCalendar calendar, DataOutputStream data)
+        throws IOException {
+
+        if (calendar == null) {
+            data.writeInt(NULL_DATE);
+            return;
+        }
+
+        data.writeInt(CompactDates.epochDay(calendar));
+        data.writeInt(
+            calendar.getHour() * 3600 + calendar.getMinute() * 60 + calendar.getSecond());
+        data.writeShort(
+            calendar.getFractionalSecond() == null
+                ? UNDEFINED_FIELD
+                : calendar.getMillisecond());
+        data.writeShort(
+            calendar.getTimezone() == DatatypeConstants.FIELD_UNDEFINED
+                ? UNDEFINED_FIELD
+                : calendar.getTimezone());
+    }
+
+    // Writes a file path as the string indexes of its directory and file name
+    private static void writePath(String path, StringTable strings, DataOutputStream data)
+        throws IOException {
+
+        if (path == null) {
+            data.writeInt(NULL_INDEX);
+            data.writeInt(NULL_INDEX);
+            return;
+        }
+        int nameStart = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+        data.writeInt(strings.indexOf(path.substring(0, nameStart)));
+        data.writeInt(strings.indexOf(path.substring(nameStart)));
+    }
+
+    private static void writeNullableInt(Integer value, DataOutputStream data)
+        throws IOException {
+        data.writeBoolean(value != null);
+        data.writeInt(value == null ? 0 : value.intValue());
+    }
+
+    private static void writeNullableBoolean(Boolean value, DataOutputStream data)
+        throws IOException {
+        data.writeByte(value == null ? NULL_BYTE : (value.booleanValue() ? 1 : 0));
+    }
+
+    // ------------------------------------  READ HELPERS  -----------------------------------
+
+    private static ByteBuffer readSection(ByteBuffer buffer, int sectionId) throws IOException {
+
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(section.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Felaktig checksumma i sektion " + sectionId);
+        }
+        return section;
+    }
+
+    private static CustomerType readCustomer(ByteBuffer data, String[] strings, short version) {
+
+        CustomerInfoType info = OBJECT_FACTORY.createCustomerInfoType();
+        info.setCustomerUUID(string(data, strings));
+        info.setCustomerNumber(data.getInt());
+        info.setCompany(data.get() != 0);
+        info.setFirstname(string(data, strings));
+        info.setLastname(string(data, strings));
+        info.setStreet(string(data, strings));
+        info.setPostalCode(string(data, strings));
+        info.setCity(string(data, strings));
+        info.setTelephone(string(data, strings));
+        info.setEmail(string(data, strings));
+        info.setSubscriptionPrice(readNullableInt(data));
+        info.setNotes(string(data, strings));
+
+        CustomerType customer = OBJECT_FACTORY.createCustomerType();
+        customer.setCustomerInfo(info);
+
+        int subscriptionCount = data.getInt();
+        if (subscriptionCount != NULL_INDEX) {
+            SubscriptionsType subscriptions = OBJECT_FACTORY.createSubscriptionsType();
+            List<SubscriptionType> subscriptionList = subscriptions.getSubscription();
+            for (int i = 0; i < subscriptionCount; i++) {
+                SubscriptionType subscription = OBJECT_FACTORY.createSubscriptionType();
+                subscription.setTrackNumber(data.getInt());
+                byte weekday = data.get();
+                subscription.setWeekday(weekday == NULL_BYTE ? null : WeekdayType.values()[weekday]);
+                subscription.setStartTime(readDate(data));
+                subscription.setFlexTime(readNullableBoolean(data));
+                subscriptionList.add(subscription);
+            }
+            customer.setSubscriptions(subscriptions);
+        }
+
+        int invoiceCount = data.getInt();
+        if (invoiceCount != NULL_INDEX) {
+            InvoicesType invoices = OBJECT_FACTORY.createInvoicesType();
+            List<InvoiceType> invoiceList = invoices.getInvoice();
+            for (int i = 0; i < invoiceCount; i++) {
+                InvoiceType invoice = OBJECT_FACTORY.createInvoiceType();
+                invoice.setInvoiceNumber(data.getInt());
+                invoice.setRelativeFilePath(
+                    version == WHOLE_PATHS_VERSION
+                        ? string(data, strings)
+                        : readPath(data, strings));
+                invoice.setCreatedDate(readDate(data));
+                invoice.setDueDate(readDate(data));
+                invoice.setPeriodStartDate(readDate(data));
+                byte status = data.get();
+                invoice.setInvoiceStatus(
+                    status == NULL_BYTE ? null : InvoiceStatusType.values()[status]);
+                invoice.setSentDate(readDate(data));
+                invoice.setNotes(string(data, strings));
+                invoiceList.add(invoice);
+            }
+            customer.setInvoices(invoices);
+        }
+
+        return customer;
+    }
+
+    private static XMLGregorianCalendar readDate(ByteBuffer data) {
+
+        int epochDay = data.getInt();
+        if (epochDay == NULL_DATE) {
+            return null;
+        }
+        int secondOfDay = data.getInt();
+        short millisecond = data.getShort();
+        short timezone = data.getShort();
+
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return DATATYPE_FACTORY.newXMLGregorianCalendar(
+            date.getYear(),
+            date.getMonthValue(),
+            date.getDayOfMonth(),
+            secondOfDay / 3600,
+            (secondOfDay / 60) % 60,
+            secondOfDay % 60,
+            millisecond == UNDEFINED_FIELD ? DatatypeConstants.FIELD_UNDEFINED : millisecond,
+            timezone == UNDEFINED_FIELD ? DatatypeConstants.FIELD_UNDEFINED : timezone);
+    }
+
+    private static String string(ByteBuffer data, String[] strings) {
+        int index = data.getInt();
+        return index == NULL_INDEX ? null : strings[index];
+    }
+
+    private static String readPath(ByteBuffer data, String[] strings) {
+        String directory = string(data, strings);
+        String name = string(data, strings);
+        return directory == null ? null : directory.concat(name);
+    }
+
+    private static Integer readNullableInt(ByteBuffer data) {
+        boolean present = data.get() != 0;
+        int value = data.getInt();
+        return present ? Integer.valueOf(value) : null;
+    }
+
+    private static Boolean readNullableBoolean(ByteBuffer data) {
+        byte value = data.get();
+        return value == NULL_BYTE ? null : Boolean.valueOf(value == 1);
+    }
+
+    // Deduplicates strings, handing out one index per distinct value
+    private static final class StringTable {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private int indexOf(String value) {
+            if (value == null) {
+                return NULL_INDEX;
+            }
+            Integer index = this.indexes.get(value);
+            if (index == null) {
+                index = Integer.valueOf(this.values.size());
+                this.indexes.put(value, index);
+                this.values.add(value);
+            }
+            return index.intValue();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+import java.io.IOException;
+
+import se.osdsquash.xml.jaxb.CustomersType;
+
+/**
+ * Store keeping the whole repository in one <code>BinarySnapshot</code> file.
+ * Every checkpoint re-writes the whole file, so no changes are tracked.
+ */
+public class BinarySnapshotStore implements RepositoryStore {
+
+    private final File snapshotFile;
+
+    /**
+     * Creates the store
+     * @param snapshotFile The snapshot file, may not exist
+     */
+    public BinarySnapshotStore(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    @Override
+    public String getName() {
+        return RepositoryStores.BINARY;
+    }
+
+    @Override
+    public long getLastModified() {
+        return this.snapshotFile.isFile() ? this.snapshotFile.lastModified() : 0;
+    }
+
+    @Override
+    public CustomersType load() throws IOException {
+        return BinarySnapshot.read(this.snapshotFile);
+    }
+
+    @Override
+    public void customerChanged(String customerUUID) {
+        // Always writes everything
+    }
+
+    @Override
+    public void customerDeleted(String customerUUID) {
+        // Always writes everything
+    }
+
+    @Override
+    public void allChanged() {
+        // Always writes everything
+    }
+
+    @Override
+    public PendingWrite capture(CustomersType customersType) throws IOException {
+
+        final SaveTimings timings = new SaveTimings();
+        long start = System.nanoTime();
+        final byte[] snapshot = BinarySnapshot.encode(customersType);
+        timings.addMarshal(start);
+
+        return new PendingWrite() {
+
+            @Override
+            public void write() throws IOException {
+                long start = System.nanoTime();
+                BinarySnapshot.write(snapshot, BinarySnapshotStore.this.snapshotFile);
+                timings.addIo(start);
+            }
+
+            @Override
+            public SaveTimings getTimings() {
+                return timings;
+            }
+
+            @Override
+            public void restore() {
+                // Nothing tracked
+            }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+package se.osdsquash.xml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of which customers have been changed or deleted, and when.
+ *
+ * <p>
+ * The repository has a version, counted up by every change. Each customer remembers the
+ * version of its last change, and deleted customers are kept as tombstones with the version
+ * of the deletion. A reader that remembers the version it last saw can then ask for exactly
+ * the customers changed or deleted since. The version starts at 0 for the loaded data.
+ * The tracker must be updated by every repository mutation. All methods are thread safe.
+ * </p>
+ */
+public class ChangeTracker {
+
+    private long version = 0;
+
+    // The version of the last change per customer UUID, and the same ordered by version
+    private final Map<String, Long> customerVersions = new HashMap<>();
+    private final TreeMap<Long, String> changesByVersion = new TreeMap<>();
+
+    // Customers deleted since the data was loaded, by version
+    private final TreeMap<Long, String> deletions = new TreeMap<>();
+    private final Map<String, Long> deletionVersions = new HashMap<>();
+
+    /**
+     * Records a change of a customer
+     * @param customerUUID UUID of the new or changed customer
+     * @return The new version of the repository
+     */
+    public synchronized long customerChanged(String customerUUID) {
+
+        long changeVersion = ++this.version;
+        this.forget(customerUUID);
+        this.customerVersions.put(customerUUID, Long.valueOf(changeVersion));
+        this.changesByVersion.put(Long.valueOf(changeVersion), customerUUID);
+        return changeVersion;
+    }
+
+    /**
+     * Records the deletion of a customer
+     * @param customerUUID UUID of the deleted customer
+     * @return The new version of the repository
+     */
+    public synchronized long customerDeleted(String customerUUID) {
+
+        long changeVersion = ++this.version;
+        this.forget(customerUUID);
+        this.deletions.put(Long.valueOf(changeVersion), customerUUID);
+        this.deletionVersions.put(customerUUID, Long.valueOf(changeVersion));
+        return changeVersion;
+    }
+
+    /**
+     * Returns the current version of the repository
+     * @return The version of the last change, 0 if nothing has changed since load
+     */
+    public synchronized long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the version of the last change of a customer
+     * @param customerUUID Customer UUID
+     * @return The version of the last change or deletion, 0 if not changed since load
+     */
+    public synchronized long getVersion(String customerUUID) {
+
+        Long changeVersion = this.customerVersions.get(customerUUID);
+        if (changeVersion == null) {
+            changeVersion = this.deletionVersions.get(customerUUID);
+        }
+        return changeVersion == null ? 0 : changeVersion.longValue();
+    }
+
+    /**
+     * Returns the customers changed after a version, and not deleted since
+     * @param sinceVersion A version from <code>getVersion()</code>
+     * @return Customer UUIDs, in the order they were last changed
+     */
+    public synchronized List<String> getChangedSince(long sinceVersion) {
+        return new ArrayList<>(this.changesByVersion.tailMap(sinceVersion, false).values());
+    }
+
+    /**
+     * Returns the customers deleted after a version
+     * @param sinceVersion A version from <code>getVersion()</code>
+     * @return Customer UUIDs, in the order they were deleted
+     */
+    public synchronized List<String> getDeletedSince(long sinceVersion) {
+        return new ArrayList<>(this.deletions.tailMap(sinceVersion, false).values());
+    }
+
+    // Removes the previous change or deletion of a customer, only the last one is kept
+    private void forget(String customerUUID) {
+
+        Long changeVersion = this.customerVersions.remove(customerUUID);
+        if (changeVersion != null) {
+            this.changesByVersion.remove(changeVersion);
+        }
+        Long deletionVersion = this.deletionVersions.remove(customerUUID);
+        if (deletionVersion != null) {
+            this.deletions.remove(deletionVersion);
+        }
+    }
+}
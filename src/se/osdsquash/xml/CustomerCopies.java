@@ -0,0 +1,121 @@
+package se.osdsquash.xml;
+
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.InvoicesType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+import se.osdsquash.xml.jaxb.SubscriptionType;
+import se.osdsquash.xml.jaxb.SubscriptionsType;
+
+/**
+ * Deep copies of customers, so a customer can be changed or written without sharing any
+ * object with another copy. The XML calendars are mutable, so they are copied too.
+ */
+public abstract class CustomerCopies {
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    /**
+     * Copies a customer, with its info, subscriptions and invoices
+     * @param customer The customer
+     * @return A copy sharing no mutable object with the customer
+     */
+    public static CustomerType copy(CustomerType customer) {
+
+        CustomerType copy = OBJECT_FACTORY.createCustomerType();
+        if (customer.getCustomerInfo() != null) {
+            copy.setCustomerInfo(copyInfo(customer.getCustomerInfo()));
+        }
+        if (customer.getSubscriptions() != null) {
+            copy.setSubscriptions(copySubscriptions(customer.getSubscriptions().getSubscription()));
+        }
+        if (customer.getInvoices() != null) {
+            copy.setInvoices(copyInvoices(customer.getInvoices().getInvoice()));
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the info of a customer
+     * @param info The customer info
+     * @return A copy
+     */
+    public static CustomerInfoType copyInfo(CustomerInfoType info) {
+
+        CustomerInfoType copy = OBJECT_FACTORY.createCustomerInfoType();
+        copy.setCustomerUUID(info.getCustomerUUID());
+        copy.setCustomerNumber(info.getCustomerNumber());
+        copy.setCompany(info.isCompany());
+        copy.setFirstname(info.getFirstname());
+        copy.setLastname(info.getLastname());
+        copy.setStreet(info.getStreet());
+        copy.setPostalCode(info.getPostalCode());
+        copy.setCity(info.getCity());
+        copy.setTelephone(info.getTelephone());
+        copy.setEmail(info.getEmail());
+        copy.setSubscriptionPrice(info.getSubscriptionPrice());
+        copy.setNotes(info.getNotes());
+        return copy;
+    }
+
+    /**
+     * Copies subscriptions into a new container
+     * @param subscriptions The subscriptions
+     * @return A container holding copies of the subscriptions
+     */
+    public static SubscriptionsType copySubscriptions(List<SubscriptionType> subscriptions) {
+
+        SubscriptionsType copy = OBJECT_FACTORY.createSubscriptionsType();
+        for (SubscriptionType subscription : subscriptions) {
+            SubscriptionType subscriptionCopy = OBJECT_FACTORY.createSubscriptionType();
+            subscriptionCopy.setTrackNumber(subscription.getTrackNumber());
+            subscriptionCopy.setWeekday(subscription.getWeekday());
+            subscriptionCopy.setStartTime(copyDate(subscription.getStartTime()));
+            subscriptionCopy.setFlexTime(subscription.isFlexTime());
+            copy.getSubscription().add(subscriptionCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * Copies invoices into a new container
+     * @param invoices The invoices
+     * @return A container holding copies of the invoices
+     */
+    public static InvoicesType copyInvoices(List<InvoiceType> invoices) {
+
+        InvoicesType copy = OBJECT_FACTORY.createInvoicesType();
+        for (InvoiceType invoice : invoices) {
+            copy.getInvoice().add(copyInvoice(invoice));
+        }
+        return copy;
+    }
+
+    /**
+     * Copies an invoice
+     * @param invoice The invoice
+     * @return A copy
+     */
+    public static InvoiceType copyInvoice(InvoiceType invoice) {
+
+        InvoiceType copy = OBJECT_FACTORY.createInvoiceType();
+        copy.setInvoiceNumber(invoice.getInvoiceNumber());
+        copy.setRelativeFilePath(invoice.getRelativeFilePath());
+        copy.setCreatedDate(copyDate(invoice.getCreatedDate()));
+        copy.setDueDate(copyDate(invoice.getDueDate()));
+        copy.setPeriodStartDate(copyDate(invoice.getPeriodStartDate()));
+        copy.setInvoiceStatus(invoice.getInvoiceStatus());
+        copy.setSentDate(copyDate(invoice.getSentDate()));
+        copy.setNotes(invoice.getNotes());
+        return copy;
+    }
+
+    private static XMLGregorianCalendar copyDate(XMLGregorianCalendar calendar) {
+        return calendar == null ? null : (XMLGregorianCalendar) calendar.clone();
+    }
+}
@@ -0,0 +1,203 @@
+package se.osdsquash.xml;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * In-memory lookup indexes for the repository's customers and invoices.
+ *
+ * <p>
+ * Indexes customers by UUID and customer nr, and invoices (with their owning customer)
+ * by invoice nr. The index must be updated by every repository mutation.
+ * All methods are thread safe: updates are serialized, lookups never block.
+ * </p>
+ */
+public class CustomerIndex {
+
+    private final Map<String, CustomerType> customersByUUID = new ConcurrentHashMap<>();
+    private final Map<Integer, CustomerType> customersByNr = new ConcurrentHashMap<>();
+    private final Map<Integer, InvoiceType> invoicesByNr = new ConcurrentHashMap<>();
+    private final Map<Integer, CustomerType> invoiceOwnersByNr = new ConcurrentHashMap<>();
+
+    // The keys each customer is currently indexed with, so we can drop stale keys
+    // when a customer's number or invoices change.
+    private final Map<CustomerType, IndexedKeys> indexedKeys = new IdentityHashMap<>();
+
+    /**
+     * Clears the index and indexes all given customers
+     * @param customers All customers in the repository
+     */
+    public synchronized void rebuild(List<CustomerType> customers) {
+
+        this.customersByUUID.clear();
+        this.customersByNr.clear();
+        this.invoicesByNr.clear();
+        this.invoiceOwnersByNr.clear();
+        this.indexedKeys.clear();
+
+        for (CustomerType customer : customers) {
+            this.indexCustomer(customer);
+        }
+    }
+
+    /**
+     * Indexes a new customer, or re-indexes an existing one after it has been changed
+     * @param customer The customer to index
+     */
+    public synchronized void indexCustomer(CustomerType customer) {
+
+        // New keys are added before stale ones are removed, so a concurrent
+        // lookup never misses a customer that is just being re-indexed.
+        IndexedKeys oldKeys = this.indexedKeys.get(customer);
+
+        IndexedKeys keys = new IndexedKeys();
+        CustomerInfoType customerInfo = customer.getCustomerInfo();
+
+        keys.customerUUID = customerInfo.getCustomerUUID();
+        this.customersByUUID.put(keys.customerUUID, customer);
+
+        keys.customerNr = customerInfo.getCustomerNumber();
+        this.customersByNr.put(keys.customerNr, customer);
+
+        if (customer.getInvoices() != null) {
+            for (InvoiceType invoice : customer.getInvoices().getInvoice()) {
+                this.putInvoice(keys, customer, invoice);
+            }
+        }
+
+        this.indexedKeys.put(customer, keys);
+        if (oldKeys != null) {
+            this.removeKeys(customer, oldKeys, keys);
+        }
+    }
+
+    /**
+     * Re-indexes a customer, but only if it is already indexed
+     * @param customer The changed customer
+     */
+    public synchronized void reindexCustomerIfIndexed(CustomerType customer) {
+        if (this.indexedKeys.containsKey(customer)) {
+            this.indexCustomer(customer);
+        }
+    }
+
+    /**
+     * Removes a customer and all its invoices from the index
+     * @param customer The customer to remove
+     */
+    public synchronized void removeCustomer(CustomerType customer) {
+
+        IndexedKeys keys = this.indexedKeys.remove(customer);
+        if (keys != null) {
+            this.removeKeys(customer, keys, null);
+        }
+    }
+
+    /**
+     * Adds an invoice to the index, if its customer is indexed
+     * @param customer The customer owning the invoice
+     * @param invoice The invoice
+     */
+    public synchronized void addInvoice(CustomerType customer, InvoiceType invoice) {
+        IndexedKeys keys = this.indexedKeys.get(customer);
+        if (keys != null) {
+            this.putInvoice(keys, customer, invoice);
+        }
+    }
+
+    /**
+     * Removes an invoice from the index
+     * @param invoiceNr The invoice nr
+     */
+    public synchronized void removeInvoice(int invoiceNr) {
+        Integer key = Integer.valueOf(invoiceNr);
+        this.invoicesByNr.remove(key);
+        CustomerType owner = this.invoiceOwnersByNr.remove(key);
+        if (owner != null) {
+            IndexedKeys keys = this.indexedKeys.get(owner);
+            if (keys != null) {
+                keys.invoiceNrs.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the customer with given UUID
+     * @param customerUUID Customer UUID as a string
+     * @return The customer, or null if not found
+     */
+    public CustomerType getCustomerByUUID(String customerUUID) {
+        return this.customersByUUID.get(customerUUID);
+    }
+
+    /**
+     * Returns the customer with given customer nr
+     * @param customerNr Customer nr
+     * @return The customer, or null if not found
+     */
+    public CustomerType getCustomerByNr(int customerNr) {
+        return this.customersByNr.get(Integer.valueOf(customerNr));
+    }
+
+    /**
+     * Returns the invoice with given invoice nr
+     * @param invoiceNr Invoice nr
+     * @return The invoice, or null if not found
+     */
+    public InvoiceType getInvoice(int invoiceNr) {
+        return this.invoicesByNr.get(Integer.valueOf(invoiceNr));
+    }
+
+    /**
+     * Returns the customer owning the invoice with given invoice nr
+     * @param invoiceNr Invoice nr
+     * @return The customer, or null if not found
+     */
+    public CustomerType getInvoiceOwner(int invoiceNr) {
+        return this.invoiceOwnersByNr.get(Integer.valueOf(invoiceNr));
+    }
+
+    // Removes the entries for given keys, except those also in the kept keys (if any).
+    // Only entries that still point to this customer are removed.
+    private void removeKeys(CustomerType customer, IndexedKeys keys, IndexedKeys keptKeys) {
+
+        if (this.customersByUUID.get(keys.customerUUID) == customer
+            && (keptKeys == null || !keys.customerUUID.equals(keptKeys.customerUUID))) {
+            this.customersByUUID.remove(keys.customerUUID);
+        }
+        if (this.customersByNr.get(keys.customerNr) == customer
+            && (keptKeys == null || !keys.customerNr.equals(keptKeys.customerNr))) {
+            this.customersByNr.remove(keys.customerNr);
+        }
+        for (Integer invoiceNr : keys.invoiceNrs) {
+            if (this.invoiceOwnersByNr.get(invoiceNr) == customer
+                && (keptKeys == null || !keptKeys.invoiceNrs.contains(invoiceNr))) {
+                this.invoiceOwnersByNr.remove(invoiceNr);
+                this.invoicesByNr.remove(invoiceNr);
+            }
+        }
+    }
+
+    // Adds one invoice, remembering the key for the customer
+    private void putInvoice(IndexedKeys keys, CustomerType customer, InvoiceType invoice) {
+        Integer invoiceNr = Integer.valueOf(invoice.getInvoiceNumber());
+        this.invoicesByNr.put(invoiceNr, invoice);
+        this.invoiceOwnersByNr.put(invoiceNr, customer);
+        keys.invoiceNrs.add(invoiceNr);
+    }
+
+    // The index keys used for one customer
+    private static final class IndexedKeys {
+        private String customerUUID;
+        private Integer customerNr;
+        private final Set<Integer> invoiceNrs = new HashSet<>();
+    }
+}
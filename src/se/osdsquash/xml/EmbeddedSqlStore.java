@@ -0,0 +1,332 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import se.osdsquash.logger.SquashLogger;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * Store keeping the customer repository in an embedded, file based H2 database. No database
+ * server is needed.
+ *
+ * <p>
+ * Every customer is a row of the <code>CUSTOMER</code> table, keyed by the customer UUID,
+ * having the customer nr as a column and the customer with its invoices in the
+ * <code>BinarySnapshot</code> format. The number series and the time of the last checkpoint
+ * are the only row of the <code>REPOSITORY</code> table. Like the <code>SegmentStore</code>,
+ * the store keeps track of the customers changed since the last checkpoint, and a checkpoint
+ * is one transaction writing only those.
+ * </p>
+ * <p>
+ * Only JDBC is used, so the H2 driver is needed on the class path when the store is used, not
+ * to build the program. A connection is opened per load and checkpoint, so the database file
+ * is not kept open between checkpoints.
+ * </p>
+ */
+public class EmbeddedSqlStore implements RepositoryStore {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    // H2 adds this to the database name
+    private static final String DATABASE_FILE_SUFFIX = ".mv.db";
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    private final File databaseFile;
+    private final String databaseUrl;
+
+    // Customers to write and delete on the next checkpoint
+    private final Set<String> changedCustomerUUIDs = new HashSet<>();
+    private final Set<String> deletedCustomerUUIDs = new HashSet<>();
+    private boolean allChanged = false;
+
+    /**
+     * Creates the store. The database is created by the first checkpoint.
+     * @param databaseName Path and name of the database, without the file suffix of H2
+     */
+    public EmbeddedSqlStore(File databaseName) {
+        this.databaseFile = new File(databaseName.getPath() + DATABASE_FILE_SUFFIX);
+        this.databaseUrl = "jdbc:h2:file:" + databaseName.getAbsolutePath();
+    }
+
+    @Override
+    public String getName() {
+        return RepositoryStores.SQL;
+    }
+
+    /**
+     * Returns the time of the last checkpoint, as stored in the database. The database file
+     * itself is changed by H2 also when nothing is written.
+     *
+     * @return Time in millis, or 0 if there is no database or it can't be read
+     */
+    @Override
+    public long getLastModified() {
+
+        if (!this.databaseFile.isFile()) {
+            return 0;
+        }
+        try (Connection connection = this.connect();
+            Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery("SELECT SAVED_AT FROM REPOSITORY")) {
+
+            return result.next() ? result.getLong(1) : 0;
+
+        } catch (SQLException exception) {
+            logger.log(
+                "Notis: Kunde ej läsa SQL-databasen: "
+                    + this.databaseFile.getPath()
+                    + ". Felmeddelande: "
+                    + exception.getMessage(),
+                true);
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the number series and all customers
+     *
+     * @return The repository root object, with the customers in customer nr order
+     * @throws IOException If the database can't be read, or is corrupt
+     */
+    @Override
+    public CustomersType load() throws IOException {
+
+        CustomersType customersType = OBJECT_FACTORY.createCustomersType();
+        try (Connection connection = this.connect();
+            Statement statement = connection.createStatement()) {
+
+            try (ResultSet result = statement.executeQuery(
+                "SELECT CURRENT_CUSTOMER_NR, CURRENT_INVOICE_NR FROM REPOSITORY")) {
+                if (!result.next()) {
+                    throw new IOException(
+                        "SQL-databasen saknar nummerserier: " + this.databaseFile.getPath());
+                }
+                customersType.setCurrentCustomerNr(Integer.valueOf(result.getInt(1)));
+                customersType.setCurrentInvoiceNr(Integer.valueOf(result.getInt(2)));
+            }
+
+            try (ResultSet result = statement.executeQuery(
+                "SELECT DATA FROM CUSTOMER ORDER BY CUSTOMER_NR")) {
+                while (result.next()) {
+                    customersType.getCustomer().addAll(
+                        BinarySnapshot.decode(result.getBytes(1)).getCustomer());
+                }
+            }
+            return customersType;
+
+        } catch (SQLException exception) {
+            throw new IOException(
+                "Kunde ej läsa SQL-databasen: "
+                    + this.databaseFile.getPath()
+                    + ". Felmeddelande: "
+                    + exception.getMessage(),
+                exception);
+        }
+    }
+
+    @Override
+    public void customerChanged(String customerUUID) {
+        this.deletedCustomerUUIDs.remove(customerUUID);
+        this.changedCustomerUUIDs.add(customerUUID);
+    }
+
+    @Override
+    public void customerDeleted(String customerUUID) {
+        this.changedCustomerUUIDs.remove(customerUUID);
+        this.deletedCustomerUUIDs.add(customerUUID);
+    }
+
+    @Override
+    public void allChanged() {
+        this.allChanged = true;
+        this.changedCustomerUUIDs.clear();
+        this.deletedCustomerUUIDs.clear();
+    }
+
+    /**
+     * Encodes the changed customers, and resets the change tracking
+     */
+    @Override
+    public PendingWrite capture(CustomersType customersType) throws IOException {
+
+        long start = System.nanoTime();
+        Checkpoint checkpoint = new Checkpoint(this.allChanged);
+        for (CustomerType customer : customersType.getCustomer()) {
+            String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+            if (this.allChanged || this.changedCustomerUUIDs.contains(customerUUID)) {
+                checkpoint.customerNrs.put(
+                    customerUUID,
+                    Integer.valueOf(customer.getCustomerInfo().getCustomerNumber()));
+                checkpoint.customers.put(customerUUID, BinarySnapshot.encodeCustomer(customer));
+            }
+        }
+        checkpoint.deletedCustomerUUIDs.addAll(this.deletedCustomerUUIDs);
+        checkpoint.currentCustomerNr = customersType.getCurrentCustomerNr().intValue();
+        checkpoint.currentInvoiceNr = customersType.getCurrentInvoiceNr().intValue();
+
+        this.allChanged = false;
+        this.changedCustomerUUIDs.clear();
+        this.deletedCustomerUUIDs.clear();
+        checkpoint.timings.addMarshal(start);
+        return checkpoint;
+    }
+
+    // Puts the changes of a checkpoint that could not be written back into the change tracking
+    private void restore(Checkpoint checkpoint) {
+
+        if (checkpoint.full) {
+            this.allChanged();
+            return;
+        }
+
+        // Later changes to the same customers win
+        for (String customerUUID : checkpoint.customers.keySet()) {
+            if (!this.deletedCustomerUUIDs.contains(customerUUID)) {
+                this.changedCustomerUUIDs.add(customerUUID);
+            }
+        }
+        for (String customerUUID : checkpoint.deletedCustomerUUIDs) {
+            if (!this.changedCustomerUUIDs.contains(customerUUID)) {
+                this.deletedCustomerUUIDs.add(customerUUID);
+            }
+        }
+    }
+
+    // Writes a captured checkpoint in one transaction, and syncs the database file
+    private void write(Checkpoint checkpoint) throws SQLException {
+
+        try (Connection connection = this.connect()) {
+
+            createTables(connection);
+            connection.setAutoCommit(false);
+            try {
+                // A full checkpoint replaces everything
+                if (checkpoint.full) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.executeUpdate("DELETE FROM CUSTOMER");
+                    }
+                }
+
+                try (PreparedStatement mergeCustomer = connection.prepareStatement(
+                    "MERGE INTO CUSTOMER (UUID, CUSTOMER_NR, DATA) KEY (UUID) VALUES (?, ?, ?)")) {
+                    for (Map.Entry<String, byte[]> customer : checkpoint.customers.entrySet()) {
+                        mergeCustomer.setString(1, customer.getKey());
+                        mergeCustomer.setInt(
+                            2,
+                            checkpoint.customerNrs.get(customer.getKey()).intValue());
+                        mergeCustomer.setBytes(3, customer.getValue());
+                        mergeCustomer.addBatch();
+                    }
+                    mergeCustomer.executeBatch();
+                }
+
+                try (PreparedStatement deleteCustomer = connection.prepareStatement(
+                    "DELETE FROM CUSTOMER WHERE UUID = ?")) {
+                    for (String customerUUID : checkpoint.deletedCustomerUUIDs) {
+                        deleteCustomer.setString(1, customerUUID);
+                        deleteCustomer.addBatch();
+                    }
+                    deleteCustomer.executeBatch();
+                }
+
+                try (PreparedStatement mergeRepository = connection.prepareStatement(
+                    "MERGE INTO REPOSITORY (ID, CURRENT_CUSTOMER_NR, CURRENT_INVOICE_NR, SAVED_AT)"
+                        + " KEY (ID) VALUES (1, ?, ?, ?)")) {
+                    mergeRepository.setInt(1, checkpoint.currentCustomerNr);
+                    mergeRepository.setInt(2, checkpoint.currentInvoiceNr);
+                    mergeRepository.setLong(3, System.currentTimeMillis());
+                    mergeRepository.executeUpdate();
+                }
+
+                connection.commit();
+
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+
+            // H2 writes the file in the background, the journal is emptied after this
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CHECKPOINT SYNC");
+            }
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(this.databaseUrl, "sa", "");
+    }
+
+    private static void createTables(Connection connection) throws SQLException {
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(
+                "CREATE TABLE IF NOT EXISTS CUSTOMER ("
+                    + "UUID VARCHAR(36) PRIMARY KEY, "
+                    + "CUSTOMER_NR INT NOT NULL, "
+                    + "DATA VARBINARY NOT NULL)");
+            statement.execute(
+                "CREATE TABLE IF NOT EXISTS REPOSITORY ("
+                    + "ID INT PRIMARY KEY, "
+                    + "CURRENT_CUSTOMER_NR INT NOT NULL, "
+                    + "CURRENT_INVOICE_NR INT NOT NULL, "
+                    + "SAVED_AT BIGINT NOT NULL)");
+        }
+    }
+
+    // Encoded changes of one checkpoint, captured with the repository lock held
+    private final class Checkpoint implements PendingWrite {
+
+        private final boolean full;
+        private final Map<String, byte[]> customers = new LinkedHashMap<>();
+        private final Map<String, Integer> customerNrs = new LinkedHashMap<>();
+        private final Set<String> deletedCustomerUUIDs = new HashSet<>();
+        private final SaveTimings timings = new SaveTimings();
+        private int currentCustomerNr;
+        private int currentInvoiceNr;
+
+        private Checkpoint(boolean full) {
+            this.full = full;
+        }
+
+        @Override
+        public void write() throws IOException {
+            long start = System.nanoTime();
+            try {
+                EmbeddedSqlStore.this.write(this);
+            } catch (SQLException exception) {
+                throw new IOException(
+                    "Kunde ej skriva SQL-databasen: "
+                        + EmbeddedSqlStore.this.databaseFile.getPath()
+                        + ". Felmeddelande: "
+                        + exception.getMessage(),
+                    exception);
+            }
+            this.timings.addIo(start);
+        }
+
+        @Override
+        public SaveTimings getTimings() {
+            return this.timings;
+        }
+
+        @Override
+        public void restore() {
+            EmbeddedSqlStore.this.restore(this);
+        }
+    }
+}
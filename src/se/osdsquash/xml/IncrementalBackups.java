@@ -0,0 +1,433 @@
+package se.osdsquash.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * Incremental backups of the customer repository, in the backups directory.
+ *
+ * <p>
+ * Every customer is encoded on its own in the <code>BinarySnapshot</code> format, and
+ * stored as a deflate compressed chunk file named by the SHA-256 of the encoded customer.
+ * A chunk is written once, and shared by all backup points holding the same customer data,
+ * so a backup point only costs the customers changed since the last one, and a small
+ * manifest listing the chunks of all customers and the number series.
+ * </p>
+ * <p>
+ * Layout: <code>chunks/ab/abcd...</code> (first two hex digits as sub directory) and
+ * <code>points/yyyyMMdd-HHmmss.manifest</code>. The manifest is
+ * <code>[int magic][long time][int customer nr][int invoice nr][int count]
+ * [count x 32 byte hash][int CRC32]</code>. All files are replaced atomically, and the
+ * manifest is written last.
+ * </p>
+ * <p>
+ * The invoice history files and archive blocks of the customers are stored as chunks of
+ * their own, listed after the customers. A restore puts those invoices back into their
+ * customers.
+ * </p>
+ */
+public class IncrementalBackups {
+
+    private static final int MANIFEST_MAGIC = 0x53514B42; // "SQKB"
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String POINT_DATE_FORMAT = "yyyyMMdd-HHmmss";
+    private static final int HASH_LENGTH = 32;
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    private final File chunksDir;
+    private final File pointsDir;
+
+    /**
+     * Creates the backups. The directories are created by the first backup.
+     * @param backupsDir The backups directory
+     */
+    public IncrementalBackups(File backupsDir) {
+        this.chunksDir = new File(backupsDir, "chunks");
+        this.pointsDir = new File(backupsDir, "points");
+    }
+
+    /**
+     * Encodes all customers for a new backup point. Call this with the repository lock
+     * held, and write the returned backup point without it. The invoice history and archive
+     * of the customers are read when the backup point is written.
+     *
+     * @param customersType The repository root object, with the number series set
+     * @param invoiceHistory The invoice history of the customers
+     * @param invoiceArchive The invoice archive of the customers
+     * @return The backup point to write
+     * @throws IOException If a customer can't be encoded
+     */
+    public RepositoryStore.PendingWrite capture(
+        CustomersType customersType,
+        InvoiceHistory invoiceHistory,
+        InvoiceArchive invoiceArchive) throws IOException {
+
+        BackupPoint backupPoint = new BackupPoint(invoiceHistory, invoiceArchive);
+        long start = System.nanoTime();
+        for (CustomerType customer : customersType.getCustomer()) {
+            backupPoint.customers.add(BinarySnapshot.encodeCustomer(customer));
+            backupPoint.customerUUIDs.add(customer.getCustomerInfo().getCustomerUUID());
+        }
+        backupPoint.currentCustomerNr = customersType.getCurrentCustomerNr().intValue();
+        backupPoint.currentInvoiceNr = customersType.getCurrentInvoiceNr().intValue();
+        backupPoint.timings.addMarshal(start);
+        return backupPoint;
+    }
+
+    /**
+     * Returns the names of all backup points, oldest first
+     * @return The names, e.g. <code>20240131-081500</code>
+     */
+    public List<String> listPoints() {
+
+        List<String> names = new ArrayList<>();
+        for (File manifestFile : this.listManifestFiles()) {
+            String fileName = manifestFile.getName();
+            names.add(fileName.substring(0, fileName.length() - MANIFEST_SUFFIX.length()));
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Reads a whole backup point
+     *
+     * @param pointName Name of the backup point
+     * @return The repository root object, as it was when backed up, with the invoice
+     *         history of every customer among its invoices
+     * @throws IOException If the backup point doesn't exist, or a file is corrupt
+     */
+    public CustomersType restore(String pointName) throws IOException {
+
+        Manifest manifest = this.readManifest(
+            new File(this.pointsDir, pointName + MANIFEST_SUFFIX));
+
+        CustomersType customersType = OBJECT_FACTORY.createCustomersType();
+        customersType.setCurrentCustomerNr(manifest.currentCustomerNr);
+        customersType.setCurrentInvoiceNr(manifest.currentInvoiceNr);
+
+        // A history chunk holds a customer with only its UUID and invoices
+        Map<String, CustomerType> customersByUUID = new LinkedHashMap<>();
+        for (byte[] hash : manifest.hashes) {
+            for (CustomerType customer : BinarySnapshot
+                .decode(this.readChunk(hash))
+                .getCustomer()) {
+                String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+                CustomerType existingCustomer = customersByUUID.get(customerUUID);
+                if (existingCustomer == null) {
+                    customersByUUID.put(customerUUID, customer);
+                } else if (customer.getInvoices() != null) {
+                    if (existingCustomer.getInvoices() == null) {
+                        existingCustomer.setInvoices(OBJECT_FACTORY.createInvoicesType());
+                    }
+                    // An invoice may be in both the history and the archive, while moved
+                    List<InvoiceType> invoices = InvoiceHistory.merge(
+                        existingCustomer.getInvoices().getInvoice(),
+                        customer.getInvoices().getInvoice());
+                    existingCustomer.getInvoices().getInvoice().clear();
+                    existingCustomer.getInvoices().getInvoice().addAll(invoices);
+                }
+            }
+        }
+        customersType.getCustomer().addAll(customersByUUID.values());
+        return customersType;
+    }
+
+    /**
+     * Deletes backup points older than a given time, and the chunks no longer used by any
+     * backup point. The newest backup point is always kept.
+     *
+     * @param thresholdMillis Backup points written before this are deleted
+     * @return Number of chunks deleted
+     * @throws IOException If a manifest can't be read, then nothing is deleted
+     */
+    public int prune(long thresholdMillis) throws IOException {
+
+        List<File> manifestFiles = new ArrayList<>(Arrays.asList(this.listManifestFiles()));
+        Collections.sort(manifestFiles);
+        for (int i = 0; i < manifestFiles.size() - 1; i++) {
+            if (manifestFiles.get(i).lastModified() < thresholdMillis) {
+                Files.delete(manifestFiles.get(i).toPath());
+            }
+        }
+
+        // All chunks still in use, a broken manifest stops the pruning here
+        Set<String> usedChunks = new HashSet<>();
+        for (File manifestFile : this.listManifestFiles()) {
+            for (byte[] hash : this.readManifest(manifestFile).hashes) {
+                usedChunks.add(toHex(hash));
+            }
+        }
+
+        int deletedChunks = 0;
+        File[] chunkDirs = this.chunksDir.listFiles();
+        if (chunkDirs != null) {
+            for (File chunkDir : chunkDirs) {
+                File[] chunkFiles = chunkDir.listFiles();
+                if (chunkFiles == null) {
+                    continue;
+                }
+                for (File chunkFile : chunkFiles) {
+                    if (!usedChunks.contains(chunkFile.getName()) && chunkFile.delete()) {
+                        ++deletedChunks;
+                    }
+                }
+            }
+        }
+        return deletedChunks;
+    }
+
+    // Writes the chunks not yet stored, and then the manifest
+    private void write(BackupPoint backupPoint) throws IOException {
+
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IOException(exception);
+        }
+
+        List<byte[]> chunks = new ArrayList<>(backupPoint.customers);
+        chunks.addAll(backupPoint.invoiceHistory.readEncoded(backupPoint.customerUUIDs));
+        chunks.addAll(backupPoint.invoiceArchive.readEncoded(backupPoint.customerUUIDs));
+
+        List<byte[]> hashes = new ArrayList<>(chunks.size());
+        for (byte[] customer : chunks) {
+            byte[] hash = sha256.digest(customer);
+            hashes.add(hash);
+
+            File chunkFile = this.getChunkFile(hash);
+            if (!chunkFile.isFile()) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                    customer.length / 2 + 64);
+                DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+                deflater.write(customer);
+                deflater.close();
+                this.mkdirs(chunkFile.getParentFile());
+                writeAtomically(compressed.toByteArray(), chunkFile);
+                ++backupPoint.writtenChunks;
+            }
+        }
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream(
+            24 + hashes.size() * HASH_LENGTH);
+        DataOutputStream manifestData = new DataOutputStream(manifestBytes);
+        manifestData.writeInt(MANIFEST_MAGIC);
+        manifestData.writeLong(System.currentTimeMillis());
+        manifestData.writeInt(backupPoint.currentCustomerNr);
+        manifestData.writeInt(backupPoint.currentInvoiceNr);
+        manifestData.writeInt(hashes.size());
+        for (byte[] hash : hashes) {
+            manifestData.write(hash);
+        }
+        manifestData.flush();
+        CRC32 crc = new CRC32();
+        crc.update(manifestBytes.toByteArray());
+        manifestData.writeInt((int) crc.getValue());
+        manifestData.flush();
+
+        this.mkdirs(this.pointsDir);
+        String pointName = new SimpleDateFormat(POINT_DATE_FORMAT).format(new Date());
+        writeAtomically(
+            manifestBytes.toByteArray(),
+            new File(this.pointsDir, pointName + MANIFEST_SUFFIX));
+        backupPoint.pointName = pointName;
+    }
+
+    private Manifest readManifest(File manifestFile) throws IOException {
+
+        byte[] bytes = Files.readAllBytes(manifestFile.toPath());
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MANIFEST_MAGIC) {
+                throw new IOException("Inte en backup-manifest");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            if (ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() != (int) crc.getValue()) {
+                throw new IOException("Felaktig checksumma");
+            }
+
+            Manifest manifest = new Manifest();
+            buffer.getLong();
+            manifest.currentCustomerNr = buffer.getInt();
+            manifest.currentInvoiceNr = buffer.getInt();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[HASH_LENGTH];
+                buffer.get(hash);
+                manifest.hashes.add(hash);
+            }
+            return manifest;
+
+        } catch (IOException | RuntimeException exception) {
+            throw new IOException(
+                "Backup-manifest är trasig: "
+                    + manifestFile.getPath()
+                    + ". Felmeddelande: "
+                    + exception.getMessage(),
+                exception);
+        }
+    }
+
+    // Reads and decompresses a chunk, and checks it against its hash
+    private byte[] readChunk(byte[] hash) throws IOException {
+
+        File chunkFile = this.getChunkFile(hash);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(4096);
+        InputStream input = new InflaterInputStream(Files.newInputStream(chunkFile.toPath()));
+        try {
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                chunk.write(buffer, 0, length);
+            }
+        } finally {
+            input.close();
+        }
+
+        try {
+            if (!MessageDigest.isEqual(
+                hash,
+                MessageDigest.getInstance("SHA-256").digest(chunk.toByteArray()))) {
+                throw new IOException("Backup-fil är trasig: " + chunkFile.getPath());
+            }
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IOException(exception);
+        }
+        return chunk.toByteArray();
+    }
+
+    private File getChunkFile(byte[] hash) {
+        String hex = toHex(hash);
+        return new File(new File(this.chunksDir, hex.substring(0, 2)), hex);
+    }
+
+    private File[] listManifestFiles() {
+
+        File[] manifestFiles = this.pointsDir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isFile() && pathname.getName().endsWith(MANIFEST_SUFFIX);
+            }
+        });
+        return manifestFiles == null ? new File[0] : manifestFiles;
+    }
+
+    private void mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Kunde ej skapa backup-katalog: " + dir.getPath());
+        }
+    }
+
+    // Writes to a temporary file, which replaces the target when it is on disk
+    private static void writeAtomically(byte[] bytes, File targetFile) throws IOException {
+
+        File tempFile = new File(targetFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            fileOutput.write(bytes);
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(
+            tempFile.toPath(),
+            targetFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // The contents of a manifest file
+    private static final class Manifest {
+
+        private int currentCustomerNr;
+        private int currentInvoiceNr;
+        private final List<byte[]> hashes = new ArrayList<>();
+    }
+
+    // A captured backup point, not yet on disk
+    private final class BackupPoint implements RepositoryStore.PendingWrite {
+
+        private final List<byte[]> customers = new ArrayList<>();
+        private final Set<String> customerUUIDs = new HashSet<>();
+        private final InvoiceHistory invoiceHistory;
+        private final InvoiceArchive invoiceArchive;
+        private final SaveTimings timings = new SaveTimings();
+        private int currentCustomerNr;
+        private int currentInvoiceNr;
+        private int writtenChunks = 0;
+        private String pointName;
+
+        private BackupPoint(InvoiceHistory invoiceHistory, InvoiceArchive invoiceArchive) {
+            this.invoiceHistory = invoiceHistory;
+            this.invoiceArchive = invoiceArchive;
+        }
+
+        @Override
+        public void write() throws IOException {
+            long start = System.nanoTime();
+            IncrementalBackups.this.write(this);
+            this.timings.addIo(start);
+        }
+
+        @Override
+        public SaveTimings getTimings() {
+            return this.timings;
+        }
+
+        @Override
+        public void restore() {
+            // Nothing tracked
+        }
+
+        @Override
+        public String toString() {
+            return this.pointName
+                + ", "
+                + this.customers.size()
+                + " customers, "
+                + this.writtenChunks
+                + " new chunks";
+        }
+    }
+}
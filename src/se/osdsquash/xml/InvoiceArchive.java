@@ -0,0 +1,395 @@
+package se.osdsquash.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Read-only archive of old paid and cancelled invoices, with one file per year in the
+ * archive directory. Invoices are moved here from the <code>InvoiceHistory</code> once
+ * they are old enough, and can't be changed or deleted afterwards.
+ *
+ * <p>
+ * An archive file starts with an index of all its invoice nrs and customers, followed by
+ * one deflate compressed block per customer, encoded like a history file. The index of
+ * all years is read the first time it is needed and kept in memory, so an invoice nr is
+ * found without reading any blocks. The archived invoices of a customer are read from its
+ * blocks when asked for, and not cached.
+ * </p>
+ * <p>
+ * Layout: <code>[int magic][int year][int customer count][count x (UTF customer UUID)
+ * [int block offset][int block length])][int invoice count][count x ([int invoice nr]
+ * [int customer index])][int CRC32 of the index]</code> and then the blocks. The invoice
+ * nrs are sorted. Files are replaced atomically. All methods are thread safe.
+ * </p>
+ */
+public class InvoiceArchive {
+
+    private static final int MAGIC = 0x53514B41; // "SQKA"
+    private static final String FILE_PREFIX = "Invoices_";
+    private static final String FILE_SUFFIX = ".archive";
+
+    private final File archiveDir;
+
+    // The index of every year, read on first use
+    private Map<Integer, YearIndex> yearIndexes;
+
+    /**
+     * Creates the archive. The directory is created by the first write.
+     * @param archiveDir The archive directory
+     */
+    public InvoiceArchive(File archiveDir) {
+        this.archiveDir = archiveDir;
+    }
+
+    /**
+     * Returns true if an invoice is archived
+     *
+     * @param invoiceNr Invoice nr
+     * @return True if archived
+     * @throws IOException If an archive index can't be read
+     */
+    public synchronized boolean contains(int invoiceNr) throws IOException {
+        return this.findOwner(invoiceNr) != null;
+    }
+
+    /**
+     * Finds the customer owning an archived invoice, using the archive index only
+     *
+     * @param invoiceNr Invoice nr
+     * @return The customer UUID as a string, or null if not archived
+     * @throws IOException If an archive index can't be read
+     */
+    public synchronized String findOwner(int invoiceNr) throws IOException {
+
+        for (YearIndex yearIndex : this.getYearIndexes().values()) {
+            int position = Arrays.binarySearch(yearIndex.invoiceNrs, invoiceNr);
+            if (position >= 0) {
+                return yearIndex.customerUUIDs[yearIndex.invoiceOwners[position]];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the archived invoices of a customer, from all years
+     *
+     * @param customerUUID Customer UUID as a string
+     * @return The invoices, oldest year first, empty if none
+     * @throws IOException If an archive file can't be read
+     */
+    public synchronized List<InvoiceType> get(String customerUUID) throws IOException {
+
+        List<InvoiceType> invoices = new ArrayList<>();
+        for (YearIndex yearIndex : this.getYearIndexes().values()) {
+            Integer customerIndex = yearIndex.customerIndexes.get(customerUUID);
+            if (customerIndex != null) {
+                invoices.addAll(
+                    InvoiceHistory.decode(
+                        this.readBlock(yearIndex, customerIndex.intValue()),
+                        yearIndex.file.getPath()));
+            }
+        }
+        return invoices;
+    }
+
+    /**
+     * Adds invoices to the archive of a year, replacing archived invoices with the same nr.
+     * The file of the year is re-written.
+     *
+     * @param year The year
+     * @param invoicesByCustomer The invoices to add, by customer UUID as a string
+     * @throws IOException If the archive file can't be read or written
+     */
+    public synchronized void add(int year, Map<String, List<InvoiceType>> invoicesByCustomer)
+        throws IOException {
+
+        YearIndex oldIndex = this.getYearIndexes().get(Integer.valueOf(year));
+
+        // The blocks of the new file, by customer UUID. Unchanged blocks are copied as is.
+        Map<String, byte[]> blocks = new TreeMap<>();
+        Map<Integer, String> invoiceOwners = new TreeMap<>();
+        if (oldIndex != null) {
+            for (int i = 0; i < oldIndex.customerUUIDs.length; i++) {
+                if (!invoicesByCustomer.containsKey(oldIndex.customerUUIDs[i])) {
+                    blocks.put(oldIndex.customerUUIDs[i], this.readCompressedBlock(oldIndex, i));
+                }
+            }
+            for (int i = 0; i < oldIndex.invoiceNrs.length; i++) {
+                invoiceOwners.put(
+                    Integer.valueOf(oldIndex.invoiceNrs[i]),
+                    oldIndex.customerUUIDs[oldIndex.invoiceOwners[i]]);
+            }
+        }
+
+        for (Map.Entry<String, List<InvoiceType>> entry : invoicesByCustomer.entrySet()) {
+            String customerUUID = entry.getKey();
+            List<InvoiceType> invoices = entry.getValue();
+            if (oldIndex != null && oldIndex.customerIndexes.containsKey(customerUUID)) {
+                invoices = InvoiceHistory.merge(
+                    InvoiceHistory.decode(
+                        this.readBlock(
+                            oldIndex,
+                            oldIndex.customerIndexes.get(customerUUID).intValue()),
+                        oldIndex.file.getPath()),
+                    invoices);
+            }
+            blocks.put(customerUUID, compress(InvoiceHistory.encode(customerUUID, invoices)));
+            for (InvoiceType invoice : invoices) {
+                invoiceOwners.put(Integer.valueOf(invoice.getInvoiceNumber()), customerUUID);
+            }
+        }
+
+        File archiveFile = new File(this.archiveDir, FILE_PREFIX + year + FILE_SUFFIX);
+        this.write(year, blocks, invoiceOwners, archiveFile);
+        this.yearIndexes.put(Integer.valueOf(year), readIndex(archiveFile));
+    }
+
+    /**
+     * Deletes the whole archive, e.g. before a restore
+     * @throws IOException If an archive file can't be deleted
+     */
+    public synchronized void clear() throws IOException {
+        for (File archiveFile : this.listFiles()) {
+            Files.delete(archiveFile.toPath());
+        }
+        this.yearIndexes = null;
+    }
+
+    /**
+     * Reads the archived invoices of given customers as they are encoded on disk, one per
+     * customer and year, e.g. for a backup
+     *
+     * @param customerUUIDs The customer UUIDs as strings
+     * @return The encoded invoices, in the format of a history file
+     * @throws IOException If an archive file can't be read
+     */
+    public synchronized List<byte[]> readEncoded(Set<String> customerUUIDs) throws IOException {
+
+        List<byte[]> encoded = new ArrayList<>();
+        for (YearIndex yearIndex : this.getYearIndexes().values()) {
+            for (int i = 0; i < yearIndex.customerUUIDs.length; i++) {
+                if (customerUUIDs.contains(yearIndex.customerUUIDs[i])) {
+                    encoded.add(this.readBlock(yearIndex, i));
+                }
+            }
+        }
+        return encoded;
+    }
+
+    private Map<Integer, YearIndex> getYearIndexes() throws IOException {
+
+        if (this.yearIndexes == null) {
+            Map<Integer, YearIndex> indexes = new TreeMap<>();
+            for (File archiveFile : this.listFiles()) {
+                YearIndex yearIndex = readIndex(archiveFile);
+                indexes.put(Integer.valueOf(yearIndex.year), yearIndex);
+            }
+            this.yearIndexes = indexes;
+        }
+        return this.yearIndexes;
+    }
+
+    private static YearIndex readIndex(File archiveFile) throws IOException {
+
+        CheckedInputStream checkedInput = new CheckedInputStream(
+            Files.newInputStream(archiveFile.toPath()),
+            new CRC32());
+        DataInputStream input = new DataInputStream(checkedInput);
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Inte ett fakturaarkiv: " + archiveFile.getPath());
+            }
+
+            YearIndex yearIndex = new YearIndex(archiveFile);
+            yearIndex.year = input.readInt();
+            int customerCount = input.readInt();
+            yearIndex.customerUUIDs = new String[customerCount];
+            yearIndex.blockOffsets = new int[customerCount];
+            yearIndex.blockLengths = new int[customerCount];
+            for (int i = 0; i < customerCount; i++) {
+                yearIndex.customerUUIDs[i] = input.readUTF();
+                yearIndex.blockOffsets[i] = input.readInt();
+                yearIndex.blockLengths[i] = input.readInt();
+                yearIndex.customerIndexes.put(yearIndex.customerUUIDs[i], Integer.valueOf(i));
+            }
+
+            int invoiceCount = input.readInt();
+            yearIndex.invoiceNrs = new int[invoiceCount];
+            yearIndex.invoiceOwners = new int[invoiceCount];
+            for (int i = 0; i < invoiceCount; i++) {
+                yearIndex.invoiceNrs[i] = input.readInt();
+                yearIndex.invoiceOwners[i] = input.readInt();
+            }
+
+            int checksum = (int) checkedInput.getChecksum().getValue();
+            if (input.readInt() != checksum) {
+                throw new IOException("Fakturaarkivet är trasigt: " + archiveFile.getPath());
+            }
+            return yearIndex;
+
+        } finally {
+            input.close();
+        }
+    }
+
+    // Reads and decompresses the block of a customer
+    private byte[] readBlock(YearIndex yearIndex, int customerIndex) throws IOException {
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(4096);
+        InputStream input = new InflaterInputStream(
+            new ByteArrayInputStream(this.readCompressedBlock(yearIndex, customerIndex)));
+        try {
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                block.write(buffer, 0, length);
+            }
+        } finally {
+            input.close();
+        }
+        return block.toByteArray();
+    }
+
+    private byte[] readCompressedBlock(YearIndex yearIndex, int customerIndex)
+        throws IOException {
+
+        byte[] compressed = new byte[yearIndex.blockLengths[customerIndex]];
+        RandomAccessFile file = new RandomAccessFile(yearIndex.file, "r");
+        try {
+            file.seek(yearIndex.blockOffsets[customerIndex]);
+            file.readFully(compressed);
+        } finally {
+            file.close();
+        }
+        return compressed;
+    }
+
+    private static byte[] compress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        deflater.write(bytes);
+        deflater.close();
+        return compressed.toByteArray();
+    }
+
+    // Writes a new archive file, which replaces the old one when it is on disk
+    private void write(
+        int year,
+        Map<String, byte[]> blocks,
+        Map<Integer, String> invoiceOwners,
+        File archiveFile) throws IOException {
+
+        List<String> customerUUIDs = new ArrayList<>(blocks.keySet());
+        Map<String, Integer> customerIndexes = new HashMap<>();
+        for (int i = 0; i < customerUUIDs.size(); i++) {
+            customerIndexes.put(customerUUIDs.get(i), Integer.valueOf(i));
+        }
+
+        // The block offsets are from the start of the file, so the index is encoded twice:
+        // the first time only to get its length
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(
+            64 + customerUUIDs.size() * 48 + invoiceOwners.size() * 8);
+        int indexLength = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            indexBytes.reset();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            index.writeInt(MAGIC);
+            index.writeInt(year);
+            index.writeInt(customerUUIDs.size());
+            int blockOffset = indexLength;
+            for (String customerUUID : customerUUIDs) {
+                index.writeUTF(customerUUID);
+                index.writeInt(blockOffset);
+                index.writeInt(blocks.get(customerUUID).length);
+                blockOffset += blocks.get(customerUUID).length;
+            }
+            index.writeInt(invoiceOwners.size());
+            for (Map.Entry<Integer, String> entry : invoiceOwners.entrySet()) {
+                index.writeInt(entry.getKey().intValue());
+                index.writeInt(customerIndexes.get(entry.getValue()).intValue());
+            }
+            index.flush();
+            CRC32 crc = new CRC32();
+            crc.update(indexBytes.toByteArray());
+            index.writeInt((int) crc.getValue());
+            index.flush();
+            indexLength = indexBytes.size();
+        }
+
+        if (!this.archiveDir.isDirectory() && !this.archiveDir.mkdirs()) {
+            throw new IOException(
+                "Kunde ej skapa katalog för fakturaarkiv: " + this.archiveDir.getPath());
+        }
+
+        File tempFile = new File(archiveFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            indexBytes.writeTo(fileOutput);
+            for (String customerUUID : customerUUIDs) {
+                fileOutput.write(blocks.get(customerUUID));
+            }
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(
+            tempFile.toPath(),
+            archiveFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File[] listFiles() {
+
+        File[] archiveFiles = this.archiveDir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isFile()
+                    && pathname.getName().startsWith(FILE_PREFIX)
+                    && pathname.getName().endsWith(FILE_SUFFIX);
+            }
+        });
+        return archiveFiles == null ? new File[0] : archiveFiles;
+    }
+
+    // The in-memory index of one archive file
+    private static final class YearIndex {
+
+        private final File file;
+        private int year;
+        private String[] customerUUIDs;
+        private int[] blockOffsets;
+        private int[] blockLengths;
+        private int[] invoiceNrs;
+        private int[] invoiceOwners;
+        private final Map<String, Integer> customerIndexes = new HashMap<>();
+
+        private YearIndex(File file) {
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.osdsquash.logger.SquashLogger;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * A transactional batch of invoices, created in one invoice run.
+ *
+ * <p>
+ * The whole invoice nr block is reserved up front, and all invoice meta-data is kept
+ * in memory until <code>commit()</code>, which connects the invoices to their customers
+ * and journals them with one disk sync. If the run fails or is cancelled,
+ * <code>rollback()</code> deletes the invoice files written so far, and gives the invoice
+ * numbers back unless later numbers are handed out. Numbers of a batch whose commit was
+ * attempted are never re-used, since they may be in the journal.
+ * </p>
+ *
+ * <p>
+ * Customers deleted during the run get no invoice, their files are deleted at commit. Their
+ * numbers are given back only if they are last in the block, since the invoice numbers
+ * must stay in order.
+ * </p>
+ */
+public class InvoiceBatch {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    private final XmlRepository xmlRepository;
+
+    private final int firstInvoiceNr;
+    private final int lastInvoiceNr;
+    private int nextInvoiceNr;
+
+    private final List<CustomerType> customers = new ArrayList<>();
+    private final List<InvoiceType> invoices = new ArrayList<>();
+
+    private boolean commitStarted = false;
+    private boolean finished = false;
+
+    protected InvoiceBatch(XmlRepository xmlRepository, int firstInvoiceNr, int invoiceCount) {
+        this.xmlRepository = xmlRepository;
+        this.firstInvoiceNr = firstInvoiceNr;
+        this.nextInvoiceNr = firstInvoiceNr;
+        this.lastInvoiceNr = firstInvoiceNr + invoiceCount - 1;
+    }
+
+    /**
+     * Returns the next invoice nr from the reserved block
+     * @return A reserved, unique invoice nr
+     * @throws IllegalStateException If the whole block is used
+     */
+    public int nextInvoiceNr() {
+        if (this.nextInvoiceNr > this.lastInvoiceNr) {
+            throw new IllegalStateException(
+                "Alla reserverade fakturanummer är använda, sista nr är " + this.lastInvoiceNr);
+        }
+        return this.nextInvoiceNr++;
+    }
+
+    /**
+     * Adds a created invoice to the batch. It is not connected to the customer until commit.
+     * @param customer The customer the invoice belongs to
+     * @param invoice The invoice meta-data
+     */
+    public void addInvoice(CustomerType customer, InvoiceType invoice) {
+        this.customers.add(customer);
+        this.invoices.add(invoice);
+    }
+
+    /**
+     * Returns all invoices added to this batch, in creation order
+     * @return The invoices
+     */
+    public List<InvoiceType> getInvoices() {
+        return this.invoices;
+    }
+
+    /**
+     * Connects all invoices to their customers and journals them with one disk sync
+     * @return The invoices left out, since their customers were deleted during the run
+     */
+    public List<InvoiceType> commit() {
+
+        if (this.finished) {
+            throw new IllegalStateException("Fakturakörningen är redan avslutad");
+        }
+        this.commitStarted = true;
+        List<InvoiceType> droppedInvoices = this.xmlRepository
+            .commitInvoiceBatch(this.customers, this.invoices);
+        this.finished = true;
+
+        if (!droppedInvoices.isEmpty()) {
+            this.deleteInvoiceFiles(droppedInvoices);
+
+            // Give back the numbers after the last invoice that was kept
+            int lastUsedInvoiceNr = this.firstInvoiceNr - 1;
+            for (InvoiceType invoice : this.invoices) {
+                if (!droppedInvoices.contains(invoice)) {
+                    lastUsedInvoiceNr = Math.max(lastUsedInvoiceNr, invoice.getInvoiceNumber());
+                }
+            }
+            boolean released = lastUsedInvoiceNr < this.lastInvoiceNr
+                && this.xmlRepository.releaseInvoiceNrs(
+                    lastUsedInvoiceNr + 1,
+                    this.lastInvoiceNr - lastUsedInvoiceNr);
+
+            logger.log(
+                "Invoice run committed, "
+                    + droppedInvoices.size()
+                    + " invoices of deleted customers removed, invoice nrs after "
+                    + lastUsedInvoiceNr
+                    + (released ? " given back" : " not re-used"),
+                true);
+        }
+        return droppedInvoices;
+    }
+
+    /**
+     * Deletes all invoice files created in this batch, and gives back the reserved invoice
+     * numbers if possible. The customers are left untouched.
+     */
+    public void rollback() {
+
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+
+        this.deleteInvoiceFiles(this.invoices);
+
+        int invoiceCount = this.lastInvoiceNr - this.firstInvoiceNr + 1;
+        boolean released = invoiceCount > 0
+            && !this.commitStarted
+            && this.xmlRepository.releaseInvoiceNrs(this.firstInvoiceNr, invoiceCount);
+
+        logger.log(
+            "Invoice run rolled back, "
+                + this.invoices.size()
+                + " invoice files removed, invoice nrs "
+                + this.firstInvoiceNr
+                + "-"
+                + this.lastInvoiceNr
+                + (released ? " given back" : " not re-used"),
+            true);
+    }
+
+    // Deletes the files of invoices that will not be connected to any customer
+    private void deleteInvoiceFiles(List<InvoiceType> invoices) {
+        for (InvoiceType invoice : invoices) {
+            File invoiceFile = new File(invoice.getRelativeFilePath());
+            if (invoiceFile.isFile() && !invoiceFile.delete()) {
+                logger.log(
+                    "Varning: Kunde ej radera fakturafil som inte sparades: "
+                        + invoiceFile.getAbsolutePath(),
+                    true);
+            }
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package se.osdsquash.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceStatusType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.InvoicesType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * The invoice history of all customers: the settled (paid or cancelled) invoices, kept
+ * out of the repository in one file per customer, in the history directory.
+ *
+ * <p>
+ * The repository only holds the active invoices of a customer, so loading it doesn't
+ * depend on how many years of invoices there are. The history of a customer is read the
+ * first time it is asked for, and a bounded LRU cache keeps the recently used histories
+ * in memory. A history list handed out is never changed, a change replaces it.
+ * </p>
+ * <p>
+ * A history file is a <code>BinarySnapshot</code> of one customer, holding only the
+ * customer UUID and the invoices, named by the customer UUID. Files are replaced
+ * atomically. All methods are thread safe, and don't need the repository lock.
+ * </p>
+ * <p>
+ * The owner of every invoice in the history is kept in memory, and in an owner file of
+ * <code>[int invoice nr][UTF customer UUID]</code> records, an empty UUID removing the
+ * invoice. Records are appended, an owner before its history file is written and a removal
+ * after, so the owner file never misses an invoice. It is compacted when read, and built
+ * from the history files when missing, e.g. by an older version.
+ * </p>
+ */
+public class InvoiceHistory {
+
+    private static final String FILE_SUFFIX = ".history";
+    private static final String OWNERS_FILE_NAME = "invoices.owners";
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    private final File historyDir;
+
+    // Recently used histories by customer UUID, least recently used first
+    private final Map<String, List<InvoiceType>> cache;
+
+    // Customer UUID of every invoice in the history, read on first use
+    private Map<Integer, String> owners;
+
+    /**
+     * Creates the history. The directory is created by the first write.
+     *
+     * @param historyDir The history directory
+     * @param cacheSize Max number of customer histories kept in memory
+     */
+    public InvoiceHistory(File historyDir, final int cacheSize) {
+        this.historyDir = historyDir;
+        this.cache = new LinkedHashMap<String, List<InvoiceType>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<InvoiceType>> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns true if an invoice belongs in the history, i.e. it is paid or cancelled
+     *
+     * @param invoice The invoice
+     * @return True if settled
+     */
+    public static boolean isSettled(InvoiceType invoice) {
+        return InvoiceStatusType.PAID.equals(invoice.getInvoiceStatus())
+            || InvoiceStatusType.CANCELLED.equals(invoice.getInvoiceStatus());
+    }
+
+    /**
+     * Returns the invoice history of a customer, reading it from disk if not in the cache
+     *
+     * @param customerUUID Customer UUID as a string
+     * @return The settled invoices, unmodifiable, empty if none
+     * @throws IOException If the history file can't be read
+     */
+    public synchronized List<InvoiceType> get(String customerUUID) throws IOException {
+
+        List<InvoiceType> invoices = this.cache.get(customerUUID);
+        if (invoices == null) {
+            invoices = Collections.unmodifiableList(this.read(this.getFile(customerUUID)));
+            this.cache.put(customerUUID, invoices);
+        }
+        return invoices;
+    }
+
+    /**
+     * Replaces the invoice history of a customer. Nothing is written if the history is
+     * unchanged, and the file is deleted if the history becomes empty.
+     *
+     * @param customerUUID Customer UUID as a string
+     * @param invoices The settled invoices
+     * @throws IOException If the history file can't be written
+     */
+    public synchronized void put(String customerUUID, List<InvoiceType> invoices)
+        throws IOException {
+
+        List<InvoiceType> oldInvoices = this.getUncached(customerUUID);
+        this.addOwners(customerUUID, invoices);
+        this.writeHistory(customerUUID, invoices);
+        this.removeOwners(customerUUID, oldInvoices, invoices);
+        this.cache.put(customerUUID, Collections.unmodifiableList(new ArrayList<>(invoices)));
+    }
+
+    /**
+     * Returns the invoice history of a customer without adding it to the cache, e.g. for a
+     * job going through all customers
+     *
+     * @param customerUUID Customer UUID as a string
+     * @return The settled invoices, empty if none
+     * @throws IOException If the history file can't be read
+     */
+    public synchronized List<InvoiceType> getUncached(String customerUUID) throws IOException {
+
+        List<InvoiceType> invoices = this.cache.get(customerUUID);
+        return invoices != null ? invoices : this.read(this.getFile(customerUUID));
+    }
+
+    /**
+     * Removes invoices from the history of a customer
+     *
+     * @param customerUUID Customer UUID as a string
+     * @param invoiceNrs Nrs of the invoices to remove, others are ignored
+     * @throws IOException If the history file can't be read or written
+     */
+    public synchronized void remove(String customerUUID, Set<Integer> invoiceNrs)
+        throws IOException {
+
+        List<InvoiceType> oldInvoices = this.getUncached(customerUUID);
+        List<InvoiceType> invoices = new ArrayList<>(oldInvoices);
+        Iterator<InvoiceType> invoiceIterator = invoices.iterator();
+        while (invoiceIterator.hasNext()) {
+            if (invoiceNrs.contains(Integer.valueOf(invoiceIterator.next().getInvoiceNumber()))) {
+                invoiceIterator.remove();
+            }
+        }
+        this.writeHistory(customerUUID, invoices);
+        this.removeOwners(customerUUID, oldInvoices, invoices);
+        if (this.cache.containsKey(customerUUID)) {
+            this.cache.put(customerUUID, Collections.unmodifiableList(invoices));
+        }
+    }
+
+    /**
+     * Returns the UUIDs of all customers having an invoice history
+     * @return The customer UUIDs as strings
+     */
+    public synchronized List<String> getCustomerUUIDs() {
+
+        List<String> customerUUIDs = new ArrayList<>();
+        for (File historyFile : this.listFiles()) {
+            customerUUIDs.add(this.getCustomerUUID(historyFile));
+        }
+        return customerUUIDs;
+    }
+
+    /**
+     * Moves the settled invoices of a customer to its history, replacing the invoice
+     * container of the customer with one holding only the active invoices. A settled
+     * invoice replaces one with the same nr already in the history.
+     *
+     * @param customer The customer
+     * @return Number of invoices moved
+     * @throws IOException If the history can't be read or written
+     */
+    public synchronized int moveSettled(CustomerType customer) throws IOException {
+
+        if (customer.getInvoices() == null) {
+            return 0;
+        }
+
+        List<InvoiceType> activeInvoices = new ArrayList<>();
+        List<InvoiceType> settledInvoices = new ArrayList<>();
+        for (InvoiceType invoice : customer.getInvoices().getInvoice()) {
+            if (isSettled(invoice)) {
+                settledInvoices.add(invoice);
+            } else {
+                activeInvoices.add(invoice);
+            }
+        }
+        if (settledInvoices.isEmpty()) {
+            return 0;
+        }
+
+        String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+        this.put(customerUUID, merge(this.get(customerUUID), settledInvoices));
+
+        InvoicesType invoicesType = OBJECT_FACTORY.createInvoicesType();
+        invoicesType.getInvoice().addAll(activeInvoices);
+        customer.setInvoices(invoicesType);
+        return settledInvoices.size();
+    }
+
+    /**
+     * Deletes the invoice history of a customer
+     *
+     * @param customerUUID Customer UUID as a string
+     * @throws IOException If the history file can't be deleted
+     */
+    public synchronized void delete(String customerUUID) throws IOException {
+        List<InvoiceType> oldInvoices = this.getUncached(customerUUID);
+        this.cache.remove(customerUUID);
+        Files.deleteIfExists(this.getFile(customerUUID).toPath());
+        this.removeOwners(customerUUID, oldInvoices, new ArrayList<InvoiceType>());
+    }
+
+    /**
+     * Deletes the invoice history of all customers, e.g. before a restore
+     * @throws IOException If a history file can't be deleted
+     */
+    public synchronized void clear() throws IOException {
+        this.cache.clear();
+        this.owners = new HashMap<>();
+        Files.deleteIfExists(this.getOwnersFile().toPath());
+        for (File historyFile : this.listFiles()) {
+            Files.delete(historyFile.toPath());
+        }
+    }
+
+    /**
+     * Reads the owner file, or builds it from all history files if missing. Call this on
+     * startup, otherwise it is done by the first method needing it.
+     *
+     * @throws IOException If the owner file or a history file can't be read or written
+     */
+    public synchronized void loadOwners() throws IOException {
+        this.getOwners();
+    }
+
+    /**
+     * Finds the customer with a given invoice in its history, using the owners in memory.
+     * The customer may lack the invoice after a crash, so look it up in the history too.
+     *
+     * @param invoiceNr Invoice nr
+     * @return The customer UUID as a string, or null if not found
+     * @throws IOException If the owner file can't be read
+     */
+    public synchronized String findOwner(int invoiceNr) throws IOException {
+        return this.getOwners().get(Integer.valueOf(invoiceNr));
+    }
+
+    /**
+     * Reads the history files of given customers as they are on disk, e.g. for a backup
+     *
+     * @param customerUUIDs The customer UUIDs as strings
+     * @return The encoded histories, one per customer having a history
+     * @throws IOException If a history file can't be read
+     */
+    public synchronized List<byte[]> readEncoded(Set<String> customerUUIDs) throws IOException {
+
+        List<byte[]> histories = new ArrayList<>();
+        for (File historyFile : this.listFiles()) {
+            if (customerUUIDs.contains(this.getCustomerUUID(historyFile))) {
+                histories.add(Files.readAllBytes(historyFile.toPath()));
+            }
+        }
+        return histories;
+    }
+
+    /**
+     * Returns the position of an invoice in a list
+     *
+     * @param invoices The invoices
+     * @param invoiceNr Invoice nr
+     * @return The index, or -1 if not found
+     */
+    public static int indexOf(List<InvoiceType> invoices, int invoiceNr) {
+        for (int i = 0; i < invoices.size(); i++) {
+            if (invoices.get(i).getInvoiceNumber() == invoiceNr) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds invoices to a list, where an added invoice replaces one with the same nr
+     *
+     * @param invoices The existing invoices, not changed
+     * @param addedInvoices The invoices to add
+     * @return A new list
+     */
+    public static List<InvoiceType> merge(
+        List<InvoiceType> invoices,
+        List<InvoiceType> addedInvoices) {
+
+        List<InvoiceType> merged = new ArrayList<>(invoices);
+        for (InvoiceType invoice : addedInvoices) {
+            int index = indexOf(merged, invoice.getInvoiceNumber());
+            if (index >= 0) {
+                merged.set(index, invoice);
+            } else {
+                merged.add(invoice);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Encodes invoices of a customer, as a customer with only the UUID and the invoices
+     *
+     * @param customerUUID Customer UUID as a string
+     * @param invoices The invoices
+     * @return A <code>BinarySnapshot</code> of the customer
+     * @throws IOException If encoding fails
+     */
+    static byte[] encode(String customerUUID, List<InvoiceType> invoices)
+        throws IOException {
+
+        CustomerType customer = OBJECT_FACTORY.createCustomerType();
+        customer.setCustomerInfo(OBJECT_FACTORY.createCustomerInfoType());
+        customer.getCustomerInfo().setCustomerUUID(customerUUID);
+        customer.setInvoices(OBJECT_FACTORY.createInvoicesType());
+        customer.getInvoices().getInvoice().addAll(invoices);
+        return BinarySnapshot.encodeCustomer(customer);
+    }
+
+    /**
+     * Decodes invoices encoded by <code>encode</code>
+     *
+     * @param encoded The encoded invoices
+     * @param name Name of the file holding them, for error messages
+     * @return The invoices
+     * @throws IOException If the encoded invoices are corrupt
+     */
+    static List<InvoiceType> decode(byte[] encoded, String name) throws IOException {
+
+        List<CustomerType> customers = BinarySnapshot.decode(encoded).getCustomer();
+        if (customers.size() != 1) {
+            throw new IOException("Fakturahistoriken är trasig: " + name);
+        }
+        InvoicesType invoices = customers.get(0).getInvoices();
+        return invoices == null ? new ArrayList<InvoiceType>() : invoices.getInvoice();
+    }
+
+    private List<InvoiceType> read(File historyFile) throws IOException {
+
+        if (!historyFile.isFile()) {
+            return new ArrayList<>();
+        }
+        return decode(Files.readAllBytes(historyFile.toPath()), historyFile.getPath());
+    }
+
+    // Writes the history file of a customer, unless unchanged
+    private void writeHistory(String customerUUID, List<InvoiceType> invoices)
+        throws IOException {
+
+        File historyFile = this.getFile(customerUUID);
+        if (invoices.isEmpty()) {
+            Files.deleteIfExists(historyFile.toPath());
+        } else {
+            byte[] encoded = encode(customerUUID, invoices);
+            if (!historyFile.isFile()
+                || !Arrays.equals(encoded, Files.readAllBytes(historyFile.toPath()))) {
+                this.write(encoded, historyFile);
+            }
+        }
+    }
+
+    // Writes to a temporary file, which replaces the history file when it is on disk
+    private void write(byte[] encoded, File historyFile) throws IOException {
+
+        if (!this.historyDir.isDirectory() && !this.historyDir.mkdirs()) {
+            throw new IOException(
+                "Kunde ej skapa katalog för fakturahistorik: " + this.historyDir.getPath());
+        }
+
+        File tempFile = new File(historyFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            fileOutput.write(encoded);
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(
+            tempFile.toPath(),
+            historyFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns the owners, reading or building the owner file on first use
+    private Map<Integer, String> getOwners() throws IOException {
+
+        if (this.owners != null) {
+            return this.owners;
+        }
+
+        File ownersFile = this.getOwnersFile();
+        Map<Integer, String> readOwners = new HashMap<>();
+        boolean compact = true;
+        if (ownersFile.isFile()) {
+            int recordCount = 0;
+            boolean torn = false;
+            DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(Files.readAllBytes(ownersFile.toPath())));
+            try {
+                while (input.available() > 0) {
+                    int invoiceNr = input.readInt();
+                    String customerUUID = input.readUTF();
+                    if (customerUUID.isEmpty()) {
+                        readOwners.remove(Integer.valueOf(invoiceNr));
+                    } else {
+                        readOwners.put(Integer.valueOf(invoiceNr), customerUUID);
+                    }
+                    ++recordCount;
+                }
+            } catch (EOFException exception) {
+
+                // A record torn by a crash, it was never followed by its history file
+                torn = true;
+            }
+            compact = torn || recordCount > 2 * readOwners.size() + 1000;
+        } else {
+            for (File historyFile : this.listFiles()) {
+                String customerUUID = this.getCustomerUUID(historyFile);
+                for (InvoiceType invoice : this.read(historyFile)) {
+                    readOwners.put(Integer.valueOf(invoice.getInvoiceNumber()), customerUUID);
+                }
+            }
+        }
+
+        if (compact && (ownersFile.isFile() || !readOwners.isEmpty())) {
+            ByteArrayOutputStream ownerBytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(ownerBytes);
+            for (Map.Entry<Integer, String> entry : readOwners.entrySet()) {
+                output.writeInt(entry.getKey().intValue());
+                output.writeUTF(entry.getValue());
+            }
+            output.flush();
+            this.write(ownerBytes.toByteArray(), ownersFile);
+        }
+        this.owners = readOwners;
+        return readOwners;
+    }
+
+    // Appends the owner of invoices not already owned by the customer
+    private void addOwners(String customerUUID, List<InvoiceType> invoices) throws IOException {
+
+        Map<Integer, String> currentOwners = this.getOwners();
+        Map<Integer, String> added = new LinkedHashMap<>();
+        for (InvoiceType invoice : invoices) {
+            Integer invoiceNr = Integer.valueOf(invoice.getInvoiceNumber());
+            if (!customerUUID.equals(currentOwners.get(invoiceNr))) {
+                added.put(invoiceNr, customerUUID);
+            }
+        }
+        this.appendOwners(added);
+    }
+
+    // Appends removals of the invoices owned by the customer that it no longer has
+    private void removeOwners(
+        String customerUUID,
+        List<InvoiceType> oldInvoices,
+        List<InvoiceType> invoices) throws IOException {
+
+        Map<Integer, String> currentOwners = this.getOwners();
+        Map<Integer, String> removed = new LinkedHashMap<>();
+        for (InvoiceType invoice : oldInvoices) {
+            Integer invoiceNr = Integer.valueOf(invoice.getInvoiceNumber());
+            if (indexOf(invoices, invoice.getInvoiceNumber()) < 0
+                && customerUUID.equals(currentOwners.get(invoiceNr))) {
+                removed.put(invoiceNr, "");
+            }
+        }
+        this.appendOwners(removed);
+    }
+
+    // Appends owner records and syncs them, then applies them in memory
+    private void appendOwners(Map<Integer, String> records) throws IOException {
+
+        if (records.isEmpty()) {
+            return;
+        }
+        if (!this.historyDir.isDirectory() && !this.historyDir.mkdirs()) {
+            throw new IOException(
+                "Kunde ej skapa katalog för fakturahistorik: " + this.historyDir.getPath());
+        }
+
+        FileOutputStream fileOutput = new FileOutputStream(this.getOwnersFile(), true);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            for (Map.Entry<Integer, String> entry : records.entrySet()) {
+                output.writeInt(entry.getKey().intValue());
+                output.writeUTF(entry.getValue());
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+
+        for (Map.Entry<Integer, String> entry : records.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                this.owners.remove(entry.getKey());
+            } else {
+                this.owners.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private File getOwnersFile() {
+        return new File(this.historyDir, OWNERS_FILE_NAME);
+    }
+
+    private File getFile(String customerUUID) {
+        return new File(this.historyDir, customerUUID + FILE_SUFFIX);
+    }
+
+    private String getCustomerUUID(File historyFile) {
+        String fileName = historyFile.getName();
+        return fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+    }
+
+    private File[] listFiles() {
+
+        File[] historyFiles = this.historyDir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isFile() && pathname.getName().endsWith(FILE_SUFFIX);
+            }
+        });
+        return historyFiles == null ? new File[0] : historyFiles;
+    }
+}
@@ -0,0 +1,168 @@
+package se.osdsquash.xml;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+/**
+ * Pools of pre-configured JAXB marshallers, unmarshallers and schema validators.
+ *
+ * <p>
+ * Creating and configuring a marshaller is costly compared to marshalling one customer,
+ * and the objects are not thread safe. Borrow one, use it in the current thread only,
+ * and release it in a <code>finally</code> block. An object that has thrown may be
+ * released, since JAXB resets its state at the start of every call.
+ * </p>
+ * <p>
+ * The marshallers never validate. Validation is a separate step, see
+ * <code>borrowValidator()</code>, so it can be skipped for trusted internal writes and
+ * timed on its own.
+ * </p>
+ */
+public class JaxbPool {
+
+    /**
+     * The marshaller configurations
+     */
+    public enum MarshallerType {
+
+        /**
+         * A whole, formatted UTF-8 document, e.g. the XML file
+         */
+        DOCUMENT,
+
+        /**
+         * A UTF-8 fragment without XML declaration, e.g. one customer in the journal
+         */
+        FRAGMENT
+    }
+
+    private final JAXBContext jaxbContext;
+    private final Schema schema;
+
+    private final Queue<Marshaller> documentMarshallers = new ConcurrentLinkedQueue<>();
+    private final Queue<Marshaller> fragmentMarshallers = new ConcurrentLinkedQueue<>();
+    private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<>();
+    private final Queue<Unmarshaller> validatingUnmarshallers = new ConcurrentLinkedQueue<>();
+    private final Queue<Validator> validators = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates empty pools, the objects are created when first needed
+     *
+     * @param jaxbContext JAXB context that can handle <code>CustomersType</code>
+     * @param schema The schema of the customer XML
+     */
+    public JaxbPool(JAXBContext jaxbContext, Schema schema) {
+        this.jaxbContext = jaxbContext;
+        this.schema = schema;
+    }
+
+    /**
+     * Returns the JAXB context of the pool
+     * @return The JAXB context
+     */
+    public JAXBContext getContext() {
+        return this.jaxbContext;
+    }
+
+    /**
+     * Returns the schema of the customer XML
+     * @return The schema
+     */
+    public Schema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * Borrows a marshaller
+     *
+     * @param type The configuration
+     * @return A marshaller, to give back with <code>releaseMarshaller</code>
+     * @throws JAXBException If a new marshaller can't be created
+     */
+    public Marshaller borrowMarshaller(MarshallerType type) throws JAXBException {
+
+        Marshaller marshaller = this.getMarshallers(type).poll();
+        if (marshaller == null) {
+            marshaller = this.jaxbContext.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+            if (type == MarshallerType.DOCUMENT) {
+                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+            } else {
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            }
+        }
+        return marshaller;
+    }
+
+    /**
+     * Gives back a borrowed marshaller
+     *
+     * @param type The configuration it was borrowed with
+     * @param marshaller The marshaller
+     */
+    public void releaseMarshaller(MarshallerType type, Marshaller marshaller) {
+        this.getMarshallers(type).offer(marshaller);
+    }
+
+    /**
+     * Borrows an unmarshaller
+     *
+     * @param validating True to validate against the schema while unmarshalling
+     * @return An unmarshaller, to give back with <code>releaseUnmarshaller</code>
+     * @throws JAXBException If a new unmarshaller can't be created
+     */
+    public Unmarshaller borrowUnmarshaller(boolean validating) throws JAXBException {
+
+        Unmarshaller unmarshaller = (validating
+            ? this.validatingUnmarshallers
+            : this.unmarshallers).poll();
+        if (unmarshaller == null) {
+            unmarshaller = this.jaxbContext.createUnmarshaller();
+            if (validating) {
+                unmarshaller.setSchema(this.schema);
+            }
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * Gives back a borrowed unmarshaller
+     *
+     * @param validating The value it was borrowed with
+     * @param unmarshaller The unmarshaller
+     */
+    public void releaseUnmarshaller(boolean validating, Unmarshaller unmarshaller) {
+        (validating ? this.validatingUnmarshallers : this.unmarshallers).offer(unmarshaller);
+    }
+
+    /**
+     * Borrows a validator for the customer XML schema
+     * @return A validator, to give back with <code>releaseValidator</code>
+     */
+    public Validator borrowValidator() {
+        Validator validator = this.validators.poll();
+        return validator == null ? this.schema.newValidator() : validator;
+    }
+
+    /**
+     * Gives back a borrowed validator
+     * @param validator The validator
+     */
+    public void releaseValidator(Validator validator) {
+        validator.reset();
+        this.validators.offer(validator);
+    }
+
+    private Queue<Marshaller> getMarshallers(MarshallerType type) {
+        return type == MarshallerType.DOCUMENT
+            ? this.documentMarshallers
+            : this.fragmentMarshallers;
+    }
+}
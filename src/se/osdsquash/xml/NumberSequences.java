@@ -0,0 +1,235 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * The customer and invoice number series, kept in a small file of their own.
+ *
+ * <p>
+ * Numbers are handed out from blocks reserved in the file, e.g. 100 at a time, so a new
+ * number normally costs one atomic increment, and a new block costs one small, synced
+ * file write. After a crash, the unused rest of a block is skipped, so a number is never
+ * handed out twice. <code>close()</code> gives the unused rest back when the program exits,
+ * and the last invoice numbers handed out can be given back if they were never used.
+ * </p>
+ * <p>
+ * The file is: <code>[int magic][int customer nr][int invoice nr][int CRC32]</code>,
+ * holding the highest reserved number of each series. It is replaced atomically.
+ * </p>
+ */
+public class NumberSequences {
+
+    private static final int MAGIC = 0x53514B53; // "SQKS"
+    private static final int FILE_LENGTH = 16;
+
+    private final File sequenceFile;
+    private final int blockSize;
+
+    private final Sequence customerNrs;
+    private final Sequence invoiceNrs;
+
+    /**
+     * Opens the sequences. The numbers in use are the highest of the stored counters
+     * and the reserved numbers in the file.
+     *
+     * @param sequenceFile The sequence file, may not exist
+     * @param blockSize Number of numbers to reserve at a time
+     * @param currentCustomerNr Last used customer nr, according to the database
+     * @param currentInvoiceNr Last used invoice nr, according to the database
+     */
+    protected NumberSequences(
+        File sequenceFile,
+        int blockSize,
+        int currentCustomerNr,
+        int currentInvoiceNr) {
+
+        this.sequenceFile = sequenceFile;
+        this.blockSize = Math.max(1, blockSize);
+
+        int reservedCustomerNr = currentCustomerNr;
+        int reservedInvoiceNr = currentInvoiceNr;
+        if (sequenceFile.isFile()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(sequenceFile.toPath()));
+                if (buffer.remaining() != FILE_LENGTH || buffer.getInt() != MAGIC) {
+                    throw new IOException("Inte en nummerserie-fil");
+                }
+                reservedCustomerNr = buffer.getInt();
+                reservedInvoiceNr = buffer.getInt();
+                if (buffer.getInt() != checksum(reservedCustomerNr, reservedInvoiceNr)) {
+                    throw new IOException("Felaktig checksumma");
+                }
+            } catch (IOException exception) {
+                throw new RuntimeException(
+                    "FEL när nummerserierna skulle läsas från "
+                        + sequenceFile.getPath()
+                        + ". Felmeddelande: "
+                        + exception.getMessage(),
+                    exception);
+            }
+        }
+
+        // Numbers up to the reserved ones may have been used before a crash
+        int startCustomerNr = Math.max(currentCustomerNr, reservedCustomerNr);
+        int startInvoiceNr = Math.max(currentInvoiceNr, reservedInvoiceNr);
+        this.customerNrs = new Sequence(startCustomerNr);
+        this.invoiceNrs = new Sequence(startInvoiceNr);
+    }
+
+    /**
+     * Hands out a new customer nr
+     * @return A new, unique customer nr
+     */
+    public int nextCustomerNr() {
+        return this.next(this.customerNrs, 1);
+    }
+
+    /**
+     * Hands out a block of consecutive invoice numbers
+     *
+     * @param count Number of invoice numbers, at least 1
+     * @return The first of the invoice numbers
+     */
+    public int nextInvoiceNrs(int count) {
+        return this.next(this.invoiceNrs, count);
+    }
+
+    /**
+     * Returns the last customer nr handed out
+     * @return The current customer nr
+     */
+    public int getCurrentCustomerNr() {
+        return this.customerNrs.current.get();
+    }
+
+    /**
+     * Returns the last invoice nr handed out
+     * @return The current invoice nr
+     */
+    public int getCurrentInvoiceNr() {
+        return this.invoiceNrs.current.get();
+    }
+
+    /**
+     * Gives back the last invoice numbers handed out, e.g. by a cancelled invoice run, so they
+     * are handed out again. Nothing is given back if later numbers are handed out, since the
+     * series must not get a gap. The numbers stay reserved in the file.
+     *
+     * @param firstInvoiceNr The first of the invoice numbers
+     * @param count Number of invoice numbers, handed out by one call
+     * @return True if given back, false if later numbers are handed out
+     */
+    public synchronized boolean releaseInvoiceNrs(int firstInvoiceNr, int count) {
+        return this.invoiceNrs.current.compareAndSet(
+            firstInvoiceNr + count - 1,
+            firstInvoiceNr - 1);
+    }
+
+    /**
+     * Gives back the reserved but unused numbers, so the series continue without
+     * a gap on next start. The sequences must not be used afterwards.
+     */
+    public synchronized void close() {
+        this.customerNrs.reservedNr = this.customerNrs.current.get();
+        this.invoiceNrs.reservedNr = this.invoiceNrs.current.get();
+        try {
+            this.writeFile(this.customerNrs.reservedNr, this.invoiceNrs.reservedNr);
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då nummerserierna skulle sparas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+    }
+
+    // Increments the sequence, reserving a new block first if needed
+    private int next(Sequence sequence, int count) {
+
+        while (true) {
+            int current = sequence.current.get();
+            int last = current + count;
+            if (last > sequence.reservedNr) {
+                this.reserve(sequence, last);
+            } else if (sequence.current.compareAndSet(current, last)) {
+                return current + 1;
+            }
+        }
+    }
+
+    // Reserves numbers up to (at least) the needed one, and makes the reservation durable
+    private synchronized void reserve(Sequence sequence, int neededNr) {
+
+        if (neededNr <= sequence.reservedNr) {
+            // Another thread got here first
+            return;
+        }
+
+        int reservedNr = neededNr + this.blockSize - 1;
+        try {
+            if (sequence == this.customerNrs) {
+                this.writeFile(reservedNr, this.invoiceNrs.reservedNr);
+            } else {
+                this.writeFile(this.customerNrs.reservedNr, reservedNr);
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då nummerserierna skulle sparas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+
+        // Only hand out the numbers when the reservation is on disk
+        sequence.reservedNr = reservedNr;
+    }
+
+    // Writes to a temporary file, which replaces the sequence file when it is on disk
+    private void writeFile(int reservedCustomerNr, int reservedInvoiceNr) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_LENGTH);
+        buffer.putInt(MAGIC);
+        buffer.putInt(reservedCustomerNr);
+        buffer.putInt(reservedInvoiceNr);
+        buffer.putInt(checksum(reservedCustomerNr, reservedInvoiceNr));
+
+        File tempFile = new File(this.sequenceFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            fileOutput.write(buffer.array());
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(
+            tempFile.toPath(),
+            this.sequenceFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int checksum(int reservedCustomerNr, int reservedInvoiceNr) {
+        CRC32 crc = new CRC32();
+        crc.update(
+            ByteBuffer.allocate(8).putInt(reservedCustomerNr).putInt(reservedInvoiceNr).array());
+        return (int) crc.getValue();
+    }
+
+    // One number series
+    private static final class Sequence {
+
+        // Last number handed out
+        private final AtomicInteger current;
+
+        // Highest number reserved in the file, only raised when the file is written
+        private volatile int reservedNr;
+
+        private Sequence(int startNr) {
+            this.current = new AtomicInteger(startNr);
+            this.reservedNr = startNr;
+        }
+    }
+}
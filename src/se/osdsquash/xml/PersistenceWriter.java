@@ -0,0 +1,192 @@
+package se.osdsquash.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import se.osdsquash.logger.SquashLogger;
+
+/**
+ * Background thread that writes repository checkpoints.
+ *
+ * <p>
+ * Mutations are already durable in the journal, so the whole repository doesn't have to be
+ * re-written by the thread making the change. Instead the repository signals that it is dirty,
+ * and this thread writes one checkpoint when no new signal has arrived for the configured
+ * window. A burst of changes, e.g. a user saving several customers, gives one write.
+ * </p>
+ * <p>
+ * Callers that need the checkpoint on disk use <code>flush()</code> or
+ * <code>awaitDurable()</code>. A failed write is logged and retried after the window.
+ * </p>
+ */
+public class PersistenceWriter implements Runnable {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    private final XmlRepository xmlRepository;
+    private final long windowMillis;
+    private final Thread thread;
+
+    // Writer state, guarded by the lock
+    private final Object lock = new Object();
+    private boolean dirty = false;
+    private boolean writing = false;
+    private boolean flushRequested = false;
+    private boolean stopped = false;
+    private long writeAtMillis = 0;
+
+    // Waiting for the next write to start, and for the running write to finish
+    private List<CompletableFuture<Void>> nextWriteWaiters = new ArrayList<>();
+    private List<CompletableFuture<Void>> runningWriteWaiters = new ArrayList<>();
+
+    /**
+     * Creates and starts the writer thread
+     *
+     * @param xmlRepository The repository to write checkpoints for
+     * @param windowMillis Time to wait for more changes before writing
+     */
+    protected PersistenceWriter(XmlRepository xmlRepository, long windowMillis) {
+        this.xmlRepository = xmlRepository;
+        this.windowMillis = Math.max(0, windowMillis);
+
+        this.thread = new Thread(this, "SquashPersistenceWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Signals that the repository has changed. The checkpoint is written when no other
+     * change has been signalled for the whole window.
+     */
+    public void markDirty() {
+        synchronized (this.lock) {
+            this.dirty = true;
+            this.writeAtMillis = System.currentTimeMillis() + this.windowMillis;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Asks for the current state to be written right away, without waiting for the window
+     *
+     * @return A future that completes when all changes signalled so far are on disk
+     */
+    public Future<Void> flush() {
+
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (this.lock) {
+            if (this.dirty) {
+                this.nextWriteWaiters.add(durable);
+                this.flushRequested = true;
+                this.lock.notifyAll();
+            } else if (this.writing) {
+                // The running write already contains every signalled change
+                this.runningWriteWaiters.add(durable);
+            } else {
+                durable.complete(null);
+            }
+        }
+        return durable;
+    }
+
+    /**
+     * Writes the current state right away, and waits until it is on disk
+     * @throws RuntimeException If the write fails
+     */
+    public void awaitDurable() {
+        try {
+            this.flush().get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(exception);
+        } catch (ExecutionException exception) {
+            throw new RuntimeException(
+                "Fel då kunddatabasen skulle sparas. Felmeddelande: "
+                    + exception.getCause().getMessage(),
+                exception.getCause());
+        }
+    }
+
+    /**
+     * Writes any pending changes and stops the writer thread
+     */
+    public void shutdown() {
+        try {
+            this.awaitDurable();
+        } finally {
+            synchronized (this.lock) {
+                this.stopped = true;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+
+        while (true) {
+
+            List<CompletableFuture<Void>> waiters;
+            synchronized (this.lock) {
+                while (!this.stopped && !this.isWriteDue()) {
+                    try {
+                        if (this.dirty) {
+                            this.lock.wait(
+                                Math.max(1, this.writeAtMillis - System.currentTimeMillis()));
+                        } else {
+                            this.lock.wait();
+                        }
+                    } catch (InterruptedException exception) {
+                        return;
+                    }
+                }
+                if (this.stopped) {
+                    return;
+                }
+
+                // Changes signalled from now on belong to the next write
+                this.dirty = false;
+                this.flushRequested = false;
+                this.writing = true;
+                waiters = this.nextWriteWaiters;
+                this.nextWriteWaiters = new ArrayList<>();
+                this.runningWriteWaiters = waiters;
+            }
+
+            Exception failure = null;
+            try {
+                this.xmlRepository.writeCheckpoint();
+            } catch (Exception exception) {
+                failure = exception;
+                logger.log("Fel då kunddatabasen skulle sparas i bakgrunden", exception);
+            }
+
+            synchronized (this.lock) {
+                this.writing = false;
+                this.runningWriteWaiters = new ArrayList<>();
+                if (failure != null) {
+                    // Try again later, the changes are still safe in the journal
+                    this.dirty = true;
+                    this.writeAtMillis = System.currentTimeMillis() + this.windowMillis;
+                }
+            }
+
+            for (CompletableFuture<Void> waiter : waiters) {
+                if (failure == null) {
+                    waiter.complete(null);
+                } else {
+                    waiter.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    // Is there something to write now? Called with the lock held.
+    private boolean isWriteDue() {
+        return this.dirty
+            && (this.flushRequested || System.currentTimeMillis() >= this.writeAtMillis);
+    }
+}
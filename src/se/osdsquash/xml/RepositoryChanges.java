@@ -0,0 +1,62 @@
+package se.osdsquash.xml;
+
+import java.util.List;
+
+import se.osdsquash.xml.jaxb.CustomerType;
+
+/**
+ * Class holding the customers changed and deleted since a given repository version
+ */
+public class RepositoryChanges {
+
+    private final long version;
+    private final List<CustomerType> changedCustomers;
+    private final List<String> deletedCustomerUUIDs;
+
+    protected RepositoryChanges(
+        long version,
+        List<CustomerType> changedCustomers,
+        List<String> deletedCustomerUUIDs) {
+
+        this.version = version;
+        this.changedCustomers = changedCustomers;
+        this.deletedCustomerUUIDs = deletedCustomerUUIDs;
+    }
+
+    /**
+     * Returns the repository version these changes lead up to.
+     * Pass it to the next call, to get the changes made after these.
+     *
+     * @return The current version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the new and changed customers, in the order they were last changed
+     *
+     * @return The changed customers, empty list if none
+     */
+    public List<CustomerType> getChangedCustomers() {
+        return this.changedCustomers;
+    }
+
+    /**
+     * Returns the UUIDs of the deleted customers, in the order they were deleted
+     *
+     * @return The deleted customer UUIDs, empty list if none
+     */
+    public List<String> getDeletedCustomerUUIDs() {
+        return this.deletedCustomerUUIDs;
+    }
+
+    /**
+     * Returns true if nothing has changed
+     *
+     * @return True if no customer was changed or deleted
+     */
+    public boolean isEmpty() {
+        return this.changedCustomers.isEmpty() && this.deletedCustomerUUIDs.isEmpty();
+    }
+}
@@ -0,0 +1,566 @@
+package se.osdsquash.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import se.osdsquash.logger.SquashLogger;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+
+/**
+ * Append-only write-ahead journal for the customer repository.
+ *
+ * <p>
+ * Each mutation is written as one small record, instead of re-writing the whole XML file.
+ * A record on disk is: <code>[int length][int CRC32][payload]</code>, where the payload
+ * starts with a record type byte. Records are made durable with group commit, e.g. one
+ * fsync can cover records appended by several threads.
+ * </p>
+ * <p>
+ * The journal is always relative to the last snapshot (checkpoint). When a checkpoint
+ * starts, the journal is rotated: its records are moved to a side file, which is deleted
+ * when the new snapshot is on disk. All records set absolute values, so replaying the
+ * side file on top of a snapshot that already contains it is harmless.
+ * </p>
+ */
+public class RepositoryJournal {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    /**
+     * The namespace of the customer XML, used when (un)marshalling customer fragments
+     */
+    public static final String CUSTOMERS_NAMESPACE = "http://xsd.customer.ostersundssquash.se";
+
+    private static final QName CUSTOMER_QNAME = new QName(CUSTOMERS_NAMESPACE, "Customer");
+    private static final QName INVOICE_QNAME = new QName(CUSTOMERS_NAMESPACE, "Invoice");
+
+    // Record types
+    private static final byte CUSTOMER_SAVED = 1;
+    private static final byte CUSTOMER_DELETED = 2;
+    private static final byte INVOICE_DELETED = 3;
+    private static final byte COUNTERS_SET = 4; // Only read, the series have their own file
+    private static final byte INVOICE_ADDED = 5;
+
+    // Sanity limit, anything larger than this is treated as a torn/corrupt record
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final File journalFile;
+    private final File rotatedFile;
+    private final JaxbPool jaxbPool;
+    private final FileChannel channel;
+
+    // Append state, guarded by the append lock
+    private final Object appendLock = new Object();
+    private long appendedSeq = 0;
+    private int recordCount = 0;
+
+    // Sync state, guarded by the sync lock
+    private final Object syncLock = new Object();
+    private long syncedSeq = 0;
+    private boolean syncInProgress = false;
+
+    /**
+     * Callback used when replaying the journal on top of a loaded snapshot
+     */
+    public interface Replayer {
+
+        /**
+         * A customer was created or updated
+         * @param customer The complete customer, including subscriptions and invoices
+         */
+        void customerSaved(CustomerType customer);
+
+        /**
+         * A customer was deleted
+         * @param customerUUID Customer UUID as a string
+         */
+        void customerDeleted(String customerUUID);
+
+        /**
+         * An invoice was deleted
+         * @param invoiceNr The invoice number
+         */
+        void invoiceDeleted(int invoiceNr);
+
+        /**
+         * An invoice was added to a customer
+         * @param customerUUID Customer UUID as a string
+         * @param invoice The invoice
+         */
+        void invoiceAdded(String customerUUID, InvoiceType invoice);
+
+        /**
+         * The customer and invoice number series were updated, by an older version
+         * @param currentCustomerNr Current/last used customer nr
+         * @param currentInvoiceNr Current/last used invoice nr
+         */
+        void countersSet(int currentCustomerNr, int currentInvoiceNr);
+    }
+
+    /**
+     * Opens (or creates) the journal file
+     *
+     * @param journalFile The journal file
+     * @param jaxbPool Pool of JAXB objects for the customer XML
+     */
+    protected RepositoryJournal(File journalFile, JaxbPool jaxbPool) {
+        this.journalFile = journalFile;
+        this.rotatedFile = new File(journalFile.getPath() + ".old");
+        this.jaxbPool = jaxbPool;
+        try {
+            this.channel = FileChannel.open(
+                journalFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "FEL när journalfilen skulle öppnas: "
+                    + journalFile.getPath()
+                    + ". Felmeddelande: "
+                    + exception.getMessage(),
+                exception);
+        }
+    }
+
+    /**
+     * Replays all valid records in the journal, starting with a rotated journal left
+     * by an unfinished checkpoint. A torn or corrupt tail, e.g. from a crash in the
+     * middle of a write, ends the replay of a file and is cut off from it.
+     *
+     * @param replayer Callback that applies each record
+     * @return Number of replayed records
+     */
+    public synchronized int replay(Replayer replayer) {
+
+        int replayed = 0;
+        try {
+            if (this.rotatedFile.isFile()) {
+                FileChannel rotatedChannel = FileChannel.open(
+                    this.rotatedFile.toPath(),
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+                try {
+                    replayed += this.replayChannel(rotatedChannel, replayer);
+                } finally {
+                    rotatedChannel.close();
+                }
+            }
+
+            int currentReplayed = this.replayChannel(this.channel, replayer);
+            replayed += currentReplayed;
+
+            synchronized (this.appendLock) {
+                this.recordCount = currentReplayed;
+            }
+
+        } catch (IOException | JAXBException exception) {
+            throw new RuntimeException(
+                "FEL när journalen skulle läsas in. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+        return replayed;
+    }
+
+    /**
+     * Appends a "customer saved" record
+     * @param customer The customer, written in full
+     * @return The record sequence, to use with <code>sync(long)</code>
+     */
+    public long appendCustomerSaved(CustomerType customer) {
+
+        try {
+            ByteArrayOutputStream customerXml = new ByteArrayOutputStream(2048);
+            this.marshalFragment(
+                new JAXBElement<>(CUSTOMER_QNAME, CustomerType.class, customer),
+                customerXml);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(customerXml.size() + 8);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(CUSTOMER_SAVED);
+            data.writeInt(customerXml.size());
+            customerXml.writeTo(data);
+            data.flush();
+            return this.append(bytes.toByteArray());
+
+        } catch (IOException | JAXBException exception) {
+            throw new RuntimeException(
+                "Fel då kunden skulle skrivas till journalen. Felmeddelande: "
+                    + exception.getMessage(),
+                exception);
+        }
+    }
+
+    /**
+     * Appends a "customer deleted" record
+     * @param customerUUID Customer UUID as a string
+     * @return The record sequence, to use with <code>sync(long)</code>
+     */
+    public long appendCustomerDeleted(String customerUUID) {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(CUSTOMER_DELETED);
+            data.writeUTF(customerUUID);
+            data.flush();
+            return this.append(bytes.toByteArray());
+
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Appends an "invoice deleted" record
+     * @param invoiceNr The invoice number
+     * @return The record sequence, to use with <code>sync(long)</code>
+     */
+    public long appendInvoiceDeleted(int invoiceNr) {
+
+        ByteBuffer payload = ByteBuffer.allocate(5);
+        payload.put(INVOICE_DELETED);
+        payload.putInt(invoiceNr);
+        return this.append(payload.array());
+    }
+
+    /**
+     * Appends an "invoice added" record
+     * @param customerUUID Customer UUID as a string
+     * @param invoice The invoice, written in full
+     * @return The record sequence, to use with <code>sync(long)</code>
+     */
+    public long appendInvoiceAdded(String customerUUID, InvoiceType invoice) {
+
+        try {
+            ByteArrayOutputStream invoiceXml = new ByteArrayOutputStream(512);
+            this.marshalFragment(
+                new JAXBElement<>(INVOICE_QNAME, InvoiceType.class, invoice),
+                invoiceXml);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(invoiceXml.size() + 64);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(INVOICE_ADDED);
+            data.writeUTF(customerUUID);
+            data.writeInt(invoiceXml.size());
+            invoiceXml.writeTo(data);
+            data.flush();
+            return this.append(bytes.toByteArray());
+
+        } catch (IOException | JAXBException exception) {
+            throw new RuntimeException(
+                "Fel då fakturan skulle skrivas till journalen. Felmeddelande: "
+                    + exception.getMessage(),
+                exception);
+        }
+    }
+
+    /**
+     * Makes sure all records up to (and including) the given sequence are on disk.
+     * <p>
+     * This is a group commit: if another thread is already syncing, we wait for it and
+     * only issue a new fsync if that one did not cover our record.
+     * </p>
+     *
+     * @param sequence A sequence returned by one of the append methods
+     */
+    public void sync(long sequence) {
+
+        while (true) {
+            synchronized (this.syncLock) {
+                while (this.syncInProgress && this.syncedSeq < sequence) {
+                    try {
+                        this.syncLock.wait();
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(exception);
+                    }
+                }
+                if (this.syncedSeq >= sequence) {
+                    return;
+                }
+
+                // We are the leader, and will sync everything appended so far
+                this.syncInProgress = true;
+            }
+
+            long target;
+            synchronized (this.appendLock) {
+                target = this.appendedSeq;
+            }
+
+            boolean synced = false;
+            try {
+                this.channel.force(false);
+                synced = true;
+            } catch (IOException exception) {
+                throw new RuntimeException(
+                    "Fel då journalen skulle synkas till disk. Felmeddelande: "
+                        + exception.getMessage(),
+                    exception);
+            } finally {
+                synchronized (this.syncLock) {
+                    this.syncInProgress = false;
+                    if (synced) {
+                        this.syncedSeq = Math.max(this.syncedSeq, target);
+                    }
+                    this.syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records written since the last rotation
+     * @return Number of records in the journal
+     */
+    public int getRecordCount() {
+        synchronized (this.appendLock) {
+            return this.recordCount;
+        }
+    }
+
+    /**
+     * Moves all records to the rotated journal file and empties the journal.
+     * Call this when the state for a new snapshot has been captured, and
+     * <code>discardRotated()</code> when the snapshot is on disk.
+     */
+    public void rotate() {
+
+        synchronized (this.appendLock) {
+            try {
+                long size = this.channel.size();
+                if (size > 0) {
+
+                    // Append, in case an earlier checkpoint never finished
+                    FileChannel rotatedChannel = FileChannel.open(
+                        this.rotatedFile.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                    try {
+                        long transferred = 0;
+                        while (transferred < size) {
+                            transferred += this.channel
+                                .transferTo(transferred, size - transferred, rotatedChannel);
+                        }
+                        rotatedChannel.force(true);
+                    } finally {
+                        rotatedChannel.close();
+                    }
+
+                    // If this truncate is lost in a crash, the records are replayed twice
+                    this.channel.truncate(0);
+                    this.channel.position(0);
+                }
+                this.recordCount = 0;
+
+            } catch (IOException exception) {
+                throw new RuntimeException(
+                    "Fel då journalen skulle roteras. Felmeddelande: " + exception.getMessage(),
+                    exception);
+            }
+        }
+    }
+
+    /**
+     * Deletes the rotated journal file. Call this when a new snapshot is on disk.
+     */
+    public void discardRotated() {
+        if (this.rotatedFile.isFile() && !this.rotatedFile.delete()) {
+            logger.log(
+                "Varning: Kunde ej radera roterad journalfil: " + this.rotatedFile.getPath(),
+                true);
+        }
+    }
+
+    /**
+     * Closes the journal file
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException exception) {
+            logger.log("Notis: Kunde ej stänga journalfilen: " + this.journalFile.getPath(), true);
+        }
+    }
+
+    // Writes one framed record and returns its sequence
+    private long append(byte[] payload) {
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+
+        synchronized (this.appendLock) {
+            try {
+                while (frame.hasRemaining()) {
+                    this.channel.write(frame);
+                }
+            } catch (IOException exception) {
+                throw new RuntimeException(
+                    "Fel då journalen skulle skrivas. Felmeddelande: " + exception.getMessage(),
+                    exception);
+            }
+            ++this.recordCount;
+            return ++this.appendedSeq;
+        }
+    }
+
+    // Replays all valid records of one journal file, cutting off a torn tail
+    private int replayChannel(FileChannel journalChannel, Replayer replayer)
+        throws IOException, JAXBException {
+
+        int replayed = 0;
+        long validLength = 0;
+        long fileSize = journalChannel.size();
+        journalChannel.position(0);
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (validLength < fileSize) {
+
+            header.clear();
+            if (this.readFully(journalChannel, header) < 8) {
+                break;
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            if (this.readFully(journalChannel, payload) < length) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            this.applyRecord(payload.array(), replayer);
+            validLength += 8 + length;
+            ++replayed;
+        }
+
+        if (validLength < fileSize) {
+            logger.log(
+                "Varning: Journalen hade en ofullständig post i slutet, som ignoreras. Giltig längd: "
+                    + validLength
+                    + " av "
+                    + fileSize
+                    + " bytes",
+                true);
+            journalChannel.truncate(validLength);
+            journalChannel.force(true);
+        }
+        journalChannel.position(validLength);
+        return replayed;
+    }
+
+    // Reads until the buffer is full or EOF, returns nr of bytes read
+    private int readFully(FileChannel journalChannel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = journalChannel.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    // Decodes one record payload and hands it to the replayer
+    private void applyRecord(byte[] payload, Replayer replayer)
+        throws IOException, JAXBException {
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = data.readByte();
+        switch (type) {
+            case CUSTOMER_SAVED : {
+                int xmlLength = data.readInt();
+                byte[] customerXml = new byte[xmlLength];
+                data.readFully(customerXml);
+                CustomerType customer = this.unmarshalFragment(customerXml, CustomerType.class);
+                replayer.customerSaved(customer);
+                break;
+            }
+            case CUSTOMER_DELETED : {
+                replayer.customerDeleted(data.readUTF());
+                break;
+            }
+            case INVOICE_DELETED : {
+                replayer.invoiceDeleted(data.readInt());
+                break;
+            }
+            case INVOICE_ADDED : {
+                String customerUUID = data.readUTF();
+                int xmlLength = data.readInt();
+                byte[] invoiceXml = new byte[xmlLength];
+                data.readFully(invoiceXml);
+                InvoiceType invoice = this.unmarshalFragment(invoiceXml, InvoiceType.class);
+                replayer.invoiceAdded(customerUUID, invoice);
+                break;
+            }
+            case COUNTERS_SET : {
+                int customerNr = data.readInt();
+                int invoiceNr = data.readInt();
+                replayer.countersSet(customerNr, invoiceNr);
+                break;
+            }
+            default :
+                throw new EOFException("Okänd journalpost, typ " + type);
+        }
+    }
+
+    // Records are written from the validated in-memory model, and read back only by
+    // the journal itself, so neither direction validates against the schema
+    private void marshalFragment(JAXBElement<?> element, ByteArrayOutputStream output)
+        throws JAXBException {
+
+        Marshaller marshaller = this.jaxbPool.borrowMarshaller(JaxbPool.MarshallerType.FRAGMENT);
+        try {
+            marshaller.marshal(element, output);
+        } finally {
+            this.jaxbPool.releaseMarshaller(JaxbPool.MarshallerType.FRAGMENT, marshaller);
+        }
+    }
+
+    private <T> T unmarshalFragment(byte[] xml, Class<T> type) throws JAXBException {
+
+        Unmarshaller unmarshaller = this.jaxbPool.borrowUnmarshaller(false);
+        try {
+            return unmarshaller
+                .unmarshal(new StreamSource(new ByteArrayInputStream(xml)), type)
+                .getValue();
+        } finally {
+            this.jaxbPool.releaseUnmarshaller(false, unmarshaller);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package se.osdsquash.xml;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import se.osdsquash.common.SquashRuntimeInfo;
+import se.osdsquash.xml.jaxb.CustomersType;
+
+/**
+ * Command that copies the customer database from one store to another, in the data
+ * directory of the program.
+ *
+ * <p>
+ * Usage: <code>RepositoryMigration &lt;from store&gt; &lt;to store&gt;</code>, where the
+ * stores are named as in the <code>repository.store</code> property. Run it when the program
+ * is not running. Changes still in the journal are applied on next start, as usual.
+ * </p>
+ */
+public class RepositoryMigration {
+
+    private static final String XSD_SCHEMA_PATH = "se/osdsquash/xml/Customers.xsd";
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 2 || args[0].equals(args[1])) {
+            System.err.println(
+                "Usage: RepositoryMigration <from> <to>, stores: "
+                    + String.join(", ", RepositoryStores.NAMES));
+            System.exit(1);
+        }
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(CustomersType.class);
+        Schema schema = SchemaFactory
+            .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(RepositoryMigration.class.getClassLoader().getResource(XSD_SCHEMA_PATH));
+        JaxbPool jaxbPool = new JaxbPool(jaxbContext, schema);
+
+        String dataDirPath = SquashRuntimeInfo.getDataDirPath();
+        RepositoryStore fromStore = RepositoryStores
+            .create(args[0], dataDirPath, jaxbPool);
+        RepositoryStore toStore = RepositoryStores
+            .create(args[1], dataDirPath, jaxbPool);
+
+        if (fromStore.getLastModified() == 0) {
+            System.err.println("Hittade ingen databas av typen " + args[0] + " i " + dataDirPath);
+            System.exit(1);
+        }
+
+        CustomersType customersType = fromStore.load();
+        toStore.allChanged();
+        toStore.capture(customersType).write();
+
+        System.out.println(
+            "Kopierade "
+                + customersType.getCustomer().size()
+                + " kunder från "
+                + fromStore.getName()
+                + " till "
+                + toStore.getName());
+    }
+}
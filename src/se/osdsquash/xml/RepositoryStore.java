@@ -0,0 +1,98 @@
+package se.osdsquash.xml;
+
+import java.io.IOException;
+
+import se.osdsquash.xml.jaxb.CustomersType;
+
+/**
+ * Storage of the customer repository on disk.
+ *
+ * <p>
+ * The repository keeps all data in memory, and every change is made durable in the journal
+ * first. A store holds the checkpoint the journal is relative to: it loads the whole
+ * repository on startup, and writes checkpoints. The repository tells the store which
+ * customers were saved or deleted, so a store can write only those. The customer and
+ * invoice number series, and the invoice meta-data, are part of the checkpoint. Paid and
+ * cancelled invoices are not, they are kept in the <code>InvoiceHistory</code>.
+ * </p>
+ * <p>
+ * A checkpoint is written in two steps: <code>capture</code> is called with the repository
+ * lock held and must copy everything it needs, and the returned <code>PendingWrite</code>
+ * writes it to disk without the lock. The change tracking methods are also called with
+ * the repository lock held.
+ * </p>
+ */
+public interface RepositoryStore {
+
+    /**
+     * Returns the name of the store, as used in the properties file
+     * @return The store name
+     */
+    String getName();
+
+    /**
+     * Returns the time the last checkpoint was written
+     * @return Time in millis, or 0 if the store doesn't exist (yet)
+     */
+    long getLastModified();
+
+    /**
+     * Loads the whole repository
+     *
+     * @return The repository root object
+     * @throws IOException If the store can't be read, or is corrupt
+     */
+    CustomersType load() throws IOException;
+
+    /**
+     * Marks a customer as created or changed, including its invoices
+     * @param customerUUID Customer UUID as a string
+     */
+    void customerChanged(String customerUUID);
+
+    /**
+     * Marks a customer as deleted
+     * @param customerUUID Customer UUID as a string
+     */
+    void customerDeleted(String customerUUID);
+
+    /**
+     * Marks all customers as changed, e.g. when the repository was loaded from
+     * another store. The next checkpoint must write everything.
+     */
+    void allChanged();
+
+    /**
+     * Captures the state to write in the next checkpoint, and resets the change tracking
+     *
+     * @param customersType The repository root object
+     * @return The write to perform
+     * @throws IOException If the state can't be encoded
+     */
+    PendingWrite capture(CustomersType customersType) throws IOException;
+
+    /**
+     * A captured checkpoint, not yet on disk
+     */
+    interface PendingWrite {
+
+        /**
+         * Writes the checkpoint to disk
+         * @throws IOException If writing fails
+         */
+        void write() throws IOException;
+
+        /**
+         * Returns the time spent capturing and writing this checkpoint
+         * @return The timings
+         */
+        SaveTimings getTimings();
+
+        /**
+         * Puts the captured changes back into the change tracking of the store, after a
+         * failed write, so the next checkpoint includes them. Called with the repository
+         * lock held.
+         */
+        void restore();
+    }
+}
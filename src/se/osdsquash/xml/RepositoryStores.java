@@ -0,0 +1,81 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+
+/**
+ * Creates the available repository stores, by name. All stores keep their files
+ * in the data directory, using fixed file names.
+ */
+public abstract class RepositoryStores {
+
+    /**
+     * Name of the store with one XML file, see <code>XmlFileStore</code>
+     */
+    public static final String XML = "xml";
+
+    /**
+     * Name of the store with one binary file, see <code>BinarySnapshotStore</code>
+     */
+    public static final String BINARY = "binary";
+
+    /**
+     * Name of the store with one file per customer, see <code>SegmentStore</code>
+     */
+    public static final String SEGMENTS = "segments";
+
+    /**
+     * Name of the store with an embedded SQL database, see <code>EmbeddedSqlStore</code>
+     */
+    public static final String SQL = "sql";
+
+    /**
+     * File name of the XML store
+     */
+    public static final String XML_FILE_NAME = "CustomerDatabase.xml";
+
+    /**
+     * File name of the binary store
+     */
+    public static final String BINARY_FILE_NAME = "CustomerDatabase.dat";
+
+    /**
+     * Directory name of the segment store
+     */
+    public static final String SEGMENTS_DIR_NAME = "customers";
+
+    /**
+     * Database name of the SQL store, H2 adds the file suffix
+     */
+    public static final String SQL_DATABASE_NAME = "CustomerDatabase";
+
+    /**
+     * All store names
+     */
+    public static final String[] NAMES = {XML, BINARY, SEGMENTS, SQL};
+
+    /**
+     * Creates a store. No files are touched until the store is used.
+     *
+     * @param storeName One of the store names
+     * @param dataDirPath The data directory
+     * @param jaxbPool Pool of JAXB objects for the customer XML
+     * @return The store
+     * @throws IllegalArgumentException If the name is unknown
+     */
+    public static RepositoryStore create(
+        String storeName,
+        String dataDirPath,
+        JaxbPool jaxbPool) {
+
+        if (XML.equals(storeName)) {
+            return new XmlFileStore(new File(dataDirPath, XML_FILE_NAME), jaxbPool);
+        } else if (BINARY.equals(storeName)) {
+            return new BinarySnapshotStore(new File(dataDirPath, BINARY_FILE_NAME));
+        } else if (SEGMENTS.equals(storeName)) {
+            return new SegmentStore(new File(dataDirPath, SEGMENTS_DIR_NAME));
+        } else if (SQL.equals(storeName)) {
+            return new EmbeddedSqlStore(new File(dataDirPath, SQL_DATABASE_NAME));
+        }
+        throw new IllegalArgumentException("Okänd lagringstyp: " + storeName);
+    }
+}
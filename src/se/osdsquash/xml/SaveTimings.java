@@ -0,0 +1,47 @@
+package se.osdsquash.xml;
+
+/**
+ * Time spent on one save of the repository, split into marshalling (or encoding),
+ * schema validation and file I/O. Filled in by the thread doing the save.
+ */
+public class SaveTimings {
+
+    private long marshalNanos = 0;
+    private long validateNanos = 0;
+    private long ioNanos = 0;
+
+    /**
+     * Adds time spent marshalling or encoding
+     * @param startNanos Start time, from <code>System.nanoTime()</code>
+     */
+    public void addMarshal(long startNanos) {
+        this.marshalNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Adds time spent validating
+     * @param startNanos Start time, from <code>System.nanoTime()</code>
+     */
+    public void addValidate(long startNanos) {
+        this.validateNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Adds time spent writing files
+     * @param startNanos Start time, from <code>System.nanoTime()</code>
+     */
+    public void addIo(long startNanos) {
+        this.ioNanos += System.nanoTime() - startNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "marshal "
+            + this.marshalNanos / 1000000L
+            + " ms, validate "
+            + this.validateNanos / 1000000L
+            + " ms, I/O "
+            + this.ioNanos / 1000000L
+            + " ms";
+    }
+}
@@ -0,0 +1,276 @@
+package se.osdsquash.xml;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import se.osdsquash.logger.SquashLogger;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * Per-customer segment layout of the customer repository.
+ *
+ * <p>
+ * Every customer is stored in a small segment file of its own, named by the customer UUID,
+ * and the number series are stored in a manifest file. All files use the
+ * <code>BinarySnapshot</code> format. The store keeps track of the customers changed since
+ * the last checkpoint, so a checkpoint only re-writes those segments and the manifest,
+ * instead of the whole repository. The manifest is always written last.
+ * </p>
+ */
+public class SegmentStore implements RepositoryStore {
+
+    private static final SquashLogger logger = SquashLogger.getInstance();
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String MANIFEST_FILE_NAME = "Manifest.dat";
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    private final File segmentsDir;
+    private final File manifestFile;
+
+    // Customers to write and delete on the next checkpoint
+    private final Set<String> changedCustomerUUIDs = new HashSet<>();
+    private final Set<String> deletedCustomerUUIDs = new HashSet<>();
+    private boolean allChanged = false;
+
+    /**
+     * Creates the store. The directory is created by the first checkpoint.
+     * @param segmentsDir Directory holding the segment files and the manifest
+     */
+    public SegmentStore(File segmentsDir) {
+        this.segmentsDir = segmentsDir;
+        this.manifestFile = new File(segmentsDir, MANIFEST_FILE_NAME);
+    }
+
+    @Override
+    public String getName() {
+        return RepositoryStores.SEGMENTS;
+    }
+
+    /**
+     * Returns the time the manifest, which is written last on every checkpoint, was written
+     * @return Time in millis, or 0 if there is no manifest
+     */
+    @Override
+    public long getLastModified() {
+        return this.manifestFile.isFile() ? this.manifestFile.lastModified() : 0;
+    }
+
+    /**
+     * Reads the manifest and all segment files
+     *
+     * @return The repository root object, with the customers in customer nr order
+     * @throws IOException If a file can't be read, or is corrupt
+     */
+    @Override
+    public CustomersType load() throws IOException {
+
+        CustomersType customersType = BinarySnapshot.read(this.manifestFile);
+
+        File[] segmentFiles = this.listSegmentFiles();
+        List<CustomerType> customers = new ArrayList<>(segmentFiles.length);
+        for (File segmentFile : segmentFiles) {
+            customers.addAll(BinarySnapshot.read(segmentFile).getCustomer());
+        }
+        Collections.sort(customers, new Comparator<CustomerType>() {
+
+            @Override
+            public int compare(CustomerType customer1, CustomerType customer2) {
+                return Integer.compare(
+                    customer1.getCustomerInfo().getCustomerNumber(),
+                    customer2.getCustomerInfo().getCustomerNumber());
+            }
+        });
+        customersType.getCustomer().addAll(customers);
+
+        return customersType;
+    }
+
+    @Override
+    public void customerChanged(String customerUUID) {
+        this.deletedCustomerUUIDs.remove(customerUUID);
+        this.changedCustomerUUIDs.add(customerUUID);
+    }
+
+    @Override
+    public void customerDeleted(String customerUUID) {
+        this.changedCustomerUUIDs.remove(customerUUID);
+        this.deletedCustomerUUIDs.add(customerUUID);
+    }
+
+    @Override
+    public void allChanged() {
+        this.allChanged = true;
+        this.changedCustomerUUIDs.clear();
+        this.deletedCustomerUUIDs.clear();
+    }
+
+    /**
+     * Encodes the changed customers and the manifest, and resets the change tracking
+     */
+    @Override
+    public PendingWrite capture(CustomersType customersType) throws IOException {
+
+        long start = System.nanoTime();
+        Checkpoint checkpoint = new Checkpoint(this.allChanged);
+        for (CustomerType customer : customersType.getCustomer()) {
+            String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+            if (this.allChanged || this.changedCustomerUUIDs.contains(customerUUID)) {
+                checkpoint.segments.put(customerUUID, BinarySnapshot.encodeCustomer(customer));
+            }
+        }
+        checkpoint.deletedCustomerUUIDs.addAll(this.deletedCustomerUUIDs);
+
+        CustomersType manifest = OBJECT_FACTORY.createCustomersType();
+        manifest.setCurrentCustomerNr(customersType.getCurrentCustomerNr());
+        manifest.setCurrentInvoiceNr(customersType.getCurrentInvoiceNr());
+        checkpoint.manifest = BinarySnapshot.encode(manifest);
+
+        this.allChanged = false;
+        this.changedCustomerUUIDs.clear();
+        this.deletedCustomerUUIDs.clear();
+        checkpoint.timings.addMarshal(start);
+        return checkpoint;
+    }
+
+    // Puts the changes of a checkpoint that could not be written back into the change tracking
+    private void restore(Checkpoint checkpoint) {
+
+        if (checkpoint.full) {
+            this.allChanged();
+            return;
+        }
+
+        // Later changes to the same customers win
+        for (String customerUUID : checkpoint.segments.keySet()) {
+            if (!this.deletedCustomerUUIDs.contains(customerUUID)) {
+                this.changedCustomerUUIDs.add(customerUUID);
+            }
+        }
+        for (String customerUUID : checkpoint.deletedCustomerUUIDs) {
+            if (!this.changedCustomerUUIDs.contains(customerUUID)) {
+                this.deletedCustomerUUIDs.add(customerUUID);
+            }
+        }
+    }
+
+    // Writes the segments of a captured checkpoint, deletes the segments of deleted
+    // customers and finally writes the manifest. Each file is replaced atomically.
+    private void write(Checkpoint checkpoint) throws IOException {
+
+        if (!this.segmentsDir.isDirectory() && !this.segmentsDir.mkdir()) {
+            throw new IOException(
+                "FEL när segment-katalogen skulle skapas, kontrollera att det går att skriva till lagringsytan!");
+        }
+
+        for (Map.Entry<String, byte[]> segment : checkpoint.segments.entrySet()) {
+            this.writeAtomically(segment.getValue(), this.getSegmentFile(segment.getKey()));
+        }
+
+        for (String customerUUID : checkpoint.deletedCustomerUUIDs) {
+            File segmentFile = this.getSegmentFile(customerUUID);
+            if (segmentFile.isFile() && !segmentFile.delete()) {
+                throw new IOException("Kunde ej radera segmentfil: " + segmentFile.getPath());
+            }
+        }
+
+        // A full checkpoint replaces everything, remove segments of customers no longer present
+        if (checkpoint.full) {
+            for (File segmentFile : this.listSegmentFiles()) {
+                String fileName = segmentFile.getName();
+                String customerUUID = fileName
+                    .substring(0, fileName.length() - SEGMENT_SUFFIX.length());
+                if (!checkpoint.segments.containsKey(customerUUID) && !segmentFile.delete()) {
+                    logger.log(
+                        "Notis: Kunde ej radera gammal segmentfil: " + segmentFile.getPath(),
+                        true);
+                }
+            }
+        }
+
+        this.writeAtomically(checkpoint.manifest, this.manifestFile);
+    }
+
+    private File getSegmentFile(String customerUUID) {
+        return new File(this.segmentsDir, customerUUID + SEGMENT_SUFFIX);
+    }
+
+    private File[] listSegmentFiles() throws IOException {
+
+        File[] segmentFiles = this.segmentsDir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isFile() && pathname.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segmentFiles == null) {
+            throw new IOException("Kunde ej läsa segment-katalogen: " + this.segmentsDir);
+        }
+        return segmentFiles;
+    }
+
+    // Writes to a temporary file, which replaces the target when it is on disk
+    private void writeAtomically(byte[] bytes, File targetFile) throws IOException {
+
+        File tempFile = new File(targetFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            fileOutput.write(bytes);
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(
+            tempFile.toPath(),
+            targetFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Encoded changes of one checkpoint, captured with the repository lock held
+    private final class Checkpoint implements PendingWrite {
+
+        private final boolean full;
+        private final Map<String, byte[]> segments = new LinkedHashMap<>();
+        private final Set<String> deletedCustomerUUIDs = new HashSet<>();
+        private final SaveTimings timings = new SaveTimings();
+        private byte[] manifest;
+
+        private Checkpoint(boolean full) {
+            this.full = full;
+        }
+
+        @Override
+        public void write() throws IOException {
+            long start = System.nanoTime();
+            SegmentStore.this.write(this);
+            this.timings.addIo(start);
+        }
+
+        @Override
+        public SaveTimings getTimings() {
+            return this.timings;
+        }
+
+        @Override
+        public void restore() {
+            SegmentStore.this.restore(this);
+        }
+    }
+}
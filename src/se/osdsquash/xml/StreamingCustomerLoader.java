@@ -0,0 +1,272 @@
+package se.osdsquash.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * Loads the customer XML database by streaming it with StAX.
+ *
+ * <p>
+ * The document is cut at each <code>&lt;Customer&gt;</code> element, and the customer
+ * fragments are unmarshalled in parallel on a fork-join pool. The <code>CustomersType</code>
+ * root is assembled afterwards, keeping the customers in document order.
+ * </p>
+ * <p>
+ * A customer fragment can't be schema validated on its own (only the root is a global
+ * element), so if a schema is given, the whole file is validated by a separate task
+ * running on the same pool, in parallel with the unmarshalling.
+ * </p>
+ */
+public class StreamingCustomerLoader {
+
+    private static final String CUSTOMER_ELEMENT = "Customer";
+    private static final String CURRENT_CUSTOMER_NR_ELEMENT = "CurrentCustomerNr";
+    private static final String CURRENT_INVOICE_NR_ELEMENT = "CurrentInvoiceNr";
+
+    // Number of customer fragments unmarshalled by one task
+    private static final int CUSTOMERS_PER_TASK = 128;
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    private final JAXBContext jaxbContext;
+    private final Schema schema;
+    private final int parallelism;
+
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory;
+
+    /**
+     * Creates a loader
+     *
+     * @param jaxbContext JAXB context that can handle <code>CustomersType</code>
+     * @param schema Schema to validate the file against, or null to skip validation
+     * @param parallelism Number of worker threads to use
+     */
+    public StreamingCustomerLoader(JAXBContext jaxbContext, Schema schema, int parallelism) {
+        this.jaxbContext = jaxbContext;
+        this.schema = schema;
+        this.parallelism = Math.max(1, parallelism);
+
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        this.inputFactory
+            .setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        // Repairing namespaces makes each fragment declare the customer namespace
+        this.outputFactory = XMLOutputFactory.newInstance();
+        this.outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+    }
+
+    /**
+     * Loads the whole XML file
+     *
+     * @param xmlFile The customer database file
+     * @return The root XML element, with all customers
+     * @throws Exception If the file can't be read, parsed or validated
+     */
+    public JAXBElement<CustomersType> load(File xmlFile) throws Exception {
+        return this.load(new FileInputStream(xmlFile), new StreamSource(xmlFile));
+    }
+
+    /**
+     * Loads the whole XML database from memory
+     *
+     * @param xml The customer database file contents
+     * @return The root XML element, with all customers
+     * @throws Exception If the XML can't be parsed or validated
+     */
+    public JAXBElement<CustomersType> load(byte[] xml) throws Exception {
+        return this.load(
+            new ByteArrayInputStream(xml),
+            new StreamSource(new ByteArrayInputStream(xml)));
+    }
+
+    private JAXBElement<CustomersType> load(InputStream xmlStream, Source validationSource)
+        throws Exception {
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            Future<Void> validation = null;
+            if (this.schema != null) {
+                validation = pool.submit(new ValidationTask(validationSource));
+            }
+
+            CustomersType customersType = OBJECT_FACTORY.createCustomersType();
+            List<Future<List<CustomerType>>> unmarshalTasks = new ArrayList<>();
+
+            XMLEventReader eventReader = null;
+            try {
+                eventReader = this.inputFactory.createXMLEventReader(xmlStream);
+
+                List<byte[]> fragments = new ArrayList<>(CUSTOMERS_PER_TASK);
+                int depth = 0;
+                while (eventReader.hasNext()) {
+
+                    XMLEvent event = eventReader.peek();
+                    if (event.isStartElement()) {
+
+                        String localName = event.asStartElement().getName().getLocalPart();
+                        if (depth == 1 && CUSTOMER_ELEMENT.equals(localName)) {
+
+                            // Cut out the customer, this consumes the whole element
+                            fragments.add(this.copyElement(eventReader));
+                            if (fragments.size() == CUSTOMERS_PER_TASK) {
+                                unmarshalTasks.add(pool.submit(new UnmarshalTask(fragments)));
+                                fragments = new ArrayList<>(CUSTOMERS_PER_TASK);
+                            }
+                            continue;
+
+                        } else if (depth == 1 && CURRENT_CUSTOMER_NR_ELEMENT.equals(localName)) {
+                            eventReader.nextEvent();
+                            customersType.setCurrentCustomerNr(
+                                Integer.valueOf(eventReader.getElementText().trim()));
+                            continue;
+
+                        } else if (depth == 1 && CURRENT_INVOICE_NR_ELEMENT.equals(localName)) {
+                            eventReader.nextEvent();
+                            customersType.setCurrentInvoiceNr(
+                                Integer.valueOf(eventReader.getElementText().trim()));
+                            continue;
+                        }
+                        ++depth;
+
+                    } else if (event.isEndElement()) {
+                        --depth;
+                    }
+                    eventReader.nextEvent();
+                }
+
+                if (!fragments.isEmpty()) {
+                    unmarshalTasks.add(pool.submit(new UnmarshalTask(fragments)));
+                }
+
+            } finally {
+                if (eventReader != null) {
+                    eventReader.close();
+                }
+                xmlStream.close();
+            }
+
+            // Assemble the customers in document order
+            for (Future<List<CustomerType>> unmarshalTask : unmarshalTasks) {
+                customersType.getCustomer().addAll(this.join(unmarshalTask));
+            }
+
+            if (validation != null) {
+                this.join(validation);
+            }
+
+            return OBJECT_FACTORY.createCustomers(customersType);
+
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Copies the element the reader is positioned at, including all children, to a byte array
+    private byte[] copyElement(XMLEventReader eventReader) throws XMLStreamException {
+
+        ByteArrayOutputStream fragment = new ByteArrayOutputStream(1024);
+        XMLEventWriter eventWriter = this.outputFactory.createXMLEventWriter(fragment, "UTF-8");
+        try {
+            int depth = 0;
+            do {
+                XMLEvent event = eventReader.nextEvent();
+                if (event.isStartElement()) {
+                    ++depth;
+                } else if (event.isEndElement()) {
+                    --depth;
+                }
+                eventWriter.add(event);
+            } while (depth > 0);
+
+            eventWriter.flush();
+        } finally {
+            eventWriter.close();
+        }
+        return fragment.toByteArray();
+    }
+
+    // Waits for a task, unwrapping the cause of a failure
+    private <T> T join(Future<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw exception;
+        }
+    }
+
+    // Unmarshals a number of customer fragments, with its own unmarshaller
+    private class UnmarshalTask implements Callable<List<CustomerType>> {
+
+        private final List<byte[]> fragments;
+
+        private UnmarshalTask(List<byte[]> fragments) {
+            this.fragments = fragments;
+        }
+
+        @Override
+        public List<CustomerType> call() throws JAXBException {
+
+            Unmarshaller unmarshaller = StreamingCustomerLoader.this.jaxbContext
+                .createUnmarshaller();
+            List<CustomerType> customers = new ArrayList<>(this.fragments.size());
+            for (byte[] fragment : this.fragments) {
+                customers.add(
+                    unmarshaller
+                        .unmarshal(
+                            new StreamSource(new ByteArrayInputStream(fragment)),
+                            CustomerType.class)
+                        .getValue());
+            }
+            return customers;
+        }
+    }
+
+    // Validates the whole file against the schema
+    private class ValidationTask implements Callable<Void> {
+
+        private final Source xmlSource;
+
+        private ValidationTask(Source xmlSource) {
+            this.xmlSource = xmlSource;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            StreamingCustomerLoader.this.schema.newValidator().validate(this.xmlSource);
+            return null;
+        }
+    }
+}
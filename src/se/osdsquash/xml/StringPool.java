@@ -0,0 +1,84 @@
+package se.osdsquash.xml;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.osdsquash.xml.jaxb.CustomerInfoType;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.InvoiceType;
+import se.osdsquash.xml.jaxb.InvoicesType;
+
+/**
+ * Canonicalizing pool for customer fields that repeat across many customers, e.g. cities,
+ * postal codes, streets and first names. Every loader creates its own string instances
+ * (the XML parser one per element, and the segment store one string table per customer),
+ * so equal values are replaced by one shared instance after load.
+ *
+ * <p>
+ * The pool is meant to be used while loading and then dropped, the shared instances are kept
+ * by the customers. Only fields that are likely to repeat are pooled. UUIDs, e-mail addresses,
+ * phone numbers and invoice file paths are unique per customer or invoice.
+ * </p>
+ */
+public class StringPool {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Returns the shared instance of a value, adding it to the pool if it is new
+     * @param value A string, may be null
+     * @return An equal string, the same instance for all equal values
+     */
+    public synchronized String canonical(String value) {
+
+        if (value == null) {
+            return null;
+        }
+        String pooled = this.values.get(value);
+        if (pooled == null) {
+            this.values.put(value, value);
+            return value;
+        }
+        return pooled;
+    }
+
+    /**
+     * Replaces the repeating fields of all customers with their shared instances
+     * @param customers The customers
+     */
+    public void canonicalize(List<CustomerType> customers) {
+        for (CustomerType customer : customers) {
+            this.canonicalize(customer);
+        }
+    }
+
+    /**
+     * Replaces the repeating fields of a customer with their shared instances
+     * @param customer The customer
+     */
+    public void canonicalize(CustomerType customer) {
+
+        CustomerInfoType info = customer.getCustomerInfo();
+        info.setFirstname(this.canonical(info.getFirstname()));
+        info.setLastname(this.canonical(info.getLastname()));
+        info.setStreet(this.canonical(info.getStreet()));
+        info.setPostalCode(this.canonical(info.getPostalCode()));
+        info.setCity(this.canonical(info.getCity()));
+
+        InvoicesType invoices = customer.getInvoices();
+        if (invoices != null) {
+            for (InvoiceType invoice : invoices.getInvoice()) {
+                invoice.setNotes(this.canonical(invoice.getNotes()));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct values in the pool
+     * @return The pool size
+     */
+    public synchronized int size() {
+        return this.values.size();
+    }
+}
@@ -0,0 +1,402 @@
+package se.osdsquash.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import se.osdsquash.common.SquashProperties;
+import se.osdsquash.xml.jaxb.CustomerType;
+import se.osdsquash.xml.jaxb.CustomersType;
+import se.osdsquash.xml.jaxb.ObjectFactory;
+
+/**
+ * Store keeping the whole repository in one schema validated XML file, the original
+ * format of the program. Every checkpoint re-writes the whole file, so no changes are
+ * tracked. The file is also used as export, when another store is configured.
+ *
+ * <p>
+ * The file is validated when it is loaded, and when a checkpoint is written. An export
+ * is a trusted write of a model that was validated when it was loaded and built through
+ * the typed setters since, so it skips validation.
+ * </p>
+ * <p>
+ * Marshalling and validating the whole repository is slow, so <code>capture</code> only takes
+ * a deep copy of the customers, which is much faster. Nothing in the copy is shared with the
+ * repository, so a customer changed after the capture can't be written half changed. The XML
+ * is marshalled and validated by <code>PendingWrite.write()</code>, without the repository
+ * lock.
+ * </p>
+ * <p>
+ * Every write also writes a digest file, with the length and CRC32 of the XML file. A file
+ * matching its digest is exactly as written by this store, and is loaded without validation.
+ * </p>
+ * <p>
+ * With deferred validation, <code>load</code> only parses the file and keeps its contents,
+ * and <code>validateLoaded</code> validates them later, e.g. on a background thread.
+ * </p>
+ */
+public class XmlFileStore implements RepositoryStore {
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    // The digest file: [int magic][long file length][long CRC32 of the file]
+    private static final int DIGEST_MAGIC = 0x53514B44; // "SQKD"
+    private static final int DIGEST_LENGTH = 4 + 8 + 8;
+
+    private final File xmlFile;
+    private final File digestFile;
+    private final JaxbPool jaxbPool;
+
+    private volatile boolean deferValidation = false;
+
+    // Contents of the last file loaded without validation, until validated
+    private volatile byte[] unvalidatedXml;
+
+    // True if the last loaded file matched the digest of the last write
+    private volatile boolean loadTrusted = false;
+
+    /**
+     * Creates the store
+     *
+     * @param xmlFile The XML file, may not exist
+     * @param jaxbPool Pool of JAXB objects for the customer XML
+     */
+    public XmlFileStore(File xmlFile, JaxbPool jaxbPool) {
+        this.xmlFile = xmlFile;
+        this.digestFile = new File(xmlFile.getPath() + ".digest");
+        this.jaxbPool = jaxbPool;
+    }
+
+    @Override
+    public String getName() {
+        return RepositoryStores.XML;
+    }
+
+    @Override
+    public long getLastModified() {
+        return this.xmlFile.isFile() ? this.xmlFile.lastModified() : 0;
+    }
+
+    /**
+     * Sets if <code>load</code> should skip validation, and leave it to
+     * <code>validateLoaded</code>
+     *
+     * @param deferValidation True to defer validation
+     */
+    public void setDeferValidation(boolean deferValidation) {
+        this.deferValidation = deferValidation;
+    }
+
+    /**
+     * Returns true if the last load skipped validation, and it hasn't been done yet
+     * @return True if <code>validateLoaded</code> should be called
+     */
+    public boolean hasUnvalidatedLoad() {
+        return this.unvalidatedXml != null;
+    }
+
+    /**
+     * Validates the contents of the last file loaded with deferred validation. The file
+     * itself may have been re-written since, so the contents loaded are validated.
+     *
+     * @throws IOException If the contents don't follow the schema
+     */
+    public void validateLoaded() throws IOException {
+
+        byte[] xml = this.unvalidatedXml;
+        if (xml == null) {
+            return;
+        }
+
+        Validator validator = this.jaxbPool.borrowValidator();
+        try {
+            validator.validate(new StreamSource(new ByteArrayInputStream(xml)));
+        } catch (SAXParseException exception) {
+            throw new IOException(
+                "XML-databasen följer inte schemat, rad "
+                    + exception.getLineNumber()
+                    + ": "
+                    + exception.getMessage(),
+                exception);
+        } catch (SAXException exception) {
+            throw new IOException(
+                "XML-databasen följer inte schemat. Felmeddelande: " + exception.getMessage(),
+                exception);
+        } finally {
+            this.jaxbPool.releaseValidator(validator);
+            this.unvalidatedXml = null;
+        }
+    }
+
+    /**
+     * Returns true if the last loaded file was exactly as this store wrote it, according
+     * to the digest file. Such a file was validated when written, and is not validated again.
+     *
+     * @return True if the last load was trusted
+     */
+    public boolean isLoadTrusted() {
+        return this.loadTrusted;
+    }
+
+    @Override
+    public CustomersType load() throws IOException {
+
+        // The whole file is read once, and parsed (and validated) from memory
+        byte[] xml = Files.readAllBytes(this.xmlFile.toPath());
+        this.loadTrusted = this.matchesDigest(xml);
+        this.unvalidatedXml = null;
+
+        boolean validate = !this.loadTrusted && !this.deferValidation;
+        try {
+            CustomersType customersType;
+
+            // Unmarshal the customers in parallel. This only pays off with more than one
+            // core, since the XML is parsed twice.
+            int processors = Runtime.getRuntime().availableProcessors();
+            if (SquashProperties.STREAMING_LOAD && processors > 1) {
+                customersType = new StreamingCustomerLoader(
+                    this.jaxbPool.getContext(),
+                    validate ? this.jaxbPool.getSchema() : null,
+                    processors).load(xml).getValue();
+            } else {
+                Unmarshaller unmarshaller = this.jaxbPool.borrowUnmarshaller(validate);
+                try {
+                    customersType = unmarshaller
+                        .unmarshal(
+                            new StreamSource(new ByteArrayInputStream(xml)),
+                            CustomersType.class)
+                        .getValue();
+                } finally {
+                    this.jaxbPool.releaseUnmarshaller(validate, unmarshaller);
+                }
+            }
+
+            // Keep the contents for validateLoaded()
+            if (!this.loadTrusted && !validate) {
+                this.unvalidatedXml = xml;
+            }
+            return customersType;
+
+        } catch (Exception exception) {
+            throw new IOException(
+                "Kunde ej läsa XML-databasen: "
+                    + this.xmlFile.getPath()
+                    + ". Felmeddelande: "
+                    + exception.getMessage(),
+                exception);
+        }
+    }
+
+    @Override
+    public void customerChanged(String customerUUID) {
+        // Always writes everything
+    }
+
+    @Override
+    public void customerDeleted(String customerUUID) {
+        // Always writes everything
+    }
+
+    @Override
+    public void allChanged() {
+        // Always writes everything
+    }
+
+    /**
+     * Copies the repository, which is marshalled and validated against the schema when
+     * written
+     */
+    @Override
+    public PendingWrite capture(CustomersType customersType) throws IOException {
+        return this.capture(customersType, true);
+    }
+
+    /**
+     * Copies the repository, which is marshalled without validation when written, for
+     * trusted internal writes
+     *
+     * @param customersType The repository root object
+     * @return The write to perform
+     * @throws IOException If the repository can't be copied
+     */
+    public PendingWrite captureTrusted(CustomersType customersType) throws IOException {
+        return this.capture(customersType, false);
+    }
+
+    private PendingWrite capture(CustomersType customersType, final boolean validate) {
+
+        final SaveTimings timings = new SaveTimings();
+        long start = System.nanoTime();
+        final CustomersType capturedCustomers = copyDeep(customersType);
+        timings.addMarshal(start);
+
+        return new PendingWrite() {
+
+            @Override
+            public void write() throws IOException {
+                ByteArrayOutputStream xmlBytes = XmlFileStore.this.marshal(
+                    capturedCustomers,
+                    validate,
+                    timings);
+
+                long start = System.nanoTime();
+                long checksum = XmlFileStore.this.writeFile(xmlBytes);
+                XmlFileStore.this.writeDigest(xmlBytes.size(), checksum);
+                timings.addIo(start);
+            }
+
+            @Override
+            public SaveTimings getTimings() {
+                return timings;
+            }
+
+            @Override
+            public void restore() {
+                // Nothing tracked
+            }
+        };
+    }
+
+    // Copies the customer list and each customer, sharing no mutable object
+    private static CustomersType copyDeep(CustomersType customersType) {
+
+        CustomersType copy = OBJECT_FACTORY.createCustomersType();
+        copy.setCurrentCustomerNr(customersType.getCurrentCustomerNr());
+        copy.setCurrentInvoiceNr(customersType.getCurrentInvoiceNr());
+        List<CustomerType> customers = copy.getCustomer();
+        for (CustomerType customer : customersType.getCustomer()) {
+            customers.add(CustomerCopies.copy(customer));
+        }
+        return copy;
+    }
+
+    // Marshals the whole repository, and validates it against the schema if asked to
+    private ByteArrayOutputStream marshal(
+        CustomersType customersType,
+        boolean validate,
+        SaveTimings timings) throws IOException {
+
+        ByteArrayOutputStream xmlBytes = new ByteArrayOutputStream(64 * 1024);
+
+        long start = System.nanoTime();
+        Marshaller marshaller = null;
+        try {
+            marshaller = this.jaxbPool.borrowMarshaller(JaxbPool.MarshallerType.DOCUMENT);
+            marshaller.marshal(OBJECT_FACTORY.createCustomers(customersType), xmlBytes);
+
+        } catch (JAXBException exception) {
+            throw new IOException(
+                "Kunde ej skapa XML-databasen. Felmeddelande: " + exception.getMessage(),
+                exception);
+        } finally {
+            if (marshaller != null) {
+                this.jaxbPool.releaseMarshaller(JaxbPool.MarshallerType.DOCUMENT, marshaller);
+            }
+        }
+        timings.addMarshal(start);
+
+        if (validate) {
+            start = System.nanoTime();
+            Validator validator = this.jaxbPool.borrowValidator();
+            try {
+                validator.validate(
+                    new StreamSource(new ByteArrayInputStream(xmlBytes.toByteArray())));
+            } catch (SAXException exception) {
+                throw new IOException(
+                    "XML-databasen följer inte schemat. Felmeddelande: " + exception.getMessage(),
+                    exception);
+            } finally {
+                this.jaxbPool.releaseValidator(validator);
+            }
+            timings.addValidate(start);
+        }
+        return xmlBytes;
+    }
+
+    // Writes to a temporary file, which replaces the XML file when complete.
+    // A half-written file would otherwise be loaded on next start. Returns the CRC32.
+    private long writeFile(ByteArrayOutputStream xmlBytes) throws IOException {
+
+        File tempFile = new File(this.xmlFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        CheckedOutputStream checkedOutput = new CheckedOutputStream(fileOutput, new CRC32());
+        try {
+            xmlBytes.writeTo(checkedOutput);
+            fileOutput.getFD().sync();
+        } catch (IOException exception) {
+            fileOutput.close();
+            tempFile.delete();
+            throw exception;
+        }
+        fileOutput.close();
+        Files.move(
+            tempFile.toPath(),
+            this.xmlFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return checkedOutput.getChecksum().getValue();
+    }
+
+    // Writes the digest of a written XML file. If the program stops before this, the old
+    // digest doesn't match the new file, and it is validated on next start.
+    private void writeDigest(long length, long checksum) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(DIGEST_LENGTH);
+        buffer.putInt(DIGEST_MAGIC);
+        buffer.putLong(length);
+        buffer.putLong(checksum);
+
+        File tempFile = new File(this.digestFile.getPath() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile, false);
+        try {
+            fileOutput.write(buffer.array());
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(
+            tempFile.toPath(),
+            this.digestFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns true if the digest file describes exactly these file contents
+    private boolean matchesDigest(byte[] xml) {
+
+        if (!this.digestFile.isFile() || this.digestFile.length() != DIGEST_LENGTH) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.digestFile.toPath()));
+            return buffer.getInt() == DIGEST_MAGIC
+                && buffer.getLong() == xml.length
+                && buffer.getLong() == checksum(xml);
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    private static long checksum(byte[] xml) {
+        CRC32 crc = new CRC32();
+        crc.update(xml, 0, xml.length);
+        return crc.getValue();
+    }
+}
@@ -1,27 +1,27 @@
 package se.osdsquash.xml;
 
-import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 
@@ -30,7 +30,10 @@ import org.xml.sax.SAXException;
 import se.osdsquash.common.SquashProperties;
 import se.osdsquash.common.SquashRuntimeInfo;
 import se.osdsquash.common.SquashUtil;
+import se.osdsquash.excel.BatchInvoiceWorkbook;
 import se.osdsquash.excel.ExcelHandler;
+import se.osdsquash.excel.InvoiceRunControl;
+import se.osdsquash.excel.ParallelInvoiceEngine;
 import se.osdsquash.logger.SquashLogger;
 import se.osdsquash.xml.jaxb.CustomerInfoType;
 import se.osdsquash.xml.jaxb.CustomerType;
@@ -45,7 +48,18 @@ import se.osdsquash.xml.jaxb.SubscriptionsType;
  * Handles reading/writing of the XML repository, singleton class.
  * 
  * <p>
- * All writes are thread safe!
+ * All writes are thread safe! Writes are serialized by the repository lock, and every write
+ * publishes a new, immutable view of the customer list through a volatile reference.
+ * Reads use that view and the lookup index, so they never block and never see a half-done
+ * change. The subscriptions and invoices of a customer are copy-on-write: a change
+ * replaces the whole container, so a list handed out is never changed. The nr series
+ * are handed out by <code>NumberSequences</code>, without the repository lock.
+ * </p>
+ * <p>
+ * A customer in the repository only holds its active invoices. Paid and cancelled invoices
+ * are moved to the <code>InvoiceHistory</code>, which is read on demand, see
+ * <code>getInvoices(CustomerType)</code>. Old ones are moved on to the read-only
+ * <code>InvoiceArchive</code> in the background.
  * </p>
  */
 public class XmlRepository {
@@ -59,14 +73,18 @@ public class XmlRepository {
 
     private static final String DATA_DIR_PATH;
     private static final String BACKUPS_DIR_PATH;
+    private static final String HISTORY_DIR_PATH;
+    private static final String ARCHIVE_DIR_PATH;
     private static final String XML_STORAGE_FILE_PATH;
+    private static final String JOURNAL_FILE_PATH;
+    private static final String SEQUENCE_FILE_PATH;
 
     /**
      * Path to the invoices directory
      */
     public static final String INVOICES_DIR_PATH;
 
-    private static final String FILE_DATE_FORMAT = "yyyyMMdd";
+    private static final String LEGACY_BACKUP_PREFIX = "CustomerDbBackup_";
 
     // This is the "in memory" XML data object:
     private JAXBElement<CustomersType> customersJaxbXml;
@@ -74,10 +92,51 @@ public class XmlRepository {
     // Reference to the actual XML file. Null if it doesn't exist, e.g. no customers:
     private File xmlFile;
 
+    // Write-ahead journal with all changes since the binary snapshot was last written:
+    private RepositoryJournal journal;
+
+    // Lookup indexes for customers and invoices, kept up to date by all mutations:
+    private final CustomerIndex index = new CustomerIndex();
+
+    // Version of the last change per customer, kept up to date by all mutations:
+    private final ChangeTracker changeTracker = new ChangeTracker();
+
+    // The configured store, holding the checkpoint the journal is relative to:
+    private RepositoryStore store;
+
+    // The XML file, used for export/import. The same as the store if XML is configured:
+    private XmlFileStore xmlStore;
+
+    // The customer and invoice nr series, handed out without touching the database:
+    private NumberSequences numberSequences;
+
+    // Paid and cancelled invoices, kept out of the customers and read on demand:
+    private InvoiceHistory invoiceHistory;
+
+    // Old paid and cancelled invoices, read-only, moved from the history in the background:
+    private InvoiceArchive invoiceArchive;
+
+    // Settled invoices set to a customer, written to the history when the customer is saved:
+    private final Map<String, List<InvoiceType>> pendingHistories = new HashMap<>();
+
+    // Incremental backups, one backup point written in the background on every start:
+    private IncrementalBackups backups;
+
+    // Background thread writing the snapshot file, started when the repository is loaded:
+    private PersistenceWriter persistenceWriter;
+
+    // Immutable view for lock-free reads, re-published after every write:
+    private volatile PublishedState publishedState;
+
+    // Set if the loaded data failed the background validation, no changes are allowed then:
+    private volatile String readOnlyReason;
+    private final List<ReadOnlyListener> readOnlyListeners = new ArrayList<>();
+
     // Load static JAXB and Schema instances:
     private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
     private static final JAXBContext JAXB_CONTEXT;
     private static final Schema SCHEMA;
+    private static final JaxbPool JAXB_POOL;
     static {
         try {
             JAXB_CONTEXT = JAXBContext.newInstance(CustomersType.class);
@@ -85,11 +144,16 @@ public class XmlRepository {
                 .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
             SCHEMA = schemaFactory
                 .newSchema(XmlRepository.class.getClassLoader().getResource(XSD_SCHEMA_PATH));
+            JAXB_POOL = new JaxbPool(JAXB_CONTEXT, SCHEMA);
 
             DATA_DIR_PATH = SquashRuntimeInfo.getDataDirPath();
             INVOICES_DIR_PATH = DATA_DIR_PATH + "/invoices";
             BACKUPS_DIR_PATH = DATA_DIR_PATH + "/backups";
-            XML_STORAGE_FILE_PATH = DATA_DIR_PATH + "/CustomerDatabase.xml";
+            HISTORY_DIR_PATH = DATA_DIR_PATH + "/history";
+            ARCHIVE_DIR_PATH = DATA_DIR_PATH + "/archive";
+            XML_STORAGE_FILE_PATH = DATA_DIR_PATH + "/" + RepositoryStores.XML_FILE_NAME;
+            JOURNAL_FILE_PATH = DATA_DIR_PATH + "/CustomerDatabase.journal";
+            SEQUENCE_FILE_PATH = DATA_DIR_PATH + "/CustomerDatabase.seq";
 
         } catch (SAXException | JAXBException exception) {
             throw new RuntimeException(exception);
@@ -140,19 +204,27 @@ public class XmlRepository {
             }
         }
 
-        // Check for very old backup files and delete them
+        // Check for very old full backup copies, from older versions, and delete them
         final long thresholdMillis = this.getBackupThresholdMillis();
         File[] tooOldFiles = backupsDir.listFiles(new FileFilter() {
 
             @Override
             public boolean accept(File pathname) {
-                return pathname.isFile() && pathname.lastModified() < thresholdMillis;
+                return pathname.getName().startsWith(LEGACY_BACKUP_PREFIX)
+                    && pathname.lastModified() < thresholdMillis;
             }
         });
 
         if (tooOldFiles != null) {
             for (File file : tooOldFiles) {
                 try {
+                    // Backups of the segment store are directories
+                    File[] directoryFiles = file.listFiles();
+                    if (directoryFiles != null) {
+                        for (File directoryFile : directoryFiles) {
+                            directoryFile.delete();
+                        }
+                    }
                     if (!file.delete()) {
                         logger.log(
                             "Notis: Kunde ej radera gammal backup-fil: " + file.getPath(),
@@ -165,69 +237,147 @@ public class XmlRepository {
             }
         }
 
-        // Load and parse the XML file - if it exists
-        FileInputStream xmlFileStream = null;
-        try {
-
-            this.xmlFile = new File(XML_STORAGE_FILE_PATH);
-            if (!this.xmlFile.isFile()) {
-                this.xmlFile = null;
-                logger.log(
-                    "XML-databasens fil existerade inte: "
-                        + XML_STORAGE_FILE_PATH
-                        + ". Inga kunder finns - startar med ny databas.",
-                    false);
+        this.store = RepositoryStores.create(
+            SquashProperties.REPOSITORY_STORE,
+            DATA_DIR_PATH,
+            JAXB_POOL);
+        this.xmlStore = this.store instanceof XmlFileStore
+            ? (XmlFileStore) this.store
+            : (XmlFileStore) RepositoryStores
+                .create(RepositoryStores.XML, DATA_DIR_PATH, JAXB_POOL);
+
+        // Load the newest copy: the configured store, another store left from a change of
+        // configuration, or the XML export. On a tie, the configured store wins.
+        List<RepositoryStore> candidateStores = new ArrayList<>();
+        candidateStores.add(this.store);
+        for (String storeName : RepositoryStores.NAMES) {
+            if (!storeName.equals(this.store.getName())
+                && !storeName.equals(RepositoryStores.XML)) {
+                candidateStores.add(
+                    RepositoryStores.create(storeName, DATA_DIR_PATH, JAXB_POOL));
+            }
+        }
+        if (this.xmlStore != this.store) {
+            candidateStores.add(this.xmlStore);
+        }
+        RepositoryStore loadStore = null;
+        for (RepositoryStore candidateStore : candidateStores) {
+            long lastModified = candidateStore.getLastModified();
+            if (lastModified > 0
+                && (loadStore == null || lastModified > loadStore.getLastModified())) {
+                loadStore = candidateStore;
             }
+        }
 
-            // Parse the XML if it exists
-            if (this.xmlFile != null) {
+        this.xmlFile = new File(XML_STORAGE_FILE_PATH);
+        if (!this.xmlFile.isFile()) {
+            this.xmlFile = null;
+        }
 
-                // Create a backup of the XML file before we start.
-                // We re-use one file per day, or we could get too many.
-                try {
-                    String backupFilePath = BACKUPS_DIR_PATH
-                        + "/CustomerDbBackup_"
-                        + new SimpleDateFormat(FILE_DATE_FORMAT).format(new Date())
-                        + ".xml";
-                    Files.copy(
-                        this.xmlFile.toPath(),
-                        new File(backupFilePath).toPath(),
-                        StandardCopyOption.REPLACE_EXISTING);
-                } catch (Exception exception) {
-                    logger.log(
-                        "Varning: Fel uppstod vid skapande a backup-fil för XML-databasen. Felmeddelande: "
-                            + exception.getMessage(),
-                        true);
-                }
+        // The XML store's own file is validated in the background, after startup. An imported
+        // XML file may have been edited by hand, so it is validated before it is used.
+        this.xmlStore.setDeferValidation(
+            SquashProperties.BACKGROUND_VALIDATION && loadStore == this.xmlStore
+                && this.xmlStore == this.store);
 
-                xmlFileStream = new FileInputStream(XML_STORAGE_FILE_PATH);
-                Unmarshaller unmarshaller = JAXB_CONTEXT.createUnmarshaller();
+        this.invoiceHistory = new InvoiceHistory(
+            new File(HISTORY_DIR_PATH),
+            SquashProperties.HISTORY_CACHE_SIZE);
+        this.invoiceArchive = new InvoiceArchive(new File(ARCHIVE_DIR_PATH));
 
-                // This enables schema validation
-                unmarshaller.setSchema(SCHEMA);
+        try {
+            if (loadStore != null) {
 
-                this.customersJaxbXml = unmarshaller
-                    .unmarshal(new StreamSource(xmlFileStream), CustomersType.class);
+                this.customersJaxbXml = OBJECT_FACTORY.createCustomers(loadStore.load());
+                logger.log(
+                    "Loaded the customer database from the " + loadStore.getName() + " store",
+                    false);
 
             } else {
+                logger.log(
+                    "XML-databasens fil existerade inte: "
+                        + XML_STORAGE_FILE_PATH
+                        + ". Inga kunder finns - startar med ny databas.",
+                    false);
+
                 // If no existing customers, make sure there is at least the
                 // XML root element to avoid null-problems. Also init the nr series.
-                if (this.customersJaxbXml == null) {
-                    CustomersType customersRootElement = OBJECT_FACTORY.createCustomersType();
-                    customersRootElement.setCurrentCustomerNr(DEFAULT_START_NR);
-                    customersRootElement.setCurrentInvoiceNr(DEFAULT_START_NR);
-                    this.customersJaxbXml = OBJECT_FACTORY.createCustomers(customersRootElement);
-                }
+                CustomersType customersRootElement = OBJECT_FACTORY.createCustomersType();
+                customersRootElement.setCurrentCustomerNr(DEFAULT_START_NR);
+                customersRootElement.setCurrentInvoiceNr(DEFAULT_START_NR);
+                this.customersJaxbXml = OBJECT_FACTORY.createCustomers(customersRootElement);
             }
 
         } catch (Exception exception) {
             throw new RuntimeException(
                 "FEL när XML-databasen skulle laddas. Felmeddelande: " + exception.getMessage(),
                 exception);
-        } finally {
-            this.closeResource(xmlFileStream);
         }
 
+        // Data from another store must be written to the configured store
+        boolean fromOtherStore = loadStore != null && loadStore != this.store;
+        if (fromOtherStore) {
+            this.store.allChanged();
+        }
+
+        this.journal = new RepositoryJournal(new File(JOURNAL_FILE_PATH), JAXB_POOL);
+        if (fromOtherStore && loadStore == this.xmlStore) {
+
+            // An imported XML file is newer than the checkpoint the journal belongs to,
+            // so the journal is discarded and a checkpoint is written right away.
+            if (new File(JOURNAL_FILE_PATH).length() > 0) {
+                logger.log(
+                    "Notis: Ignorerar journalen, XML-databasen är nyare än den binära databasen",
+                    true);
+            }
+            this.writeCheckpoint();
+
+        } else {
+
+            // Apply all changes made after the checkpoint was written, and then
+            // write a fresh checkpoint so we start with an empty journal.
+            int replayedRecords = this.journal.replay(new JournalReplayer());
+            if (replayedRecords > 0 || fromOtherStore) {
+                logger.log(
+                    "Applied " + replayedRecords + " journal records to the customer database",
+                    false);
+                this.writeCheckpoint();
+            }
+        }
+
+        // Data from an older version, or restored from a backup, has settled invoices
+        // among the customers. They are moved to the history once, and never loaded again.
+        int movedInvoices = this.moveSettledInvoices();
+        if (movedInvoices > 0) {
+            logger.log("Moved " + movedInvoices + " settled invoices to the history", false);
+            this.writeCheckpoint();
+        }
+
+        CustomersType customersType = this.customersJaxbXml.getValue();
+        this.numberSequences = new NumberSequences(
+            new File(SEQUENCE_FILE_PATH),
+            SquashProperties.SEQUENCE_BLOCK_SIZE,
+            customersType.getCurrentCustomerNr().intValue(),
+            customersType.getCurrentInvoiceNr().intValue());
+
+        // Equal values of repeating fields share one instance. The pool is only needed
+        // while loading, customers added later are few.
+        StringPool stringPool = new StringPool();
+        stringPool.canonicalize(customersType.getCustomer());
+        logger.log("Pooled " + stringPool.size() + " distinct customer values", false);
+
+        this.index.rebuild(customersType.getCustomer());
+        this.publishState();
+        this.persistenceWriter = new PersistenceWriter(
+            this,
+            SquashProperties.PERSIST_WINDOW_MILLIS);
+
+        if (this.xmlStore.hasUnvalidatedLoad()) {
+            this.startBackgroundValidation();
+        }
+        this.backups = new IncrementalBackups(backupsDir);
+        this.startBackgroundBackup();
+
         logger.log("Customer database initialize finished", false);
     }
 
@@ -237,11 +387,7 @@ public class XmlRepository {
      */
     public List<CustomerType> getAllCustomers() {
 
-        List<CustomerType> customerItems = new ArrayList<>();
-        for (CustomerType customerType : this.customersJaxbXml.getValue().getCustomer()) {
-            customerItems.add(customerType);
-        }
-        return customerItems;
+        return new ArrayList<>(this.publishedState.customers);
     }
 
     /**
@@ -252,40 +398,89 @@ public class XmlRepository {
      */
     public synchronized void deleteCustomer(UUID customerUUID) {
 
+        this.checkWritable();
+
         // Look for the customer
-        Iterator<CustomerType> customersIterator = this.customersJaxbXml
-            .getValue()
-            .getCustomer()
-            .iterator();
+        CustomerType customer = this.index.getCustomerByUUID(customerUUID.toString());
+        if (customer == null) {
+            throw new IllegalArgumentException(
+                "Hittade inte kund med ID " + customerUUID.toString());
+        }
 
-        while (customersIterator.hasNext()) {
-            CustomerType customer = customersIterator.next();
-            if (customer.getCustomerInfo().getCustomerUUID().equals(customerUUID.toString())) {
+        this.commit(this.journal.appendCustomerDeleted(customerUUID.toString()));
 
-                // This deletes from underlying XML list
-                customersIterator.remove();
-                this.saveRepository();
-                return;
-            }
-        }
+        // This deletes from underlying XML list
+        this.customersJaxbXml.getValue().getCustomer().remove(customer);
+        this.index.removeCustomer(customer);
+        this.publishState();
+        this.store.customerDeleted(customerUUID.toString());
+        this.changeTracker.customerDeleted(customerUUID.toString());
+        this.pendingHistories.remove(customerUUID.toString());
 
-        throw new IllegalArgumentException("Hittade inte kund med ID " + customerUUID.toString());
+        try {
+            this.invoiceHistory.delete(customerUUID.toString());
+        } catch (IOException exception) {
+            // The history of a deleted customer is never read, just log the failure
+            logger.log(
+                "Varning: Kunde ej radera fakturahistorik för kund "
+                    + customerUUID
+                    + ". Felmeddelande: "
+                    + exception.getMessage(),
+                true);
+        }
     }
 
     /**
-     * Stores a given customer and persists the change
+     * Stores a given customer and persists the change. The customer is copied, and the
+     * copy is applied to the repository only once the change is durable, so edit a copy
+     * of an existing customer, e.g. from <code>CustomerCopies.copy</code>. Later changes
+     * to the given customer are not saved, use <code>getCustomer(UUID)</code> to get the
+     * saved one.
+     * 
      * @param customer The customer to store, can be new or existing
      */
     public synchronized void saveCustomer(CustomerType customer) {
 
-        // Add to customer list if new customer
-        if (this
-            .getCustomer(UUID.fromString(customer.getCustomerInfo().getCustomerUUID())) == null) {
-            this.customersJaxbXml.getValue().getCustomer().add(customer);
+        this.checkWritable();
+
+        // The new history is written in two steps: before the journal record, both old and
+        // new settled invoices are kept, so an invoice that moves between the customer and
+        // the history is never lost. An invoice found in both is shown from the customer.
+        String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+        List<InvoiceType> settledInvoices = this.pendingHistories.remove(customerUUID);
+        if (settledInvoices != null) {
+            this.putInvoiceHistory(
+                customerUUID,
+                InvoiceHistory.merge(this.getInvoiceHistory(customerUUID), settledInvoices));
         }
 
-        // Save everything
-        this.saveRepository();
+        // The change must be durable before it is applied, a checkpoint may be written
+        // any time after the lock is released
+        CustomerType savedCustomer = CustomerCopies.copy(customer);
+        this.commit(this.journal.appendCustomerSaved(savedCustomer));
+
+        // Add to customer list if new customer, or replace the info and containers of the
+        // existing one, readers may be using the old ones
+        CustomerType existingCustomer = this.index.getCustomerByUUID(customerUUID);
+        if (existingCustomer == null) {
+            this.customersJaxbXml.getValue().getCustomer().add(savedCustomer);
+        } else {
+            existingCustomer.setCustomerInfo(savedCustomer.getCustomerInfo());
+            existingCustomer.setSubscriptions(savedCustomer.getSubscriptions());
+            existingCustomer.setInvoices(savedCustomer.getInvoices());
+            savedCustomer = existingCustomer;
+        }
+
+        // Always re-index, since customer nr and invoices may have changed
+        this.index.indexCustomer(savedCustomer);
+        this.publishState();
+
+        this.store.customerChanged(customerUUID);
+        this.changeTracker.customerChanged(customerUUID);
+
+        if (settledInvoices != null) {
+            this.putInvoiceHistory(customerUUID, settledInvoices);
+        }
     }
 
     /**
@@ -294,35 +489,26 @@ public class XmlRepository {
      * @return The customer, if null if not present
      */
     public CustomerType getCustomer(UUID customerUUID) {
+        return this.index.getCustomerByUUID(customerUUID.toString());
+    }
 
-        // Look for the customer
-        for (CustomerType customer : this.getAllCustomers()) {
-            if (customer.getCustomerInfo().getCustomerUUID().equals(customerUUID.toString())) {
-                return customer;
-            }
-        }
-
-        return null;
+    /**
+     * Returns the customer object given a customer nr, null if it doesn't exist
+     * @param customerNr Customer nr
+     * @return The customer, if null if not present
+     */
+    public CustomerType getCustomerByNr(int customerNr) {
+        return this.index.getCustomerByNr(customerNr);
     }
 
     /**
      * Returns the next avaliable customer nr.
-     * The number is "consumed" when/if the repository is saved.
+     * The number is "consumed" as soon as this method has been called.
      * 
      * @return A new, unique customer nr
      */
-    public synchronized int getNewCustomerNr() {
-
-        // Increment, set and return a new nr.
-        // This is never null, since we always initialize the repository.
-        CustomersType customersType = this.customersJaxbXml.getValue();
-        Integer customerNr = customersType.getCurrentCustomerNr();
-        customerNr++;
-
-        // This new customer nr will be saved whenever the repository is saved
-        customersType.setCurrentCustomerNr(customerNr);
-
-        return customerNr;
+    public int getNewCustomerNr() {
+        return this.numberSequences.nextCustomerNr();
     }
 
     /**
@@ -359,7 +545,8 @@ public class XmlRepository {
 
     /**
      * Sets given subscriptions to the customer, replacing existing ones.
-     * NOTE: The customer object is not persisted, just saved in memory!
+     * NOTE: The customer object is not persisted, just saved in memory! Use it on a copy
+     * of the customer, which is then saved.
      * 
      * @param customer Customer to set subscriptions for
      * @param subscriptions The subscriptions to set
@@ -368,31 +555,81 @@ public class XmlRepository {
         CustomerType customer,
         List<SubscriptionType> subscriptions) {
 
-        if (customer.getSubscriptions() == null) {
-            customer.setSubscriptions(OBJECT_FACTORY.createSubscriptionsType());
-        }
-        SubscriptionsType subscriptionsType = customer.getSubscriptions();
-        subscriptionsType.getSubscription().clear();
+        // Replace the container, readers may be iterating the old one
+        SubscriptionsType subscriptionsType = OBJECT_FACTORY.createSubscriptionsType();
         subscriptionsType.getSubscription().addAll(subscriptions);
+        customer.setSubscriptions(subscriptionsType);
+        this.changeTracker.customerChanged(customer.getCustomerInfo().getCustomerUUID());
     }
 
     /**
-     * Sets given invoices to the customer, replacing existing ones.
-     * NOTE: The customer object is not persisted, just saved in memory!
+     * Returns all invoices of a customer: the active invoices of the customer object, and
+     * the paid and cancelled ones from the invoice history and archive. The history is read
+     * from disk the first time, and then kept in a cache of recently used customers.
+     * 
+     * @param customer The customer
+     * @return All invoices, empty list if none
+     */
+    public List<InvoiceType> getInvoices(CustomerType customer) {
+
+        List<InvoiceType> invoices = new ArrayList<>();
+        if (customer.getInvoices() != null) {
+            invoices.addAll(customer.getInvoices().getInvoice());
+        }
+
+        String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+        if (customerUUID != null) {
+            List<InvoiceType> settledInvoices = new ArrayList<>(
+                this.getInvoiceHistory(customerUUID));
+            try {
+                settledInvoices.addAll(this.invoiceArchive.get(customerUUID));
+            } catch (IOException exception) {
+                throw new RuntimeException(
+                    "Fel då fakturaarkivet skulle läsas. Felmeddelande: " + exception.getMessage(),
+                    exception);
+            }
+            for (InvoiceType invoice : settledInvoices) {
+                if (InvoiceHistory.indexOf(invoices, invoice.getInvoiceNumber()) < 0) {
+                    invoices.add(invoice);
+                }
+            }
+        }
+        return invoices;
+    }
+
+    /**
+     * Sets given invoices to the customer, replacing existing ones. Paid and cancelled
+     * invoices replace the invoice history of the customer, when it is saved. Archived
+     * invoices are read-only, and ignored.
+     * NOTE: The customer object is not persisted, just saved in memory! Use it on a copy
+     * of the customer, which is then saved.
      * 
      * @param customer Customer to set invoices for
-     * @param invoices The invoices to set
+     * @param invoices The invoices to set, as from <code>getInvoices(CustomerType)</code>
      */
     public synchronized void setInvoicesToCustomer(
         CustomerType customer,
         List<InvoiceType> invoices) {
 
-        if (customer.getInvoices() == null) {
-            customer.setInvoices(OBJECT_FACTORY.createInvoicesType());
+        List<InvoiceType> activeInvoices = new ArrayList<>();
+        List<InvoiceType> settledInvoices = new ArrayList<>();
+        for (InvoiceType invoice : invoices) {
+            if (this.isArchived(invoice.getInvoiceNumber())) {
+                continue;
+            }
+            if (InvoiceHistory.isSettled(invoice)) {
+                settledInvoices.add(invoice);
+            } else {
+                activeInvoices.add(invoice);
+            }
         }
-        InvoicesType invoicesType = customer.getInvoices();
-        invoicesType.getInvoice().clear();
-        invoicesType.getInvoice().addAll(invoices);
+        this.pendingHistories.put(customer.getCustomerInfo().getCustomerUUID(), settledInvoices);
+
+        // Replace the container, readers may be iterating the old one
+        this.replaceInvoices(customer, activeInvoices);
+
+        this.index.reindexCustomerIfIndexed(customer);
+        this.changeTracker.customerChanged(customer.getCustomerInfo().getCustomerUUID());
     }
 
     /**
@@ -404,47 +641,69 @@ public class XmlRepository {
      */
     public synchronized void deleteInvoice(int invoiceNr) {
 
-        // This is never null, since we always initialize the repository.
-        CustomersType customersType = this.customersJaxbXml.getValue();
-
-        // Loop customer and their invoices
-        for (CustomerType customer : customersType.getCustomer()) {
-            if (customer.getInvoices() != null) {
-                Iterator<InvoiceType> invoiceIterator = customer
-                    .getInvoices()
-                    .getInvoice()
-                    .iterator();
-                while (invoiceIterator.hasNext()) {
-                    InvoiceType invoice = invoiceIterator.next();
-                    if (invoiceNr == invoice.getInvoiceNumber()) {
-
-                        // This deletes from underlying XML list
-                        invoiceIterator.remove();
-                        this.saveRepository();
-
-                        // Try to delete file
-                        File invoiceFile = new File(invoice.getRelativeFilePath());
-                        if (invoiceFile.isFile()) {
-                            try {
-                                invoiceFile.delete();
-                            } catch (Exception ex) {
-                                // Just log file deletion failure...
-                                logger.log(
-                                    "Varning: Fel uppstod vid radering av fakturafil: "
-                                        + invoiceFile.getAbsolutePath()
-                                        + ". Felmeddelande: "
-                                        + ex.getMessage(),
-                                    true);
-                            }
-                        }
-
-                        return;
-                    }
+        this.checkWritable();
+
+        // Look up the invoice and its customer
+        InvoiceType invoice = this.index.getInvoice(invoiceNr);
+        CustomerType customer = this.index.getInvoiceOwner(invoiceNr);
+        if (invoice == null || customer == null || customer.getInvoices() == null) {
+
+            // A paid or cancelled invoice is only in the history. The last checkpoint may
+            // still have it among the customer's invoices, to be moved to the history again
+            // on next start, so the deletion is journaled and the customer written again.
+            String customerUUID = this.findInvoiceHistoryOwner(invoiceNr);
+            if (customerUUID == null) {
+                if (this.isArchived(invoiceNr)) {
+                    throw new IllegalArgumentException(
+                        "Faktura nr " + invoiceNr + " är arkiverad och kan inte raderas");
                 }
+                throw new IllegalArgumentException("Hittade inte faktura med nr " + invoiceNr);
             }
+            List<InvoiceType> settledInvoices = new ArrayList<>(
+                this.getInvoiceHistory(customerUUID));
+            int invoiceIndex = InvoiceHistory.indexOf(settledInvoices, invoiceNr);
+            if (invoiceIndex < 0) {
+                throw new IllegalArgumentException("Hittade inte faktura med nr " + invoiceNr);
+            }
+            invoice = settledInvoices.remove(invoiceIndex);
+            this.commit(this.journal.appendInvoiceDeleted(invoiceNr));
+            this.putInvoiceHistory(customerUUID, settledInvoices);
+            this.store.customerChanged(customerUUID);
+            this.changeTracker.customerChanged(customerUUID);
+            this.deleteInvoiceFile(invoice);
+            return;
         }
 
-        throw new IllegalArgumentException("Hittade inte faktura med nr " + invoiceNr);
+        this.commit(this.journal.appendInvoiceDeleted(invoiceNr));
+
+        // Replace the customer's invoice list with a copy without this invoice
+        List<InvoiceType> invoices = new ArrayList<>(customer.getInvoices().getInvoice());
+        invoices.remove(invoice);
+        this.replaceInvoices(customer, invoices);
+        this.index.removeInvoice(invoiceNr);
+        this.publishState();
+        this.store.customerChanged(customer.getCustomerInfo().getCustomerUUID());
+        this.changeTracker.customerChanged(customer.getCustomerInfo().getCustomerUUID());
+        this.deleteInvoiceFile(invoice);
+    }
+
+    // Tries to delete the file of a deleted invoice
+    private void deleteInvoiceFile(InvoiceType invoice) {
+
+        File invoiceFile = new File(invoice.getRelativeFilePath());
+        if (invoiceFile.isFile()) {
+            try {
+                invoiceFile.delete();
+            } catch (Exception ex) {
+                // Just log file deletion failure...
+                logger.log(
+                    "Varning: Fel uppstod vid radering av fakturafil: "
+                        + invoiceFile.getAbsolutePath()
+                        + ". Felmeddelande: "
+                        + ex.getMessage(),
+                    true);
+            }
+        }
     }
 
     /**
@@ -456,33 +715,110 @@ public class XmlRepository {
      */
     public synchronized void addInvoiceToCustomer(CustomerType customer, InvoiceType invoice) {
 
-        if (customer.getInvoices() == null) {
-            customer.setInvoices(OBJECT_FACTORY.createInvoicesType());
+        // Replace the customer's invoice list with a copy with this invoice added
+        List<InvoiceType> invoices = new ArrayList<>();
+        if (customer.getInvoices() != null) {
+            invoices.addAll(customer.getInvoices().getInvoice());
         }
-        InvoicesType invoicesType = customer.getInvoices();
-        invoicesType.getInvoice().add(invoice);
+        invoices.add(invoice);
+        this.replaceInvoices(customer, invoices);
+
+        this.index.addInvoice(customer, invoice);
+        this.changeTracker.customerChanged(customer.getCustomerInfo().getCustomerUUID());
     }
 
     /**
-     * Returns the next avaliable invoice nr and saves it in the repository.
+     * Returns the next avaliable invoice nr.
      * The number is "consumed" as soon as this method has been called.
      * 
      * @return A new, unique invoice nr
      */
-    public synchronized int getNewInvoiceNr() {
+    public int getNewInvoiceNr() {
+        return this.numberSequences.nextInvoiceNrs(1);
+    }
 
-        // Increment, set and return a new nr.
-        // This is never null, since we always initialize the repository.
-        CustomersType customersType = this.customersJaxbXml.getValue();
-        Integer invoiceNr = customersType.getCurrentInvoiceNr();
-        invoiceNr++;
+    /**
+     * Reserves a whole block of consecutive invoice numbers.
+     * The numbers are "consumed" as soon as this method has been called.
+     * 
+     * @param invoiceCount Number of invoice numbers to reserve
+     * @return A new batch, handing out the reserved numbers
+     */
+    public InvoiceBatch beginInvoiceBatch(int invoiceCount) {
+
+        this.checkWritable();
+
+        int firstInvoiceNr = invoiceCount > 0
+            ? this.numberSequences.nextInvoiceNrs(invoiceCount)
+            : this.numberSequences.getCurrentInvoiceNr() + 1;
+        return new InvoiceBatch(this, firstInvoiceNr, invoiceCount);
+    }
+
+    /**
+     * Connects all invoices of a batch to their customers and journals them with one sync.
+     * Called by <code>InvoiceBatch.commit()</code>.
+     * 
+     * <p>
+     * The customers are looked up again, since the run renders from a snapshot taken
+     * without the lock. Invoices of customers deleted during the run are left out and
+     * returned, so the caller can remove their files.
+     * </p>
+     * 
+     * @param customers Customers, one per invoice
+     * @param invoices Invoices, in the same order as the customers
+     * @return The invoices left out, since their customers are deleted
+     */
+    protected synchronized List<InvoiceType> commitInvoiceBatch(
+        List<CustomerType> customers,
+        List<InvoiceType> invoices) {
+
+        List<CustomerType> currentCustomers = new ArrayList<>(invoices.size());
+        List<InvoiceType> currentInvoices = new ArrayList<>(invoices.size());
+        List<InvoiceType> droppedInvoices = new ArrayList<>();
+        for (int i = 0; i < invoices.size(); i++) {
+            CustomerType customer = this.index
+                .getCustomerByUUID(customers.get(i).getCustomerInfo().getCustomerUUID());
+            if (customer == null) {
+                droppedInvoices.add(invoices.get(i));
+            } else {
+                currentCustomers.add(customer);
+                currentInvoices.add(invoices.get(i));
+            }
+        }
 
-        // There could be a scenario where a new invoice is created with this nr, but the repository
-        // is never saved with the new nr. That would lead to duplicate numbers, so we save right away.
-        customersType.setCurrentInvoiceNr(invoiceNr);
-        this.saveRepository();
+        // The invoices are connected only once durable, so a failed append leaves the
+        // customers unchanged and the caller rolls back the files
+        long journalSequence = 0;
+        for (int i = 0; i < currentInvoices.size(); i++) {
+            journalSequence = this.journal.appendInvoiceAdded(
+                currentCustomers.get(i).getCustomerInfo().getCustomerUUID(),
+                currentInvoices.get(i));
+        }
+        this.commit(journalSequence);
+
+        Set<String> changedCustomerUUIDs = new HashSet<>();
+        for (int i = 0; i < currentInvoices.size(); i++) {
+            this.addInvoiceToCustomer(currentCustomers.get(i), currentInvoices.get(i));
+            changedCustomerUUIDs.add(currentCustomers.get(i).getCustomerInfo().getCustomerUUID());
+        }
+        for (String customerUUID : changedCustomerUUIDs) {
+            this.store.customerChanged(customerUUID);
+        }
+        this.publishState();
 
-        return invoiceNr;
+        return droppedInvoices;
+    }
+
+    /**
+     * Gives back the invoice numbers of a batch that was rolled back, if no later numbers
+     * are handed out. Called by <code>InvoiceBatch.rollback()</code>.
+     *
+     * @param firstInvoiceNr The first nr of the batch
+     * @param invoiceCount Number of invoice numbers reserved by the batch
+     * @return True if given back
+     */
+    protected boolean releaseInvoiceNrs(int firstInvoiceNr, int invoiceCount) {
+        return this.numberSequences.releaseInvoiceNrs(firstInvoiceNr, invoiceCount);
     }
 
     /**
@@ -490,11 +826,8 @@ public class XmlRepository {
      * 
      * @return The latest customer nr used
      */
-    public synchronized int getCurrentCustomerNr() {
-
-        // This is never null, since we always initialize the repository.
-        CustomersType customersType = this.customersJaxbXml.getValue();
-        return customersType.getCurrentCustomerNr().intValue();
+    public int getCurrentCustomerNr() {
+        return this.numberSequences.getCurrentCustomerNr();
     }
 
     /**
@@ -505,31 +838,96 @@ public class XmlRepository {
      */
     public CustomerType getCustomerByInvoiceNr(int invoiceNr) {
 
-        // This is never null, since we always initialize the repository.
-        CustomersType customersType = this.customersJaxbXml.getValue();
+        CustomerType customer = this.index.getInvoiceOwner(invoiceNr);
+        if (customer == null) {
 
-        for (CustomerType customer : customersType.getCustomer()) {
-            if (customer.getInvoices() != null) {
-                for (InvoiceType invoice : customer.getInvoices().getInvoice()) {
-                    if (invoiceNr == invoice.getInvoiceNumber()) {
-                        return customer;
-                    }
-                }
+            // The owners of archived and settled invoices are kept in memory
+            String customerUUID;
+            try {
+                customerUUID = this.invoiceArchive.findOwner(invoiceNr);
+            } catch (IOException exception) {
+                throw new RuntimeException(
+                    "Fel då fakturaarkivet skulle läsas. Felmeddelande: " + exception.getMessage(),
+                    exception);
+            }
+            if (customerUUID == null) {
+                customerUUID = this.findInvoiceHistoryOwner(invoiceNr);
+            }
+            if (customerUUID != null) {
+                customer = this.index.getCustomerByUUID(customerUUID);
             }
         }
+        return customer;
+    }
 
-        return null;
+    /**
+     * Returns true if an invoice is in the read-only invoice archive
+     * 
+     * @param invoiceNr Invoice number
+     * @return True if archived, and not to be changed
+     */
+    public boolean isArchived(int invoiceNr) {
+        try {
+            return this.invoiceArchive.contains(invoiceNr);
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då fakturaarkivet skulle läsas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+    }
+
+    /**
+     * Returns the current version of the repository, counted up by every change.
+     * Pass it to <code>getChangesSince(long)</code> later, to get what has changed since.
+     * 
+     * @return The version, 0 if nothing has changed since the repository was loaded
+     */
+    public long getVersion() {
+        return this.changeTracker.getVersion();
+    }
+
+    /**
+     * Returns the version of the last change of a customer
+     * 
+     * @param customerUUID Customer UUID
+     * @return The version, 0 if the customer has not changed since the repository was loaded
+     */
+    public long getCustomerVersion(UUID customerUUID) {
+        return this.changeTracker.getVersion(customerUUID.toString());
+    }
+
+    /**
+     * Returns the customers changed and deleted after a given version
+     * 
+     * @param sinceVersion A version from <code>getVersion()</code>, or from earlier changes
+     * @return The changes, and the version they lead up to
+     */
+    public synchronized RepositoryChanges getChangesSince(long sinceVersion) {
+
+        // New customers that have not been saved yet are left out
+        List<CustomerType> changedCustomers = new ArrayList<>();
+        for (String customerUUID : this.changeTracker.getChangedSince(sinceVersion)) {
+            CustomerType customer = this.index.getCustomerByUUID(customerUUID);
+            if (customer != null) {
+                changedCustomers.add(customer);
+            }
+        }
+        return new RepositoryChanges(
+            this.changeTracker.getVersion(),
+            changedCustomers,
+            this.changeTracker.getDeletedSince(sinceVersion));
     }
 
     /**
      * Generates a single invoice file for a customer for a given period
      * and saves it at the same time. The result is always one single invoice.
+     * The invoice is rendered without holding the repository lock.
      * 
      * @param nextPeriod True if to use next subscription period, or false for the current one
      * @param customerUUID Customer's ID
      * @return The invoice creation result
      */
-    public synchronized InvoiceResults generateAndStoreSingleInvoice(
+    public InvoiceResults generateAndStoreSingleInvoice(
         boolean nextPeriod,
         UUID customerUUID) {
 
@@ -538,16 +936,31 @@ public class XmlRepository {
 
         ExcelHandler excelHandler = new ExcelHandler(this);
         CustomerType customer = this.getCustomer(customerUUID);
-        InvoiceType invoice = excelHandler
-            .createInvoiceFile(customer, SquashProperties.INVOICE_DAYS_DUE, nextPeriod);
-        invoiceFilenameSingleton.add(invoice.getRelativeFilePath());
 
-        // Period is null if there is no subscription
-        if (invoice.getPeriodStartDate() == null) {
-            customersWithoutSubscriptionSingleton.add("Kunden har inga abonnemang");
-        }
+        InvoiceBatch invoiceBatch = this.beginInvoiceBatch(1);
+        try {
+            InvoiceType invoice = excelHandler.createInvoiceFile(
+                customer,
+                SquashProperties.INVOICE_DAYS_DUE,
+                nextPeriod,
+                invoiceBatch.nextInvoiceNr());
+            invoiceBatch.addInvoice(customer, invoice);
+            invoiceFilenameSingleton.add(invoice.getRelativeFilePath());
+
+            // Period is null if there is no subscription
+            if (invoice.getPeriodStartDate() == null) {
+                customersWithoutSubscriptionSingleton.add("Kunden har inga abonnemang");
+            }
+
+            if (!invoiceBatch.commit().isEmpty()) {
+                throw new IllegalStateException(
+                    "Kunden har raderats, ingen faktura skapades: " + customerUUID);
+            }
 
-        this.saveRepository();
+        } catch (RuntimeException exception) {
+            invoiceBatch.rollback();
+            throw exception;
+        }
 
         return new InvoiceResults(invoiceFilenameSingleton, customersWithoutSubscriptionSingleton);
     }
@@ -555,53 +968,463 @@ public class XmlRepository {
     /**
      * Generates invoice files for all customers having a subscription 
      * for a given period and saves everything at the same time.
+     * The invoices are rendered in parallel without holding the repository lock, so other
+     * reads and writes can go on during a long run.
      * 
      * @param nextPeriod True if to use next subscription period, or false for the current one
      * @return The invoice creation result
      */
-    public synchronized InvoiceResults generateAndStoreInvoices(boolean nextPeriod) {
+    public InvoiceResults generateAndStoreInvoices(boolean nextPeriod) {
+        return this.generateAndStoreInvoices(nextPeriod, null);
+    }
 
-        List<String> invoiceFilenames = new ArrayList<>();
+    /**
+     * Generates invoice files for all customers having a subscription
+     * for a given period and saves everything at the same time.
+     * The run can be cancelled, in which case nothing is saved and no invoice files are left.
+     *
+     * @param nextPeriod True if to use next subscription period, or false for the current one
+     * @param runControl Control to cancel the run and follow its progress, or null
+     * @return The invoice creation result
+     * @throws java.util.concurrent.CancellationException If the run was cancelled
+     */
+    public InvoiceResults generateAndStoreInvoices(
+        boolean nextPeriod,
+        InvoiceRunControl runControl) {
+
+        final List<String> invoiceFilenames = new ArrayList<>();
         List<String> customersWithoutSubscriptions = new ArrayList<>();
 
-        ExcelHandler excelHandler = new ExcelHandler(this);
-        for (CustomerType customer : this.getAllCustomers()) {
-
-            // Only process subscriptions
-            if (customer.getSubscriptions() == null
-                || customer.getSubscriptions().getSubscription().isEmpty()) {
-
-                CustomerInfoType customerInfo = customer.getCustomerInfo();
-                String customerLabel = String.valueOf(customerInfo.getCustomerNumber())
-                    + " ("
-                    + (!SquashUtil.isSet(customerInfo.getFirstname())
-                        ? ""
-                        : customerInfo.getFirstname())
-                    + (!SquashUtil.isSet(customerInfo.getLastname())
-                        ? ""
-                        : " " + customerInfo.getLastname())
-                    + ")";
-                customersWithoutSubscriptions.add(customerLabel);
+        // Reserve all invoice numbers needed for this run at once
+        List<CustomerType> allCustomers = this.getAllCustomers();
+        int invoiceCount = 0;
+        for (CustomerType customer : allCustomers) {
+            if (customer.getSubscriptions() != null
+                && !customer.getSubscriptions().getSubscription().isEmpty()) {
+                ++invoiceCount;
+            }
+        }
+        final InvoiceBatch invoiceBatch = this.beginInvoiceBatch(invoiceCount);
+        BatchInvoiceWorkbook batchWorkbook = null;
 
-                continue;
+        try {
+            // Invoice numbers are handed out in customer order, before rendering starts
+            List<CustomerType> invoiceCustomers = new ArrayList<>(invoiceCount);
+            int[] invoiceNrs = new int[invoiceCount];
+            for (CustomerType customer : allCustomers) {
+
+                // Only process subscriptions
+                if (customer.getSubscriptions() == null
+                    || customer.getSubscriptions().getSubscription().isEmpty()) {
+
+                    CustomerInfoType customerInfo = customer.getCustomerInfo();
+                    String customerLabel = String.valueOf(customerInfo.getCustomerNumber())
+                        + " ("
+                        + (!SquashUtil.isSet(customerInfo.getFirstname())
+                            ? ""
+                            : customerInfo.getFirstname())
+                        + (!SquashUtil.isSet(customerInfo.getLastname())
+                            ? ""
+                            : " " + customerInfo.getLastname())
+                        + ")";
+                    customersWithoutSubscriptions.add(customerLabel);
+
+                    continue;
+
+                } else {
+
+                    invoiceNrs[invoiceCustomers.size()] = invoiceBatch.nextInvoiceNr();
+                    invoiceCustomers.add(customer);
+                }
+            }
 
+            // Either one workbook for the whole run, or one file per customer
+            if (BatchInvoiceWorkbook.BATCH_OUTPUT.equals(SquashProperties.INVOICE_OUTPUT)) {
+                batchWorkbook = new BatchInvoiceWorkbook(
+                    this,
+                    SquashProperties.INVOICE_DAYS_DUE,
+                    nextPeriod,
+                    Calendar.getInstance());
+                List<InvoiceType> invoices = batchWorkbook.createInvoices(
+                    invoiceCustomers,
+                    invoiceNrs,
+                    runControl);
+                for (int i = 0; i < invoices.size(); i++) {
+                    invoiceBatch.addInvoice(invoiceCustomers.get(i), invoices.get(i));
+                    invoiceFilenames.add(invoices.get(i).getRelativeFilePath());
+                }
             } else {
 
-                InvoiceType invoice = excelHandler
-                    .createInvoiceFile(customer, SquashProperties.INVOICE_DAYS_DUE, nextPeriod);
-                invoiceFilenames.add(invoice.getRelativeFilePath());
+                // Each invoice is added to the batch as soon as its file is written
+                new ParallelInvoiceEngine(
+                    this,
+                    SquashProperties.INVOICE_RENDER_THREADS,
+                    SquashProperties.INVOICE_WRITER,
+                    SquashProperties.INVOICE_TEMPLATES).createInvoiceFiles(
+                        invoiceCustomers,
+                        invoiceNrs,
+                        SquashProperties.INVOICE_DAYS_DUE,
+                        nextPeriod,
+                        new BiConsumer<CustomerType, InvoiceType>() {
+
+                            @Override
+                            public void accept(CustomerType customer, InvoiceType invoice) {
+                                invoiceBatch.addInvoice(customer, invoice);
+                                invoiceFilenames.add(invoice.getRelativeFilePath());
+                            }
+                        },
+                        runControl);
+            }
+
+            // Connect all invoices and save everything once, customers deleted during the
+            // run get no invoice
+            for (InvoiceType droppedInvoice : invoiceBatch.commit()) {
+                invoiceFilenames.remove(droppedInvoice.getRelativeFilePath());
             }
-        }
 
-        this.saveRepository();
+        } catch (RuntimeException exception) {
+            invoiceBatch.rollback();
+            if (batchWorkbook != null) {
+                batchWorkbook.deleteFile();
+            }
+            throw exception;
+        }
 
         return new InvoiceResults(invoiceFilenames, customersWithoutSubscriptions);
     }
 
     /**
-     * Saves the current state of the whole repository to XML file
+     * Saves the current state of the whole repository to the binary snapshot file,
+     * and waits until it is on disk. Must not be called while holding the repository lock.
+     */
+    public void saveRepository() {
+        this.persistenceWriter.markDirty();
+        this.persistenceWriter.awaitDurable();
+    }
+
+    /**
+     * Asks the background writer to save the snapshot file right away
+     * @return A future that completes when all changes made so far are in the snapshot file
+     */
+    public Future<Void> flush() {
+        return this.persistenceWriter.flush();
+    }
+
+    /**
+     * Waits until all changes made so far are in the snapshot file.
+     * Must not be called while holding the repository lock.
+     */
+    public void awaitDurable() {
+        this.persistenceWriter.awaitDurable();
+    }
+
+    /**
+     * Saves all pending changes, stops the background writer and exports the XML file.
+     * Call this when the program exits, the repository must not be changed afterwards.
+     */
+    public void shutdown() {
+        this.persistenceWriter.shutdown();
+        this.exportXml();
+        this.numberSequences.close();
+    }
+
+    /**
+     * Returns true if the repository is read-only, since the loaded data failed validation.
+     * The data is shown as loaded, but can't be changed until the XML file is corrected
+     * and the program is restarted.
+     * 
+     * @return True if read-only
+     */
+    public boolean isReadOnly() {
+        return this.readOnlyReason != null;
+    }
+
+    /**
+     * Returns why the repository is read-only
+     * @return The validation error, or null if not read-only
+     */
+    public String getReadOnlyReason() {
+        return this.readOnlyReason;
+    }
+
+    /**
+     * Adds a listener that is told when the repository becomes read-only. If it already is,
+     * the listener is called right away. Listeners are called on the validation thread.
+     * 
+     * @param listener The listener
      */
-    public synchronized void saveRepository() {
+    public void addReadOnlyListener(ReadOnlyListener listener) {
+        synchronized (this.readOnlyListeners) {
+            this.readOnlyListeners.add(listener);
+            if (this.readOnlyReason != null) {
+                listener.readOnly(this.readOnlyReason);
+            }
+        }
+    }
+
+    /**
+     * Listener for the repository becoming read-only
+     */
+    public interface ReadOnlyListener {
+
+        /**
+         * Called when the repository has become read-only
+         * @param reason The validation error
+         */
+        void readOnly(String reason);
+    }
+
+    // Validates the loaded XML file on a low priority thread, while the program is in use
+    private void startBackgroundValidation() {
+
+        this.startLowPriorityThread("SquashSchemaValidation", new Runnable() {
+
+            @Override
+            public void run() {
+
+                long start = System.nanoTime();
+                try {
+                    XmlRepository.this.xmlStore.validateLoaded();
+                    logger.log(
+                        "Customer database validated in "
+                            + (System.nanoTime() - start) / 1000000L
+                            + " ms",
+                        false);
+
+                } catch (Exception exception) {
+                    logger.log(
+                        "Varning: Kunddatabasen är skrivskyddad. " + exception.getMessage(),
+                        true);
+                    XmlRepository.this.setReadOnly(exception.getMessage());
+                }
+            }
+        });
+    }
+
+    // Writes a backup point on a low priority thread, while the program is in use, and then
+    // archives old invoices. Only the encoding of the customers holds the repository lock.
+    private void startBackgroundBackup() {
+
+        this.startLowPriorityThread("SquashBackup", new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    RepositoryStore.PendingWrite backupPoint;
+                    synchronized (XmlRepository.this) {
+                        XmlRepository.this.updateCounters();
+                        backupPoint = XmlRepository.this.backups.capture(
+                            XmlRepository.this.customersJaxbXml.getValue(),
+                            XmlRepository.this.invoiceHistory,
+                            XmlRepository.this.invoiceArchive);
+                    }
+                    backupPoint.write();
+                    int deletedChunks = XmlRepository.this.backups
+                        .prune(XmlRepository.this.getBackupThresholdMillis());
+                    logger.log(
+                        "Backup point written: "
+                            + backupPoint
+                            + ", "
+                            + deletedChunks
+                            + " old chunks deleted: "
+                            + backupPoint.getTimings(),
+                        false);
+
+                } catch (Exception exception) {
+                    logger.log(
+                        "Varning: Fel uppstod vid skapande av backup för databasen. "
+                            + "Felmeddelande: "
+                            + exception.getMessage(),
+                        true);
+                }
+
+                try {
+                    long start = System.nanoTime();
+                    int archivedInvoices = XmlRepository.this.archiveOldInvoices();
+                    if (archivedInvoices > 0) {
+                        logger.log(
+                            "Archived "
+                                + archivedInvoices
+                                + " old invoices in "
+                                + (System.nanoTime() - start) / 1000000L
+                                + " ms",
+                            false);
+                    }
+
+                } catch (Exception exception) {
+                    logger.log(
+                        "Varning: Fel uppstod vid arkivering av gamla fakturor. "
+                            + "Felmeddelande: "
+                            + exception.getMessage(),
+                        true);
+                }
+            }
+        });
+    }
+
+    // Moves paid and cancelled invoices older than the archive age from the history to the
+    // archive. The histories are searched without the repository lock. A save or delete may
+    // change a history after that, so the customers having candidates are read again with
+    // the lock held, and only the invoices still archivable are archived and removed. An
+    // invoice is in the archive before it is removed from the history.
+    private int archiveOldInvoices() throws IOException {
+
+        Calendar threshold = Calendar.getInstance();
+        threshold.add(Calendar.MONTH, -SquashProperties.ARCHIVE_AGE_MONTHS);
+
+        Set<String> candidateCustomerUUIDs = new HashSet<>();
+        for (String customerUUID : this.invoiceHistory.getCustomerUUIDs()) {
+            for (InvoiceType invoice : this.invoiceHistory.getUncached(customerUUID)) {
+                if (isArchivable(invoice, threshold)) {
+                    candidateCustomerUUIDs.add(customerUUID);
+                    break;
+                }
+            }
+        }
+        if (candidateCustomerUUIDs.isEmpty()) {
+            return 0;
+        }
+
+        synchronized (this) {
+            return this.archiveInvoices(candidateCustomerUUIDs, threshold);
+        }
+    }
+
+    // Archives the archivable invoices in the current histories of the given customers, and
+    // removes them from the histories. Called with the repository lock held.
+    private int archiveInvoices(Set<String> customerUUIDs, Calendar threshold)
+        throws IOException {
+
+        Map<Integer, Map<String, List<InvoiceType>>> invoicesByYear = new TreeMap<>();
+        Map<String, Set<Integer>> archivedInvoiceNrs = new HashMap<>();
+        for (String customerUUID : customerUUIDs) {
+
+            // A deleted customer has no history left
+            if (this.index.getCustomerByUUID(customerUUID) == null) {
+                continue;
+            }
+            for (InvoiceType invoice : this.invoiceHistory.getUncached(customerUUID)) {
+                if (!isArchivable(invoice, threshold)) {
+                    continue;
+                }
+
+                Integer year = Integer.valueOf(invoice.getCreatedDate().getYear());
+                Map<String, List<InvoiceType>> yearInvoices = invoicesByYear.get(year);
+                if (yearInvoices == null) {
+                    yearInvoices = new HashMap<>();
+                    invoicesByYear.put(year, yearInvoices);
+                }
+                List<InvoiceType> customerInvoices = yearInvoices.get(customerUUID);
+                if (customerInvoices == null) {
+                    customerInvoices = new ArrayList<>();
+                    yearInvoices.put(customerUUID, customerInvoices);
+                }
+                customerInvoices.add(invoice);
+
+                Set<Integer> invoiceNrs = archivedInvoiceNrs.get(customerUUID);
+                if (invoiceNrs == null) {
+                    invoiceNrs = new HashSet<>();
+                    archivedInvoiceNrs.put(customerUUID, invoiceNrs);
+                }
+                invoiceNrs.add(Integer.valueOf(invoice.getInvoiceNumber()));
+            }
+        }
+
+        for (Map.Entry<Integer, Map<String, List<InvoiceType>>> entry : invoicesByYear
+            .entrySet()) {
+            this.invoiceArchive.add(entry.getKey().intValue(), entry.getValue());
+        }
+
+        int archivedInvoices = 0;
+        for (Map.Entry<String, Set<Integer>> entry : archivedInvoiceNrs.entrySet()) {
+            this.invoiceHistory.remove(entry.getKey(), entry.getValue());
+            archivedInvoices += entry.getValue().size();
+        }
+        return archivedInvoices;
+    }
+
+    // True if a history invoice is settled and created before the threshold
+    private static boolean isArchivable(InvoiceType invoice, Calendar threshold) {
+        XMLGregorianCalendar createdDate = invoice.getCreatedDate();
+        return InvoiceHistory.isSettled(invoice)
+            && createdDate != null
+            && createdDate.toGregorianCalendar().before(threshold);
+    }
+
+    private void startLowPriorityThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void setReadOnly(String reason) {
+        synchronized (this.readOnlyListeners) {
+            this.readOnlyReason = reason;
+            for (ReadOnlyListener listener : this.readOnlyListeners) {
+                listener.readOnly(reason);
+            }
+        }
+    }
+
+    // Throws if changes are not allowed
+    private void checkWritable() {
+        String reason = this.readOnlyReason;
+        if (reason != null) {
+            throw new IllegalStateException("Kunddatabasen är skrivskyddad: " + reason);
+        }
+    }
+
+    /**
+     * Writes a checkpoint: the current state goes to the configured store, and the journal
+     * is emptied. Called by the background writer. Only the capture of the state holds the
+     * repository lock, the files are written while other threads keep working.
+     */
+    protected void writeCheckpoint() {
+
+        try {
+            RepositoryStore.PendingWrite pendingWrite;
+            synchronized (this) {
+                this.updateCounters();
+                pendingWrite = this.store.capture(this.customersJaxbXml.getValue());
+                this.journal.rotate();
+            }
+
+            // The rotated journal is kept until the checkpoint is on disk
+            try {
+                pendingWrite.write();
+            } catch (IOException exception) {
+                synchronized (this) {
+                    pendingWrite.restore();
+                }
+                throw exception;
+            }
+            this.journal.discardRotated();
+            logger.log(
+                "Checkpoint written to the "
+                    + this.store.getName()
+                    + " store: "
+                    + pendingWrite.getTimings(),
+                false);
+
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då kunddatabasen skulle sparas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+    }
+
+    /**
+     * Exports the current state of the whole repository to the XML file,
+     * e.g. when the program exits. The configured store is still the primary copy.
+     */
+    public synchronized void exportXml() {
+
+        if (this.xmlStore == this.store) {
+            // The checkpoints already write the XML file
+            return;
+        }
 
         if (this.customersJaxbXml.getValue().getCustomer().isEmpty()) {
             // If no customers, but there is an existing file - simply delete it.
@@ -612,18 +1435,15 @@ public class XmlRepository {
             }
         } else {
 
-            // Marshall the XML object to file
-            FileOutputStream fileOutput = null;
+            // The XML store writes a temporary file, which replaces the XML file
+            // when complete. A half-written export would otherwise be imported on next start.
+            // The state was validated when loaded, so the export is written without validation.
             try {
-                Marshaller marshaller = JAXB_CONTEXT.createMarshaller();
-                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-                marshaller.setProperty(javax.xml.bind.Marshaller.JAXB_ENCODING, "UTF-8");
-
-                // This enables schema validation
-                marshaller.setSchema(SCHEMA);
-
-                fileOutput = new FileOutputStream(XML_STORAGE_FILE_PATH, false);
-                marshaller.marshal(this.customersJaxbXml, fileOutput);
+                this.updateCounters();
+                RepositoryStore.PendingWrite pendingWrite = this.xmlStore
+                    .captureTrusted(this.customersJaxbXml.getValue());
+                pendingWrite.write();
+                logger.log("XML file exported: " + pendingWrite.getTimings(), false);
 
                 // Indicate that there is a file now
                 if (this.xmlFile == null) {
@@ -634,27 +1454,219 @@ public class XmlRepository {
                 throw new RuntimeException(
                     "Fel då XML-databasen skulle sparas. Felmeddelande: " + exception.getMessage(),
                     exception);
-            } finally {
-                this.closeResource(fileOutput);
+            }
+
+            // The export holds the same data as the store. Give it the same timestamp,
+            // so only an XML file changed after the export is imported on next start.
+            long storeLastModified = this.store.getLastModified();
+            if (storeLastModified > 0) {
+                this.xmlFile.setLastModified(storeLastModified);
             }
         }
     }
 
-    private void closeResource(Closeable closable) {
+    // Moves the settled invoices of all customers to the history, on startup. The owners
+    // of the history are read first, or built once from the history files.
+    private int moveSettledInvoices() {
 
-        if (closable != null) {
-            try {
-                closable.close();
-            } catch (Exception exception) {
-                // Ignore this...
+        int movedInvoices = 0;
+        try {
+            this.invoiceHistory.loadOwners();
+            for (CustomerType customer : this.customersJaxbXml.getValue().getCustomer()) {
+                int customerMovedInvoices = this.invoiceHistory.moveSettled(customer);
+                if (customerMovedInvoices > 0) {
+                    this.store.customerChanged(customer.getCustomerInfo().getCustomerUUID());
+                    movedInvoices += customerMovedInvoices;
+                }
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då fakturahistoriken skulle sparas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+        return movedInvoices;
+    }
+
+    private List<InvoiceType> getInvoiceHistory(String customerUUID) {
+        try {
+            return this.invoiceHistory.get(customerUUID);
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då fakturahistoriken skulle läsas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+    }
+
+    private void putInvoiceHistory(String customerUUID, List<InvoiceType> invoices) {
+        try {
+            this.invoiceHistory.put(customerUUID, invoices);
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då fakturahistoriken skulle sparas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+    }
+
+    private String findInvoiceHistoryOwner(int invoiceNr) {
+        try {
+            return this.invoiceHistory.findOwner(invoiceNr);
+        } catch (IOException exception) {
+            throw new RuntimeException(
+                "Fel då fakturahistoriken skulle läsas. Felmeddelande: " + exception.getMessage(),
+                exception);
+        }
+    }
+
+    // Sets a new invoice container on the customer, see the class comment
+    private void replaceInvoices(CustomerType customer, List<InvoiceType> invoices) {
+        InvoicesType invoicesType = OBJECT_FACTORY.createInvoicesType();
+        invoicesType.getInvoice().addAll(invoices);
+        customer.setInvoices(invoicesType);
+    }
+
+    // Copies the nr series into the XML data, so they are part of every checkpoint
+    // and export. Before the series are opened on startup, the loaded values are kept.
+    private void updateCounters() {
+        if (this.numberSequences != null) {
+            CustomersType customersType = this.customersJaxbXml.getValue();
+            customersType.setCurrentCustomerNr(this.numberSequences.getCurrentCustomerNr());
+            customersType.setCurrentInvoiceNr(this.numberSequences.getCurrentInvoiceNr());
+        }
+    }
+
+    // Publishes a new read view of the customer list. Called with the repository
+    // lock held, after every change to it or to a customer's containers.
+    private void publishState() {
+        this.publishedState = new PublishedState(
+            Collections.unmodifiableList(
+                new ArrayList<>(this.customersJaxbXml.getValue().getCustomer())));
+    }
+
+    // Makes the journal durable up to given record, and signals the background writer.
+    // When the journal has grown large enough, the checkpoint is written right away.
+    private void commit(long journalSequence) {
+
+        this.journal.sync(journalSequence);
+
+        this.persistenceWriter.markDirty();
+        if (this.journal.getRecordCount() >= SquashProperties.JOURNAL_CHECKPOINT_RECORDS) {
+            this.persistenceWriter.flush();
+        }
+    }
+
+    // Immutable read view of the repository
+    private static final class PublishedState {
+
+        private final List<CustomerType> customers;
+
+        private PublishedState(List<CustomerType> customers) {
+            this.customers = customers;
+        }
+    }
+
+    // Applies journal records to the in-memory XML data, on startup
+    private class JournalReplayer implements RepositoryJournal.Replayer {
+
+        @Override
+        public void customerSaved(CustomerType customer) {
+
+            List<CustomerType> customers = XmlRepository.this.customersJaxbXml
+                .getValue()
+                .getCustomer();
+            String customerUUID = customer.getCustomerInfo().getCustomerUUID();
+            XmlRepository.this.store.customerChanged(
+                customer.getCustomerInfo().getCustomerUUID());
+            for (int i = 0; i < customers.size(); i++) {
+                if (customers.get(i).getCustomerInfo().getCustomerUUID().equals(customerUUID)) {
+                    customers.set(i, customer);
+                    return;
+                }
+            }
+            customers.add(customer);
+        }
+
+        @Override
+        public void customerDeleted(String customerUUID) {
+
+            XmlRepository.this.store.customerDeleted(customerUUID);
+
+            Iterator<CustomerType> customersIterator = XmlRepository.this.customersJaxbXml
+                .getValue()
+                .getCustomer()
+                .iterator();
+            while (customersIterator.hasNext()) {
+                if (customersIterator
+                    .next()
+                    .getCustomerInfo()
+                    .getCustomerUUID()
+                    .equals(customerUUID)) {
+                    customersIterator.remove();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void invoiceDeleted(int invoiceNr) {
+
+            for (CustomerType customer : XmlRepository.this.customersJaxbXml
+                .getValue()
+                .getCustomer()) {
+                if (customer.getInvoices() != null) {
+                    Iterator<InvoiceType> invoiceIterator = customer
+                        .getInvoices()
+                        .getInvoice()
+                        .iterator();
+                    while (invoiceIterator.hasNext()) {
+                        if (invoiceIterator.next().getInvoiceNumber() == invoiceNr) {
+                            invoiceIterator.remove();
+                            XmlRepository.this.store.customerChanged(
+                                customer.getCustomerInfo().getCustomerUUID());
+                            return;
+                        }
+                    }
+                }
             }
         }
+
+        @Override
+        public void invoiceAdded(String customerUUID, InvoiceType invoice) {
+
+            for (CustomerType customer : XmlRepository.this.customersJaxbXml
+                .getValue()
+                .getCustomer()) {
+                if (customer.getCustomerInfo().getCustomerUUID().equals(customerUUID)) {
+                    XmlRepository.this.store.customerChanged(
+                        customer.getCustomerInfo().getCustomerUUID());
+                    if (customer.getInvoices() == null) {
+                        customer.setInvoices(OBJECT_FACTORY.createInvoicesType());
+                    }
+
+                    // The invoice may already be in the snapshot, from a rotated journal
+                    List<InvoiceType> invoices = customer.getInvoices().getInvoice();
+                    for (InvoiceType existingInvoice : invoices) {
+                        if (existingInvoice.getInvoiceNumber() == invoice.getInvoiceNumber()) {
+                            return;
+                        }
+                    }
+                    invoices.add(invoice);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void countersSet(int currentCustomerNr, int currentInvoiceNr) {
+            CustomersType customersType = XmlRepository.this.customersJaxbXml.getValue();
+            customersType.setCurrentCustomerNr(currentCustomerNr);
+            customersType.setCurrentInvoiceNr(currentInvoiceNr);
+        }
     }
 
     // How old backup files we keep
     private long getBackupThresholdMillis() {
         Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.YEAR, -1);
+        cal.add(Calendar.YEAR, -1);
         return cal.getTimeInMillis();
     }
 }